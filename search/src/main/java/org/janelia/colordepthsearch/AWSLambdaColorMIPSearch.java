@@ -2,12 +2,20 @@ package org.janelia.colordepthsearch;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -15,6 +23,7 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import com.google.common.base.Splitter;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Streams;
 
 import org.apache.commons.lang3.RegExUtils;
@@ -22,26 +31,50 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.janelia.colormipsearch.api.cdmips.MIPImage;
 import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
-import org.janelia.colormipsearch.api.cdmips.MIPsUtils;
 import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
 import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProvider;
 import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProviderFactory;
 import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
 import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearch;
-import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearchResult;
 import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 class AWSLambdaColorMIPSearch {
 
-    private static final Logger LOG = LoggerFactory.getLogger(MIPsUtils.class);
+    private static final Logger LOG = LoggerFactory.getLogger(AWSLambdaColorMIPSearch.class);
 
     private final AWSMIPLoader mipLoader;
     private final ColorMIPSearch colorMIPSearch;
     private final String awsMasksBucket;
     private final String awsLibrariesBucket;
     private final String awsLibrariesThumbnailsBucket;
+    // per mask messages
+    private final SampledLog sampledLog = new SampledLog(LOG);
+    private ColorMIPSearch gradientScoresSearch;
+    private int maxGradientCandidates;
+    private int minGradientCandidateMatchingPixels;
+    private Integer sparseTargetsDataThreshold;
+    private MemoryBudget memoryBudget;
+    private List<? extends CandidateTargetsIndex> candidateIndexes = Collections.emptyList();
+    private int candidatesXYShift;
+    private boolean candidatesMirrorMask;
+    private Map<String, long[]> targetSignalBits = Collections.emptyMap();
+    private int signalBitsWidth;
+    private int signalBitsHeight;
+    private ColorMIPSearch unshiftedPixelMatchSearch;
+    private ColorLookupTable colorLookupTable;
+    private boolean withComputedTargetVariants;
+    private int targetVariantsDataThreshold;
+    private int targetVariantsMaxDistance;
+    private int shiftBoundsDataThreshold;
+    private int maskBitsXYShift;
+    private boolean maskBitsMirrorMask;
+    private int maxResultsPerMask;
+    private boolean withTiledTargets;
+    private int tiledTargetsXYShift;
+    private boolean tiledTargetsMirrorMask;
+    private BooleanSupplier cancellation = () -> false;
 
     AWSLambdaColorMIPSearch(AWSMIPLoader mipLoader,
                             ColorMIPSearch colorMIPSearch,
@@ -55,97 +88,734 @@ class AWSLambdaColorMIPSearch {
         this.awsLibrariesThumbnailsBucket = awsLibrariesThumbnailsBucket;
     }
 
-    List<ColorMIPSearchResult> findAllColorDepthMatches(List<String> maskKeys,
-                                                        List<Integer> maskThresholds,
-                                                        List<String> targetKeys,
-                                                        List<String> targetGradientKeys,
-                                                        List<String> targetZGapMaskKeys) {
-        return Streams.zip(maskKeys.stream(), maskThresholds.stream(),
-                (maskKey, maskThreshold) -> runMaskSearches(maskKey, maskThreshold, targetKeys, targetGradientKeys, targetZGapMaskKeys))
-                .flatMap(Collection::stream)
+    /**
+     * Enable two phase gradient scoring. The first phase runs the pixel match search against all targets and the second
+     * phase calculates the gradient scores only for the best pixel matches of each mask.
+     *
+     * @param gradientScoresSearch search used for calculating the gradient scores
+     * @param maxGradientCandidates maximum number of pixel matches per mask selected for gradient scoring; 0 means no limit
+     * @param minGradientCandidateMatchingPixels minimum number of matching pixels required for gradient scoring
+     */
+    void setGradientScoresSearch(ColorMIPSearch gradientScoresSearch, int maxGradientCandidates, int minGradientCandidateMatchingPixels) {
+        this.gradientScoresSearch = gradientScoresSearch;
+        this.maxGradientCandidates = maxGradientCandidates;
+        this.minGradientCandidateMatchingPixels = minGradientCandidateMatchingPixels;
+    }
+
+    /**
+     * Use the sparse version of the targets, when available, for the pixel match. The sparse targets are only used
+     * if they were created with a threshold that is not greater than the search data threshold.
+     *
+     * @param sparseTargetsDataThreshold data threshold of the search
+     */
+    void setSparseTargetsDataThreshold(int sparseTargetsDataThreshold) {
+        this.sparseTargetsDataThreshold = sparseTargetsDataThreshold;
+    }
+
+    /**
+     * Compare the targets in parallel within the given memory budget. Without a budget the targets are compared one at a time.
+     */
+    void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Only compare the masks with the targets shortlisted by the library indexes, such as the tile color indexes
+     * or the MIP signature indexes. Targets that are not part of any index are always compared.
+     *
+     * @param candidateIndexes library indexes
+     * @param xyShift search xy shift used for extending the mask footprint
+     * @param mirrorMask if true the footprint of the mirrored mask is also used
+     */
+    void setCandidateIndexes(List<? extends CandidateTargetsIndex> candidateIndexes, int xyShift, boolean mirrorMask) {
+        this.candidateIndexes = candidateIndexes;
+        this.candidatesXYShift = xyShift;
+        this.candidatesMirrorMask = mirrorMask;
+    }
+
+    /**
+     * Skip the targets that cannot match the mask because the number of mask pixels that overlap the target signal pixels,
+     * for any of the mask shifts, is too low for a pixel match. Targets without signal bits are always compared.
+     *
+     * @param targetSignalBits signal bits of the targets by target key, created with a threshold that is not greater than the data threshold
+     * @param width width of the images used for the signal bits
+     * @param height height of the images used for the signal bits
+     * @param xyShift search xy shift
+     * @param mirrorMask if true the mirrored mask is also compared
+     */
+    void setTargetSignalBits(Map<String, long[]> targetSignalBits, int width, int height, int xyShift, boolean mirrorMask) {
+        this.targetSignalBits = targetSignalBits;
+        this.signalBitsWidth = width;
+        this.signalBitsHeight = height;
+        this.maskBitsXYShift = xyShift;
+        this.maskBitsMirrorMask = mirrorMask;
+    }
+
+    /**
+     * Evaluate the mask shifts of the pixel match in the order of their upper bound and stop as soon as the remaining
+     * shifts cannot beat the best score, which gives the same scores as evaluating all shifts.
+     *
+     * @param unshiftedPixelMatchSearch pixel match search without xy shift and without mirrored mask
+     * @param dataThreshold search data threshold
+     * @param xyShift search xy shift
+     * @param mirrorMask if true the mirrored mask is also compared
+     */
+    void setShiftBoundedPixelMatch(ColorMIPSearch unshiftedPixelMatchSearch, int dataThreshold, int xyShift, boolean mirrorMask) {
+        this.unshiftedPixelMatchSearch = unshiftedPixelMatchSearch;
+        this.shiftBoundsDataThreshold = dataThreshold;
+        this.maskBitsXYShift = xyShift;
+        this.maskBitsMirrorMask = mirrorMask;
+    }
+
+    /**
+     * Compare the pixels of the shift bounded pixel match, set with {@link #setShiftBoundedPixelMatch},
+     * with lookups in the color lookup table, which gives the same scores.
+     *
+     * @param colorLookupTable table created from the same unshifted pixel match search
+     */
+    void setColorLookupTable(ColorLookupTable colorLookupTable) {
+        this.colorLookupTable = colorLookupTable;
+    }
+
+    /**
+     * Compute the gradient and the zgap variants of the targets from the loaded targets instead of fetching
+     * the variants stored with the library. The variants are computed at most once per comparison.
+     *
+     * @param dataThreshold search data threshold
+     * @param negativeRadius search negative radius, which is the largest distance of the gradient variant
+     */
+    void setComputedTargetVariants(int dataThreshold, int negativeRadius) {
+        this.withComputedTargetVariants = true;
+        this.targetVariantsDataThreshold = dataThreshold;
+        this.targetVariantsMaxDistance = negativeRadius;
+    }
+
+    /**
+     * Only keep the best pixel matches of every mask, including the ties of the last one, which are the results the
+     * combiner keeps from an exhaustive search. The targets are compared in the order of their signal bits bound and
+     * the lowest of the best scores found so far is used as a rising threshold: targets whose bound is below it are
+     * not loaded and the comparisons that cannot reach it are abandoned.
+     *
+     * Since the matches below the best results are not returned, the combiner's count of the matches of the mask is
+     * a lower bound. It only applies to the shift bounded pixel match searches without gradient scores.
+     *
+     * @param maxResultsPerMask number of results kept per mask
+     */
+    void setTopResultsBound(int maxResultsPerMask) {
+        this.maxResultsPerMask = maxResultsPerMask;
+    }
+
+    /**
+     * Use the tiled version of the targets, when available, for the pixel match, reading only the tiles that the mask
+     * can reach. Like the sparse targets, the tiled targets are only used if they were created with a threshold that is
+     * not greater than the data threshold set with {@link #setSparseTargetsDataThreshold}.
+     *
+     * @param xyShift search xy shift
+     * @param mirrorMask if true the mirrored mask is also compared
+     */
+    void setTiledTargets(int xyShift, boolean mirrorMask) {
+        this.withTiledTargets = true;
+        this.tiledTargetsXYShift = xyShift;
+        this.tiledTargetsMirrorMask = mirrorMask;
+    }
+
+    /**
+     * Stop the search when the cancellation signal is set: the remaining masks are not loaded and the remaining
+     * targets are neither fetched nor compared, so the matches found before the cancellation are incomplete.
+     * The signal is polled before every target, so it must be cheap.
+     */
+    void setCancellation(BooleanSupplier cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    ColorDepthMatches findAllColorDepthMatches(List<String> maskKeys,
+                                               List<Integer> maskThresholds,
+                                               List<String> targetKeys,
+                                               List<String> targetGradientKeys,
+                                               List<String> targetZGapMaskKeys) {
+        List<SearchTarget> targets = IntStream.range(0, targetKeys.size())
+                .mapToObj(targetIndex -> new SearchTarget(
+                        targetKeys.get(targetIndex),
+                        getTargetVariantKey(targetGradientKeys, targetIndex),
+                        getTargetVariantKey(targetZGapMaskKeys, targetIndex),
+                        null))
                 .collect(Collectors.toList());
+        return findAllColorDepthMatches(maskKeys, maskThresholds, targets);
+    }
+
+    ColorDepthMatches findAllColorDepthMatches(List<String> maskKeys,
+                                               List<Integer> maskThresholds,
+                                               List<SearchTarget> targets) {
+        ColorDepthMatches matches = createColorDepthMatches(targets);
+        Streams.forEachPair(maskKeys.stream(), maskThresholds.stream(),
+                (maskKey, maskThreshold) -> {
+                    if (!cancellation.getAsBoolean()) {
+                        runMaskSearches(maskKey, maskThreshold, targets, matches);
+                    }
+                });
+        logSampledMessageCounts();
+        return matches;
+    }
+
+    ColorDepthMatches createColorDepthMatches(List<SearchTarget> targets) {
+        return new ColorDepthMatches(targetIndex -> createLibraryMIP(targets.get(targetIndex).searchKey));
+    }
+
+    void logSampledMessageCounts() {
+        sampledLog.logMessageCounts();
+        mipLoader.logSampledMessageCounts();
+    }
+
+    /**
+     * @return true if the cancellation signal is set
+     */
+    boolean isCancelled() {
+        return cancellation.getAsBoolean();
+    }
+
+    /**
+     * @return the data threshold of the sparse targets or null if the search does not use the sparse targets
+     */
+    Integer getSparseTargetsDataThreshold() {
+        return sparseTargetsDataThreshold;
+    }
+
+    private void runMaskSearches(String maskKey,
+                                 int maskThreshold,
+                                 List<SearchTarget> targets,
+                                 ColorDepthMatches matches) {
+        PreparedMask preparedMask = prepareMask(maskKey, maskThreshold, targets);
+        if (preparedMask == null) {
+            return;
+        }
+        try {
+            Function<Integer, ColorMIPMatchScore> targetScorer = targetIndex -> calculateTargetScore(
+                    colorMIPSearch,
+                    preparedMask.maskColorDepthSearch,
+                    preparedMask.maskMIP,
+                    targets.get(targetIndex),
+                    sparseTargetsDataThreshold != null,
+                    preparedMask.targetRegions);
+            List<ImmutablePair<Integer, ColorMIPMatchScore>> targetMatches = preparedMask.topScores != null
+                    ? calculateTopTargetScores(preparedMask, targetScorer)
+                    : calculateTargetScores(preparedMask.searchedTargets, targetScorer, preparedMask.maskBytes, preparedMask.targetBytes);
+            completeMask(preparedMask, targetMatches, targets, matches);
+        } finally {
+            releaseMask(preparedMask);
+        }
     }
 
-    private List<ColorMIPSearchResult> runMaskSearches(String maskKey,
-                                                       int maskThreshold,
-                                                       List<String> targetKeys,
-                                                       List<String> targetGradientKeys,
-                                                       List<String> targetZGapMaskKeys) {
+    /**
+     * Load the mask and prepare its search: the search algorithm of the mask, its bounds and the targets the mask
+     * has to be compared with. The memory of the mask stays reserved until the mask is released with {@link #releaseMask}.
+     *
+     * @return the prepared mask or null if the mask could not be loaded
+     */
+    PreparedMask prepareMask(String maskKey, int maskThreshold, List<SearchTarget> targets) {
         long startTime = System.currentTimeMillis();
         MIPMetadata maskMIP = createMaskMIP(maskKey);
         MIPImage maskImage = mipLoader.loadMIP(awsMasksBucket, maskMIP);
         if (maskImage == null) {
-            return Collections.emptyList();
+            return null;
         }
+        long maskBytes = reserveMaskMemory(maskImage, maskThreshold);
         try {
-            ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch = colorMIPSearch.createQueryColorDepthSearch(maskImage, maskThreshold);
-            Set<String> requiredVariantTypes = maskColorDepthSearch.getRequiredTargetVariantTypes();
-            return Streams.zip(IntStream.range(0, targetKeys.size()).boxed(),
-                    targetKeys.stream(),
-                    (i, targetKey) -> ImmutablePair.of(
-                            i,
-                            mipLoader.loadMIPRange(
-                                    awsLibrariesBucket,
-                                    createLibraryMIP(targetKey),
-                                    maskColorDepthSearch.getQueryFirstPixelIndex(),
-                                    maskColorDepthSearch.getQueryLastPixelIndex())))
-                    .filter(indexedTargetMIP -> indexedTargetMIP.getRight() != null)
-                    .map(indexedTargetMIP -> {
-                        try {
-                            LOG.trace("Compare {} with {}", maskImage, indexedTargetMIP);
-                            Map<String, Supplier<ImageArray<?>>> variantImageSuppliers = new HashMap<>();
-                            if (requiredVariantTypes.contains("gradient")) {
-                                variantImageSuppliers.put("gradient", () -> {
-                                    String targetGradientKey = targetGradientKeys != null && indexedTargetMIP.getLeft() < targetGradientKeys.size()
-                                            ? targetGradientKeys.get(indexedTargetMIP.getLeft())
-                                            : null;
-                                    return mipLoader.loadFirstMatchingImageRange(
-                                            awsLibrariesBucket,
-                                            targetGradientKey,
-                                            maskColorDepthSearch.getQueryFirstPixelIndex(),
-                                            maskColorDepthSearch.getQueryLastPixelIndex());
-                                });
-                            }
-                            if (requiredVariantTypes.contains("zgap")) {
-                                variantImageSuppliers.put("zgap", () -> {
-                                    String targetZGapMaskKey = targetZGapMaskKeys != null && indexedTargetMIP.getLeft() < targetZGapMaskKeys.size()
-                                            ? targetZGapMaskKeys.get(indexedTargetMIP.getLeft())
-                                            : null;
-                                    return mipLoader.loadFirstMatchingImageRange(
-                                            awsLibrariesBucket,
-                                            targetZGapMaskKey,
-                                            maskColorDepthSearch.getQueryFirstPixelIndex(),
-                                            maskColorDepthSearch.getQueryLastPixelIndex());
-                                });
-                            }
-                            ColorMIPMatchScore colorMIPMatchScore = maskColorDepthSearch.calculateMatchingScore(
-                                    indexedTargetMIP.getRight().getImageArray(),
-                                    variantImageSuppliers);
-                            boolean isMatch = colorMIPSearch.isMatch(colorMIPMatchScore);
-                            return new ColorMIPSearchResult(
-                                    maskMIP,
-                                    MIPsUtils.getMIPMetadata(indexedTargetMIP.getRight()),
-                                    colorMIPMatchScore,
-                                    isMatch,
-                                    false);
-                    } catch (Throwable e) {
-                            LOG.error("Error comparing mask {} with {}", maskMIP, indexedTargetMIP, e);
-                        return new ColorMIPSearchResult(
-                                maskMIP,
-                                    MIPsUtils.getMIPMetadata(indexedTargetMIP.getRight()),
-                                    ColorMIPMatchScore.NO_MATCH,
-                                    false,
-                                    true);
+            SignalBitsets.MaskBits maskBits = !targetSignalBits.isEmpty() || unshiftedPixelMatchSearch != null
+                    ? SignalBitsets.createMaskBits(maskImage.getImageArray(), getEffectiveMaskThreshold(maskThreshold), maskBitsXYShift, maskBitsMirrorMask)
+                    : null;
+            TopScores topScores = maxResultsPerMask > 0 && unshiftedPixelMatchSearch != null && gradientScoresSearch == null
+                    ? new TopScores(maxResultsPerMask, getMinMatchingPixels(maskBits.getMaskSize()))
+                    : null;
+            ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch = unshiftedPixelMatchSearch != null
+                    ? new ShiftBoundedPixelMatch(
+                            colorMIPSearch.createQueryColorDepthSearch(maskImage, maskThreshold),
+                            createUnshiftedPixelMatch(maskImage, maskThreshold, maskBits),
+                            maskBits,
+                            shiftBoundsDataThreshold,
+                            topScores != null ? topScores::getThreshold : () -> 0)
+                    : colorMIPSearch.createQueryColorDepthSearch(maskImage, maskThreshold);
+            List<TiledMIP.Region> targetRegions = withTiledTargets && sparseTargetsDataThreshold != null
+                    ? TiledMIP.getSearchedRegions(maskImage.getImageArray(), getEffectiveMaskThreshold(maskThreshold), tiledTargetsXYShift, tiledTargetsMirrorMask)
+                    : null;
+            long targetBytes = memoryBudget != null
+                    ? memoryBudget.estimateTargetBytes(maskImage.getImageArray().getWidth(), maskImage.getImageArray().getHeight())
+                    : 0;
+            List<Integer> searchedTargets = skipUnreachableTargets(maskMIP, maskBits, targets,
+                    selectCandidateTargets(maskMIP, maskImage, maskThreshold, targets));
+            Map<Integer, Integer> targetBounds = topScores != null
+                    ? getTargetBounds(maskBits, targets, searchedTargets)
+                    : null;
+            return new PreparedMask(startTime, targets.size(), maskMIP, maskImage, maskThreshold, maskBytes, targetBytes,
+                    maskColorDepthSearch, topScores, targetBounds, targetRegions, searchedTargets);
+        } catch (RuntimeException e) {
+            if (memoryBudget != null) {
+                memoryBudget.releaseMask(maskBytes);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Compare the prepared mask with a target that was loaded for several masks, which covers at least the query
+     * range of the mask. The match is kept with the prepared mask until the mask is completed
+     * with {@link #completeLoadedTargetsMask}.
+     */
+    void compareLoadedTarget(PreparedMask preparedMask, int targetIndex, SearchTarget target, MIPImage targetImage) {
+        if (cancellation.getAsBoolean()) {
+            return;
+        }
+        Function<Integer, ColorMIPMatchScore> targetScorer = index -> compareTarget(
+                colorMIPSearch,
+                preparedMask.maskColorDepthSearch,
+                preparedMask.maskMIP,
+                target,
+                targetImage);
+        ColorMIPMatchScore targetScore = preparedMask.topScores != null
+                ? calculateTopTargetScore(preparedMask, targetIndex, targetScorer)
+                : targetScorer.apply(targetIndex);
+        if (targetScore != null) {
+            preparedMask.loadedTargetMatches.add(ImmutablePair.of(targetIndex, targetScore));
+        }
+    }
+
+    /**
+     * Add the matches of a prepared mask compared with {@link #compareLoadedTarget}.
+     */
+    void completeLoadedTargetsMask(PreparedMask preparedMask, List<SearchTarget> targets, ColorDepthMatches matches) {
+        List<ImmutablePair<Integer, ColorMIPMatchScore>> targetMatches;
+        synchronized (preparedMask.loadedTargetMatches) {
+            targetMatches = preparedMask.loadedTargetMatches.stream()
+                    .sorted(Comparator.comparing(ImmutablePair::getLeft))
+                    .collect(Collectors.toList());
+        }
+        completeMask(preparedMask,
+                preparedMask.topScores != null ? keepTopTargetScores(preparedMask, targetMatches) : targetMatches,
+                targets,
+                matches);
+    }
+
+    void releaseMask(PreparedMask preparedMask) {
+        if (memoryBudget != null) {
+            memoryBudget.releaseMask(preparedMask.maskBytes);
+        }
+        sampledLog.info("Completed color depth search for {} vs {} target libraries in {}ms",
+                preparedMask.maskMIP.getCdmPath(), preparedMask.nTargets, System.currentTimeMillis() - preparedMask.startTime);
+    }
+
+    private void completeMask(PreparedMask preparedMask,
+                              List<ImmutablePair<Integer, ColorMIPMatchScore>> targetMatches,
+                              List<SearchTarget> targets,
+                              ColorDepthMatches matches) {
+        if (gradientScoresSearch != null) {
+            // the gradient and the zgap images are loaded together with the target
+            targetMatches = calculateGradientScores(preparedMask.maskImage, preparedMask.maskThreshold, preparedMask.maskMIP,
+                    targetMatches, targets, preparedMask.maskBytes, 3 * preparedMask.targetBytes);
+        }
+        int maskIndex = matches.addMask(preparedMask.maskMIP);
+        targetMatches.forEach(indexedTargetScore -> matches.addMatch(maskIndex, indexedTargetScore.getLeft(), indexedTargetScore.getRight()));
+    }
+
+    private ColorDepthSearchAlgorithm<ColorMIPMatchScore> createUnshiftedPixelMatch(MIPImage maskImage, int maskThreshold, SignalBitsets.MaskBits maskBits) {
+        ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedQuerySearch = unshiftedPixelMatchSearch.createQueryColorDepthSearch(maskImage, maskThreshold);
+        return colorLookupTable != null
+                ? new ColorLookupPixelMatch(unshiftedQuerySearch, maskImage.getImageArray(), maskBits.getMaskPixels(), colorLookupTable)
+                : unshiftedQuerySearch;
+    }
+
+    /**
+     * Second phase of a two phase gradient search: only the best pixel matches are re-scored using the gradient search,
+     * so the gradient and zgap variants are only loaded for these targets.
+     */
+    private List<ImmutablePair<Integer, ColorMIPMatchScore>> calculateGradientScores(MIPImage maskImage,
+                                                                                     int maskThreshold,
+                                                                                     MIPMetadata maskMIP,
+                                                                                     List<ImmutablePair<Integer, ColorMIPMatchScore>> pixMatches,
+                                                                                     List<SearchTarget> targets,
+                                                                                     long maskBytes,
+                                                                                     long targetBytes) {
+        List<Integer> candidates = pixMatches.stream()
+                .filter(indexedTargetScore -> indexedTargetScore.getRight().getMatchingPixNum() >= minGradientCandidateMatchingPixels)
+                .sorted(Comparator.comparing(indexedTargetScore -> indexedTargetScore.getRight().getMatchingPixNum(), Comparator.reverseOrder()))
+                .limit(maxGradientCandidates > 0 ? maxGradientCandidates : Long.MAX_VALUE)
+                .map(ImmutablePair::getLeft)
+                .collect(Collectors.toList());
+        sampledLog.info("Calculate gradient scores for {} out of {} pixel matches of {}", candidates.size(), pixMatches.size(), maskMIP.getId());
+        ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskGradientSearch = gradientScoresSearch.createQueryColorDepthSearch(maskImage, maskThreshold);
+        return calculateTargetScores(
+                candidates,
+                targetIndex -> calculateTargetScore(
+                        gradientScoresSearch,
+                        maskGradientSearch,
+                        maskMIP,
+                        targets.get(targetIndex),
+                        false,
+                        null),
+                maskBytes,
+                targetBytes);
+    }
+
+    /**
+     * @return the indexes of the targets the mask has to be compared with
+     */
+    private List<Integer> selectCandidateTargets(MIPMetadata maskMIP, MIPImage maskImage, int maskThreshold, List<SearchTarget> targets) {
+        if (candidateIndexes.isEmpty()) {
+            return IntStream.range(0, targets.size()).boxed().collect(Collectors.toList());
+        }
+        List<BitSet> indexCandidates = candidateIndexes.stream()
+                .map(index -> index.findCandidates(maskImage.getImageArray(), maskThreshold, candidatesXYShift, candidatesMirrorMask))
+                .collect(Collectors.toList());
+        List<Integer> candidateTargets = IntStream.range(0, targets.size())
+                .filter(targetIndex -> {
+                    String targetKey = targets.get(targetIndex).searchKey;
+                    for (int i = 0; i < candidateIndexes.size(); i++) {
+                        if (candidateIndexes.get(i).containsTarget(targetKey)) {
+                            return candidateIndexes.get(i).isCandidate(indexCandidates.get(i), targetKey);
+                        }
                     }
+                    return true;
                 })
-                .filter(ColorMIPSearchResult::isMatch)
+                .boxed()
                 .collect(Collectors.toList());
+        sampledLog.info("Shortlisted {} out of {} targets for {}", candidateTargets.size(), targets.size(), maskMIP.getId());
+        return candidateTargets;
+    }
+
+    /**
+     * @return the candidate targets whose signal bits bound of the matching pixels is high enough for a match
+     */
+    private List<Integer> skipUnreachableTargets(MIPMetadata maskMIP, SignalBitsets.MaskBits maskBits, List<SearchTarget> targets, List<Integer> candidateTargets) {
+        if (targetSignalBits.isEmpty() || maskBits.getWidth() != signalBitsWidth || maskBits.getHeight() != signalBitsHeight) {
+            return candidateTargets;
+        }
+        int minMatchingPixels = getMinMatchingPixels(maskBits.getMaskSize());
+        List<Integer> reachableTargets = candidateTargets.stream()
+                .filter(targetIndex -> {
+                    long[] targetBits = targetSignalBits.get(targets.get(targetIndex).searchKey);
+                    return targetBits == null || maskBits.getMatchingPixelsBound(targetBits, minMatchingPixels) >= minMatchingPixels;
+                })
+                .collect(Collectors.toList());
+        sampledLog.info("Skipped {} out of {} targets of {} using the signal bits bound of {} matching pixels",
+                candidateTargets.size() - reachableTargets.size(), candidateTargets.size(), maskMIP.getId(), minMatchingPixels);
+        return reachableTargets;
+    }
+
+    /**
+     * Calculate the scores of the targets that can be one of the top results of the mask. The targets are compared
+     * in the order of their signal bits bound, so that the best matches are likely found first and the threshold of
+     * the top scores rises early. A target is not loaded if its bound is already below the threshold.
+     *
+     * @return the indexes and the scores of the top results in the order of the given target indexes
+     */
+    private List<ImmutablePair<Integer, ColorMIPMatchScore>> calculateTopTargetScores(PreparedMask preparedMask,
+                                                                                      Function<Integer, ColorMIPMatchScore> targetScorer) {
+        List<Integer> orderedTargetIndexes = preparedMask.searchedTargets.stream()
+                .sorted(Comparator.comparing(preparedMask.targetBounds::get, Comparator.reverseOrder()))
+                .collect(Collectors.toList());
+        List<ImmutablePair<Integer, ColorMIPMatchScore>> targetScores = calculateTargetScores(
+                orderedTargetIndexes,
+                targetIndex -> calculateTopTargetScore(preparedMask, targetIndex, targetScorer),
+                preparedMask.maskBytes,
+                preparedMask.targetBytes);
+        return keepTopTargetScores(preparedMask, targetScores);
+    }
+
+    /**
+     * @return the signal bits bound of the matching pixels of every target
+     */
+    private Map<Integer, Integer> getTargetBounds(SignalBitsets.MaskBits maskBits, List<SearchTarget> targets, List<Integer> targetIndexes) {
+        boolean withTargetBits = !targetSignalBits.isEmpty() && maskBits.getWidth() == signalBitsWidth && maskBits.getHeight() == signalBitsHeight;
+        Map<Integer, Integer> targetBounds = new HashMap<>();
+        for (Integer targetIndex : targetIndexes) {
+            long[] targetBits = withTargetBits ? targetSignalBits.get(targets.get(targetIndex).searchKey) : null;
+            // targets without signal bits cannot be bounded so they are compared first
+            targetBounds.put(targetIndex, targetBits != null ? IntStream.of(maskBits.getShiftBounds(targetBits)).max().orElse(0) : Integer.MAX_VALUE);
+        }
+        return targetBounds;
+    }
+
+    /**
+     * @return the score of the target or null if its bound is already below the threshold of the top scores
+     */
+    private ColorMIPMatchScore calculateTopTargetScore(PreparedMask preparedMask, int targetIndex, Function<Integer, ColorMIPMatchScore> targetScorer) {
+        if (preparedMask.targetBounds.get(targetIndex) < preparedMask.topScores.getThreshold()) {
+            preparedMask.skippedTargets.incrementAndGet();
+            return null;
+        }
+        ColorMIPMatchScore targetScore = targetScorer.apply(targetIndex);
+        if (targetScore != null) {
+            preparedMask.topScores.add(targetScore.getMatchingPixNum());
+        }
+        return targetScore;
+    }
+
+    private List<ImmutablePair<Integer, ColorMIPMatchScore>> keepTopTargetScores(PreparedMask preparedMask,
+                                                                                 List<ImmutablePair<Integer, ColorMIPMatchScore>> targetScores) {
+        // scores found before the threshold reached its final value, including the ones of abandoned comparisons, are dropped here
+        int threshold = preparedMask.topScores.getThreshold();
+        List<ImmutablePair<Integer, ColorMIPMatchScore>> topTargetScores = targetScores.stream()
+                .filter(indexedTargetScore -> indexedTargetScore.getRight().getMatchingPixNum() >= threshold)
+                .sorted(Comparator.comparing(ImmutablePair::getLeft))
+                .collect(Collectors.toList());
+        sampledLog.info("Kept {} top matches of {} with at least {} matching pixels, skipped {} out of {} targets",
+                topTargetScores.size(), preparedMask.maskMIP.getId(), threshold, preparedMask.skippedTargets.get(), preparedMask.searchedTargets.size());
+        return topTargetScores;
+    }
+
+    /**
+     * @return the mask threshold used by the search, which replaces a threshold that is not set with the default threshold
+     */
+    private int getEffectiveMaskThreshold(int maskThreshold) {
+        return maskThreshold > 0 ? maskThreshold : ColorDepthSearchParameters.DEFAULT_MASK_THRESHOLD;
+    }
+
+    /**
+     * @return the lowest number of matching pixels the pixel match search accepts as a match or maskSize + 1 if there is none
+     */
+    private int getMinMatchingPixels(int maskSize) {
+        int low = 0;
+        int high = maskSize + 1;
+        while (low < high) {
+            int n = (low + high) >>> 1;
+            if (maskSize > 0 && colorMIPSearch.isMatch(new ColorMIPMatchScore(n, (double) n / maskSize, null))) {
+                high = n;
+            } else {
+                low = n + 1;
+            }
+        }
+        return low;
+    }
+
+    private long reserveMaskMemory(MIPImage maskImage, int maskThreshold) {
+        if (memoryBudget == null) {
+            return 0;
+        }
+        long maskBytes = memoryBudget.estimateMaskBytes(maskImage.getImageArray(), maskThreshold);
+        memoryBudget.reserveMask(maskBytes);
+        return maskBytes;
+    }
+
+    /**
+     * Calculate the scores of the given targets. With a memory budget the targets are compared in parallel,
+     * with as many targets in flight as the budget allows.
+     *
+     * @return the indexes and the scores of the matching targets in the order of the given target indexes
+     */
+    private List<ImmutablePair<Integer, ColorMIPMatchScore>> calculateTargetScores(List<Integer> targetIndexes,
+                                                                                   Function<Integer, ColorMIPMatchScore> targetScorer,
+                                                                                   long maskBytes,
+                                                                                   long targetBytes) {
+        Function<Integer, ColorMIPMatchScore> cancellableTargetScorer = targetIndex -> cancellation.getAsBoolean()
+                ? null
+                : targetScorer.apply(targetIndex);
+        if (memoryBudget == null) {
+            return targetIndexes.stream()
+                    .map(targetIndex -> ImmutablePair.of(targetIndex, cancellableTargetScorer.apply(targetIndex)))
+                    .filter(indexedTargetScore -> indexedTargetScore.getRight() != null)
+                    .collect(Collectors.toList());
+        }
+        int maxInFlightTargets = Math.min(memoryBudget.getMaxInFlightTargets(maskBytes, targetBytes), Math.max(1, targetIndexes.size()));
+        LOG.debug("Compare {} targets with at most {} targets in flight", targetIndexes.size(), maxInFlightTargets);
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlightTargets);
+        try {
+            List<CompletableFuture<ImmutablePair<Integer, ColorMIPMatchScore>>> targetScores = targetIndexes.stream()
+                    .map(targetIndex -> CompletableFuture.supplyAsync(() -> {
+                        try {
+                            memoryBudget.reserveTarget(targetBytes);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException(e);
+                        }
+                        try {
+                            return ImmutablePair.of(targetIndex, cancellableTargetScorer.apply(targetIndex));
+                        } finally {
+                            memoryBudget.releaseTarget(targetBytes);
+                        }
+                    }, executor))
+                    .collect(Collectors.toList());
+            return targetScores.stream()
+                    .map(CompletableFuture::join)
+                    .filter(indexedTargetScore -> indexedTargetScore.getRight() != null)
+                    .collect(Collectors.toList());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the score if the target matches the mask or null otherwise
+     */
+    private ColorMIPMatchScore calculateTargetScore(ColorMIPSearch targetSearch,
+                                                    ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch,
+                                                    MIPMetadata maskMIP,
+                                                    SearchTarget target,
+                                                    boolean useSparseTarget,
+                                                    List<TiledMIP.Region> targetRegions) {
+        MIPImage targetImage = loadTargetImage(target, maskColorDepthSearch, useSparseTarget, targetRegions);
+        if (targetImage == null) {
+            return null;
+        }
+        try {
+            return compareTarget(targetSearch, maskColorDepthSearch, maskMIP, target, targetImage);
         } finally {
-            LOG.info("Completed color depth search for {} vs {} target libraries in {}ms",
-                    maskKey, targetKeys.size(), System.currentTimeMillis()-startTime);
+            mipLoader.releaseMIP(targetImage);
+        }
+    }
+
+    /**
+     * @return the score if the loaded target matches the mask or null otherwise
+     */
+    private ColorMIPMatchScore compareTarget(ColorMIPSearch targetSearch,
+                                             ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch,
+                                             MIPMetadata maskMIP,
+                                             SearchTarget target,
+                                             MIPImage targetImage) {
+        // the loaded variants are decoded into pooled buffers, which are returned once the comparison is done
+        List<ImageArray<?>> loadedVariants = Collections.synchronizedList(new ArrayList<>());
+        try {
+            LOG.trace("Compare {} with {}", maskMIP, targetImage);
+            Set<String> requiredVariantTypes = maskColorDepthSearch.getRequiredTargetVariantTypes();
+            Map<String, Supplier<ImageArray<?>>> variantImageSuppliers = new HashMap<>();
+            if (requiredVariantTypes.contains("gradient")) {
+                variantImageSuppliers.put("gradient", withComputedTargetVariants
+                        ? Suppliers.memoize(() -> computeTargetVariant("gradient", targetImage.getImageArray(), maskColorDepthSearch))
+                        : Suppliers.memoize(() -> loadTargetVariant("gradient", target.gradientKey, maskColorDepthSearch, loadedVariants)));
+            }
+            if (requiredVariantTypes.contains("zgap")) {
+                variantImageSuppliers.put("zgap", withComputedTargetVariants
+                        ? Suppliers.memoize(() -> computeTargetVariant("zgap", targetImage.getImageArray(), maskColorDepthSearch))
+                        : Suppliers.memoize(() -> loadTargetVariant("zgap", target.zgapMaskKey, maskColorDepthSearch, loadedVariants)));
+            }
+            Supplier<ColorMIPMatchScore> targetComparison = () -> {
+                SearchEvents.TargetScore scoreEvent = new SearchEvents.TargetScore();
+                scoreEvent.begin();
+                ColorMIPMatchScore targetScore = maskColorDepthSearch.calculateMatchingScore(
+                        targetImage.getImageArray(),
+                        variantImageSuppliers);
+                scoreEvent.end();
+                if (scoreEvent.shouldCommit()) {
+                    scoreEvent.mask = maskMIP.getId();
+                    scoreEvent.target = target.searchKey;
+                    scoreEvent.matchingPixels = targetScore.getMatchingPixNum();
+                    scoreEvent.commit();
+                }
+                return targetScore;
+            };
+            ColorMIPMatchScore colorMIPMatchScore = memoryBudget != null
+                    ? memoryBudget.compute(targetComparison)
+                    : targetComparison.get();
+            return targetSearch.isMatch(colorMIPMatchScore) ? colorMIPMatchScore : null;
+        } catch (Throwable e) {
+            LOG.error("Error comparing mask {} with {}", maskMIP, targetImage, e);
+            return null;
+        } finally {
+            synchronized (loadedVariants) {
+                loadedVariants.forEach(mipLoader::releaseImage);
+            }
         }
     }
 
+    private ImageArray<?> loadTargetVariant(String variantType,
+                                            String variantKey,
+                                            ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch,
+                                            List<ImageArray<?>> loadedVariants) {
+        SearchEvents.VariantLoad variantLoadEvent = new SearchEvents.VariantLoad();
+        variantLoadEvent.begin();
+        try {
+            ImageArray<?> variantImage = mipLoader.loadFirstMatchingImageRange(
+                    awsLibrariesBucket,
+                    variantKey,
+                    maskColorDepthSearch.getQueryFirstPixelIndex(),
+                    maskColorDepthSearch.getQueryLastPixelIndex());
+            if (variantImage != null) {
+                loadedVariants.add(variantImage);
+            }
+            return variantImage;
+        } finally {
+            variantLoadEvent.variant = variantType;
+            variantLoadEvent.key = variantKey;
+            variantLoadEvent.commit();
+        }
+    }
+
+    private ImageArray<?> computeTargetVariant(String variantType,
+                                               ImageArray<?> targetImage,
+                                               ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch) {
+        SearchEvents.VariantLoad variantLoadEvent = new SearchEvents.VariantLoad();
+        variantLoadEvent.begin();
+        try {
+            return "gradient".equals(variantType)
+                    ? TargetVariants.createGradientImage(
+                            targetImage,
+                            targetVariantsDataThreshold,
+                            targetVariantsMaxDistance,
+                            maskColorDepthSearch.getQueryFirstPixelIndex(),
+                            maskColorDepthSearch.getQueryLastPixelIndex())
+                    : TargetVariants.createZGapImage(
+                            targetImage,
+                            maskColorDepthSearch.getQueryFirstPixelIndex(),
+                            maskColorDepthSearch.getQueryLastPixelIndex());
+        } finally {
+            variantLoadEvent.variant = variantType;
+            variantLoadEvent.key = "computed";
+            variantLoadEvent.commit();
+        }
+    }
+
+    private MIPImage loadTargetImage(SearchTarget target,
+                                     ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch,
+                                     boolean useSparseTarget,
+                                     List<TiledMIP.Region> targetRegions) {
+        if (useSparseTarget && targetRegions != null && StringUtils.isNotBlank(target.tiledKey)) {
+            MIPImage tiledTargetImage = mipLoader.loadTiledMIPRegions(
+                    awsLibrariesBucket,
+                    createLibraryMIP(target.searchKey),
+                    target.tiledKey,
+                    targetRegions,
+                    sparseTargetsDataThreshold);
+            if (tiledTargetImage != null) {
+                return tiledTargetImage;
+            }
+        }
+        return loadTargetRange(
+                target,
+                maskColorDepthSearch.getQueryFirstPixelIndex(),
+                maskColorDepthSearch.getQueryLastPixelIndex(),
+                useSparseTarget ? sparseTargetsDataThreshold : null);
+    }
+
+    /**
+     * Load a range of the target, from the sparse target when there is one that was created with a threshold
+     * that is not greater than the given data threshold, otherwise from the target itself.
+     *
+     * @param sparseTargetsDataThreshold data threshold of the sparse target or null if the sparse target cannot be used
+     */
+    MIPImage loadTargetRange(SearchTarget target, long startPixel, long endPixel, Integer sparseTargetsDataThreshold) {
+        MIPMetadata targetMIP = createLibraryMIP(target.searchKey);
+        if (sparseTargetsDataThreshold != null && StringUtils.isNotBlank(target.sparseKey)) {
+            MIPImage sparseTargetImage = mipLoader.loadSparseMIPRange(
+                    awsLibrariesBucket,
+                    targetMIP,
+                    target.sparseKey,
+                    startPixel,
+                    endPixel,
+                    sparseTargetsDataThreshold);
+            if (sparseTargetImage != null) {
+                return sparseTargetImage;
+            }
+        }
+        return mipLoader.loadMIPRange(awsLibrariesBucket, targetMIP, startPixel, endPixel);
+    }
+
+    void releaseTarget(MIPImage targetImage) {
+        mipLoader.releaseMIP(targetImage);
+    }
+
+    private String getTargetVariantKey(List<String> targetVariantKeys, int targetIndex) {
+        return targetVariantKeys != null && targetIndex < targetVariantKeys.size()
+                ? targetVariantKeys.get(targetIndex)
+                : null;
+    }
+
     private MIPMetadata createMaskMIP(String mipKey) {
         Path mipPath = Paths.get(mipKey);
         String mipNameComponent = mipPath.getFileName().toString();
@@ -279,4 +949,76 @@ class AWSLambdaColorMIPSearch {
         mipMetadata.setGender("f"); // default to female for now
     }
 
+    /**
+     * Mask loaded and prepared for comparing it with the targets.
+     */
+    class PreparedMask {
+        private final long startTime;
+        private final int nTargets;
+        private final MIPMetadata maskMIP;
+        private final MIPImage maskImage;
+        private final int maskThreshold;
+        private final long maskBytes;
+        private final long targetBytes;
+        private final ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch;
+        private final TopScores topScores;
+        private final Map<Integer, Integer> targetBounds;
+        private final List<TiledMIP.Region> targetRegions;
+        private final List<Integer> searchedTargets;
+        private final BitSet searchedTargetBits = new BitSet();
+        private final AtomicInteger skippedTargets = new AtomicInteger();
+        // matches of the targets loaded for several masks
+        private final List<ImmutablePair<Integer, ColorMIPMatchScore>> loadedTargetMatches = Collections.synchronizedList(new ArrayList<>());
+
+        private PreparedMask(long startTime,
+                             int nTargets,
+                             MIPMetadata maskMIP,
+                             MIPImage maskImage,
+                             int maskThreshold,
+                             long maskBytes,
+                             long targetBytes,
+                             ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskColorDepthSearch,
+                             TopScores topScores,
+                             Map<Integer, Integer> targetBounds,
+                             List<TiledMIP.Region> targetRegions,
+                             List<Integer> searchedTargets) {
+            this.startTime = startTime;
+            this.nTargets = nTargets;
+            this.maskMIP = maskMIP;
+            this.maskImage = maskImage;
+            this.maskThreshold = maskThreshold;
+            this.maskBytes = maskBytes;
+            this.targetBytes = targetBytes;
+            this.maskColorDepthSearch = maskColorDepthSearch;
+            this.topScores = topScores;
+            this.targetBounds = targetBounds;
+            this.targetRegions = targetRegions;
+            this.searchedTargets = searchedTargets;
+            searchedTargets.forEach(searchedTargetBits::set);
+        }
+
+        /**
+         * @return true if the mask has to be compared with the target
+         */
+        boolean isSearched(int targetIndex) {
+            return searchedTargetBits.get(targetIndex);
+        }
+
+        long getQueryFirstPixelIndex() {
+            return maskColorDepthSearch.getQueryFirstPixelIndex();
+        }
+
+        long getQueryLastPixelIndex() {
+            return maskColorDepthSearch.getQueryLastPixelIndex();
+        }
+
+        long getMaskBytes() {
+            return maskBytes;
+        }
+
+        long getTargetBytes() {
+            return targetBytes;
+        }
+    }
+
 }
@@ -1,16 +1,25 @@
 package org.janelia.colordepthsearch;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Supplier;
 
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.RegExUtils;
 import org.janelia.colormipsearch.api.cdmips.MIPImage;
 import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
 import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
 import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.s3.S3Client;
@@ -18,17 +27,67 @@ import software.amazon.awssdk.services.s3.model.S3Object;
 
 class AWSMIPLoader {
     private static final Logger LOG = LoggerFactory.getLogger(AWSMIPLoader.class);
+    // tiles separated by fewer bytes are read with a single request
+    private static final int MAX_TILE_GAP_BYTES = 32 * 1024;
+
+    @FunctionalInterface
+    private interface ImageStreamReader {
+        ImageArray<?> read(InputStream inputStream) throws Exception;
+    }
 
     private final S3Client s3;
+    private final PixelBufferPool pixelBufferPool;
+    // leases of the pooled pixel buffers by the image that uses them
+    private final Map<ImageArray<?>, PixelBufferPool.Lease> pooledImages = Collections.synchronizedMap(new IdentityHashMap<>());
     private final int defaultMaxRetries;
     private final long defaultPauseBetweenRetries;
+    // per target messages
+    private final SampledLog sampledLog = new SampledLog(LOG);
+    private ObjectCache objectCache;
+    private String objectsVersion;
 
     AWSMIPLoader(S3Client s3) {
+        this(s3, null);
+    }
+
+    /**
+     * @param pixelBufferPool if not null the library MIP ranges are decoded into pooled buffers,
+     *                        which must be returned using {@link #releaseMIP(MIPImage)}
+     */
+    AWSMIPLoader(S3Client s3, PixelBufferPool pixelBufferPool) {
         this.s3 = s3;
+        this.pixelBufferPool = pixelBufferPool;
         this.defaultMaxRetries = 5;
         this.defaultPauseBetweenRetries = 200;
     }
 
+    /**
+     * Read the objects from the container cache when they are cached there for the given version.
+     *
+     * @param objectsVersion version of the fetched objects, e.g. the version of the searched libraries,
+     *                       so that the objects cached for a prior release of a library are not read
+     */
+    void setObjectCache(ObjectCache objectCache, String objectsVersion) {
+        this.objectCache = objectCache;
+        this.objectsVersion = objectsVersion;
+    }
+
+    /**
+     * Fetch the whole object into the container cache set with {@link #setObjectCache}.
+     *
+     * @return the size of the object
+     */
+    long prefetchObject(String bucketName, String key) throws IOException {
+        byte[] content = objectCache.get(bucketName, key, objectsVersion);
+        if (content == null) {
+            try (InputStream inputStream = LambdaUtils.getObject(s3, bucketName, key)) {
+                content = IOUtils.toByteArray(inputStream);
+            }
+            objectCache.put(bucketName, key, objectsVersion, content);
+        }
+        return content.length;
+    }
+
     ImageArray<?> readImageWithRetry(Supplier<ImageArray<?>> imageReader, int nretries) {
         for (int retry = 0; retry < nretries; retry++) {
             if (retry > 0) {
@@ -50,7 +109,7 @@ class AWSMIPLoader {
         LOG.trace("Load image {}:{}", bucketName, imageKey);
         InputStream inputStream;
         try {
-            inputStream = LambdaUtils.getObject(s3, bucketName, imageKey);
+            inputStream = fetchObject(bucketName, imageKey);
             if (inputStream == null) {
                 return null;
             }
@@ -58,12 +117,16 @@ class AWSMIPLoader {
             LOG.error("Error loading {}:{}", bucketName, imageKey, e);
             return null;
         }
+        CountingInputStream countingStream = new CountingInputStream(inputStream);
+        SearchEvents.TargetDecode decodeEvent = new SearchEvents.TargetDecode();
+        decodeEvent.begin();
         try {
-            return ImageArrayUtils.readImageArray(imageKey, imageKey, inputStream);
+            return ImageArrayUtils.readImageArray(imageKey, imageKey, countingStream);
         } catch (Exception e) {
             LOG.error("Error loading {}:{}", bucketName, imageKey, e);
             return null;
         } finally {
+            commitDecodeEvent(decodeEvent, imageKey, 0, Long.MAX_VALUE, countingStream);
             try {
                 inputStream.close();
             } catch (IOException ignore) {
@@ -75,9 +138,38 @@ class AWSMIPLoader {
     private ImageArray<?> readImageRange(String bucketName, String imageKey, long start, long end) {
         long startTime = System.currentTimeMillis();
         LOG.trace("Load image range {}:{}:{}:{}", bucketName, imageKey, start, end);
+        try {
+            if (ImageRowsDecoder.isSupported(imageKey)) {
+                try {
+                    return readImageStream(bucketName, imageKey, start, end, inputStream -> {
+                        // decode only the rows inside the range instead of the full image
+                        ImageArrayRowsConsumer imageRows = new ImageArrayRowsConsumer(pixelBufferPool);
+                        try {
+                            ImageRowsDecoder.decodeRows(inputStream, start, end, imageRows);
+                        } catch (Exception e) {
+                            if (imageRows.getPixelBufferLease() != null) {
+                                imageRows.getPixelBufferLease().close();
+                            }
+                            throw e;
+                        }
+                        return pooledImage(imageRows.getImageArray(), imageRows.getPixelBufferLease());
+                    });
+                } catch (ImageRowsDecoder.UnsupportedImageException e) {
+                    LOG.debug("Read the entire image {}:{} - {}", bucketName, imageKey, e.getMessage());
+                }
+            }
+            return readImageStream(bucketName, imageKey, start, end, inputStream -> ImageArrayUtils.readImageArrayRange(imageKey, imageKey, inputStream, start, end));
+        } catch (ImageRowsDecoder.UnsupportedImageException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            LOG.trace("Loaded image range {}:{}:{}:{} in {}ms", bucketName, imageKey, start, end, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private ImageArray<?> readImageStream(String bucketName, String imageKey, long start, long end, ImageStreamReader imageReader) throws ImageRowsDecoder.UnsupportedImageException {
         InputStream inputStream;
         try {
-            inputStream = LambdaUtils.getObject(s3, bucketName, imageKey);
+            inputStream = fetchObject(bucketName, imageKey);
             if (inputStream == null) {
                 return null;
             }
@@ -85,17 +177,48 @@ class AWSMIPLoader {
             LOG.error("Error loading {}:{}", bucketName, imageKey, e);
             return null;
         }
+        CountingInputStream countingStream = new CountingInputStream(inputStream);
+        SearchEvents.TargetDecode decodeEvent = new SearchEvents.TargetDecode();
+        decodeEvent.begin();
         try {
-            return ImageArrayUtils.readImageArrayRange(imageKey, imageKey, inputStream, start, end);
+            return imageReader.read(countingStream);
+        } catch (ImageRowsDecoder.UnsupportedImageException e) {
+            throw e;
         } catch (Exception e) {
-            LOG.error("Error loading image range {}:{}:{}:{}", bucketName, imageKey, start, end, e);
+            LOG.error("Error loading {}:{}", bucketName, imageKey, e);
             return null;
         } finally {
+            commitDecodeEvent(decodeEvent, imageKey, start, end, countingStream);
             try {
                 inputStream.close();
             } catch (IOException ignore) {
             }
-            LOG.trace("Loaded image range {}:{}:{}:{} in {}ms", bucketName, imageKey, start, end, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private InputStream fetchObject(String bucketName, String key) {
+        byte[] cachedContent = objectCache != null ? objectCache.get(bucketName, key, objectsVersion) : null;
+        if (cachedContent != null) {
+            return new ByteArrayInputStream(cachedContent);
+        }
+        SearchEvents.TargetFetch fetchEvent = new SearchEvents.TargetFetch();
+        fetchEvent.begin();
+        try {
+            return LambdaUtils.getObject(s3, bucketName, key);
+        } finally {
+            fetchEvent.key = key;
+            fetchEvent.commit();
+        }
+    }
+
+    private void commitDecodeEvent(SearchEvents.TargetDecode decodeEvent, String key, long start, long end, CountingInputStream inputStream) {
+        decodeEvent.end();
+        if (decodeEvent.shouldCommit()) {
+            decodeEvent.key = key;
+            decodeEvent.startPixel = start;
+            decodeEvent.endPixel = end;
+            decodeEvent.bytes = inputStream.getByteCount();
+            decodeEvent.commit();
         }
     }
 
@@ -107,6 +230,176 @@ class AWSMIPLoader {
         return new MIPImage(mip, readImageWithRetry(() -> readImageRange(bucketName, mip.getImagePath(), start, end), defaultMaxRetries));
     }
 
+    /**
+     * Load the range of a library MIP from its sparse version.
+     *
+     * @return the MIP image or null if the sparse MIP cannot be read or if it is not equivalent to the original MIP
+     * for the given data threshold, in which case the caller should load the original MIP
+     */
+    MIPImage loadSparseMIPRange(String bucketName, MIPMetadata mip, String sparseMIPKey, long start, long end, int dataThreshold) {
+        long startTime = System.currentTimeMillis();
+        LOG.trace("Load sparse image range {}:{}:{}:{}", bucketName, sparseMIPKey, start, end);
+        SparseMIP sparseMIP;
+        SearchEvents.TargetDecode decodeEvent = new SearchEvents.TargetDecode();
+        try (CountingInputStream inputStream = new CountingInputStream(fetchObject(bucketName, sparseMIPKey))) {
+            decodeEvent.begin();
+            try {
+                sparseMIP = SparseMIP.read(inputStream);
+            } finally {
+                commitDecodeEvent(decodeEvent, sparseMIPKey, start, end, inputStream);
+            }
+        } catch (Exception e) {
+            LOG.warn("Error loading sparse MIP {}:{} for {}", bucketName, sparseMIPKey, mip, e);
+            return null;
+        }
+        if (!sparseMIP.isEquivalentForDataThreshold(dataThreshold)) {
+            LOG.warn("Sparse MIP {}:{} was created with threshold {} and cannot be used with data threshold {}",
+                    bucketName, sparseMIPKey, sparseMIP.getThreshold(), dataThreshold);
+            return null;
+        }
+        try {
+            if (pixelBufferPool != null) {
+                PixelBufferPool.Lease pixelBufferLease = pixelBufferPool.lease(sparseMIP.getWidth(), sparseMIP.getHeight());
+                return new MIPImage(mip, pooledImage(sparseMIP.toImageArray(start, end, pixelBufferLease), pixelBufferLease));
+            } else {
+                return new MIPImage(mip, sparseMIP.toImageArray(start, end));
+            }
+        } finally {
+            LOG.trace("Loaded sparse image range {}:{}:{}:{} in {}ms", bucketName, sparseMIPKey, start, end, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Load the regions of a library MIP from its tiled version. Only the tiles that intersect the regions are read,
+     * all other pixels are 0.
+     *
+     * @return the MIP image or null if the tiled MIP cannot be read or if it is not equivalent to the original MIP
+     * for the given data threshold, in which case the caller should load the MIP in another way
+     */
+    MIPImage loadTiledMIPRegions(String bucketName, MIPMetadata mip, String tiledMIPKey, List<TiledMIP.Region> regions, int dataThreshold) {
+        long startTime = System.currentTimeMillis();
+        LOG.trace("Load tiled image regions {}:{}", bucketName, tiledMIPKey);
+        TiledMIP tiledMIP;
+        try {
+            byte[] header = readObjectRange(bucketName, tiledMIPKey, 0, TiledMIP.HEADER_READ_SIZE - 1);
+            int headerSize = TiledMIP.getHeaderSize(header);
+            if (headerSize > header.length) {
+                header = readObjectRange(bucketName, tiledMIPKey, 0, headerSize - 1);
+            }
+            tiledMIP = TiledMIP.readHeader(header);
+        } catch (Exception e) {
+            LOG.warn("Error loading tiled MIP header {}:{} for {}", bucketName, tiledMIPKey, mip, e);
+            return null;
+        }
+        if (!tiledMIP.isEquivalentForDataThreshold(dataThreshold)) {
+            LOG.warn("Tiled MIP {}:{} was created with threshold {} and cannot be used with data threshold {}",
+                    bucketName, tiledMIPKey, tiledMIP.getThreshold(), dataThreshold);
+            return null;
+        }
+        PixelBufferPool.Lease pixelBufferLease = pixelBufferPool != null
+                ? pixelBufferPool.lease(tiledMIP.getWidth(), tiledMIP.getHeight())
+                : null;
+        int[] pixels = pixelBufferLease != null
+                ? pixelBufferLease.getPixels()
+                : new int[tiledMIP.getWidth() * tiledMIP.getHeight()];
+        SearchEvents.TargetDecode decodeEvent = new SearchEvents.TargetDecode();
+        decodeEvent.begin();
+        int firstPixel = -1;
+        int lastPixel = -1;
+        long nBytes = 0;
+        try {
+            List<Integer> tiles = tiledMIP.getTiles(regions);
+            int tileIndex = 0;
+            for (int[] tileRange : tiledMIP.getTileRanges(tiles, MAX_TILE_GAP_BYTES)) {
+                long tileRangeStart = tiledMIP.getTileStart(tileRange[0]);
+                byte[] tileRangeBytes = readObjectRange(bucketName, tiledMIPKey, tileRangeStart, tiledMIP.getTileEnd(tileRange[1]));
+                nBytes += tileRangeBytes.length;
+                for (; tileIndex < tiles.size() && tiles.get(tileIndex) <= tileRange[1]; tileIndex++) {
+                    int tile = tiles.get(tileIndex);
+                    if (firstPixel < 0) {
+                        firstPixel = tiledMIP.getTileFirstPixel(tile);
+                    }
+                    lastPixel = tiledMIP.decodeTile(tile, tileRangeBytes, tileRangeStart, pixels);
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Error loading tiled MIP {}:{} for {}", bucketName, tiledMIPKey, mip, e);
+            if (pixelBufferLease != null) {
+                // the tiles decoded before the error must be cleared too
+                pixelBufferLease.markDirty(0, pixels.length - 1);
+                pixelBufferLease.close();
+            }
+            return null;
+        } finally {
+            decodeEvent.end();
+            if (decodeEvent.shouldCommit()) {
+                decodeEvent.key = tiledMIPKey;
+                decodeEvent.startPixel = firstPixel;
+                decodeEvent.endPixel = lastPixel;
+                decodeEvent.bytes = nBytes;
+                decodeEvent.commit();
+            }
+        }
+        LOG.trace("Loaded {} bytes of tiled image {}:{} in {}ms", nBytes, bucketName, tiledMIPKey, System.currentTimeMillis() - startTime);
+        ImageArray<?> imageArray = new ColorImageArray(ImageType.RGB, tiledMIP.getWidth(), tiledMIP.getHeight(), pixels);
+        if (pixelBufferLease != null) {
+            if (firstPixel >= 0) {
+                pixelBufferLease.markDirty(firstPixel, lastPixel);
+            }
+            return new MIPImage(mip, pooledImage(imageArray, pixelBufferLease));
+        } else {
+            return new MIPImage(mip, imageArray);
+        }
+    }
+
+    private byte[] readObjectRange(String bucketName, String key, long start, long end) throws IOException {
+        byte[] cachedContent = objectCache != null ? objectCache.get(bucketName, key, objectsVersion) : null;
+        if (cachedContent != null) {
+            return Arrays.copyOfRange(cachedContent, (int) Math.min(start, cachedContent.length), (int) Math.min(end + 1, cachedContent.length));
+        }
+        try (InputStream inputStream = LambdaUtils.getObject(s3, bucketName, key, start, end)) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    /**
+     * Return the pixel buffer of a MIP loaded with {@link #loadMIPRange}, {@link #loadSparseMIPRange} or {@link #loadTiledMIPRegions} to the pool.
+     * It is safe to call it for MIPs whose pixels were not pooled.
+     */
+    void releaseMIP(MIPImage mipImage) {
+        if (mipImage != null) {
+            releaseImage(mipImage.getImageArray());
+        }
+    }
+
+    /**
+     * Return the pixel buffer of an image loaded with {@link #loadFirstMatchingImageRange} to the pool.
+     * It is safe to call it for images whose pixels were not pooled.
+     */
+    void releaseImage(ImageArray<?> imageArray) {
+        if (imageArray == null) {
+            return;
+        }
+        PixelBufferPool.Lease pixelBufferLease = pooledImages.remove(imageArray);
+        if (pixelBufferLease != null) {
+            pixelBufferLease.close();
+        }
+    }
+
+    private ImageArray<?> pooledImage(ImageArray<?> imageArray, PixelBufferPool.Lease pixelBufferLease) {
+        if (pixelBufferLease != null) {
+            pooledImages.put(imageArray, pixelBufferLease);
+        }
+        return imageArray;
+    }
+
+    /**
+     * Log the counts of the per target messages that were only partly logged.
+     */
+    void logSampledMessageCounts() {
+        sampledLog.logMessageCounts();
+    }
+
     ImageArray<?> loadFirstMatchingImageRange(String bucketName, String imageKey, long start, long end) {
         String imageKeyPrefix = RegExUtils.replacePattern(imageKey, "\\..*$", "");
         String imageName;
@@ -117,13 +410,14 @@ class AWSMIPLoader {
                 return null;
             } else {
                 imageName = matchingImages.get(0).key();
-                LOG.info("Load '{}' - first match from {}", imageName, matchingImages);
+                sampledLog.info("Load '{}' - first of {} matches", imageName, matchingImages.size());
+                LOG.trace("Matches of '{}': {}", imageKeyPrefix, matchingImages);
             }
         } catch (Exception e) {
             LOG.error("Error looking up {}:{}", bucketName, imageKey, e);
             return null;
         }
-        return readImageWithRetry(() -> readImageRange(bucketName, imageKey, start, end), defaultMaxRetries);
+        return readImageWithRetry(() -> readImageRange(bucketName, imageName, start, end), defaultMaxRetries);
     }
 
 }
@@ -3,17 +3,14 @@ package org.janelia.colordepthsearch;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 
+import com.google.common.base.Suppliers;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.IterableUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.builder.ToStringBuilder;
-import org.janelia.colormipsearch.api.cdsearch.CDSMatches;
 import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProvider;
 import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProviderFactory;
 import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
 import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearch;
-import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearchResult;
-import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearchResultUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -23,12 +20,23 @@ import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
 import software.amazon.awssdk.services.s3.S3Client;
 
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -41,29 +49,41 @@ import java.util.stream.IntStream;
  */
 public class BatchSearch implements RequestHandler<BatchSearchParameters, Integer> {
 
-    private static class SearchTarget {
-        final String searchKey;
-        final String gradientKey;
-        final String zgapMaskKey;
+    private static final Logger LOG = LoggerFactory.getLogger(BatchSearch.class);
 
-        SearchTarget(String searchKey, String gradientKey, String zgapMaskKey) {
-            this.searchKey = searchKey;
-            this.gradientKey = gradientKey;
-            this.zgapMaskKey = zgapMaskKey;
-        }
+    private static final int WARM_UP_THREADS = 16;
+    private static final int WARM_UP_SAMPLE_SIZE = 50;
+    // C2 compiles a method after about 10000 invocations or loop iterations. The per pixel loops reach that within
+    // the first target, but the code that runs once per target or per mask, e.g. the shift bounds, the top scores and
+    // the match collection, needs thousands of targets, so the sample is scored again for a fixed time instead of once.
+    private static final long DEFAULT_WARM_UP_SCORING_MILLIS = 3000;
+    private static final int MAX_JOB_LIBRARIES_VERSIONS = 16;
 
+    private final Random randomGen = new Random();
+    private final Supplier<S3Client> s3Provider;
+    private final Supplier<DynamoDbClient> dynamoDbProvider;
+    private final ObjectCache objectCache;
+    // libraries version by job id, read once per job by the batches that land on the container
+    private final Map<String, String> jobLibrariesVersions = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
         @Override
-        public String toString() {
-            return new ToStringBuilder(this)
-                    .append("searchKey", searchKey)
-                    .append("gradientKey", gradientKey)
-                    .append("zgapMaskKey", zgapMaskKey)
-                    .toString();
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_JOB_LIBRARIES_VERSIONS;
         }
+    });
+
+    public BatchSearch() {
+        // the clients are created once per container so that a warm-up leaves them initialized for the next batches
+        this(Suppliers.memoize(LambdaUtils::createS3), Suppliers.memoize(LambdaUtils::createDynamoDB));
     }
-    private static final Logger LOG = LoggerFactory.getLogger(BatchSearch.class);
 
-    private final Random randomGen = new Random();
+    /**
+     * Constructor used when the search runs outside of AWS, e.g. in tests, with other storage clients.
+     */
+    BatchSearch(Supplier<S3Client> s3Provider, Supplier<DynamoDbClient> dynamoDbProvider) {
+        this.s3Provider = s3Provider;
+        this.dynamoDbProvider = dynamoDbProvider;
+        this.objectCache = createObjectCache();
+    }
 
     @Override
     public Integer handleRequest(BatchSearchParameters params, Context context) {
@@ -71,23 +91,353 @@ public class BatchSearch implements RequestHandler<BatchSearchParameters, Intege
         if (StringUtils.isNotBlank(params.getJobId())) {
             MDC.put("jobId", params.getJobId());
         }
-        verifyCDSParams(params);
+        try {
+            verifyCDSParams(params);
+
+            S3Client s3 = s3Provider.get();
+            DynamoDbClient dynamoDbClient = dynamoDbProvider.get();
+
+            SearchRecording recording = params.isWithProfiling()
+                    ? SearchRecording.start(String.format("batch-%s-%s", params.getJobId(), params.getBatchId()))
+                    : null;
+            int nMatches;
+            try {
+                if (params.isWarmUp()) {
+                    nMatches = warmUp(params, s3, context);
+                } else if (LambdaUtils.isEmpty(params.getCoalescedBatches())) {
+                    nMatches = searchAndWriteResults(params, s3, dynamoDbClient, context);
+                } else {
+                    nMatches = searchAndWriteCoalescedResults(params, s3, dynamoDbClient, context);
+                }
+            } finally {
+                if (recording != null) {
+                    saveRecording(recording, s3, params);
+                }
+            }
+            LOG.info("Completed batch {}:{} in {}s", params.getJobId(), params.getBatchId(), (System.currentTimeMillis() - startTime) / 1000.);
+            return nMatches;
+        } finally {
+            LambdaUtils.flushLogs();
+        }
+    }
 
-        S3Client s3 = LambdaUtils.createS3();
+    private int searchAndWriteResults(BatchSearchParameters params, S3Client s3, DynamoDbClient dynamoDbClient, Context context) {
+        JobCancellation jobCancellation = createJobCancellation(dynamoDbClient, params.getJobId());
+        if (jobCancellation != null && jobCancellation.getAsBoolean()) {
+            LOG.info("Skip batch {}:{} of the cancelled job", params.getJobId(), params.getBatchId());
+            writeResults(params, dynamoDbClient, "[]", true);
+            return 0;
+        }
+        SearchMemo searchMemo = createSearchMemo(dynamoDbClient);
+        String memoKey = createMemoKey(searchMemo, s3, params);
+        SearchMemo.MemoizedResults memoizedResults = getMemoizedResults(searchMemo, memoKey);
 
-        List<ColorMIPSearchResult> cdsResults = performColorDepthSearch(params, s3);
-        List<CDSMatches> results = ColorMIPSearchResultUtils.groupResults(cdsResults, ColorMIPSearchResult::perMaskMetadata);
+        if (memoizedResults != null) {
+            LOG.info("Reuse {} memoized matches with key {}", memoizedResults.nMatches, memoKey);
+            writeResults(params, dynamoDbClient, memoizedResults.resultsJson, false);
+            return memoizedResults.nMatches;
+        }
+        ColorDepthMatches cdsResults = performColorDepthSearch(params, s3, context, jobCancellation);
+        if (jobCancellation != null && jobCancellation.getAsBoolean()) {
+            // the matches of a cancelled search are incomplete so they are neither memoized nor written
+            LOG.info("Stopped batch {}:{} of the cancelled job", params.getJobId(), params.getBatchId());
+            writeResults(params, dynamoDbClient, "[]", true);
+            return 0;
+        }
+        String resultsJson = LambdaUtils.toJsonArray(cdsResults.streamCDSMatches());
+        writeResults(params, dynamoDbClient, resultsJson, false);
+        memoizeResults(searchMemo, memoKey, resultsJson, cdsResults.size());
+        return cdsResults.size();
+    }
 
-        // Write results to DynamoDB
+    /**
+     * Search the batch together with the coalesced batches of the other jobs. The batches that search the same targets
+     * as this batch are searched target by target, so that every target is loaded once for all of them, and the other
+     * ones are searched on their own. The results of every batch are memoized and written like the results of a batch
+     * searched on its own.
+     */
+    private int searchAndWriteCoalescedResults(BatchSearchParameters params, S3Client s3, DynamoDbClient dynamoDbClient, Context context) {
+        List<BatchSearchParameters> sameTargetsBatches = new ArrayList<>();
+        sameTargetsBatches.add(params);
+        int nMatches = 0;
+        for (BatchSearchParameters coalescedBatch : params.getCoalescedBatches()) {
+            if (hasSameTargets(params, coalescedBatch)) {
+                sameTargetsBatches.add(coalescedBatch);
+            } else {
+                LOG.warn("Search coalesced batch {}:{} on its own because it does not search the same targets as batch {}:{}",
+                        coalescedBatch.getJobId(), coalescedBatch.getBatchId(), params.getJobId(), params.getBatchId());
+                nMatches += searchAndWriteResults(coalescedBatch, s3, dynamoDbClient, context);
+            }
+        }
+        SearchMemo searchMemo = createSearchMemo(dynamoDbClient);
+        List<BatchSearchParameters> searchedBatches = new ArrayList<>();
+        List<JobCancellation> jobCancellations = new ArrayList<>();
+        List<String> memoKeys = new ArrayList<>();
+        for (BatchSearchParameters batch : sameTargetsBatches) {
+            JobCancellation jobCancellation = createJobCancellation(dynamoDbClient, batch.getJobId());
+            if (jobCancellation != null && jobCancellation.getAsBoolean()) {
+                LOG.info("Skip batch {}:{} of the cancelled job", batch.getJobId(), batch.getBatchId());
+                writeResults(batch, dynamoDbClient, "[]", true);
+                continue;
+            }
+            String memoKey = createMemoKey(searchMemo, s3, batch);
+            SearchMemo.MemoizedResults memoizedResults = getMemoizedResults(searchMemo, memoKey);
+            if (memoizedResults != null) {
+                LOG.info("Reuse {} memoized matches of batch {}:{} with key {}", memoizedResults.nMatches, batch.getJobId(), batch.getBatchId(), memoKey);
+                writeResults(batch, dynamoDbClient, memoizedResults.resultsJson, false);
+                nMatches += memoizedResults.nMatches;
+                continue;
+            }
+            searchedBatches.add(batch);
+            jobCancellations.add(jobCancellation);
+            memoKeys.add(memoKey);
+        }
+        if (searchedBatches.isEmpty()) {
+            return nMatches;
+        }
+        List<ColorDepthMatches> batchResults = performCoalescedColorDepthSearch(searchedBatches, s3, context, jobCancellations);
+        for (int i = 0; i < searchedBatches.size(); i++) {
+            BatchSearchParameters batch = searchedBatches.get(i);
+            JobCancellation jobCancellation = jobCancellations.get(i);
+            if (jobCancellation != null && jobCancellation.getAsBoolean()) {
+                // the matches of a cancelled search are incomplete so they are neither memoized nor written
+                LOG.info("Stopped batch {}:{} of the cancelled job", batch.getJobId(), batch.getBatchId());
+                writeResults(batch, dynamoDbClient, "[]", true);
+                continue;
+            }
+            ColorDepthMatches cdsResults = batchResults.get(i);
+            String resultsJson = LambdaUtils.toJsonArray(cdsResults.streamCDSMatches());
+            writeResults(batch, dynamoDbClient, resultsJson, false);
+            memoizeResults(searchMemo, memoKeys.get(i), resultsJson, cdsResults.size());
+            nMatches += cdsResults.size();
+        }
+        return nMatches;
+    }
+
+    /**
+     * @return true if both batches compare their masks with the same targets
+     */
+    private boolean hasSameTargets(BatchSearchParameters params, BatchSearchParameters otherParams) {
+        ColorDepthSearchParameters jobParams = params.getJobParameters();
+        ColorDepthSearchParameters otherJobParams = otherParams.getJobParameters();
+        return Objects.equals(params.getStartIndex(), otherParams.getStartIndex())
+                && Objects.equals(params.getEndIndex(), otherParams.getEndIndex())
+                && Objects.equals(jobParams.getLibraryBucket(), otherJobParams.getLibraryBucket())
+                && Objects.equals(jobParams.getLibraries(), otherJobParams.getLibraries())
+                && Objects.equals(jobParams.getGradientsFolders(), otherJobParams.getGradientsFolders())
+                && Objects.equals(jobParams.getZgapMasksFolders(), otherJobParams.getZgapMasksFolders())
+                && Objects.equals(jobParams.getSparseLibrariesFolders(), otherJobParams.getSparseLibrariesFolders())
+                && Objects.equals(jobParams.getTiledLibrariesFolders(), otherJobParams.getTiledLibrariesFolders())
+                && Objects.equals(jobParams.getLibraryDeltaKeys(), otherJobParams.getLibraryDeltaKeys());
+    }
+
+    /**
+     * Fetch the masks and the targets of the batch range into the object cache, as many targets as the cache holds,
+     * and run the scoring on a sample of the targets so that it is compiled before the next batches land on the container.
+     * Nothing is written for a warm-up.
+     */
+    private int warmUp(BatchSearchParameters params, S3Client s3, Context context) {
+        long start = System.currentTimeMillis();
+        ColorDepthSearchParameters jobParams = params.getJobParameters();
+        List<SearchTarget> searchTargets = getBatchSearchTargets(params, s3);
+        String librariesVersion = getObjectsVersion(s3, params);
+        AtomicLong prefetchedBytes = new AtomicLong();
+        // without the version of the libraries the batches do not read the cache
+        if (librariesVersion != null) {
+            AWSMIPLoader mipLoader = new AWSMIPLoader(s3, new PixelBufferPool());
+            mipLoader.setObjectCache(objectCache, librariesVersion);
+            for (String maskKey : jobParams.getMaskKeys()) {
+                prefetchObject(mipLoader, jobParams.getSearchBucket(), maskKey, prefetchedBytes);
+            }
+            // the pixel match reads the tiled or the sparse targets when there are any
+            boolean withPixelMatch = !jobParams.isWithGradientScores() || jobParams.isWithTwoPhaseGradientScores();
+            ExecutorService executor = Executors.newFixedThreadPool(WARM_UP_THREADS);
+            try {
+                CompletableFuture.allOf(searchTargets.stream()
+                        .map(searchTarget -> CompletableFuture.runAsync(() -> {
+                            if (prefetchedBytes.get() < objectCache.getCapacityBytes()) {
+                                prefetchObject(mipLoader, jobParams.getLibraryBucket(), getPrefetchedKey(searchTarget, withPixelMatch), prefetchedBytes);
+                            }
+                        }, executor))
+                        .toArray(CompletableFuture[]::new))
+                        .join();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        LOG.info("Prefetched {} bytes in {} ms", prefetchedBytes.get(), System.currentTimeMillis() - start);
+
+        AWSLambdaColorMIPSearch awsColorMIPSearch = createColorMIPSearch(params, s3, searchTargets,
+                createMemoryBudget(context, Collections.singletonList(jobParams)), null);
+        long scoringStart = System.currentTimeMillis();
+        long scoringMillis = Long.parseLong(LambdaUtils.getOptionalEnv("WARM_UP_SCORING_MS", String.valueOf(DEFAULT_WARM_UP_SCORING_MILLIS)));
+        int nScoredTargets = 0;
+        int nMatches = 0;
+        int sampleStart = 0;
+        do {
+            List<SearchTarget> sampleTargets = searchTargets.subList(sampleStart, Math.min(sampleStart + WARM_UP_SAMPLE_SIZE, searchTargets.size()));
+            nMatches += awsColorMIPSearch.findAllColorDepthMatches(
+                    jobParams.getMaskKeys().subList(0, 1),
+                    jobParams.getMaskThresholds().subList(0, 1),
+                    sampleTargets).size();
+            nScoredTargets += sampleTargets.size();
+            // the next samples cycle through the batch targets, which are in the object cache by now
+            sampleStart = sampleStart + WARM_UP_SAMPLE_SIZE < searchTargets.size() ? sampleStart + WARM_UP_SAMPLE_SIZE : 0;
+        } while (!searchTargets.isEmpty() && System.currentTimeMillis() - scoringStart < scoringMillis);
+        LOG.info("Warmed up the search with {} matches of {} scored targets in {} ms", nMatches, nScoredTargets, System.currentTimeMillis() - start);
+        objectCache.logStats();
+        return 0;
+    }
+
+    private String getPrefetchedKey(SearchTarget searchTarget, boolean withPixelMatch) {
+        if (withPixelMatch && StringUtils.isNotBlank(searchTarget.tiledKey)) {
+            return searchTarget.tiledKey;
+        } else if (withPixelMatch && StringUtils.isNotBlank(searchTarget.sparseKey)) {
+            return searchTarget.sparseKey;
+        } else {
+            return searchTarget.searchKey;
+        }
+    }
+
+    private void prefetchObject(AWSMIPLoader mipLoader, String bucketName, String key, AtomicLong prefetchedBytes) {
+        try {
+            prefetchedBytes.addAndGet(mipLoader.prefetchObject(bucketName, key));
+        } catch (Exception e) {
+            // the batch fetches the object itself
+            LOG.warn("Could not prefetch {}:{}", bucketName, key, e);
+        }
+    }
+
+    private void writeResults(BatchSearchParameters params, DynamoDbClient dynamoDbClient, String resultsJson, boolean cancelled) {
         String tableName = params.getTasksTableName();
         if (tableName != null && params.getJobId() != null && params.getBatchId() != null) {
-            DynamoDbClient dynamoDbClient = LambdaUtils.createDynamoDB();
-            writeCDSResults(results, dynamoDbClient, tableName, params.getJobId(), params.getBatchId());
+            writeCDSResults(resultsJson, cancelled, dynamoDbClient, tableName, params.getJobId(), params.getBatchId());
         } else {
             LOG.error("Could not write results to DynamoDB. Missing tableName, jobId, and/or batchId.");
         }
-        LOG.info("Completed batch {}:{} in {}s", params.getJobId(), params.getBatchId(), (System.currentTimeMillis() - startTime) / 1000.);
-        return cdsResults.size();
+    }
+
+    /**
+     * Upload the recording to the diagnostics bucket if one is set, otherwise keep it in the local profiles folder.
+     */
+    private void saveRecording(SearchRecording recording, S3Client s3, BatchSearchParameters params) {
+        try {
+            Path recordingFile = recording.stop(Paths.get(LambdaUtils.getOptionalEnv("PROFILES_FOLDER", System.getProperty("java.io.tmpdir"))));
+            String diagnosticsBucket = LambdaUtils.getOptionalEnv("DIAGNOSTICS_BUCKET", null);
+            if (StringUtils.isBlank(diagnosticsBucket)) {
+                LOG.info("Saved recording to {}", recordingFile);
+                return;
+            }
+            String recordingKey = String.format("profiles/%s/%s", params.getJobId(), recordingFile.getFileName());
+            try {
+                LambdaUtils.putFile(s3, diagnosticsBucket, recordingKey, recordingFile, "application/octet-stream");
+                LOG.info("Uploaded recording to s3://{}/{}", diagnosticsBucket, recordingKey);
+            } finally {
+                Files.deleteIfExists(recordingFile);
+            }
+        } catch (Exception e) {
+            // the recording must not fail the batch
+            LOG.warn("Could not save the recording of batch {}:{}", params.getJobId(), params.getBatchId(), e);
+        }
+    }
+
+    /**
+     * @return the cancellation signal of the job or null if there is no job status table
+     */
+    private JobCancellation createJobCancellation(DynamoDbClient dynamoDbClient, String jobId) {
+        String jobStatusTableName = LambdaUtils.getOptionalEnv("JOB_STATUS_TABLE", null);
+        if (StringUtils.isBlank(jobStatusTableName) || StringUtils.isBlank(jobId)) {
+            return null;
+        }
+        long checkIntervalSeconds = Long.parseLong(LambdaUtils.getOptionalEnv("JOB_STATUS_CHECK_SECONDS", "5"));
+        return new JobCancellation(dynamoDbClient, jobStatusTableName, jobId, checkIntervalSeconds * 1000);
+    }
+
+    private ObjectCache createObjectCache() {
+        long heapMB = Long.parseLong(LambdaUtils.getOptionalEnv("OBJECT_CACHE_HEAP_MB", "0"));
+        long folderMB = Long.parseLong(LambdaUtils.getOptionalEnv("OBJECT_CACHE_TMP_MB", "256"));
+        return new ObjectCache(heapMB * 1024 * 1024,
+                Paths.get(System.getProperty("java.io.tmpdir"), "object-cache"),
+                folderMB * 1024 * 1024);
+    }
+
+    /**
+     * @return the version under which the library objects are cached, which is the libraries version of the job
+     * shared with the search memo, or null if it could not be read
+     */
+    private String getObjectsVersion(S3Client s3, BatchSearchParameters params) {
+        try {
+            return getJobLibrariesVersion(s3, params);
+        } catch (Exception e) {
+            LOG.warn("Could not read the version of the libraries {}, the object cache is not used", params.getJobParameters().getLibraries(), e);
+            return null;
+        }
+    }
+
+    /**
+     * The memo is only an optimization, so a memo key that cannot be created only means that the batch is searched
+     * and not memoized.
+     *
+     * @return the memo key of the batch or null if there is no memo or if the key could not be created
+     */
+    private String createMemoKey(SearchMemo searchMemo, S3Client s3, BatchSearchParameters params) {
+        if (searchMemo == null) {
+            return null;
+        }
+        try {
+            return SearchMemo.createMemoKey(s3, params, getJobLibrariesVersion(s3, params));
+        } catch (Exception e) {
+            LOG.warn("Could not create the memo key of batch {}:{}", params.getJobId(), params.getBatchId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the version of the libraries of the job, read by the first batch of the job that lands on the container
+     */
+    private String getJobLibrariesVersion(S3Client s3, BatchSearchParameters params) {
+        if (StringUtils.isBlank(params.getJobId())) {
+            return SearchMemo.readLibrariesVersion(s3, params.getJobParameters());
+        }
+        return jobLibrariesVersions.computeIfAbsent(params.getJobId(), jobId -> SearchMemo.readLibrariesVersion(s3, params.getJobParameters()));
+    }
+
+    /**
+     * @return the memoized results or null if there are none or if they could not be read, in which case the batch is searched
+     */
+    private SearchMemo.MemoizedResults getMemoizedResults(SearchMemo searchMemo, String memoKey) {
+        if (searchMemo == null || memoKey == null) {
+            return null;
+        }
+        try {
+            return searchMemo.getResults(memoKey);
+        } catch (Exception e) {
+            LOG.warn("Could not read the memoized results with key {}", memoKey, e);
+            return null;
+        }
+    }
+
+    /**
+     * Memoize the results once they are written, so that a memo failure never loses the results of the batch.
+     */
+    private void memoizeResults(SearchMemo searchMemo, String memoKey, String resultsJson, int nMatches) {
+        if (searchMemo == null || memoKey == null) {
+            return;
+        }
+        try {
+            searchMemo.putResults(memoKey, resultsJson, nMatches);
+        } catch (Exception e) {
+            LOG.warn("Could not memoize {} matches with key {}", nMatches, memoKey, e);
+        }
+    }
+
+    private SearchMemo createSearchMemo(DynamoDbClient dynamoDbClient) {
+        String memoTableName = LambdaUtils.getOptionalEnv("SEARCH_MEMO_TABLE", null);
+        if (StringUtils.isBlank(memoTableName)) {
+            return null;
+        }
+        long ttlHours = Long.parseLong(LambdaUtils.getOptionalEnv("SEARCH_MEMO_TTL_HOURS", "24"));
+        return new SearchMemo(dynamoDbClient, memoTableName, ttlHours * 60 * 60);
     }
 
     private void verifyCDSParams(BatchSearchParameters params) {
@@ -97,7 +447,16 @@ public class BatchSearch implements RequestHandler<BatchSearchParameters, Intege
         LOG.info("Job Id: {}", params.getJobId());
         LOG.info("Batch Id: {}", params.getBatchId());
 
-        ColorDepthSearchParameters jobParams = params.getJobParameters();
+        verifyJobParameters(params.getJobParameters());
+        if (params.getCoalescedBatches() != null) {
+            for (BatchSearchParameters coalescedBatch : params.getCoalescedBatches()) {
+                LOG.info("Coalesced batch {}:{}", coalescedBatch.getJobId(), coalescedBatch.getBatchId());
+                verifyJobParameters(coalescedBatch.getJobParameters());
+            }
+        }
+    }
+
+    private void verifyJobParameters(ColorDepthSearchParameters jobParams) {
         if (jobParams == null) {
             throw new IllegalArgumentException("No color depth search parameters");
         }
@@ -117,30 +476,81 @@ public class BatchSearch implements RequestHandler<BatchSearchParameters, Intege
                 jobParams.getLibraries().size(), jobParams.getMaskKeys().size());
     }
 
-    private List<ColorMIPSearchResult> performColorDepthSearch(BatchSearchParameters params, S3Client s3) {
+    private ColorDepthMatches performColorDepthSearch(BatchSearchParameters params, S3Client s3, Context context, JobCancellation jobCancellation) {
         long start = System.currentTimeMillis();
         LOG.info("Invoke color depth search with {}", params);
         ColorDepthSearchParameters jobParams = params.getJobParameters();
 
+        List<SearchTarget> searchTargets = getBatchSearchTargets(params, s3);
+        AWSLambdaColorMIPSearch awsColorMIPSearch = createColorMIPSearch(params, s3, searchTargets,
+                createMemoryBudget(context, Collections.singletonList(jobParams)), jobCancellation);
+
+        LOG.debug("Comparing {} masks with {} library mips", jobParams.getMaskKeys().size(), searchTargets.size());
+        ColorDepthMatches cdsResults = awsColorMIPSearch.findAllColorDepthMatches(
+                jobParams.getMaskKeys(),
+                jobParams.getMaskThresholds(),
+                searchTargets
+        );
+
+        long elapsed = System.currentTimeMillis() - start;
+        LOG.info("Found {} matches in {} ms.", cdsResults.size(), elapsed);
+
+        return cdsResults;
+    }
+
+    private List<ColorDepthMatches> performCoalescedColorDepthSearch(List<BatchSearchParameters> batches,
+                                                                     S3Client s3,
+                                                                     Context context,
+                                                                     List<JobCancellation> jobCancellations) {
+        long start = System.currentTimeMillis();
+        LOG.info("Invoke coalesced color depth search of {} batches", batches.size());
+        List<ColorDepthSearchParameters> batchJobParams = batches.stream().map(BatchSearchParameters::getJobParameters).collect(Collectors.toList());
+        // all the batches search the same targets
+        List<SearchTarget> searchTargets = getBatchSearchTargets(batches.get(0), s3);
+        MemoryBudget memoryBudget = createMemoryBudget(context, batchJobParams);
+        CoalescedSearch coalescedSearch = new CoalescedSearch();
+        coalescedSearch.setMemoryBudget(memoryBudget);
+        for (int i = 0; i < batches.size(); i++) {
+            ColorDepthSearchParameters jobParams = batchJobParams.get(i);
+            coalescedSearch.addJob(
+                    createColorMIPSearch(batches.get(i), s3, searchTargets, memoryBudget, jobCancellations.get(i)),
+                    jobParams.getMaskKeys(),
+                    jobParams.getMaskThresholds());
+        }
+        List<ColorDepthMatches> batchResults = coalescedSearch.findAllColorDepthMatches(searchTargets);
+
+        LOG.info("Found {} matches for {} batches in {} ms.",
+                batchResults.stream().mapToInt(ColorDepthMatches::size).sum(), batches.size(), System.currentTimeMillis() - start);
+        return batchResults;
+    }
+
+    private List<SearchTarget> getBatchSearchTargets(BatchSearchParameters params, S3Client s3) {
+        ColorDepthSearchParameters jobParams = params.getJobParameters();
         List<SearchTarget> searchTargets = getSearchTargets(s3,
                 jobParams.getLibraryBucket(),
                 jobParams.getLibraries(),
                 jobParams.getGradientsFolders(),
                 jobParams.getZgapMasksFolders(),
+                jobParams.getSparseLibrariesFolders(),
+                jobParams.getTiledLibrariesFolders(),
+                jobParams.getLibraryDeltaKeys(),
                 params.getStartIndex(),
                 params.getEndIndex());
         LOG.info("Loaded {} search keys", searchTargets.size());
+        return searchTargets;
+    }
+
+    private AWSLambdaColorMIPSearch createColorMIPSearch(BatchSearchParameters params,
+                                                         S3Client s3,
+                                                         List<SearchTarget> searchTargets,
+                                                         MemoryBudget memoryBudget,
+                                                         JobCancellation jobCancellation) {
+        ColorDepthSearchParameters jobParams = params.getJobParameters();
         ColorDepthSearchAlgorithmProvider<ColorMIPMatchScore> cdsAlgorithmProvider;
-        if (jobParams.isWithGradientScores()) {
-            cdsAlgorithmProvider = ColorDepthSearchAlgorithmProviderFactory.createPixMatchWithNegativeScoreCDSAlgorithmProvider(
-                    jobParams.isMirrorMask(),
-                    jobParams.getDataThreshold(),
-                    jobParams.getPixColorFluctuation(),
-                    jobParams.getXyShift(),
-                    jobParams.getNegativeRadius(),
-                    null
-            );
+        if (jobParams.isWithGradientScores() && !jobParams.isWithTwoPhaseGradientScores()) {
+            cdsAlgorithmProvider = createGradientScoresAlgorithmProvider(jobParams);
         } else {
+            // a two phase gradient search starts with a plain pixel match against all targets
             cdsAlgorithmProvider = ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(
                     jobParams.isMirrorMask(),
                     jobParams.getDataThreshold(),
@@ -150,30 +560,184 @@ public class BatchSearch implements RequestHandler<BatchSearchParameters, Intege
         }
 
         ColorMIPSearch colorMIPSearch = new ColorMIPSearch(jobParams.getMinMatchingPixRatio(), ColorDepthSearchParameters.DEFAULT_MASK_THRESHOLD, cdsAlgorithmProvider);
+        AWSMIPLoader mipLoader = new AWSMIPLoader(s3, new PixelBufferPool());
+        // without a warm-up on the container there is nothing to read from the cache
+        String librariesVersion = !objectCache.isEmpty() ? getObjectsVersion(s3, params) : null;
+        if (librariesVersion != null) {
+            mipLoader.setObjectCache(objectCache, librariesVersion);
+        }
         AWSLambdaColorMIPSearch awsColorMIPSearch = new AWSLambdaColorMIPSearch(
-                new AWSMIPLoader(s3),
+                mipLoader,
                 colorMIPSearch,
                 jobParams.getSearchBucket(),
                 jobParams.getLibraryBucket(),
                 LambdaUtils.getOptionalEnv("SEARCHED_THUMBNAILS_BUCKET", jobParams.getLibraryBucket())
         );
+        if (jobParams.isWithGradientScores() && jobParams.isWithComputedTargetVariants()) {
+            LOG.info("Compute the gradient and the zgap variants of the targets");
+            awsColorMIPSearch.setComputedTargetVariants(jobParams.getDataThreshold(), jobParams.getNegativeRadius());
+        }
+        if (jobParams.isWithTwoPhaseGradientScores()) {
+            LOG.info("Calculate gradient scores for at most {} candidates per mask with at least {} matching pixels",
+                    jobParams.getMaxGradientCandidates(), jobParams.getMinGradientCandidateMatchingPixels());
+            awsColorMIPSearch.setGradientScoresSearch(
+                    new ColorMIPSearch(jobParams.getMinMatchingPixRatio(), ColorDepthSearchParameters.DEFAULT_MASK_THRESHOLD, createGradientScoresAlgorithmProvider(jobParams)),
+                    jobParams.getMaxGradientCandidates(),
+                    jobParams.getMinGradientCandidateMatchingPixels());
+        }
+        if (!jobParams.isWithGradientScores() || jobParams.isWithTwoPhaseGradientScores()) {
+            // sparse targets are only used for the pixel match; the gradient scores need the full target
+            awsColorMIPSearch.setSparseTargetsDataThreshold(jobParams.getDataThreshold());
+            awsColorMIPSearch.setTiledTargets(jobParams.getXyShift(), jobParams.isMirrorMask());
+            // the signal bits only bound the pixel match
+            setTargetSignalBits(awsColorMIPSearch, s3, jobParams, searchTargets);
+            // the top results search needs the shift bounded pixel match to abandon the comparisons, even without xy shift
+            // with a mirrored mask the mirrored comparison is skipped when its bound cannot beat the original one
+            // the color lookup table compares the pixels of the shift bounded pixel match, so it needs it too
+            if (jobParams.isWithShiftBounds() && (jobParams.getXyShift() > 0 || jobParams.isMirrorMask())
+                    || jobParams.isWithTopResultsSearch()
+                    || jobParams.isWithColorLookupTable()) {
+                ColorMIPSearch unshiftedPixelMatchSearch = new ColorMIPSearch(jobParams.getMinMatchingPixRatio(), ColorDepthSearchParameters.DEFAULT_MASK_THRESHOLD,
+                        ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(
+                                false,
+                                jobParams.getDataThreshold(),
+                                jobParams.getPixColorFluctuation(),
+                                0));
+                awsColorMIPSearch.setShiftBoundedPixelMatch(
+                        unshiftedPixelMatchSearch,
+                        jobParams.getDataThreshold(),
+                        jobParams.getXyShift(),
+                        jobParams.isMirrorMask());
+                if (jobParams.isWithColorLookupTable()) {
+                    awsColorMIPSearch.setColorLookupTable(new ColorLookupTable(unshiftedPixelMatchSearch, memoryBudget));
+                }
+            }
+            if (jobParams.isWithTopResultsSearch()) {
+                LOG.info("Keep the top {} results per mask; the total matches count is a lower bound", jobParams.getMaxResultsPerMask());
+                awsColorMIPSearch.setTopResultsBound(jobParams.getMaxResultsPerMask());
+            }
+        }
+        if (jobParams.isFastSearch()) {
+            List<TileColorIndex> tileColorIndexes = loadTileColorIndexes(s3, jobParams.getLibraryBucket(), jobParams.getTileIndexKeys());
+            LOG.info("Fast search using {} tile color indexes", tileColorIndexes.size());
+            awsColorMIPSearch.setCandidateIndexes(tileColorIndexes, jobParams.getXyShift(), jobParams.isMirrorMask());
+        } else if (jobParams.isApproximateSearch()) {
+            List<MIPSignatureIndex> signatureIndexes = loadSignatureIndexes(s3, jobParams.getLibraryBucket(), jobParams.getSignatureIndexKeys());
+            signatureIndexes.forEach(signatureIndex -> signatureIndex.setMaxCandidates(jobParams.getMaxApproximateCandidates()));
+            LOG.info("Approximate search of the {} nearest targets using {} MIP signature indexes",
+                    jobParams.getMaxApproximateCandidates(), signatureIndexes.size());
+            awsColorMIPSearch.setCandidateIndexes(signatureIndexes, jobParams.getXyShift(), jobParams.isMirrorMask());
+        }
+        awsColorMIPSearch.setMemoryBudget(memoryBudget);
+        if (jobCancellation != null) {
+            awsColorMIPSearch.setCancellation(jobCancellation);
+        }
+        return awsColorMIPSearch;
+    }
 
-        LOG.debug("Comparing {} masks with {} library mips", jobParams.getMaskKeys().size(), searchTargets.size());
-        List<ColorMIPSearchResult> cdsResults = awsColorMIPSearch.findAllColorDepthMatches(
-                jobParams.getMaskKeys(),
-                jobParams.getMaskThresholds(),
-                searchTargets.stream().map(t -> t.searchKey).collect(Collectors.toList()),
-                searchTargets.stream().map(t -> t.gradientKey).collect(Collectors.toList()),
-                searchTargets.stream().map(t -> t.zgapMaskKey).collect(Collectors.toList())
+    /**
+     * @return the memory budget of the searches of the given jobs, which accounts for the mask variants of all of them
+     */
+    private MemoryBudget createMemoryBudget(Context context, List<ColorDepthSearchParameters> jobsParams) {
+        MemoryBudget memoryBudget = MemoryBudget.forMemoryLimit(
+                context != null ? context.getMemoryLimitInMB() : 0,
+                jobsParams.stream().mapToInt(ColorDepthSearchParameters::getXyShift).max().orElse(0),
+                jobsParams.stream().anyMatch(ColorDepthSearchParameters::isMirrorMask));
+        LOG.info("Compare targets using {}", memoryBudget);
+        return memoryBudget;
+    }
+
+    private ColorDepthSearchAlgorithmProvider<ColorMIPMatchScore> createGradientScoresAlgorithmProvider(ColorDepthSearchParameters jobParams) {
+        return ColorDepthSearchAlgorithmProviderFactory.createPixMatchWithNegativeScoreCDSAlgorithmProvider(
+                jobParams.isMirrorMask(),
+                jobParams.getDataThreshold(),
+                jobParams.getPixColorFluctuation(),
+                jobParams.getXyShift(),
+                jobParams.getNegativeRadius(),
+                null
         );
+    }
 
-        long elapsed = System.currentTimeMillis() - start;
-        LOG.info("Found {} matches in {} ms.", cdsResults.size(), elapsed);
+    private List<TileColorIndex> loadTileColorIndexes(S3Client s3, String libraryBucket, List<String> tileIndexKeys) {
+        List<TileColorIndex> tileColorIndexes = new ArrayList<>();
+        if (tileIndexKeys == null) {
+            return tileColorIndexes;
+        }
+        for (String tileIndexKey : tileIndexKeys) {
+            if (StringUtils.isBlank(tileIndexKey)) {
+                continue;
+            }
+            try (InputStream tileIndexStream = LambdaUtils.getObject(s3, libraryBucket, tileIndexKey)) {
+                tileColorIndexes.add(TileColorIndex.read(tileIndexStream));
+            } catch (Exception e) {
+                // without the index all targets of the library are compared
+                LOG.warn("Could not read tile color index s3://{}/{}", libraryBucket, tileIndexKey, e);
+            }
+        }
+        return tileColorIndexes;
+    }
 
-        return cdsResults;
+    private List<MIPSignatureIndex> loadSignatureIndexes(S3Client s3, String libraryBucket, List<String> signatureIndexKeys) {
+        List<MIPSignatureIndex> signatureIndexes = new ArrayList<>();
+        if (signatureIndexKeys == null) {
+            return signatureIndexes;
+        }
+        for (String signatureIndexKey : signatureIndexKeys) {
+            if (StringUtils.isBlank(signatureIndexKey)) {
+                continue;
+            }
+            try (InputStream signatureIndexStream = LambdaUtils.getObject(s3, libraryBucket, signatureIndexKey)) {
+                signatureIndexes.add(MIPSignatureIndex.read(signatureIndexStream));
+            } catch (Exception e) {
+                // without the index all targets of the library are compared
+                LOG.warn("Could not read MIP signature index s3://{}/{}", libraryBucket, signatureIndexKey, e);
+            }
+        }
+        return signatureIndexes;
     }
 
-    private void writeCDSResults(List<CDSMatches> results, DynamoDbClient dynamoDbClient, String tableName, String jobId, Integer batchId) {
+    private void setTargetSignalBits(AWSLambdaColorMIPSearch awsColorMIPSearch, S3Client s3, ColorDepthSearchParameters jobParams, List<SearchTarget> searchTargets) {
+        if (jobParams.getSignalBitsetsKeys() == null) {
+            return;
+        }
+        List<String> targetKeys = searchTargets.stream().map(searchTarget -> searchTarget.searchKey).collect(Collectors.toList());
+        Map<String, long[]> targetSignalBits = new HashMap<>();
+        int width = 0;
+        int height = 0;
+        for (String signalBitsetsKey : jobParams.getSignalBitsetsKeys()) {
+            if (StringUtils.isBlank(signalBitsetsKey)) {
+                continue;
+            }
+            try {
+                SignalBitsets signalBitsets;
+                try (InputStream signalBitsetsStream = LambdaUtils.getObject(s3, jobParams.getLibraryBucket(), signalBitsetsKey)) {
+                    signalBitsets = SignalBitsets.read(signalBitsetsStream);
+                }
+                if (signalBitsets.getThreshold() > jobParams.getDataThreshold()) {
+                    LOG.warn("Signal bitsets s3://{}/{} threshold {} is greater than the data threshold {}",
+                            jobParams.getLibraryBucket(), signalBitsetsKey, signalBitsets.getThreshold(), jobParams.getDataThreshold());
+                    continue;
+                }
+                if (width == 0) {
+                    width = signalBitsets.getWidth();
+                    height = signalBitsets.getHeight();
+                } else if (width != signalBitsets.getWidth() || height != signalBitsets.getHeight()) {
+                    LOG.warn("Signal bitsets s3://{}/{} are {}x{} instead of {}x{}",
+                            jobParams.getLibraryBucket(), signalBitsetsKey, signalBitsets.getWidth(), signalBitsets.getHeight(), width, height);
+                    continue;
+                }
+                targetSignalBits.putAll(signalBitsets.readTargetBits(targetKeys, (start, end) -> LambdaUtils.getObject(
+                        s3, jobParams.getLibraryBucket(), signalBitsetsKey + SignalBitsets.DATA_SUFFIX, start, end)));
+            } catch (Exception e) {
+                // the targets without signal bits are always compared
+                LOG.warn("Could not read signal bitsets s3://{}/{}", jobParams.getLibraryBucket(), signalBitsetsKey, e);
+            }
+        }
+        LOG.info("Loaded signal bits for {} out of {} targets", targetSignalBits.size(), searchTargets.size());
+        awsColorMIPSearch.setTargetSignalBits(targetSignalBits, width, height, jobParams.getXyShift(), jobParams.isMirrorMask());
+    }
+
+    private void writeCDSResults(String resultsJson, boolean cancelled, DynamoDbClient dynamoDbClient, String tableName, String jobId, Integer batchId) {
 
         long now = Instant.now().getEpochSecond(); // unix time
         long ttl = now + 60 * 60; // 60 minutes
@@ -182,7 +746,12 @@ public class BatchSearch implements RequestHandler<BatchSearchParameters, Intege
         item.put("jobId", AttributeValue.builder().s(jobId).build());
         item.put("batchId", AttributeValue.builder().n(batchId.toString()).build());
         item.put("ttl", AttributeValue.builder().n(ttl+"").build());
-        item.put("results", AttributeValue.builder().s(LambdaUtils.toJson(results)).build());
+        item.put("results", AttributeValue.builder().s(resultsJson).build());
+        // the results of every mask are sorted by matching pixels, which lets the combiner stop early
+        item.put("resultsSorted", AttributeValue.builder().bool(true).build());
+        if (cancelled) {
+            item.put("cancelled", AttributeValue.builder().bool(true).build());
+        }
         PutItemRequest putItemRequest = PutItemRequest.builder().tableName(tableName).item(item).build();
         dynamoDbClient.putItem(putItemRequest);
         LOG.info("Results written to DynamoDB table {} with id={} and batchId={}", tableName, jobId, batchId);
@@ -193,6 +762,9 @@ public class BatchSearch implements RequestHandler<BatchSearchParameters, Intege
                                                 List<String> searcheableFolders,
                                                 List<String> gradientsFolders,
                                                 List<String> zgapMasksFolders,
+                                                List<String> sparseLibrariesFolders,
+                                                List<String> tiledLibrariesFolders,
+                                                List<String> libraryDeltaKeys,
                                                 int startIndex,
                                                 int endIndex) {
         List<SearchTarget> searchTargets = new ArrayList<>();
@@ -201,22 +773,40 @@ public class BatchSearch implements RequestHandler<BatchSearchParameters, Intege
                 .boxed()
                 .map(index -> {
                     String searcheableFolder = searcheableFolders.get(index);
-                    String gradientsFolder = CollectionUtils.size(gradientsFolders) < index
+                    String gradientsFolder = CollectionUtils.size(gradientsFolders) <= index
                             ? null
                             : IterableUtils.get(gradientsFolders, index);
-                    String zgapMasksFolder = CollectionUtils.size(zgapMasksFolders) < index
+                    String zgapMasksFolder = CollectionUtils.size(zgapMasksFolders) <= index
                             ? null
                             : IterableUtils.get(zgapMasksFolders, index);
-                    return new SearchTarget(searcheableFolder, gradientsFolder, zgapMasksFolder);
+                    String sparseLibraryFolder = CollectionUtils.size(sparseLibrariesFolders) <= index
+                            ? null
+                            : IterableUtils.get(sparseLibrariesFolders, index);
+                    String tiledLibraryFolder = CollectionUtils.size(tiledLibrariesFolders) <= index
+                            ? null
+                            : IterableUtils.get(tiledLibrariesFolders, index);
+                    return new SearchTarget(searcheableFolder, gradientsFolder, zgapMasksFolder, sparseLibraryFolder, tiledLibraryFolder);
                 })
                 .collect(Collectors.toList());
 
         int randomPrefix = randomGen.nextInt(100);
-        for (SearchTarget searchTargetFolder : searchTargetFolders) {
-            String keyListKey = searchTargetFolder.searchKey + "/KEYS/" + randomPrefix + "/keys_denormalized.json";
-            LOG.info("Retrieving keys in s3://{}/{}", libraryBucket, keyListKey);
-            InputStream object = LambdaUtils.getObject(s3, libraryBucket, keyListKey);
-            List<String> searchableKeys = LambdaUtils.fromJson(object, List.class);
+        for (int folderIndex = 0; folderIndex < searchTargetFolders.size(); folderIndex++) {
+            SearchTarget searchTargetFolder = searchTargetFolders.get(folderIndex);
+            List<String> searchableKeys;
+            if (LambdaUtils.isEmpty(libraryDeltaKeys)) {
+                String keyListKey = searchTargetFolder.searchKey + "/KEYS/" + randomPrefix + "/keys_denormalized.json";
+                LOG.info("Retrieving keys in s3://{}/{}", libraryBucket, keyListKey);
+                InputStream object = LambdaUtils.getObject(s3, libraryBucket, keyListKey);
+                searchableKeys = LambdaUtils.fromJson(object, List.class);
+            } else {
+                // an incremental search only compares the masks with the MIPs added or changed since the prior version
+                String deltaKey = CollectionUtils.size(libraryDeltaKeys) <= folderIndex ? null : libraryDeltaKeys.get(folderIndex);
+                if (StringUtils.isBlank(deltaKey)) {
+                    throw new IllegalArgumentException("No delta for library " + searchTargetFolder.searchKey);
+                }
+                LOG.info("Retrieving added or changed keys in s3://{}/{}", libraryBucket, deltaKey);
+                searchableKeys = LibraryDelta.read(LambdaUtils.getObject(s3, libraryBucket, deltaKey)).getSearchKeys();
+            }
             for (String key : searchableKeys) {
                 if (targetIndex >= startIndex && targetIndex < endIndex) {
                     // replace the search folder and remove the extension
@@ -226,7 +816,13 @@ public class BatchSearch implements RequestHandler<BatchSearchParameters, Intege
                     String zgapMaskKey = StringUtils.isNotBlank(searchTargetFolder.zgapMaskKey)
                             ? key.replace(searchTargetFolder.searchKey, searchTargetFolder.zgapMaskKey).replaceAll("\\..*$", "")
                             : null;
-                    SearchTarget searchTarget = new SearchTarget(key, gradientKey, zgapMaskKey);
+                    String sparseKey = StringUtils.isNotBlank(searchTargetFolder.sparseKey)
+                            ? LibraryConverter.getSparseMIPName(key.replace(searchTargetFolder.searchKey, searchTargetFolder.sparseKey))
+                            : null;
+                    String tiledKey = StringUtils.isNotBlank(searchTargetFolder.tiledKey)
+                            ? TiledMIP.getTiledMIPName(key.replace(searchTargetFolder.searchKey, searchTargetFolder.tiledKey))
+                            : null;
+                    SearchTarget searchTarget = new SearchTarget(key, gradientKey, zgapMaskKey, sparseKey, tiledKey);
                     searchTargets.add(searchTarget);
                 }
                 targetIndex++;
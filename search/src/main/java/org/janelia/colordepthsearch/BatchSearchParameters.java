@@ -1,5 +1,7 @@
 package org.janelia.colordepthsearch;
 
+import java.util.List;
+
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
 /**
@@ -14,9 +16,14 @@ public class BatchSearchParameters {
     private Integer batchId;
     private Integer startIndex;
     private Integer endIndex;
+    private boolean withProfiling = false;
+
+    private boolean warmUp = false;
 
     private ColorDepthSearchParameters jobParameters = new ColorDepthSearchParameters();
 
+    private List<BatchSearchParameters> coalescedBatches;
+
     public String getTasksTableName() {
         return tasksTableName;
     }
@@ -58,6 +65,33 @@ public class BatchSearchParameters {
         this.endIndex = endIndex;
     }
 
+    public boolean isWithProfiling() {
+        return withProfiling;
+    }
+
+    /**
+     * Set whether the batch is profiled with a flight recording, which is uploaded to the diagnostics bucket
+     * or written to the local profiles folder when there is no diagnostics bucket.
+     * @param withProfiling
+     */
+    public void setWithProfiling(boolean withProfiling) {
+        this.withProfiling = withProfiling;
+    }
+
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Set whether the invocation only warms up the container for the next batches of the job: it fetches the masks
+     * and the targets of the batch range into the container cache and runs the scoring on a sample of the targets,
+     * without writing any results.
+     * @param warmUp
+     */
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
     public ColorDepthSearchParameters getJobParameters() {
         return jobParameters;
     }
@@ -66,6 +100,21 @@ public class BatchSearchParameters {
         this.jobParameters = jobParameters;
     }
 
+    public List<BatchSearchParameters> getCoalescedBatches() {
+        return coalescedBatches;
+    }
+
+    /**
+     * Set the batches of other jobs that are searched together with this batch. The batches that search the same
+     * targets as this batch, i.e. the same library range with the same library folders, are searched target by target:
+     * every target is loaded once and compared with the masks of all these batches. Each coalesced batch has its own
+     * job parameters and its results are written with its own job and batch id.
+     * @param coalescedBatches
+     */
+    public void setCoalescedBatches(List<BatchSearchParameters> coalescedBatches) {
+        this.coalescedBatches = coalescedBatches;
+    }
+
     @Override
     public String toString() {
         return new ToStringBuilder(this)
@@ -74,7 +123,10 @@ public class BatchSearchParameters {
                 .append("batchId", batchId)
                 .append("startIndex", startIndex)
                 .append("endIndex", endIndex)
+                .append("withProfiling", withProfiling)
+                .append("warmUp", warmUp)
                 .append("jobParameters", jobParameters)
+                .append("coalescedBatches", coalescedBatches)
                 .toString();
     }
 }
@@ -0,0 +1,27 @@
+package org.janelia.colordepthsearch;
+
+import java.util.BitSet;
+
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+
+/**
+ * Library index used for shortlisting the targets that a mask is compared with.
+ */
+interface CandidateTargetsIndex {
+
+    /**
+     * @return true if the target is part of the index
+     */
+    boolean containsTarget(String targetKey);
+
+    /**
+     * @return the ids of the targets shortlisted for the mask
+     */
+    BitSet findCandidates(ImageArray<?> maskImage, int maskThreshold, int xyShift, boolean mirrorMask);
+
+    /**
+     * @return true if the target is one of the shortlisted candidates
+     */
+    boolean isCandidate(BitSet candidates, String targetKey);
+
+}
@@ -0,0 +1,204 @@
+package org.janelia.colordepthsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import com.google.common.collect.Streams;
+
+import org.janelia.colormipsearch.api.cdmips.MIPImage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Search of the masks of several jobs against the same targets, target by target instead of mask by mask. The masks
+ * of all the jobs are prepared first, then every target is loaded once, over the union of the query ranges of the masks
+ * it is compared with, and compared with the masks of all the jobs before it is released. The matches are kept per job
+ * and every job gets the same matches as a search of its own.
+ *
+ * The targets are loaded from the sparse targets only if all the jobs use them, and the tiled targets are not used,
+ * since they only hold the tiles reached by a single mask. The second phase of a two phase gradient search still
+ * loads the gradient candidates of every mask.
+ */
+class CoalescedSearch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoalescedSearch.class);
+
+    private final List<AWSLambdaColorMIPSearch> jobSearches = new ArrayList<>();
+    private final List<List<String>> jobMaskKeys = new ArrayList<>();
+    private final List<List<Integer>> jobMaskThresholds = new ArrayList<>();
+    private MemoryBudget memoryBudget;
+
+    /**
+     * @param jobSearch search configured with the parameters of the job
+     * @param maskKeys masks of the job
+     * @param maskThresholds thresholds of the masks of the job
+     */
+    void addJob(AWSLambdaColorMIPSearch jobSearch, List<String> maskKeys, List<Integer> maskThresholds) {
+        jobSearches.add(jobSearch);
+        jobMaskKeys.add(maskKeys);
+        jobMaskThresholds.add(maskThresholds);
+    }
+
+    /**
+     * Compare the targets in parallel within the given memory budget, which should also be the memory budget of all
+     * the job searches so that it accounts for the masks of all the jobs. Without a budget the targets are compared
+     * one at a time.
+     */
+    void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the matches of every job, in the order the jobs were added
+     */
+    List<ColorDepthMatches> findAllColorDepthMatches(List<SearchTarget> targets) {
+        long startTime = System.currentTimeMillis();
+        List<List<AWSLambdaColorMIPSearch.PreparedMask>> jobMasks = new ArrayList<>();
+        try {
+            for (int jobIndex = 0; jobIndex < jobSearches.size(); jobIndex++) {
+                AWSLambdaColorMIPSearch jobSearch = jobSearches.get(jobIndex);
+                List<AWSLambdaColorMIPSearch.PreparedMask> preparedMasks = new ArrayList<>();
+                jobMasks.add(preparedMasks);
+                Streams.forEachPair(jobMaskKeys.get(jobIndex).stream(), jobMaskThresholds.get(jobIndex).stream(),
+                        (maskKey, maskThreshold) -> {
+                            if (!jobSearch.isCancelled()) {
+                                AWSLambdaColorMIPSearch.PreparedMask preparedMask = jobSearch.prepareMask(maskKey, maskThreshold, targets);
+                                if (preparedMask != null) {
+                                    preparedMasks.add(preparedMask);
+                                }
+                            }
+                        });
+            }
+            Integer sparseTargetsDataThreshold = getSparseTargetsDataThreshold();
+            AtomicInteger nLoadedTargets = new AtomicInteger();
+            compareTargets(targets, jobMasks, sparseTargetsDataThreshold, nLoadedTargets);
+
+            List<ColorDepthMatches> jobMatches = new ArrayList<>();
+            for (int jobIndex = 0; jobIndex < jobSearches.size(); jobIndex++) {
+                AWSLambdaColorMIPSearch jobSearch = jobSearches.get(jobIndex);
+                ColorDepthMatches matches = jobSearch.createColorDepthMatches(targets);
+                if (!jobSearch.isCancelled()) {
+                    for (AWSLambdaColorMIPSearch.PreparedMask preparedMask : jobMasks.get(jobIndex)) {
+                        jobSearch.completeLoadedTargetsMask(preparedMask, targets, matches);
+                    }
+                }
+                jobSearch.logSampledMessageCounts();
+                jobMatches.add(matches);
+            }
+            LOG.info("Compared {} masks of {} jobs with {} targets, loading {} targets {}, in {}ms",
+                    jobMasks.stream().mapToInt(List::size).sum(), jobSearches.size(), targets.size(), nLoadedTargets.get(),
+                    sparseTargetsDataThreshold != null ? "from the sparse targets" : "in full",
+                    System.currentTimeMillis() - startTime);
+            return jobMatches;
+        } finally {
+            for (int jobIndex = 0; jobIndex < jobMasks.size(); jobIndex++) {
+                jobMasks.get(jobIndex).forEach(jobSearches.get(jobIndex)::releaseMask);
+            }
+        }
+    }
+
+    /**
+     * @return the data threshold of the sparse targets valid for all the jobs or null if one of the jobs cannot use them
+     */
+    private Integer getSparseTargetsDataThreshold() {
+        Integer sparseTargetsDataThreshold = null;
+        for (AWSLambdaColorMIPSearch jobSearch : jobSearches) {
+            Integer jobSparseTargetsDataThreshold = jobSearch.getSparseTargetsDataThreshold();
+            if (jobSparseTargetsDataThreshold == null) {
+                return null;
+            }
+            sparseTargetsDataThreshold = sparseTargetsDataThreshold == null
+                    ? jobSparseTargetsDataThreshold
+                    : Math.min(sparseTargetsDataThreshold, jobSparseTargetsDataThreshold);
+        }
+        return sparseTargetsDataThreshold;
+    }
+
+    private void compareTargets(List<SearchTarget> targets,
+                                List<List<AWSLambdaColorMIPSearch.PreparedMask>> jobMasks,
+                                Integer sparseTargetsDataThreshold,
+                                AtomicInteger nLoadedTargets) {
+        if (memoryBudget == null) {
+            IntStream.range(0, targets.size())
+                    .forEach(targetIndex -> compareTarget(targetIndex, targets.get(targetIndex), jobMasks, sparseTargetsDataThreshold, nLoadedTargets));
+            return;
+        }
+        long maskBytes = jobMasks.stream().flatMap(List::stream).mapToLong(AWSLambdaColorMIPSearch.PreparedMask::getMaskBytes).sum();
+        long targetBytes = jobMasks.stream().flatMap(List::stream).mapToLong(AWSLambdaColorMIPSearch.PreparedMask::getTargetBytes).max().orElse(0);
+        int maxInFlightTargets = Math.min(memoryBudget.getMaxInFlightTargets(maskBytes, targetBytes), Math.max(1, targets.size()));
+        LOG.debug("Compare {} targets with at most {} targets in flight", targets.size(), maxInFlightTargets);
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlightTargets);
+        try {
+            CompletableFuture.allOf(IntStream.range(0, targets.size())
+                    .mapToObj(targetIndex -> CompletableFuture.runAsync(() -> {
+                        try {
+                            memoryBudget.reserveTarget(targetBytes);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException(e);
+                        }
+                        try {
+                            compareTarget(targetIndex, targets.get(targetIndex), jobMasks, sparseTargetsDataThreshold, nLoadedTargets);
+                        } finally {
+                            memoryBudget.releaseTarget(targetBytes);
+                        }
+                    }, executor))
+                    .toArray(CompletableFuture[]::new))
+                    .join();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Load the target once for all the masks of the jobs that are not cancelled and compare it with them.
+     */
+    private void compareTarget(int targetIndex,
+                               SearchTarget target,
+                               List<List<AWSLambdaColorMIPSearch.PreparedMask>> jobMasks,
+                               Integer sparseTargetsDataThreshold,
+                               AtomicInteger nLoadedTargets) {
+        long startPixel = Long.MAX_VALUE;
+        long endPixel = -1;
+        for (int jobIndex = 0; jobIndex < jobSearches.size(); jobIndex++) {
+            if (jobSearches.get(jobIndex).isCancelled()) {
+                continue;
+            }
+            for (AWSLambdaColorMIPSearch.PreparedMask preparedMask : jobMasks.get(jobIndex)) {
+                if (preparedMask.isSearched(targetIndex)) {
+                    startPixel = Math.min(startPixel, preparedMask.getQueryFirstPixelIndex());
+                    endPixel = Math.max(endPixel, preparedMask.getQueryLastPixelIndex());
+                }
+            }
+        }
+        if (endPixel < 0) {
+            // no mask has to be compared with the target
+            return;
+        }
+        // all the job searches load the targets from the same library bucket
+        AWSLambdaColorMIPSearch loadingSearch = jobSearches.get(0);
+        MIPImage targetImage = loadingSearch.loadTargetRange(target, startPixel, endPixel, sparseTargetsDataThreshold);
+        if (targetImage == null) {
+            return;
+        }
+        nLoadedTargets.incrementAndGet();
+        try {
+            for (int jobIndex = 0; jobIndex < jobSearches.size(); jobIndex++) {
+                AWSLambdaColorMIPSearch jobSearch = jobSearches.get(jobIndex);
+                for (AWSLambdaColorMIPSearch.PreparedMask preparedMask : jobMasks.get(jobIndex)) {
+                    if (preparedMask.isSearched(targetIndex)) {
+                        jobSearch.compareLoadedTarget(preparedMask, targetIndex, target, targetImage);
+                    }
+                }
+            }
+        } finally {
+            loadingSearch.releaseTarget(targetImage);
+        }
+    }
+
+}
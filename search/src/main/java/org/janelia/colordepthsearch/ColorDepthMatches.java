@@ -0,0 +1,123 @@
+package org.janelia.colordepthsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
+import org.janelia.colormipsearch.api.cdsearch.CDSMatches;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearchResult;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearchResultUtils;
+import org.janelia.colormipsearch.api.cdsearch.NegativeColorDepthMatchScore;
+
+/**
+ * Compact store of the matches found by a batch. Every match is a row of primitive columns that reference the mask
+ * and the target by index. The mask metadata is kept once per mask and the target metadata is only created when
+ * the matches are serialized, one mask at a time.
+ */
+class ColorDepthMatches {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final List<MIPMetadata> masks = new ArrayList<>();
+    private final IntFunction<MIPMetadata> targetMetadataProvider;
+    private int size;
+    private int[] maskIndexes = new int[INITIAL_CAPACITY];
+    private int[] targetIndexes = new int[INITIAL_CAPACITY];
+    private int[] matchingPixels = new int[INITIAL_CAPACITY];
+    private double[] matchingRatios = new double[INITIAL_CAPACITY];
+    private long[] gradientAreaGaps = new long[INITIAL_CAPACITY];
+    private long[] highExpressionAreas = new long[INITIAL_CAPACITY];
+
+    /**
+     * @param targetMetadataProvider creates the metadata of a target from its index
+     */
+    ColorDepthMatches(IntFunction<MIPMetadata> targetMetadataProvider) {
+        this.targetMetadataProvider = targetMetadataProvider;
+    }
+
+    /**
+     * @return the index of the mask
+     */
+    synchronized int addMask(MIPMetadata maskMIP) {
+        masks.add(maskMIP);
+        return masks.size() - 1;
+    }
+
+    synchronized void addMatch(int maskIndex, int targetIndex, ColorMIPMatchScore score) {
+        if (size == maskIndexes.length) {
+            int capacity = 2 * size;
+            maskIndexes = Arrays.copyOf(maskIndexes, capacity);
+            targetIndexes = Arrays.copyOf(targetIndexes, capacity);
+            matchingPixels = Arrays.copyOf(matchingPixels, capacity);
+            matchingRatios = Arrays.copyOf(matchingRatios, capacity);
+            gradientAreaGaps = Arrays.copyOf(gradientAreaGaps, capacity);
+            highExpressionAreas = Arrays.copyOf(highExpressionAreas, capacity);
+        }
+        maskIndexes[size] = maskIndex;
+        targetIndexes[size] = targetIndex;
+        matchingPixels[size] = score.getMatchingPixNum();
+        matchingRatios[size] = score.getMatchingPixNumToMaskRatio();
+        gradientAreaGaps[size] = score.getGradientAreaGap();
+        highExpressionAreas[size] = score.getHighExpressionArea();
+        size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Group the matches by mask, in the order in which the masks were added, with the matches of every mask sorted by
+     * matching pixels. The metadata of the targets of a mask is only created when the stream reaches that mask.
+     */
+    synchronized Stream<CDSMatches> streamCDSMatches() {
+        // rows ordered by mask, keeping the order in which the matches of a mask were added until they are sorted
+        int[] maskStarts = new int[masks.size() + 1];
+        for (int i = 0; i < size; i++) {
+            maskStarts[maskIndexes[i] + 1]++;
+        }
+        for (int m = 0; m < masks.size(); m++) {
+            maskStarts[m + 1] += maskStarts[m];
+        }
+        int[] rows = new int[size];
+        int[] maskOffsets = Arrays.copyOf(maskStarts, masks.size());
+        for (int i = 0; i < size; i++) {
+            rows[maskOffsets[maskIndexes[i]]++] = i;
+        }
+        return IntStream.range(0, masks.size())
+                .filter(m -> maskStarts[m + 1] > maskStarts[m])
+                .mapToObj(m -> createCDSMatches(Arrays.copyOfRange(rows, maskStarts[m], maskStarts[m + 1])))
+                .flatMap(List::stream);
+    }
+
+    private synchronized List<CDSMatches> createCDSMatches(int[] maskRows) {
+        List<ColorMIPSearchResult> maskResults = new ArrayList<>(maskRows.length);
+        int[] sortedMaskRows = IntStream.of(maskRows)
+                .boxed()
+                .sorted((i1, i2) -> Integer.compare(matchingPixels[i2], matchingPixels[i1]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        for (int i : sortedMaskRows) {
+            maskResults.add(new ColorMIPSearchResult(
+                    masks.get(maskIndexes[i]),
+                    targetMetadataProvider.apply(targetIndexes[i]),
+                    createScore(i),
+                    true,
+                    false));
+        }
+        return ColorMIPSearchResultUtils.groupResults(maskResults, ColorMIPSearchResult::perMaskMetadata);
+    }
+
+    private ColorMIPMatchScore createScore(int i) {
+        NegativeColorDepthMatchScore negativeScore = gradientAreaGaps[i] >= 0 || highExpressionAreas[i] >= 0
+                ? new NegativeColorDepthMatchScore(gradientAreaGaps[i], highExpressionAreas[i])
+                : null;
+        return new ColorMIPMatchScore(matchingPixels[i], matchingRatios[i], negativeScore);
+    }
+
+}
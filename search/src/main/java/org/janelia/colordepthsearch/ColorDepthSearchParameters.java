@@ -18,16 +18,32 @@ public class ColorDepthSearchParameters {
     private List<String> libraries;
     private List<String> gradientsFolders;
     private List<String> zgapMasksFolders;
+    private List<String> sparseLibrariesFolders;
+    private List<String> tiledLibrariesFolders;
+    private List<String> tileIndexKeys;
+    private List<String> signatureIndexKeys;
+    private List<String> signalBitsetsKeys;
+    private List<String> libraryDeltaKeys;
+    private String searchMode;
     private String searchBucket;
     private List<String> maskKeys;
+    private List<String> maskETags;
     private List<Integer> maskThresholds;
     private Integer dataThreshold = 100;
     private Double pixColorFluctuation = 2.0;
     private Integer xyShift = 0;
     private boolean mirrorMask = false;
+    private boolean withShiftBounds = false;
+    private boolean withColorLookupTable = false;
     private Double minMatchingPixRatio = DEFAULT_MIN_MATCHING_RATIO;
     private Integer negativeRadius = 20;
     private boolean withGradientScores = false;
+    private boolean withComputedTargetVariants = false;
+    private Integer maxGradientCandidates = 0;
+    private Integer minGradientCandidateMatchingPixels = 0;
+    private Integer maxResultsPerMask = 0;
+    private boolean withTopResultsBounds = false;
+    private Integer maxApproximateCandidates = MIPSignatureIndex.DEFAULT_MAX_CANDIDATES;
 
     public String getLibraryBucket() {
         return libraryBucket;
@@ -57,6 +73,116 @@ public class ColorDepthSearchParameters {
         this.zgapMasksFolders = zgapMasksFolders;
     }
 
+    public List<String> getSparseLibrariesFolders() {
+        return sparseLibrariesFolders;
+    }
+
+    /**
+     * Folders containing the sparse version of the libraries, in the same order as the libraries.
+     * The sparse MIPs are created offline using the LibraryConverter.
+     * @param sparseLibrariesFolders
+     */
+    public void setSparseLibrariesFolders(List<String> sparseLibrariesFolders) {
+        this.sparseLibrariesFolders = sparseLibrariesFolders;
+    }
+
+    public List<String> getTiledLibrariesFolders() {
+        return tiledLibrariesFolders;
+    }
+
+    /**
+     * Folders containing the tiled version of the libraries, in the same order as the libraries.
+     * The tiled MIPs are created offline using the LibraryConverter. Like the sparse MIPs they are only used
+     * for the pixel match, and only the tiles that the mask can reach are read.
+     * @param tiledLibrariesFolders
+     */
+    public void setTiledLibrariesFolders(List<String> tiledLibrariesFolders) {
+        this.tiledLibrariesFolders = tiledLibrariesFolders;
+    }
+
+    public List<String> getTileIndexKeys() {
+        return tileIndexKeys;
+    }
+
+    /**
+     * Keys of the tile color indexes of the libraries, in the same order as the libraries.
+     * The indexes are created offline using the LibraryConverter and they are only used by the fast search.
+     * @param tileIndexKeys
+     */
+    public void setTileIndexKeys(List<String> tileIndexKeys) {
+        this.tileIndexKeys = tileIndexKeys;
+    }
+
+    public List<String> getSignatureIndexKeys() {
+        return signatureIndexKeys;
+    }
+
+    /**
+     * Keys of the MIP signature indexes of the libraries, in the same order as the libraries.
+     * The indexes are created offline using the LibraryConverter and they are only used by the approximate search.
+     * @param signatureIndexKeys
+     */
+    public void setSignatureIndexKeys(List<String> signatureIndexKeys) {
+        this.signatureIndexKeys = signatureIndexKeys;
+    }
+
+    public List<String> getSignalBitsetsKeys() {
+        return signalBitsetsKeys;
+    }
+
+    /**
+     * Keys of the signal bitsets indexes of the libraries, in the same order as the libraries.
+     * The bitsets are created offline using the LibraryConverter and they are used to skip the targets that cannot
+     * match a mask without changing the results.
+     * @param signalBitsetsKeys
+     */
+    public void setSignalBitsetsKeys(List<String> signalBitsetsKeys) {
+        this.signalBitsetsKeys = signalBitsetsKeys;
+    }
+
+    public List<String> getLibraryDeltaKeys() {
+        return libraryDeltaKeys;
+    }
+
+    /**
+     * Keys of the library deltas, in the same order as the libraries. When they are set the search is incremental:
+     * it only compares the masks with the MIPs added or changed since the prior version of every library, and the
+     * batch indexes refer to these MIPs instead of the whole libraries.
+     * The deltas are created offline using the LibraryConverter.
+     * @param libraryDeltaKeys
+     */
+    public void setLibraryDeltaKeys(List<String> libraryDeltaKeys) {
+        this.libraryDeltaKeys = libraryDeltaKeys;
+    }
+
+    public String getSearchMode() {
+        return searchMode;
+    }
+
+    /**
+     * Set the search mode. In "fast" mode the mask is only compared with the targets that the library tile color index
+     * shortlists based on the mask footprint, so the results are approximate. In "approximate" mode the mask is only
+     * compared with its nearest targets retrieved from the library MIP signature indexes, which is faster but misses
+     * more matches than the fast mode.
+     * Any other value compares the mask with all targets.
+     * @param searchMode
+     */
+    public void setSearchMode(String searchMode) {
+        this.searchMode = searchMode;
+    }
+
+    boolean isFastSearch() {
+        return "fast".equalsIgnoreCase(searchMode);
+    }
+
+    boolean isApproximateSearch() {
+        return "approximate".equalsIgnoreCase(searchMode);
+    }
+
+    boolean isIncrementalSearch() {
+        return !LambdaUtils.isEmpty(libraryDeltaKeys);
+    }
+
     public void setLibraries(List<String> libraries) {
         this.libraries = libraries;
     }
@@ -81,6 +207,19 @@ public class ColorDepthSearchParameters {
         this.maskKeys = maskKeys;
     }
 
+    public List<String> getMaskETags() {
+        return maskETags;
+    }
+
+    /**
+     * ETags of the masks, in the same order as the mask keys, read once per job by the dispatcher. The memo key of
+     * a batch uses them to identify the content of the masks instead of reading and hashing the masks of every batch.
+     * @param maskETags
+     */
+    public void setMaskETags(List<String> maskETags) {
+        this.maskETags = maskETags;
+    }
+
     public Integer getDataThreshold() {
         return dataThreshold;
     }
@@ -141,6 +280,77 @@ public class ColorDepthSearchParameters {
         this.mirrorMask = mirrorMask;
     }
 
+    public boolean isWithShiftBounds() {
+        return withShiftBounds;
+    }
+
+    /**
+     * Set whether the pixel match evaluates the xy shifts and the mirrored mask in the order of their upper bound and
+     * stops as soon as no remaining one can beat the best score. The scores are the same as with the evaluation of all
+     * shifts.
+     * @param withShiftBounds
+     */
+    public void setWithShiftBounds(boolean withShiftBounds) {
+        this.withShiftBounds = withShiftBounds;
+    }
+
+
+    public boolean isWithColorLookupTable() {
+        return withColorLookupTable;
+    }
+
+    /**
+     * Set whether the pixel match looks up the match of every pixel pair in a table of mask and target colors filled
+     * during the search instead of comparing the colors. The scores are the same as without the table.
+     * @param withColorLookupTable
+     */
+    public void setWithColorLookupTable(boolean withColorLookupTable) {
+        this.withColorLookupTable = withColorLookupTable;
+    }
+
+    public Integer getMaxResultsPerMask() {
+        return maxResultsPerMask;
+    }
+
+    /**
+     * Set the maximum number of results per mask that the combiner keeps, or 0 to keep all results.
+     * @param maxResultsPerMask
+     */
+    public void setMaxResultsPerMask(Integer maxResultsPerMask) {
+        this.maxResultsPerMask = maxResultsPerMask == null ? 0 : maxResultsPerMask;
+    }
+
+    public boolean isWithTopResultsBounds() {
+        return withTopResultsBounds;
+    }
+
+    /**
+     * Set whether a pixel match search with maxResultsPerMask only returns the best matches of every mask, comparing
+     * the targets in the order of their upper bound and skipping the ones that cannot reach the current best results.
+     * The results kept by the combiner are the same as with the comparison of all targets, but the skipped targets
+     * and the matches below the best results are not counted, so the number of matches reported for the search
+     * (nTotalMatches) is only a lower bound of the number of matches of the exhaustive search.
+     * @param withTopResultsBounds
+     */
+    public void setWithTopResultsBounds(boolean withTopResultsBounds) {
+        this.withTopResultsBounds = withTopResultsBounds;
+    }
+
+    boolean isWithTopResultsSearch() {
+        return withTopResultsBounds && maxResultsPerMask > 0 && !withGradientScores;
+    }
+
+    public Integer getMaxApproximateCandidates() {
+        return maxApproximateCandidates;
+    }
+
+    /**
+     * Set the maximum number of nearest targets per mask that the approximate search compares with the mask.
+     * @param maxApproximateCandidates
+     */
+    public void setMaxApproximateCandidates(Integer maxApproximateCandidates) {
+        this.maxApproximateCandidates = maxApproximateCandidates == null ? MIPSignatureIndex.DEFAULT_MAX_CANDIDATES : maxApproximateCandidates;
+    }
 
     public Double getMinMatchingPixRatio() {
         return minMatchingPixRatio;
@@ -166,6 +376,52 @@ public class ColorDepthSearchParameters {
         this.withGradientScores = withGradientScores;
     }
 
+    public boolean isWithComputedTargetVariants() {
+        return withComputedTargetVariants;
+    }
+
+    /**
+     * Set whether the gradient scores use the gradient and the zgap variants computed from the loaded targets instead
+     * of the variants stored with the libraries, which also allows gradient scores for libraries without stored variants.
+     * @param withComputedTargetVariants
+     */
+    public void setWithComputedTargetVariants(boolean withComputedTargetVariants) {
+        this.withComputedTargetVariants = withComputedTargetVariants;
+    }
+
+    public Integer getMaxGradientCandidates() {
+        return maxGradientCandidates;
+    }
+
+    /**
+     * Set the maximum number of best pixel matches per mask for which the gradient scores are calculated.
+     * If set (or if minGradientCandidateMatchingPixels is set) the gradient search runs in two phases:
+     * first a pixel match against all targets and then the gradient scores only for the selected candidates.
+     * The pixel matches that are not selected are not returned. The candidates are selected by every batch from its
+     * own targets, so a job returns up to maxGradientCandidates matches per mask and per batch, and how many of the
+     * job's pixel matches get a gradient score depends on the batch size.
+     * @param maxGradientCandidates
+     */
+    public void setMaxGradientCandidates(Integer maxGradientCandidates) {
+        this.maxGradientCandidates = maxGradientCandidates == null ? 0 : maxGradientCandidates;
+    }
+
+    public Integer getMinGradientCandidateMatchingPixels() {
+        return minGradientCandidateMatchingPixels;
+    }
+
+    /**
+     * Set the minimum number of matching pixels a target must have in order to be selected for gradient scoring.
+     * @param minGradientCandidateMatchingPixels
+     */
+    public void setMinGradientCandidateMatchingPixels(Integer minGradientCandidateMatchingPixels) {
+        this.minGradientCandidateMatchingPixels = minGradientCandidateMatchingPixels == null ? 0 : minGradientCandidateMatchingPixels;
+    }
+
+    boolean isWithTwoPhaseGradientScores() {
+        return withGradientScores && (maxGradientCandidates > 0 || minGradientCandidateMatchingPixels > 0);
+    }
+
     @Override
     public String toString() {
         return new ToStringBuilder(this)
@@ -173,16 +429,32 @@ public class ColorDepthSearchParameters {
                 .append("libraries", libraries)
                 .append("gradientsFolders", gradientsFolders)
                 .append("zgapMasksFolders", zgapMasksFolders)
+                .append("sparseLibrariesFolders", sparseLibrariesFolders)
+                .append("tiledLibrariesFolders", tiledLibrariesFolders)
+                .append("tileIndexKeys", tileIndexKeys)
+                .append("signatureIndexKeys", signatureIndexKeys)
+                .append("signalBitsetsKeys", signalBitsetsKeys)
+                .append("libraryDeltaKeys", libraryDeltaKeys)
+                .append("searchMode", searchMode)
                 .append("searchBucket", searchBucket)
                 .append("maskKeys", maskKeys)
+                .append("maskETags", maskETags)
                 .append("maskThresholds", maskThresholds)
                 .append("dataThreshold", dataThreshold)
                 .append("pixColorFluctuation", pixColorFluctuation)
                 .append("xyShift", xyShift)
                 .append("mirrorMask", mirrorMask)
+                .append("withShiftBounds", withShiftBounds)
+                .append("withColorLookupTable", withColorLookupTable)
+                .append("maxResultsPerMask", maxResultsPerMask)
+                .append("withTopResultsBounds", withTopResultsBounds)
+                .append("maxApproximateCandidates", maxApproximateCandidates)
                 .append("minMatchingPixRatio", minMatchingPixRatio)
                 .append("negativeRadius", negativeRadius)
                 .append("withGradientScores", withGradientScores)
+                .append("withComputedTargetVariants", withComputedTargetVariants)
+                .append("maxGradientCandidates", maxGradientCandidates)
+                .append("minGradientCandidateMatchingPixels", minGradientCandidateMatchingPixels)
                 .toString();
     }
 }
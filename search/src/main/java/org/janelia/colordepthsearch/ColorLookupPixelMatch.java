@@ -0,0 +1,96 @@
+package org.janelia.colordepthsearch;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+
+/**
+ * Unshifted pixel match that decides whether every mask pixel matches the target pixel at the same position
+ * with a lookup in the color lookup table of the search instead of comparing the colors. The scores are the same as
+ * the ones of the unshifted pixel match the table was created from. If the rows of the mask colors do not fit in the
+ * table, the mask compares the colors.
+ */
+class ColorLookupPixelMatch implements ColorDepthSearchAlgorithm<ColorMIPMatchScore> {
+
+    private final ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedQuerySearch;
+    private final int width;
+    private final int height;
+    private final int[] maskPixels;
+    private final ColorLookupTable.Row[] maskPixelRows;
+
+    /**
+     * @param unshiftedQuerySearch search of the mask without shifts and without the mirrored mask
+     * @param maskImage mask image
+     * @param maskPixels indexes of the mask signal pixels
+     * @param colorLookupTable table created from the same unshifted pixel match
+     */
+    ColorLookupPixelMatch(ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedQuerySearch,
+                          ImageArray<?> maskImage,
+                          int[] maskPixels,
+                          ColorLookupTable colorLookupTable) {
+        this.unshiftedQuerySearch = unshiftedQuerySearch;
+        this.width = maskImage.getWidth();
+        this.height = maskImage.getHeight();
+        this.maskPixels = maskPixels;
+        int[] maskColors = new int[maskPixels.length];
+        for (int i = 0; i < maskPixels.length; i++) {
+            maskColors[i] = maskImage.get(maskPixels[i]) & 0xffffff;
+        }
+        Map<Integer, ColorLookupTable.Row> colorRows = colorLookupTable.getRows(IntStream.of(maskColors).distinct().toArray());
+        if (colorRows == null) {
+            this.maskPixelRows = null;
+        } else {
+            this.maskPixelRows = new ColorLookupTable.Row[maskPixels.length];
+            for (int i = 0; i < maskPixels.length; i++) {
+                maskPixelRows[i] = colorRows.get(maskColors[i]);
+            }
+        }
+    }
+
+    /**
+     * @return true if the mask pixels are matched with the lookup table
+     */
+    boolean isWithLookupTable() {
+        return maskPixelRows != null;
+    }
+
+    @Override
+    public ImageArray<?> getQueryImage() {
+        return unshiftedQuerySearch.getQueryImage();
+    }
+
+    @Override
+    public int getQueryFirstPixelIndex() {
+        return unshiftedQuerySearch.getQueryFirstPixelIndex();
+    }
+
+    @Override
+    public int getQueryLastPixelIndex() {
+        return unshiftedQuerySearch.getQueryLastPixelIndex();
+    }
+
+    @Override
+    public Set<String> getRequiredTargetVariantTypes() {
+        return unshiftedQuerySearch.getRequiredTargetVariantTypes();
+    }
+
+    @Override
+    public ColorMIPMatchScore calculateMatchingScore(ImageArray<?> targetImageArray, Map<String, Supplier<ImageArray<?>>> variantImageSuppliers) {
+        if (maskPixelRows == null || maskPixels.length == 0 || targetImageArray.getWidth() != width || targetImageArray.getHeight() != height) {
+            return unshiftedQuerySearch.calculateMatchingScore(targetImageArray, variantImageSuppliers);
+        }
+        int matchingPixels = 0;
+        for (int i = 0; i < maskPixels.length; i++) {
+            if (maskPixelRows[i].matches(targetImageArray.get(maskPixels[i]))) {
+                matchingPixels++;
+            }
+        }
+        return new ColorMIPMatchScore(matchingPixels, (double) matchingPixels / maskPixels.length, null);
+    }
+
+}
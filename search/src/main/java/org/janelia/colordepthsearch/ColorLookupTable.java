@@ -0,0 +1,191 @@
+package org.janelia.colordepthsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.colormipsearch.api.cdmips.MIPImage;
+import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearch;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lookup table of the pixel match decision for a pair of mask and target colors, for the data threshold and the pixel
+ * color fluctuation of a search. Whether a mask pixel matches the target pixel it is compared with only depends on the
+ * two colors, so the table replaces the color to depth conversion and the fluctuation check of every pixel pair with
+ * a lookup.
+ *
+ * The table has a row per mask color and the target colors are grouped in cells of 5 bits per channel. A cell is
+ * filled the first time it is looked up, with the decisions of the pixel match for all the 512 colors of the cell:
+ * if they all agree the cell only holds the decision, otherwise the decisions of every color of the cell are kept.
+ * Since every color is evaluated the table is exact, even where the boundary of the match region crosses the inside
+ * of a cell. The decisions are those of the pixel match of the search, evaluated on single pixel images, so the table
+ * does not depend on how the pixel match compares the colors.
+ *
+ * The rows and the decisions of the mixed cells are reserved as shared memory of the {@link MemoryBudget} of the search.
+ * A mask gets the rows of all its distinct colors or none of them: when the rows of its new colors do not fit in the
+ * budget the mask compares the colors instead. A mixed cell whose decisions do not fit is evaluated for every lookup.
+ */
+class ColorLookupTable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ColorLookupTable.class);
+
+    private static final int N_CELLS = 1 << 15;
+    // the cell states plus the row, its map entry and its pixel search
+    static final long ROW_BYTES = 4L * (N_CELLS / 16) + 256;
+    // the decisions of a mixed cell plus its map entry
+    static final long MIXED_CELL_BYTES = 8L * 8 + 16 + 64;
+
+    private static final int UNKNOWN = 0;
+    private static final int MATCH = 1;
+    private static final int NO_MATCH = 2;
+    private static final int MIXED = 3;
+
+    private final ColorMIPSearch unshiftedPixelMatchSearch;
+    private final MemoryBudget memoryBudget;
+    private final Map<Integer, Row> rows = new ConcurrentHashMap<>();
+
+    /**
+     * @param unshiftedPixelMatchSearch pixel match search without xy shift and without mirrored mask
+     * @param memoryBudget budget the memory of the table is reserved from
+     */
+    ColorLookupTable(ColorMIPSearch unshiftedPixelMatchSearch, MemoryBudget memoryBudget) {
+        this.unshiftedPixelMatchSearch = unshiftedPixelMatchSearch;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the row of the mask color or null if the table is full
+     */
+    Row getRow(int maskColor) {
+        Map<Integer, Row> colorRows = getRows(new int[]{maskColor});
+        return colorRows != null ? colorRows.get(maskColor & 0xffffff) : null;
+    }
+
+    /**
+     * @param maskColors distinct colors of a mask
+     * @return the rows by RGB color or null if the rows of the colors that are not in the table yet do not fit
+     */
+    Map<Integer, Row> getRows(int[] maskColors) {
+        List<Integer> newColors = new ArrayList<>();
+        for (int maskColor : maskColors) {
+            if (!rows.containsKey(maskColor & 0xffffff)) {
+                newColors.add(maskColor & 0xffffff);
+            }
+        }
+        if (!newColors.isEmpty()) {
+            if (!memoryBudget.tryReserveShared(newColors.size() * ROW_BYTES)) {
+                LOG.debug("No memory left for {} more color lookup rows next to {}", newColors.size(), rows.size());
+                return null;
+            }
+            int nConcurrentRows = 0;
+            for (int rgb : newColors) {
+                Row row = new Row(unshiftedPixelMatchSearch.createQueryColorDepthSearch(createPixelImage(rgb), 1));
+                if (rows.putIfAbsent(rgb, row) != null) {
+                    nConcurrentRows++;
+                }
+            }
+            if (nConcurrentRows > 0) {
+                memoryBudget.releaseShared(nConcurrentRows * ROW_BYTES);
+            }
+        }
+        Map<Integer, Row> colorRows = new HashMap<>();
+        for (int maskColor : maskColors) {
+            colorRows.put(maskColor & 0xffffff, rows.get(maskColor & 0xffffff));
+        }
+        return colorRows;
+    }
+
+    private static MIPImage createPixelImage(int rgb) {
+        return new MIPImage(new MIPMetadata(), new ColorImageArray(ImageType.RGB, 1, 1, new int[]{rgb}));
+    }
+
+    /**
+     * Pixel match decisions of a mask color for all target colors.
+     */
+    class Row {
+        private final ColorDepthSearchAlgorithm<ColorMIPMatchScore> pixelSearch;
+        // 2 bits per cell; concurrent updates of the same word may drop the state of a cell,
+        // which is then filled again, but never set a wrong state
+        private final int[] cellStates = new int[N_CELLS / 16];
+        // decision bits of the 512 colors of every mixed cell
+        private final Map<Integer, long[]> mixedCells = new ConcurrentHashMap<>();
+
+        private Row(ColorDepthSearchAlgorithm<ColorMIPMatchScore> pixelSearch) {
+            this.pixelSearch = pixelSearch;
+        }
+
+        /**
+         * @return true if the mask color matches the target color
+         */
+        boolean matches(int targetColor) {
+            int cell = ((targetColor >> 9) & 0x7c00) | ((targetColor >> 6) & 0x3e0) | ((targetColor >> 3) & 0x1f);
+            int state = (cellStates[cell >> 4] >>> ((cell & 15) << 1)) & 3;
+            if (state == UNKNOWN) {
+                state = fillCell(cell);
+            }
+            if (state != MIXED) {
+                return state == MATCH;
+            }
+            long[] cellColors = mixedCells.get(cell);
+            if (cellColors == null) {
+                // the decisions of the cell did not fit in the memory budget
+                return evaluate(targetColor & 0xffffff, createTargetPixel());
+            }
+            int cellColor = ((targetColor >> 10) & 0x1c0) | ((targetColor >> 5) & 0x38) | (targetColor & 0x7);
+            return (cellColors[cellColor >> 6] & (1L << cellColor)) != 0;
+        }
+
+        private int fillCell(int cell) {
+            long[] cellColors = evaluateCellColors(cell);
+            int nMatches = 0;
+            for (long cellColorBits : cellColors) {
+                nMatches += Long.bitCount(cellColorBits);
+            }
+            int state = nMatches == 512 ? MATCH : (nMatches == 0 ? NO_MATCH : MIXED);
+            if (state == MIXED && !mixedCells.containsKey(cell) && memoryBudget.tryReserveShared(MIXED_CELL_BYTES)) {
+                // the decisions are kept before the state is set, so that they are found by the lookups that see the state
+                if (mixedCells.putIfAbsent(cell, cellColors) != null) {
+                    memoryBudget.releaseShared(MIXED_CELL_BYTES);
+                }
+            }
+            int shift = (cell & 15) << 1;
+            cellStates[cell >> 4] = (cellStates[cell >> 4] & ~(3 << shift)) | (state << shift);
+            return state;
+        }
+
+        private long[] evaluateCellColors(int cell) {
+            long[] cellColors = new long[8];
+            // the same target pixel image is used for all the colors of the cell
+            ColorImageArray targetPixel = createTargetPixel();
+            for (int cellColor = 0; cellColor < 512; cellColor++) {
+                if (evaluate(getCellColor(cell, cellColor >> 6, (cellColor >> 3) & 0x7, cellColor & 0x7), targetPixel)) {
+                    cellColors[cellColor >> 6] |= 1L << cellColor;
+                }
+            }
+            return cellColors;
+        }
+
+        private int getCellColor(int cell, int r, int g, int b) {
+            return ((((cell >> 10) << 3) | r) << 16) | (((((cell >> 5) & 0x1f) << 3) | g) << 8) | (((cell & 0x1f) << 3) | b);
+        }
+
+        private ColorImageArray createTargetPixel() {
+            return new ColorImageArray(ImageType.RGB, 1, 1, new int[1]);
+        }
+
+        private boolean evaluate(int targetColor, ColorImageArray targetPixel) {
+            targetPixel.set(0, targetColor);
+            return pixelSearch.calculateMatchingScore(targetPixel, Collections.emptyMap()).getMatchingPixNum() > 0;
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.janelia.colordepthsearch;
+
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+
+/**
+ * Collects the decoded rows into an RGB image array that can be passed to the color depth search algorithm.
+ * Pixels from rows that were not decoded are left 0.
+ */
+class ImageArrayRowsConsumer implements ImageRowsConsumer {
+
+    private final PixelBufferPool pixelBufferPool;
+    private int width;
+    private int height;
+    private int[] pixels;
+    private PixelBufferPool.Lease pixelBufferLease;
+
+    ImageArrayRowsConsumer() {
+        this(null);
+    }
+
+    /**
+     * @param pixelBufferPool if not null the pixels are decoded into a buffer leased from this pool
+     */
+    ImageArrayRowsConsumer(PixelBufferPool pixelBufferPool) {
+        this.pixelBufferPool = pixelBufferPool;
+    }
+
+    @Override
+    public void startImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        if (pixelBufferPool != null) {
+            this.pixelBufferLease = pixelBufferPool.lease(width, height);
+            this.pixels = pixelBufferLease.getPixels();
+        } else {
+            this.pixels = new int[width * height];
+        }
+    }
+
+    @Override
+    public void acceptRow(int y, int[] rowPixels) {
+        System.arraycopy(rowPixels, 0, pixels, y * width, width);
+        if (pixelBufferLease != null) {
+            pixelBufferLease.markDirty(y * width, (y + 1) * width - 1);
+        }
+    }
+
+    ImageArray<?> getImageArray() {
+        return new ColorImageArray(ImageType.RGB, width, height, pixels);
+    }
+
+    /**
+     * @return the lease of the pixel buffer, which the caller must close once the image is no longer used, or null if the pixels were not pooled
+     */
+    PixelBufferPool.Lease getPixelBufferLease() {
+        return pixelBufferLease;
+    }
+}
@@ -0,0 +1,21 @@
+package org.janelia.colordepthsearch;
+
+/**
+ * Receives the rows of a decoded image, top to bottom, as they come out of the decoder.
+ * The decoder only passes the rows that intersect the requested pixel interval, so a consumer
+ * never has to hold more than the rows it is interested in.
+ */
+interface ImageRowsConsumer {
+
+    /**
+     * Called once, as soon as the image dimensions are known and before any row is passed.
+     */
+    void startImage(int width, int height);
+
+    /**
+     * @param y row index
+     * @param rowPixels RGB pixels of the row packed as 0xRRGGBB; the array is reused for the next row
+     */
+    void acceptRow(int y, int[] rowPixels);
+
+}
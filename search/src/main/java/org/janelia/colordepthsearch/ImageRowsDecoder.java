@@ -0,0 +1,101 @@
+package org.janelia.colordepthsearch;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+
+/**
+ * Streaming decoder for the PNG and TIFF color depth MIPs. Instead of building the full image it walks the rows
+ * and passes only the ones that intersect a pixel interval to an {@link ImageRowsConsumer}.
+ * Decoding stops as soon as the last row of the interval was passed to the consumer.
+ */
+class ImageRowsDecoder {
+
+    /**
+     * Thrown when the image encoding is not handled by the streaming decoders, e.g. palette or 16 bit images.
+     * The caller is expected to fall back to the regular image reader.
+     */
+    static class UnsupportedImageException extends IOException {
+        UnsupportedImageException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int SIGNATURE_LENGTH = 8;
+
+    static boolean isSupported(String imageName) {
+        return StringUtils.endsWithAny(StringUtils.lowerCase(imageName), ".png", ".tif", ".tiff");
+    }
+
+    /**
+     * Decode the rows that contain the pixels between startPixel and endPixel (inclusive).
+     */
+    static void decodeRows(InputStream inputStream, long startPixel, long endPixel, ImageRowsConsumer rowsConsumer) throws IOException {
+        InputStream imageStream = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
+        byte[] signature = new byte[SIGNATURE_LENGTH];
+        imageStream.mark(SIGNATURE_LENGTH);
+        int n = 0;
+        while (n < SIGNATURE_LENGTH) {
+            int nread = imageStream.read(signature, n, SIGNATURE_LENGTH - n);
+            if (nread < 0) {
+                break;
+            }
+            n += nread;
+        }
+        imageStream.reset();
+        if (PNGRowsDecoder.hasSignature(signature)) {
+            PNGRowsDecoder.decodeRows(imageStream, startPixel, endPixel, rowsConsumer);
+        } else if (TIFFRowsDecoder.hasSignature(signature)) {
+            TIFFRowsDecoder.decodeRows(imageStream, startPixel, endPixel, rowsConsumer);
+        } else {
+            throw new UnsupportedImageException("Unknown image signature");
+        }
+    }
+
+    /**
+     * Pass the rows of an already decoded image to the consumer.
+     */
+    static void decodeRows(ImageArray<?> imageArray, ImageRowsConsumer rowsConsumer) {
+        int width = imageArray.getWidth();
+        rowsConsumer.startImage(width, imageArray.getHeight());
+        int[] rowPixels = new int[width];
+        for (int y = 0; y < imageArray.getHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                rowPixels[x] = imageArray.get(y * width + x) & 0xffffff;
+            }
+            rowsConsumer.acceptRow(y, rowPixels);
+        }
+    }
+
+    static int firstRow(long startPixel, int width) {
+        return (int) (Math.max(0, startPixel) / width);
+    }
+
+    static int lastRow(long endPixel, int width, int height) {
+        return (int) Math.min(height - 1, endPixel / width);
+    }
+
+    static void toRGBPixels(byte[] rowBytes, int bytesPerPixel, int[] rowPixels) {
+        for (int x = 0, i = 0; x < rowPixels.length; x++, i += bytesPerPixel) {
+            rowPixels[x] = ((rowBytes[i] & 0xff) << 16) | ((rowBytes[i + 1] & 0xff) << 8) | (rowBytes[i + 2] & 0xff);
+        }
+    }
+
+    static void skipFully(InputStream inputStream, long n) throws IOException {
+        long remaining = n;
+        while (remaining > 0) {
+            long skipped = inputStream.skip(remaining);
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new IOException("Unexpected end of image stream");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.janelia.colordepthsearch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+/**
+ * Cancellation signal of a search job, polled by its batches so that they stop fetching and comparing targets soon
+ * after the job is cancelled. The signal is the status attribute of the job item in the job status table, which is
+ * read at most once per check interval no matter how often the signal is polled. Once the job is found cancelled
+ * the status is not read again.
+ *
+ * A job whose item was deleted after it had been read is cancelled too, since there is no job left to search for.
+ * A missing item that was never seen does not cancel the job, because the batches may start before the item is written.
+ */
+class JobCancellation implements BooleanSupplier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobCancellation.class);
+
+    static final String CANCELLED_STATUS = "cancelled";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String jobStatusTableName;
+    private final String jobId;
+    private final long checkIntervalMillis;
+    private final LongSupplier clock;
+    private final AtomicLong nextCheckTime = new AtomicLong(Long.MIN_VALUE);
+    private volatile boolean cancelled;
+    private volatile boolean jobItemSeen;
+
+    JobCancellation(DynamoDbClient dynamoDbClient, String jobStatusTableName, String jobId, long checkIntervalMillis) {
+        this(dynamoDbClient, jobStatusTableName, jobId, checkIntervalMillis, System::currentTimeMillis);
+    }
+
+    JobCancellation(DynamoDbClient dynamoDbClient, String jobStatusTableName, String jobId, long checkIntervalMillis, LongSupplier clock) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.jobStatusTableName = jobStatusTableName;
+        this.jobId = jobId;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @return true if the job was cancelled the last time its status was read
+     */
+    @Override
+    public boolean getAsBoolean() {
+        if (cancelled) {
+            return true;
+        }
+        long now = clock.getAsLong();
+        long nextCheck = nextCheckTime.get();
+        // only one of the concurrent callers reads the status
+        if (now < nextCheck || !nextCheckTime.compareAndSet(nextCheck, now + checkIntervalMillis)) {
+            return false;
+        }
+        try {
+            Map<String, AttributeValue> jobItem = readJobItem();
+            if (jobItem == null) {
+                if (jobItemSeen) {
+                    LOG.info("Job {} was deleted from {}", jobId, jobStatusTableName);
+                    cancelled = true;
+                }
+            } else {
+                jobItemSeen = true;
+                AttributeValue status = jobItem.get("status");
+                if (status != null && CANCELLED_STATUS.equalsIgnoreCase(status.s())) {
+                    LOG.info("Job {} was cancelled", jobId);
+                    cancelled = true;
+                }
+            }
+        } catch (Exception e) {
+            // the search goes on if the status cannot be read
+            LOG.warn("Could not read the status of job {} from {}", jobId, jobStatusTableName, e);
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return the job item with its status, if it has one, or null if the job item does not exist
+     */
+    private Map<String, AttributeValue> readJobItem() {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("jobId", AttributeValue.builder().s(jobId).build());
+        GetItemResponse response = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(jobStatusTableName)
+                .key(key)
+                // the key is projected too, so that an item without a status is still returned; status is a reserved word
+                .projectionExpression("jobId, #status")
+                .expressionAttributeNames(Collections.singletonMap("#status", "status"))
+                .consistentRead(false)
+                .build());
+        return response.hasItem() && !response.item().isEmpty() ? response.item() : null;
+    }
+
+}
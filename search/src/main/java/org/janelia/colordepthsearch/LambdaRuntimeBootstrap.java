@@ -0,0 +1,214 @@
+package org.janelia.colordepthsearch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Custom Lambda runtime for a handler, used as the entry point of the native image of the batch search.
+ * It polls the Lambda runtime API for the next invocation, runs the handler and posts the handler's response
+ * or error, the same way the managed Java runtime does.
+ *
+ * The runtime API endpoint is read from AWS_LAMBDA_RUNTIME_API.
+ */
+public class LambdaRuntimeBootstrap<I, O> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LambdaRuntimeBootstrap.class);
+
+    private static final String RUNTIME_API_VERSION = "2018-06-01";
+    // the X-Ray SDK reads the trace header of the invocation from this property
+    private static final String XRAY_TRACE_HEADER_PROPERTY = "com.amazonaws.xray.traceHeader";
+
+    public static void main(String[] args) throws Exception {
+        String runtimeApi = LambdaUtils.getMandatoryEnv("AWS_LAMBDA_RUNTIME_API");
+        BatchSearch batchSearch;
+        try {
+            batchSearch = new BatchSearch();
+        } catch (Exception e) {
+            LOG.error("Error initializing the handler", e);
+            new LambdaRuntimeBootstrap<>(runtimeApi, null, BatchSearchParameters.class).postInitError(e);
+            throw e;
+        }
+        new LambdaRuntimeBootstrap<>(runtimeApi, batchSearch, BatchSearchParameters.class).run();
+    }
+
+    private final String runtimeUrl;
+    private final RequestHandler<I, O> handler;
+    private final Class<I> inputType;
+    private final HttpClient httpClient;
+
+    /**
+     * @param runtimeApi host and port of the Lambda runtime API
+     */
+    LambdaRuntimeBootstrap(String runtimeApi, RequestHandler<I, O> handler, Class<I> inputType) {
+        this.runtimeUrl = String.format("http://%s/%s/runtime", runtimeApi, RUNTIME_API_VERSION);
+        this.handler = handler;
+        this.inputType = inputType;
+        this.httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    /**
+     * Process invocations until the runtime API cannot be reached, which ends the runtime process.
+     */
+    void run() throws IOException, InterruptedException {
+        for (;;) {
+            processNextInvocation();
+        }
+    }
+
+    /**
+     * Wait for the next invocation, run the handler and post its response or its error.
+     */
+    void processNextInvocation() throws IOException, InterruptedException {
+        HttpResponse<InputStream> invocation = httpClient.send(
+                HttpRequest.newBuilder(URI.create(runtimeUrl + "/invocation/next")).GET().build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        if (invocation.statusCode() != 200) {
+            invocation.body().close();
+            throw new IllegalStateException("Unexpected response for the next invocation: " + invocation.statusCode());
+        }
+        String requestId = invocation.headers().firstValue("Lambda-Runtime-Aws-Request-Id")
+                .orElseThrow(() -> new IllegalStateException("No request id for the next invocation"));
+        String traceId = invocation.headers().firstValue("Lambda-Runtime-Trace-Id").orElse(null);
+        if (traceId != null) {
+            System.setProperty(XRAY_TRACE_HEADER_PROPERTY, traceId);
+        } else {
+            System.clearProperty(XRAY_TRACE_HEADER_PROPERTY);
+        }
+        RuntimeContext context = new RuntimeContext(
+                requestId,
+                invocation.headers().firstValue("Lambda-Runtime-Invoked-Function-Arn").orElse(null),
+                invocation.headers().firstValueAsLong("Lambda-Runtime-Deadline-Ms").orElse(Long.MAX_VALUE));
+        MDC.put("AWSRequestId", requestId);
+        try {
+            I input;
+            try (InputStream inputStream = invocation.body()) {
+                input = LambdaUtils.fromJson(inputStream, inputType);
+            }
+            O output = handler.handleRequest(input, context);
+            post("/invocation/" + requestId + "/response", LambdaUtils.toJson(output), null);
+        } catch (Exception e) {
+            LOG.error("Error processing request {}", requestId, e);
+            post("/invocation/" + requestId + "/error", createErrorJson(e), e.getClass().getSimpleName());
+        } finally {
+            MDC.remove("AWSRequestId");
+        }
+    }
+
+    private void postInitError(Exception e) throws IOException, InterruptedException {
+        post("/init/error", createErrorJson(e), e.getClass().getSimpleName());
+    }
+
+    private void post(String path, String body, String errorType) throws IOException, InterruptedException {
+        HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(URI.create(runtimeUrl + path))
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (errorType != null) {
+            requestBuilder.header("Lambda-Runtime-Function-Error-Type", errorType);
+        }
+        HttpResponse<String> response = httpClient.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 202) {
+            LOG.warn("Unexpected response for {}: {} {}", path, response.statusCode(), response.body());
+        }
+    }
+
+    /**
+     * @return the error in the format of the managed runtime
+     */
+    private String createErrorJson(Exception e) {
+        StringWriter stackTrace = new StringWriter();
+        e.printStackTrace(new PrintWriter(stackTrace));
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("errorMessage", StringUtils.defaultString(e.getMessage()));
+        error.put("errorType", e.getClass().getName());
+        error.put("stackTrace", Arrays.asList(stackTrace.toString().split("\\R")));
+        return LambdaUtils.toJson(error);
+    }
+
+    private static class RuntimeContext implements Context {
+
+        private final String requestId;
+        private final String invokedFunctionArn;
+        private final long deadlineMillis;
+
+        RuntimeContext(String requestId, String invokedFunctionArn, long deadlineMillis) {
+            this.requestId = requestId;
+            this.invokedFunctionArn = invokedFunctionArn;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        @Override
+        public String getAwsRequestId() {
+            return requestId;
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return System.getenv("AWS_LAMBDA_LOG_GROUP_NAME");
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return System.getenv("AWS_LAMBDA_LOG_STREAM_NAME");
+        }
+
+        @Override
+        public String getFunctionName() {
+            return System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return System.getenv("AWS_LAMBDA_FUNCTION_VERSION");
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return invokedFunctionArn;
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, deadlineMillis - System.currentTimeMillis()));
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return Integer.parseInt(LambdaUtils.getOptionalEnv("AWS_LAMBDA_FUNCTION_MEMORY_SIZE", "0"));
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return LambdaRuntime.getLogger();
+        }
+    }
+
+}
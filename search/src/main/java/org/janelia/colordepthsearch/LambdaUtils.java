@@ -2,24 +2,42 @@ package org.janelia.colordepthsearch;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.filter.Filter;
+import ch.qos.logback.core.spi.FilterReply;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
 import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
@@ -34,6 +52,8 @@ class LambdaUtils {
 
     private static final Logger LOG = LoggerFactory.getLogger(LambdaUtils.class);
 
+    private static final long MAX_LOG_FLUSH_MILLIS = 2000;
+
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper()
                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
                 .configure(SerializationFeature.WRITE_DATE_KEYS_AS_TIMESTAMPS, false)
@@ -68,6 +88,70 @@ class LambdaUtils {
         return System.getenv(name);
     }
 
+    /**
+     * Wait until the asynchronous appenders wrote the queued log events, but not longer than {@link #MAX_LOG_FLUSH_MILLIS}.
+     * A handler calls it before it returns, because the events that are still queued when
+     * the Lambda environment is frozen are written late or not at all.
+     */
+    static void flushLogs() {
+        if (LoggerFactory.getILoggerFactory() instanceof LoggerContext) {
+            flushLogs((LoggerContext) LoggerFactory.getILoggerFactory(), MAX_LOG_FLUSH_MILLIS);
+        }
+    }
+
+    /**
+     * An empty queue only means that the worker of the asynchronous appender took the last event, not that the event
+     * was written, so a flush event is queued after the pending events instead. The worker hands the events to the
+     * wrapped appender in order and a {@link LogFlushFilter} of the wrapped appender drops the flush event and
+     * releases the waiting thread, at which point all the events queued before it were written.
+     */
+    static void flushLogs(LoggerContext loggerContext, long maxFlushMillis) {
+        long deadline = System.currentTimeMillis() + maxFlushMillis;
+        ch.qos.logback.classic.Logger rootLogger = loggerContext.getLogger(Logger.ROOT_LOGGER_NAME);
+        rootLogger.iteratorForAppenders().forEachRemaining(appender -> {
+            if (!(appender instanceof AsyncAppender) || !appender.isStarted()) {
+                return;
+            }
+            AsyncAppender asyncAppender = (AsyncAppender) appender;
+            CountDownLatch flushed = new CountDownLatch(1);
+            asyncAppender.iteratorForAppenders().forEachRemaining(LogFlushFilter::attachTo);
+            LoggingEvent flushEvent = new LoggingEvent(LambdaUtils.class.getName(), rootLogger, Level.DEBUG,
+                    "Flush the logs", null, new Object[]{flushed});
+            flushEvent.setMarker(LogFlushFilter.LOG_FLUSH);
+            asyncAppender.doAppend(flushEvent);
+            try {
+                flushed.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Filter of the appenders wrapped by the asynchronous appenders that consumes the flush events of {@link #flushLogs}.
+     */
+    private static class LogFlushFilter extends Filter<ILoggingEvent> {
+
+        private static final Marker LOG_FLUSH = MarkerFactory.getMarker("LOG_FLUSH");
+
+        static synchronized void attachTo(Appender<ILoggingEvent> appender) {
+            if (appender.getCopyOfAttachedFiltersList().stream().noneMatch(filter -> filter instanceof LogFlushFilter)) {
+                LogFlushFilter logFlushFilter = new LogFlushFilter();
+                logFlushFilter.start();
+                appender.addFilter(logFlushFilter);
+            }
+        }
+
+        @Override
+        public FilterReply decide(ILoggingEvent event) {
+            if (event.getMarker() != LOG_FLUSH) {
+                return FilterReply.NEUTRAL;
+            }
+            ((CountDownLatch) event.getArgumentArray()[0]).countDown();
+            return FilterReply.DENY;
+        }
+    }
+
     static String toJson(Object object) {
         boolean prettyPrint = "true".equals(LambdaUtils.getOptionalEnv("PRETTY_JSON", null));
         return toJson(object, prettyPrint);
@@ -83,6 +167,25 @@ class LambdaUtils {
         }
     }
 
+    /**
+     * Serialize the objects as a JSON array one at a time, so that only the current object has to be in memory
+     * in addition to the JSON text.
+     */
+    static String toJsonArray(Stream<?> objects) {
+        boolean prettyPrint = "true".equals(LambdaUtils.getOptionalEnv("PRETTY_JSON", null));
+        ObjectWriter writer = prettyPrint ? JSON_MAPPER.writerWithDefaultPrettyPrinter() : JSON_MAPPER.writer();
+        StringWriter jsonWriter = new StringWriter();
+        try (SequenceWriter arrayWriter = writer.writeValuesAsArray(jsonWriter)) {
+            for (Iterator<?> objectsItr = objects.iterator(); objectsItr.hasNext(); ) {
+                arrayWriter.write(objectsItr.next());
+            }
+        } catch (Exception e) {
+            LOG.error("Serialization error", e);
+            return "{\"error\":\"Could not serialize object\"}";
+        }
+        return jsonWriter.toString();
+    }
+
     static <T> T fromJson(InputStream objectStream, Class<T> objectType) {
         try {
             return JSON_MAPPER.readValue(objectStream, objectType);
@@ -113,7 +216,7 @@ class LambdaUtils {
             return s3.getObject(GetObjectRequest.builder()
                     .bucket(bucket)
                     .key(key)
-                    .range(String.format("%d-%d", range_st, range_ed))
+                    .range(String.format("bytes=%d-%d", range_st, range_ed))
                     .build(),
                     ResponseTransformer.toInputStream());
         } catch (Exception e) {
@@ -122,6 +225,22 @@ class LambdaUtils {
         }
     }
 
+    /**
+     * @return the ETag of the object, which changes whenever the object content changes
+     */
+    static String getObjectETag(S3Client s3, String bucket, String key) {
+        try {
+            return s3.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build())
+                    .eTag();
+        } catch (Exception e) {
+            LOG.error("Error reading object metadata from {}:{}", bucket, key, e);
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     static void putObject(S3Client s3, URI s3URI, Object object) {
         putObject(s3, s3URI.getHost(), StringUtils.removeStart(s3URI.getPath(), "/"), object);
     }
@@ -142,6 +261,20 @@ class LambdaUtils {
         }
     }
 
+    static void putFile(S3Client s3, String bucket, String key, Path file, String contentType) {
+        try {
+            s3.putObject(PutObjectRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .contentType(contentType)
+                            .build(),
+                    RequestBody.fromFile(file));
+        } catch (Exception e) {
+            LOG.error("Error writing file {} to {}:{}", file, bucket, key, e);
+            throw new IllegalStateException(e);
+        }
+    }
+
     static List<S3Object> listObjects(S3Client s3, String bucket, String prefix) {
         ListObjectsResponse res = s3.listObjects(ListObjectsRequest
                 .builder()
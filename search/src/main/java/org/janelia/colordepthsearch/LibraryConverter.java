@@ -0,0 +1,357 @@
+package org.janelia.colordepthsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.io.BaseEncoding;
+import org.apache.commons.lang3.RegExUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Offline converter of a local copy of a color depth MIP library into the formats used by the search.
+ * The commands must be run from the folder that holds the local copy of the library bucket so that the library
+ * folders are also the S3 key prefixes, e.g.
+ * <pre>
+ *   java -cp neuronbridge-search.jar org.janelia.colordepthsearch.LibraryConverter sparse \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons_sparse \
+ *       100
+ *   java -cp neuronbridge-search.jar org.janelia.colordepthsearch.LibraryConverter tiled \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons_tiled \
+ *       100
+ *   java -cp neuronbridge-search.jar org.janelia.colordepthsearch.LibraryConverter tileIndex \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/INDEX/tile_index.bin \
+ *       100
+ *   java -cp neuronbridge-search.jar org.janelia.colordepthsearch.LibraryConverter signalBitsets \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/INDEX/signal_bitsets.bin \
+ *       100
+ *   java -cp neuronbridge-search.jar org.janelia.colordepthsearch.LibraryConverter signatures \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/INDEX/signature_index.bin \
+ *       100
+ *   java -cp neuronbridge-search.jar org.janelia.colordepthsearch.LibraryConverter variantCosts \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/grad \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/zgap \
+ *       100
+ *   java -cp neuronbridge-search.jar org.janelia.colordepthsearch.LibraryConverter manifest \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/MANIFESTS/v1.2.1.json
+ *   java -cp neuronbridge-search.jar org.janelia.colordepthsearch.LibraryConverter delta \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/MANIFESTS/v1.2.json \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/MANIFESTS/v1.2.1.json \
+ *       JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/MANIFESTS/v1.2-v1.2.1.delta.json
+ * </pre>
+ * The signal bitsets command writes both the bitsets index and the bitsets data object, which has the index name
+ * followed by ".data".
+ * The manifest of a library version must be kept for as long as incremental searches may start from that version;
+ * the delta command compares the manifests of a prior version and of a new version of the library.
+ * The variant costs command does not convert anything: it reports how many MIPs of the library have stored gradient and zgap
+ * variants and compares the cost of reading the stored variants with the cost of computing them from the MIPs. A search
+ * that fetches a stored variant also pays for a list and a get request on top of the read.
+ * The sparse and the tiled folders mirror the structure of the library folder. The threshold must not be greater than the data threshold
+ * of the searches that use the converted library.
+ */
+public class LibraryConverter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LibraryConverter.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: LibraryConverter sparse <libraryFolder> <sparseLibraryFolder> [<threshold>]");
+            System.err.println("       LibraryConverter tiled <libraryFolder> <tiledLibraryFolder> [<threshold>]");
+            System.err.println("       LibraryConverter tileIndex <libraryFolder> <indexFile> [<threshold>]");
+            System.err.println("       LibraryConverter signalBitsets <libraryFolder> <indexFile> [<threshold>]");
+            System.err.println("       LibraryConverter signatures <libraryFolder> <indexFile> [<threshold>]");
+            System.err.println("       LibraryConverter variantCosts <libraryFolder> <gradientsFolder> <zgapMasksFolder> [<threshold>]");
+            System.err.println("       LibraryConverter manifest <libraryFolder> <manifestFile>");
+            System.err.println("       LibraryConverter delta <priorManifestFile> <manifestFile> <deltaFile>");
+            System.exit(1);
+        }
+        Path libraryFolder = Paths.get(args[1]);
+        Path output = Paths.get(args[2]);
+        switch (args[0]) {
+            case "sparse":
+                convertToSparseMIPs(libraryFolder, output, getThreshold(args));
+                break;
+            case "tiled":
+                convertToTiledMIPs(libraryFolder, output, getThreshold(args));
+                break;
+            case "tileIndex":
+                createTileColorIndex(libraryFolder, output, getThreshold(args));
+                break;
+            case "signalBitsets":
+                createSignalBitsets(libraryFolder, output, getThreshold(args));
+                break;
+            case "signatures":
+                createSignatureIndex(libraryFolder, output, getThreshold(args));
+                break;
+            case "variantCosts":
+                if (args.length < 4) {
+                    throw new IllegalArgumentException("Missing zgap masks folder");
+                }
+                compareVariantCosts(libraryFolder, Paths.get(args[2]), Paths.get(args[3]),
+                        args.length > 4 ? Integer.parseInt(args[4]) : ColorDepthSearchParameters.DEFAULT_MASK_THRESHOLD);
+                break;
+            case "manifest":
+                createManifest(libraryFolder, output);
+                break;
+            case "delta":
+                if (args.length < 4) {
+                    throw new IllegalArgumentException("Missing delta file");
+                }
+                createDelta(Paths.get(args[1]), Paths.get(args[2]), Paths.get(args[3]));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + args[0]);
+        }
+    }
+
+    private static int getThreshold(String[] args) {
+        return args.length > 3 ? Integer.parseInt(args[3]) : ColorDepthSearchParameters.DEFAULT_MASK_THRESHOLD;
+    }
+
+    /**
+     * @return the name of the sparse MIP obtained by replacing the extension of the MIP name
+     */
+    static String getSparseMIPName(String mipName) {
+        return RegExUtils.replacePattern(mipName, "\\.[^./]*$", "") + SparseMIP.SPARSE_MIP_EXT;
+    }
+
+    private static List<Path> listMIPs(Path libraryFolder) throws Exception {
+        try (Stream<Path> libraryFiles = Files.walk(libraryFolder)) {
+            return libraryFiles
+                    .filter(Files::isRegularFile)
+                    .filter(p -> ImageRowsDecoder.isSupported(p.toString()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void convertToSparseMIPs(Path libraryFolder, Path sparseLibraryFolder, int threshold) throws Exception {
+        List<Path> mips = listMIPs(libraryFolder);
+        LOG.info("Convert {} MIPs from {} to {} using threshold {}", mips.size(), libraryFolder, sparseLibraryFolder, threshold);
+        long signalPixels = 0;
+        long totalPixels = 0;
+        for (Path mip : mips) {
+            SparseMIP.Builder sparseMIPBuilder = new SparseMIP.Builder(threshold);
+            decodeMIP(mip, sparseMIPBuilder);
+            SparseMIP sparseMIP = sparseMIPBuilder.build();
+            Path sparseMIPPath = sparseLibraryFolder.resolve(getSparseMIPName(libraryFolder.relativize(mip).toString()));
+            Files.createDirectories(sparseMIPPath.getParent());
+            try (OutputStream sparseMIPStream = Files.newOutputStream(sparseMIPPath)) {
+                sparseMIP.write(sparseMIPStream);
+            }
+            signalPixels += sparseMIP.getSignalPixelsCount();
+            totalPixels += (long) sparseMIP.getWidth() * sparseMIP.getHeight();
+        }
+        LOG.info("Converted {} MIPs - {} signal pixels out of {}", mips.size(), signalPixels, totalPixels);
+    }
+
+    private static void convertToTiledMIPs(Path libraryFolder, Path tiledLibraryFolder, int threshold) throws Exception {
+        List<Path> mips = listMIPs(libraryFolder);
+        LOG.info("Convert {} MIPs from {} to tiled MIPs in {} using threshold {}", mips.size(), libraryFolder, tiledLibraryFolder, threshold);
+        for (Path mip : mips) {
+            TiledMIP.Builder tiledMIPBuilder = new TiledMIP.Builder(threshold, TiledMIP.DEFAULT_TILE_SIZE);
+            decodeMIP(mip, tiledMIPBuilder);
+            Path tiledMIPPath = tiledLibraryFolder.resolve(TiledMIP.getTiledMIPName(libraryFolder.relativize(mip).toString()));
+            Files.createDirectories(tiledMIPPath.getParent());
+            try (OutputStream tiledMIPStream = new BufferedOutputStream(Files.newOutputStream(tiledMIPPath))) {
+                tiledMIPBuilder.write(tiledMIPStream);
+            }
+        }
+        LOG.info("Converted {} MIPs", mips.size());
+    }
+
+    private static void createTileColorIndex(Path libraryFolder, Path indexFile, int threshold) throws Exception {
+        List<Path> mips = listMIPs(libraryFolder);
+        LOG.info("Index {} MIPs from {} into {} using threshold {}", mips.size(), libraryFolder, indexFile, threshold);
+        TileColorIndex.Builder indexBuilder = new TileColorIndex.Builder(TileColorIndex.DEFAULT_TILE_SIZE, TileColorIndex.DEFAULT_COLOR_BINS, threshold);
+        for (Path mip : mips) {
+            // the target keys are the S3 keys of the MIPs
+            decodeMIP(mip, indexBuilder.addTarget(StringUtils.replaceChars(mip.normalize().toString(), '\\', '/')));
+        }
+        TileColorIndex index = indexBuilder.build();
+        if (indexFile.getParent() != null) {
+            Files.createDirectories(indexFile.getParent());
+        }
+        try (OutputStream indexStream = Files.newOutputStream(indexFile)) {
+            index.write(indexStream);
+        }
+        LOG.info("Indexed {} MIPs", index.getTargetsCount());
+    }
+
+    private static void createSignalBitsets(Path libraryFolder, Path indexFile, int threshold) throws Exception {
+        List<Path> mips = listMIPs(libraryFolder);
+        LOG.info("Create signal bitsets of {} MIPs from {} into {} using threshold {}", mips.size(), libraryFolder, indexFile, threshold);
+        SignalBitsets.Builder bitsetsBuilder = new SignalBitsets.Builder(threshold);
+        for (Path mip : mips) {
+            // the target keys are the S3 keys of the MIPs
+            decodeMIP(mip, bitsetsBuilder.addTarget(StringUtils.replaceChars(mip.normalize().toString(), '\\', '/')));
+        }
+        if (indexFile.getParent() != null) {
+            Files.createDirectories(indexFile.getParent());
+        }
+        try (OutputStream indexStream = Files.newOutputStream(indexFile);
+             OutputStream dataStream = Files.newOutputStream(Paths.get(indexFile + SignalBitsets.DATA_SUFFIX))) {
+            bitsetsBuilder.write(indexStream, dataStream);
+        }
+        LOG.info("Created signal bitsets of {} MIPs", bitsetsBuilder.getTargetsCount());
+    }
+
+    private static void createSignatureIndex(Path libraryFolder, Path indexFile, int threshold) throws Exception {
+        List<Path> mips = listMIPs(libraryFolder);
+        LOG.info("Index the signatures of {} MIPs from {} into {} using threshold {}", mips.size(), libraryFolder, indexFile, threshold);
+        MIPSignatureIndex.Builder indexBuilder = new MIPSignatureIndex.Builder(
+                MIPSignatureIndex.DEFAULT_GRID_SIZE,
+                MIPSignatureIndex.DEFAULT_COLOR_BINS,
+                MIPSignatureIndex.DEFAULT_HASH_TABLES,
+                MIPSignatureIndex.DEFAULT_HASH_BITS,
+                threshold);
+        for (Path mip : mips) {
+            // the target keys are the S3 keys of the MIPs
+            decodeMIP(mip, indexBuilder.addTarget(StringUtils.replaceChars(mip.normalize().toString(), '\\', '/')));
+        }
+        MIPSignatureIndex index = indexBuilder.build();
+        if (indexFile.getParent() != null) {
+            Files.createDirectories(indexFile.getParent());
+        }
+        try (OutputStream indexStream = Files.newOutputStream(indexFile)) {
+            index.write(indexStream);
+        }
+        LOG.info("Indexed the signatures of {} MIPs", index.getTargetsCount());
+    }
+
+    private static void compareVariantCosts(Path libraryFolder, Path gradientsFolder, Path zgapMasksFolder, int threshold) throws Exception {
+        List<Path> mips = listMIPs(libraryFolder);
+        // the stored variants are looked up by name without the extension, like the search does
+        Map<String, Path> gradients = listVariants(gradientsFolder);
+        Map<String, Path> zgapMasks = listVariants(zgapMasksFolder);
+        int maxDistance = new ColorDepthSearchParameters().getNegativeRadius();
+        LOG.info("Compare the variant costs of {} MIPs from {} using threshold {}", mips.size(), libraryFolder, threshold);
+        long[] gradientCosts = new long[4];
+        long[] zgapCosts = new long[4];
+        for (Path mip : mips) {
+            ImageArrayRowsConsumer mipRows = new ImageArrayRowsConsumer();
+            decodeMIP(mip, mipRows);
+            ImageArray<?> mipImage = mipRows.getImageArray();
+            String variantName = getVariantName(libraryFolder, mip);
+            long startTime = System.nanoTime();
+            TargetVariants.createGradientImage(mipImage, threshold, maxDistance, 0, Long.MAX_VALUE);
+            gradientCosts[0] += System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            TargetVariants.createZGapImage(mipImage, 0, Long.MAX_VALUE);
+            zgapCosts[0] += System.nanoTime() - startTime;
+            readStoredVariant(gradients.get(variantName), gradientCosts);
+            readStoredVariant(zgapMasks.get(variantName), zgapCosts);
+        }
+        logVariantCosts("gradient", mips.size(), gradientCosts);
+        logVariantCosts("zgap", mips.size(), zgapCosts);
+    }
+
+    private static Map<String, Path> listVariants(Path variantsFolder) throws Exception {
+        if (!Files.isDirectory(variantsFolder)) {
+            return new TreeMap<>();
+        }
+        return listMIPs(variantsFolder).stream()
+                .collect(Collectors.toMap(v -> getVariantName(variantsFolder, v), v -> v, (v1, v2) -> v1, TreeMap::new));
+    }
+
+    private static String getVariantName(Path folder, Path image) {
+        return RegExUtils.replacePattern(folder.relativize(image).toString(), "\\..*$", "");
+    }
+
+    /**
+     * Read and decode the stored variant, if there is one, and add the number of stored variants, their bytes
+     * and their read time to the costs.
+     */
+    private static void readStoredVariant(Path variant, long[] costs) throws Exception {
+        if (variant == null) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        decodeMIP(variant, new ImageArrayRowsConsumer());
+        costs[3] += System.nanoTime() - startTime;
+        costs[1]++;
+        costs[2] += Files.size(variant);
+    }
+
+    private static void logVariantCosts(String variantType, int nMIPs, long[] costs) {
+        LOG.info("{} variants: computed in {}ms per MIP; {} out of {} MIPs have a stored variant, of {} bytes read in {}ms on average",
+                variantType,
+                nMIPs > 0 ? costs[0] / nMIPs / 1e6 : 0,
+                costs[1],
+                nMIPs,
+                costs[1] > 0 ? costs[2] / costs[1] : 0,
+                costs[1] > 0 ? costs[3] / costs[1] / 1e6 : 0);
+    }
+
+    private static void createManifest(Path libraryFolder, Path manifestFile) throws Exception {
+        List<Path> mips = listMIPs(libraryFolder);
+        LOG.info("Create manifest of {} MIPs from {} into {}", mips.size(), libraryFolder, manifestFile);
+        Map<String, String> manifest = new TreeMap<>();
+        for (Path mip : mips) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // the manifest keys are the S3 keys of the MIPs
+            manifest.put(StringUtils.replaceChars(mip.normalize().toString(), '\\', '/'),
+                    BaseEncoding.base16().lowerCase().encode(digest.digest(Files.readAllBytes(mip))));
+        }
+        writeJson(manifest, manifestFile);
+        LOG.info("Created manifest of {} MIPs", manifest.size());
+    }
+
+    private static void createDelta(Path priorManifestFile, Path manifestFile, Path deltaFile) throws Exception {
+        Map<String, String> priorManifest;
+        try (InputStream manifestStream = Files.newInputStream(priorManifestFile)) {
+            priorManifest = LibraryDelta.readManifest(manifestStream);
+        }
+        Map<String, String> manifest;
+        try (InputStream manifestStream = Files.newInputStream(manifestFile)) {
+            manifest = LibraryDelta.readManifest(manifestStream);
+        }
+        LibraryDelta delta = LibraryDelta.create(priorManifest, manifest);
+        writeJson(delta, deltaFile);
+        // the number of search keys is the size of the dataset of an incremental search
+        LOG.info("Created delta from {} to {} with {} added or changed MIPs and {} removed MIPs",
+                priorManifestFile, manifestFile, delta.getSearchKeys().size(), delta.getRemovedKeys().size());
+    }
+
+    private static void writeJson(Object object, Path file) throws Exception {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.write(file, LambdaUtils.toJson(object).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void decodeMIP(Path mip, ImageRowsConsumer rowsConsumer) throws Exception {
+        try (InputStream mipStream = new BufferedInputStream(Files.newInputStream(mip))) {
+            ImageRowsDecoder.decodeRows(mipStream, 0, Long.MAX_VALUE, rowsConsumer);
+            return;
+        } catch (ImageRowsDecoder.UnsupportedImageException e) {
+            LOG.debug("Read the entire image {} - {}", mip, e.getMessage());
+        }
+        try (InputStream mipStream = Files.newInputStream(mip)) {
+            ImageRowsDecoder.decodeRows(ImageArrayUtils.readImageArray(mip.toString(), mip.toString(), mipStream), rowsConsumer);
+        }
+    }
+
+}
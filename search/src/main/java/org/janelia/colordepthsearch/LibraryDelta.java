@@ -0,0 +1,82 @@
+package org.janelia.colordepthsearch;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Difference between two versions of a library, used by the incremental searches. A library version is described
+ * by a manifest that maps the key of every library MIP to the fingerprint of its content. The delta of a version
+ * holds the keys of the MIPs added or changed since the prior version, which are the only MIPs that an incremental
+ * search compares with the masks, and the keys of the MIPs removed since the prior version.
+ *
+ * The manifests and the deltas are created offline using the LibraryConverter.
+ */
+class LibraryDelta {
+
+    /**
+     * @return the manifest as a map of MIP keys to content fingerprints
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, String> readManifest(InputStream manifestStream) {
+        return new TreeMap<String, String>(LambdaUtils.fromJson(manifestStream, Map.class));
+    }
+
+    static LibraryDelta read(InputStream deltaStream) {
+        return LambdaUtils.fromJson(deltaStream, LibraryDelta.class);
+    }
+
+    static LibraryDelta create(Map<String, String> priorManifest, Map<String, String> manifest) {
+        LibraryDelta delta = new LibraryDelta();
+        new TreeMap<>(manifest).forEach((key, fingerprint) -> {
+            if (!Objects.equals(fingerprint, priorManifest.get(key))) {
+                delta.searchKeys.add(key);
+            }
+        });
+        new TreeMap<>(priorManifest).keySet().forEach(key -> {
+            if (!manifest.containsKey(key)) {
+                delta.removedKeys.add(key);
+            }
+        });
+        return delta;
+    }
+
+    private List<String> searchKeys = new ArrayList<>();
+    private List<String> removedKeys = new ArrayList<>();
+
+    /**
+     * @return the keys of the MIPs added or changed since the prior version, in key order
+     */
+    public List<String> getSearchKeys() {
+        return searchKeys;
+    }
+
+    public void setSearchKeys(List<String> searchKeys) {
+        this.searchKeys = searchKeys == null ? Collections.emptyList() : searchKeys;
+    }
+
+    /**
+     * @return the keys of the MIPs removed since the prior version, in key order
+     */
+    public List<String> getRemovedKeys() {
+        return removedKeys;
+    }
+
+    public void setRemovedKeys(List<String> removedKeys) {
+        this.removedKeys = removedKeys == null ? Collections.emptyList() : removedKeys;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("searchKeys", searchKeys.size())
+                .append("removedKeys", removedKeys.size())
+                .toString();
+    }
+}
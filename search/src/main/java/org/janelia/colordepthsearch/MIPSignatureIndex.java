@@ -0,0 +1,422 @@
+package org.janelia.colordepthsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+
+/**
+ * Locality sensitive hashing index of the library MIP signatures, used by the approximate search. The signature
+ * of a MIP is the number of signal pixels in every (xy grid cell, depth color bin) cell and it is hashed by
+ * the signs of its projections on random hyperplanes, split into several hash tables.
+ *
+ * A mask only retrieves the targets that share a hash code with its signature, or with a code that differs
+ * from it by one bit, in at least one table. The retrieved targets are ranked by the number of mask pixels that
+ * their signature can cover and only the best ranked targets are shortlisted. The grid cells are much larger than
+ * the xy shift, so the shift is ignored.
+ *
+ * The stored format is deflate compressed and contains: the magic number, grid size, number of color bins, width,
+ * height, signal threshold, number of hash tables, number of hash bits per table, hyperplanes seed, and for every
+ * target its key, its delta encoded varint signature cells, their varint counts, and its hash codes.
+ */
+class MIPSignatureIndex implements CandidateTargetsIndex {
+
+    static final int DEFAULT_GRID_SIZE = 64;
+    static final int DEFAULT_COLOR_BINS = 8;
+    static final int DEFAULT_HASH_TABLES = 16;
+    static final int DEFAULT_HASH_BITS = 10;
+    static final int DEFAULT_MAX_CANDIDATES = 1000;
+
+    private static final int MAGIC = 0x4d534947; // "MSIG"
+    private static final long HYPERPLANES_SEED = 0x4d495053L;
+
+    /**
+     * Adds targets to the index as they are decoded.
+     */
+    static class Builder {
+        private final int gridSize;
+        private final int nColorBins;
+        private final int nTables;
+        private final int nBits;
+        private final int threshold;
+        private final List<String> targetKeys = new ArrayList<>();
+        private final List<int[]> targetCells = new ArrayList<>();
+        private final List<int[]> targetCounts = new ArrayList<>();
+        private int width;
+        private int height;
+
+        Builder(int gridSize, int nColorBins, int nTables, int nBits, int threshold) {
+            if (nBits < 1 || nBits > 30) {
+                throw new IllegalArgumentException("The number of hash bits must be between 1 and 30: " + nBits);
+            }
+            this.gridSize = gridSize;
+            this.nColorBins = nColorBins;
+            this.nTables = nTables;
+            this.nBits = nBits;
+            this.threshold = threshold;
+        }
+
+        /**
+         * @return a rows consumer that adds the signature of the decoded image to the index
+         */
+        ImageRowsConsumer addTarget(String targetKey) {
+            return new ImageRowsConsumer() {
+                private int lastRow;
+                private int[] signature;
+
+                @Override
+                public void startImage(int imageWidth, int imageHeight) {
+                    if (width == 0) {
+                        width = imageWidth;
+                        height = imageHeight;
+                    } else if (width != imageWidth || height != imageHeight) {
+                        throw new IllegalArgumentException(String.format("%s is %dx%d instead of %dx%d",
+                                targetKey, imageWidth, imageHeight, width, height));
+                    }
+                    lastRow = imageHeight - 1;
+                    signature = new int[getSignatureSize(width, height, gridSize, nColorBins)];
+                }
+
+                @Override
+                public void acceptRow(int y, int[] rowPixels) {
+                    for (int x = 0; x < rowPixels.length; x++) {
+                        if (SparseMIP.isSignal(rowPixels[x], threshold)) {
+                            signature[getCell(x, y, TileColorIndex.colorBin(rowPixels[x], nColorBins), width, gridSize, nColorBins)]++;
+                        }
+                    }
+                    if (y == lastRow) {
+                        targetKeys.add(targetKey);
+                        targetCells.add(getSignatureCells(signature));
+                        targetCounts.add(getSignatureCounts(signature));
+                    }
+                }
+            };
+        }
+
+        MIPSignatureIndex build() {
+            float[][] hyperplanes = createHyperplanes(HYPERPLANES_SEED, nTables * nBits, getSignatureSize(width, height, gridSize, nColorBins));
+            int[][] targetCodes = new int[targetKeys.size()][];
+            for (int targetId = 0; targetId < targetKeys.size(); targetId++) {
+                targetCodes[targetId] = hash(hyperplanes, nTables, nBits, targetCells.get(targetId), targetCounts.get(targetId));
+            }
+            return new MIPSignatureIndex(gridSize, nColorBins, width, height, threshold, nTables, nBits, HYPERPLANES_SEED,
+                    targetKeys, targetCells, targetCounts, targetCodes);
+        }
+    }
+
+    private static int getSignatureSize(int width, int height, int gridSize, int nColorBins) {
+        return ((width + gridSize - 1) / gridSize) * ((height + gridSize - 1) / gridSize) * nColorBins;
+    }
+
+    private static int getCell(int x, int y, int colorBin, int width, int gridSize, int nColorBins) {
+        int cellsPerRow = (width + gridSize - 1) / gridSize;
+        return ((y / gridSize) * cellsPerRow + x / gridSize) * nColorBins + colorBin;
+    }
+
+    private static int[] getSignatureCells(int[] signature) {
+        return IntStream.range(0, signature.length).filter(cell -> signature[cell] > 0).toArray();
+    }
+
+    private static int[] getSignatureCounts(int[] signature) {
+        return Arrays.stream(signature).filter(count -> count > 0).toArray();
+    }
+
+    private static float[][] createHyperplanes(long seed, int nHyperplanes, int signatureSize) {
+        Random random = new Random(seed);
+        float[][] hyperplanes = new float[nHyperplanes][signatureSize];
+        for (float[] hyperplane : hyperplanes) {
+            for (int i = 0; i < signatureSize; i++) {
+                hyperplane[i] = (float) random.nextGaussian();
+            }
+        }
+        return hyperplanes;
+    }
+
+    /**
+     * The square root of the counts keeps the densest cells from dominating the projections.
+     *
+     * @return the hash code of the signature for every table
+     */
+    private static int[] hash(float[][] hyperplanes, int nTables, int nBits, int[] cells, int[] counts) {
+        double[] weights = new double[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            weights[i] = Math.sqrt(counts[i]);
+        }
+        int[] codes = new int[nTables];
+        for (int t = 0; t < nTables; t++) {
+            int code = 0;
+            for (int b = 0; b < nBits; b++) {
+                float[] hyperplane = hyperplanes[t * nBits + b];
+                double projection = 0;
+                for (int i = 0; i < cells.length; i++) {
+                    projection += weights[i] * hyperplane[cells[i]];
+                }
+                if (projection > 0) {
+                    code |= 1 << b;
+                }
+            }
+            codes[t] = code;
+        }
+        return codes;
+    }
+
+    static MIPSignatureIndex read(InputStream inputStream) throws IOException {
+        DataInputStream indexStream = new DataInputStream(new BufferedInputStream(new InflaterInputStream(inputStream)));
+        if (indexStream.readInt() != MAGIC) {
+            throw new IOException("Not a MIP signature index");
+        }
+        int gridSize = indexStream.readInt();
+        int nColorBins = indexStream.readInt();
+        int width = indexStream.readInt();
+        int height = indexStream.readInt();
+        int threshold = indexStream.readUnsignedByte();
+        int nTables = indexStream.readInt();
+        int nBits = indexStream.readInt();
+        long seed = indexStream.readLong();
+        int nTargets = indexStream.readInt();
+        List<String> targetKeys = new ArrayList<>(nTargets);
+        List<int[]> targetCells = new ArrayList<>(nTargets);
+        List<int[]> targetCounts = new ArrayList<>(nTargets);
+        int[][] targetCodes = new int[nTargets][nTables];
+        for (int targetId = 0; targetId < nTargets; targetId++) {
+            targetKeys.add(indexStream.readUTF());
+            int nCells = SparseMIP.readVarint(indexStream);
+            int[] cells = new int[nCells];
+            int cell = 0;
+            for (int i = 0; i < nCells; i++) {
+                cell += SparseMIP.readVarint(indexStream);
+                cells[i] = cell;
+            }
+            int[] counts = new int[nCells];
+            for (int i = 0; i < nCells; i++) {
+                counts[i] = SparseMIP.readVarint(indexStream);
+            }
+            targetCells.add(cells);
+            targetCounts.add(counts);
+            for (int t = 0; t < nTables; t++) {
+                targetCodes[targetId][t] = indexStream.readInt();
+            }
+        }
+        return new MIPSignatureIndex(gridSize, nColorBins, width, height, threshold, nTables, nBits, seed,
+                targetKeys, targetCells, targetCounts, targetCodes);
+    }
+
+    private final int gridSize;
+    private final int nColorBins;
+    private final int width;
+    private final int height;
+    private final int threshold;
+    private final int nTables;
+    private final int nBits;
+    private final long seed;
+    private final List<String> targetKeys;
+    private final Map<String, Integer> targetIds;
+    private final List<int[]> targetCells;
+    private final List<int[]> targetCounts;
+    private final int[][] targetCodes;
+    // for every table the target ids sorted by their hash code and the sorted codes
+    private final int[][] tableTargets;
+    private final int[][] tableCodes;
+    private final float[][] hyperplanes;
+    private int maxCandidates = DEFAULT_MAX_CANDIDATES;
+
+    private MIPSignatureIndex(int gridSize, int nColorBins, int width, int height, int threshold, int nTables, int nBits, long seed,
+                              List<String> targetKeys, List<int[]> targetCells, List<int[]> targetCounts, int[][] targetCodes) {
+        this.gridSize = gridSize;
+        this.nColorBins = nColorBins;
+        this.width = width;
+        this.height = height;
+        this.threshold = threshold;
+        this.nTables = nTables;
+        this.nBits = nBits;
+        this.seed = seed;
+        this.targetKeys = targetKeys;
+        this.targetIds = new HashMap<>(2 * targetKeys.size());
+        for (int i = 0; i < targetKeys.size(); i++) {
+            targetIds.put(targetKeys.get(i), i);
+        }
+        this.targetCells = targetCells;
+        this.targetCounts = targetCounts;
+        this.targetCodes = targetCodes;
+        this.tableTargets = new int[nTables][];
+        this.tableCodes = new int[nTables][];
+        for (int t = 0; t < nTables; t++) {
+            int table = t;
+            tableTargets[t] = IntStream.range(0, targetKeys.size()).boxed()
+                    .sorted((t1, t2) -> Integer.compare(targetCodes[t1][table], targetCodes[t2][table]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            tableCodes[t] = Arrays.stream(tableTargets[t]).map(targetId -> targetCodes[targetId][table]).toArray();
+        }
+        this.hyperplanes = createHyperplanes(seed, nTables * nBits, getSignatureSize(width, height, gridSize, nColorBins));
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    int getTargetsCount() {
+        return targetKeys.size();
+    }
+
+    /**
+     * @param maxCandidates maximum number of targets shortlisted for a mask from the whole index
+     */
+    void setMaxCandidates(int maxCandidates) {
+        this.maxCandidates = maxCandidates;
+    }
+
+    @Override
+    public boolean containsTarget(String targetKey) {
+        return targetIds.containsKey(targetKey);
+    }
+
+    /**
+     * Find the nearest targets of the mask signature, and of the mirrored mask signature if needed. The candidates are
+     * selected from the whole index, so every batch of a search shortlists the same targets.
+     *
+     * @return the ids of the shortlisted targets
+     */
+    @Override
+    public BitSet findCandidates(ImageArray<?> maskImage, int maskThreshold, int xyShift, boolean mirrorMask) {
+        if (maskImage.getWidth() != width || maskImage.getHeight() != height) {
+            throw new IllegalArgumentException(String.format("Mask is %dx%d and the indexed targets are %dx%d",
+                    maskImage.getWidth(), maskImage.getHeight(), width, height));
+        }
+        List<int[]> maskSignatures = new ArrayList<>();
+        maskSignatures.add(createMaskSignature(maskImage, maskThreshold, false));
+        if (mirrorMask) {
+            maskSignatures.add(createMaskSignature(maskImage, maskThreshold, true));
+        }
+        BitSet retrievedTargets = new BitSet(targetKeys.size());
+        for (int[] maskSignature : maskSignatures) {
+            retrieveTargets(maskSignature, retrievedTargets);
+        }
+        int[] coverages = new int[targetKeys.size()];
+        retrievedTargets.stream().forEach(targetId -> {
+            for (int[] maskSignature : maskSignatures) {
+                coverages[targetId] = Math.max(coverages[targetId], getCoverage(maskSignature, targetId));
+            }
+        });
+        int[] rankedTargets = retrievedTargets.stream()
+                .filter(targetId -> coverages[targetId] > 0)
+                .boxed()
+                .sorted((t1, t2) -> Integer.compare(coverages[t2], coverages[t1]))
+                .limit(maxCandidates)
+                .mapToInt(Integer::intValue)
+                .toArray();
+        BitSet candidates = new BitSet(targetKeys.size());
+        for (int targetId : rankedTargets) {
+            candidates.set(targetId);
+        }
+        return candidates;
+    }
+
+    @Override
+    public boolean isCandidate(BitSet candidates, String targetKey) {
+        Integer targetId = targetIds.get(targetKey);
+        return targetId != null && candidates.get(targetId);
+    }
+
+    private int[] createMaskSignature(ImageArray<?> maskImage, int maskThreshold, boolean mirror) {
+        int[] signature = new int[getSignatureSize(width, height, gridSize, nColorBins)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = maskImage.get(y * width + x);
+                if (SparseMIP.isSignal(rgb, maskThreshold)) {
+                    signature[getCell(mirror ? width - 1 - x : x, y, TileColorIndex.colorBin(rgb, nColorBins), width, gridSize, nColorBins)]++;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Add the targets that share a hash code with the mask signature, or with a code that differs by one bit.
+     */
+    private void retrieveTargets(int[] maskSignature, BitSet retrievedTargets) {
+        int[] maskCodes = hash(hyperplanes, nTables, nBits, getSignatureCells(maskSignature), getSignatureCounts(maskSignature));
+        for (int t = 0; t < nTables; t++) {
+            addBucketTargets(t, maskCodes[t], retrievedTargets);
+            for (int b = 0; b < nBits; b++) {
+                addBucketTargets(t, maskCodes[t] ^ (1 << b), retrievedTargets);
+            }
+        }
+    }
+
+    private void addBucketTargets(int table, int code, BitSet retrievedTargets) {
+        int[] codes = tableCodes[table];
+        int i = Arrays.binarySearch(codes, code);
+        if (i < 0) {
+            return;
+        }
+        while (i > 0 && codes[i - 1] == code) {
+            i--;
+        }
+        for (; i < codes.length && codes[i] == code; i++) {
+            retrievedTargets.set(tableTargets[table][i]);
+        }
+    }
+
+    /**
+     * @return the number of mask pixels that the target signature can cover
+     */
+    private int getCoverage(int[] maskSignature, int targetId) {
+        int[] cells = targetCells.get(targetId);
+        int[] counts = targetCounts.get(targetId);
+        int coverage = 0;
+        for (int i = 0; i < cells.length; i++) {
+            coverage += Math.min(maskSignature[cells[i]], counts[i]);
+        }
+        return coverage;
+    }
+
+    void write(OutputStream outputStream) throws IOException {
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(outputStream);
+        DataOutputStream indexStream = new DataOutputStream(new BufferedOutputStream(deflaterStream));
+        indexStream.writeInt(MAGIC);
+        indexStream.writeInt(gridSize);
+        indexStream.writeInt(nColorBins);
+        indexStream.writeInt(width);
+        indexStream.writeInt(height);
+        indexStream.writeByte(threshold);
+        indexStream.writeInt(nTables);
+        indexStream.writeInt(nBits);
+        indexStream.writeLong(seed);
+        indexStream.writeInt(targetKeys.size());
+        for (int targetId = 0; targetId < targetKeys.size(); targetId++) {
+            indexStream.writeUTF(targetKeys.get(targetId));
+            int[] cells = targetCells.get(targetId);
+            SparseMIP.writeVarint(indexStream, cells.length);
+            int previousCell = 0;
+            for (int cell : cells) {
+                SparseMIP.writeVarint(indexStream, cell - previousCell);
+                previousCell = cell;
+            }
+            for (int count : targetCounts.get(targetId)) {
+                SparseMIP.writeVarint(indexStream, count);
+            }
+            for (int code : targetCodes[targetId]) {
+                indexStream.writeInt(code);
+            }
+        }
+        indexStream.flush();
+        deflaterStream.finish();
+    }
+
+}
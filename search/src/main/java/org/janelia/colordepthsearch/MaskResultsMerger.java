@@ -0,0 +1,145 @@
+package org.janelia.colordepthsearch;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Merges the results of one mask from all batches of a search, keeping at most maxResults results
+ * with the highest number of matching pixels. The results of every batch are added as a run; once the runs are
+ * sorted the final results are produced by a k-way merge of the runs.
+ *
+ * A result is rejected as soon as maxResults better results have been seen, so when the results of a batch are
+ * sorted the first rejected result also means that the rest of the batch results can be skipped. The skipped results
+ * must still be counted with {@link #skip(int)}, so that the merger knows the number of matches of the mask.
+ */
+class MaskResultsMerger {
+
+    private static final Comparator<JsonNode> BY_SCORE_DESC = Comparator.comparingInt(MaskResultsMerger::getScore).reversed();
+
+    static int getScore(JsonNode result) {
+        return result.path("matchingPixels").asInt();
+    }
+
+    private final int maxResults;
+    private final List<List<JsonNode>> runs = new ArrayList<>();
+    // the best maxResults scores seen so far
+    private final PriorityQueue<Integer> topScores = new PriorityQueue<>();
+    private List<JsonNode> currentRun;
+    private boolean currentRunSorted;
+    private long nResults;
+    private long nMatches;
+    private int nRuns;
+
+    /**
+     * @param maxResults maximum number of merged results or 0 to keep all results
+     */
+    MaskResultsMerger(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    void startRun() {
+        currentRun = new ArrayList<>();
+        currentRunSorted = true;
+        nRuns++;
+    }
+
+    /**
+     * @return true if the result was kept
+     */
+    boolean add(JsonNode result) {
+        nMatches++;
+        int score = getScore(result);
+        if (maxResults > 0 && topScores.size() == maxResults && score <= topScores.peek()) {
+            return false;
+        }
+        if (maxResults > 0) {
+            if (topScores.size() == maxResults) {
+                topScores.poll();
+            }
+            topScores.add(score);
+        }
+        if (!currentRun.isEmpty() && score > getScore(currentRun.get(currentRun.size() - 1))) {
+            currentRunSorted = false;
+        }
+        currentRun.add(result);
+        nResults++;
+        return true;
+    }
+
+    /**
+     * Count the results of the current run that are skipped without being added.
+     */
+    void skip(int nSkipped) {
+        nMatches += nSkipped;
+    }
+
+    void endRun() {
+        if (!currentRunSorted) {
+            currentRun.sort(BY_SCORE_DESC);
+        }
+        if (!currentRun.isEmpty()) {
+            runs.add(currentRun);
+        }
+        currentRun = null;
+    }
+
+    /**
+     * @return the number of results kept before the final merge
+     */
+    long getResultsCount() {
+        return nResults;
+    }
+
+    /**
+     * @return the number of results added or skipped, including the results rejected for the maximum number of results
+     */
+    long getMatchesCount() {
+        return nMatches;
+    }
+
+    /**
+     * The node combiner truncates the merged results of a mask to MAX_CUSTOM_RESULTS every time it merges the results
+     * of one more batch and counts the matches after the merge, so a mask with results from more than one batch
+     * counts at most MAX_CUSTOM_RESULTS matches.
+     *
+     * @param maxCustomResults the MAX_CUSTOM_RESULTS limit of the node combiner or 0 if it is not set
+     * @return the number of matches counted by the node combiner
+     */
+    long getMatchesCount(int maxCustomResults) {
+        if (maxCustomResults > 0 && nRuns > 1) {
+            return Math.min(nMatches, maxCustomResults);
+        } else {
+            return nMatches;
+        }
+    }
+
+    /**
+     * @return the merged results sorted by score; equal scores keep the order in which the runs were added
+     */
+    List<JsonNode> merge() {
+        int nMerged = maxResults > 0 ? (int) Math.min(maxResults, nResults) : (int) nResults;
+        List<JsonNode> mergedResults = new ArrayList<>(nMerged);
+        // run cursors as {run index, position in run}
+        PriorityQueue<int[]> cursors = new PriorityQueue<>((c1, c2) -> {
+            int scoreComparison = Integer.compare(getScore(runs.get(c2[0]).get(c2[1])), getScore(runs.get(c1[0]).get(c1[1])));
+            return scoreComparison != 0 ? scoreComparison : Integer.compare(c1[0], c2[0]);
+        });
+        for (int r = 0; r < runs.size(); r++) {
+            cursors.add(new int[]{r, 0});
+        }
+        while (mergedResults.size() < nMerged && !cursors.isEmpty()) {
+            int[] cursor = cursors.poll();
+            List<JsonNode> run = runs.get(cursor[0]);
+            mergedResults.add(run.get(cursor[1]));
+            if (cursor[1] + 1 < run.size()) {
+                cursors.add(new int[]{cursor[0], cursor[1] + 1});
+            }
+        }
+        return mergedResults;
+    }
+
+}
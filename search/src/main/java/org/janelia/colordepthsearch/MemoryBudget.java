@@ -0,0 +1,174 @@
+package org.janelia.colordepthsearch;
+
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory governor for a color depth search. It estimates the working set of a prepared mask and of a target that is
+ * being downloaded and compared, derives from the memory limit of the function how many targets can be in flight,
+ * limits the number of comparisons that run at the same time to the number of processors, and blocks new targets
+ * when the reserved memory or the heap usage get too high.
+ */
+class MemoryBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryBudget.class);
+
+    private static final long MB = 1024L * 1024L;
+    // fraction of the available memory that can be reserved for masks and targets, the rest is left for everything else
+    private static final double USABLE_MEMORY_FRACTION = 0.8;
+    // heap usage above which no new targets are started until some of the in flight targets complete
+    private static final double HEAP_HIGH_WATERMARK = 0.85;
+    // fraction of the budget that can be reserved for the structures shared by all masks, like the color lookup table
+    private static final double MAX_SHARED_FRACTION = 0.25;
+    private static final int MAX_IN_FLIGHT_TARGETS = 64;
+    private static final long HEAP_CHECK_INTERVAL_MILLIS = 50;
+
+    /**
+     * @param memoryLimitMB memory limit of the function, typically the value of Context.getMemoryLimitInMB(); if not positive only the max heap is used
+     * @param xyShift search xy shift which determines the number of shifted mask variants
+     * @param mirrorMask if true the mirrored mask variants are also prepared
+     */
+    static MemoryBudget forMemoryLimit(int memoryLimitMB, int xyShift, boolean mirrorMask) {
+        Runtime runtime = Runtime.getRuntime();
+        long availableMemory = memoryLimitMB > 0 ? Math.min(memoryLimitMB * MB, runtime.maxMemory()) : runtime.maxMemory();
+        long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+        long budgetBytes = Math.max(0, (long) ((availableMemory - usedMemory) * USABLE_MEMORY_FRACTION));
+        // one unshifted variant and 8 more for every shift step of 2 pixels
+        int nShiftedVariants = 1 + 8 * (Math.max(0, xyShift) / 2);
+        return new MemoryBudget(budgetBytes, mirrorMask ? 2 * nShiftedVariants : nShiftedVariants, runtime.availableProcessors());
+    }
+
+    private final long budgetBytes;
+    private final int nMaskVariants;
+    private final int nProcessors;
+    private final Semaphore computePermits;
+    private long reservedMaskBytes;
+    private long reservedTargetBytes;
+    private long reservedSharedBytes;
+    private int nInFlightTargets;
+
+    MemoryBudget(long budgetBytes, int nMaskVariants, int nProcessors) {
+        this.budgetBytes = budgetBytes;
+        this.nMaskVariants = nMaskVariants;
+        this.nProcessors = nProcessors;
+        this.computePermits = new Semaphore(nProcessors);
+    }
+
+    long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * A target is held as a decoded RGB int array, plus the row buffers and the compressed stream of the decoder.
+     */
+    long estimateTargetBytes(int width, int height) {
+        long imageBytes = 4L * width * height;
+        return imageBytes + imageBytes / 2;
+    }
+
+    /**
+     * A prepared mask holds the mask image and, for every shifted or mirrored variant, the position and the color of each mask pixel.
+     */
+    long estimateMaskBytes(ImageArray<?> maskImage, int maskThreshold) {
+        int size = maskImage.getWidth() * maskImage.getHeight();
+        long nMaskPixels = 0;
+        for (int i = 0; i < size; i++) {
+            if (SparseMIP.isSignal(maskImage.get(i), maskThreshold)) {
+                nMaskPixels++;
+            }
+        }
+        return 4L * size + 8L * nMaskVariants * nMaskPixels;
+    }
+
+    /**
+     * @return how many targets of the given size can be downloaded and compared at the same time next to the mask
+     */
+    int getMaxInFlightTargets(long maskBytes, long targetBytes) {
+        long n = (budgetBytes - maskBytes) / Math.max(1, targetBytes);
+        return (int) Math.max(1, Math.min(MAX_IN_FLIGHT_TARGETS, n));
+    }
+
+    /**
+     * Account for the memory of a prepared mask. The mask is already loaded, so this never blocks.
+     */
+    synchronized void reserveMask(long bytes) {
+        if (bytes > budgetBytes) {
+            LOG.warn("Mask requires {}MB over a memory budget of {}MB", bytes / MB, budgetBytes / MB);
+        }
+        reservedMaskBytes += bytes;
+    }
+
+    synchronized void releaseMask(long bytes) {
+        reservedMaskBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Reserve memory for a structure shared by all masks of the search, which is kept until the end of the search.
+     * A shared structure is only an optimization, so the reservation fails instead of blocking when the shared
+     * structures would use more than {@link #MAX_SHARED_FRACTION} of the budget.
+     *
+     * @return true if the memory was reserved
+     */
+    synchronized boolean tryReserveShared(long bytes) {
+        if (reservedSharedBytes + bytes > MAX_SHARED_FRACTION * budgetBytes) {
+            return false;
+        }
+        reservedSharedBytes += bytes;
+        return true;
+    }
+
+    synchronized void releaseShared(long bytes) {
+        reservedSharedBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Reserve memory for a target. Blocks while the reservation would exceed the budget or while the heap usage
+     * is above the high watermark, unless no other target is in flight, in which case it always succeeds so that the search can progress.
+     */
+    synchronized void reserveTarget(long bytes) throws InterruptedException {
+        while (nInFlightTargets > 0 && (reservedMaskBytes + reservedSharedBytes + reservedTargetBytes + bytes > budgetBytes || isHeapAboveHighWatermark())) {
+            wait(HEAP_CHECK_INTERVAL_MILLIS);
+        }
+        nInFlightTargets++;
+        reservedTargetBytes += bytes;
+    }
+
+    synchronized void releaseTarget(long bytes) {
+        nInFlightTargets--;
+        reservedTargetBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Run a comparison, limiting the number of comparisons that run at the same time to the number of processors.
+     */
+    <T> T compute(Supplier<T> computation) {
+        computePermits.acquireUninterruptibly();
+        try {
+            return computation.get();
+        } finally {
+            computePermits.release();
+        }
+    }
+
+    private boolean isHeapAboveHighWatermark() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() > HEAP_HIGH_WATERMARK * runtime.maxMemory();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("budgetMB", budgetBytes / MB)
+                .append("nMaskVariants", nMaskVariants)
+                .append("nProcessors", nProcessors)
+                .toString();
+    }
+}
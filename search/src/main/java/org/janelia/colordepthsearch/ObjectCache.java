@@ -0,0 +1,217 @@
+package org.janelia.colordepthsearch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Container wide cache of S3 objects. It is filled by the warm-up invocations and read by the batches that land
+ * on the same container afterwards. An object is kept on the heap while the heap part has room, otherwise it is
+ * written to the local folder, typically in /tmp; the least recently used objects of the folder are evicted first.
+ *
+ * Every object is cached with the version it was read for, e.g. the version of the libraries of the search, and
+ * it is only returned for the same version: once a library is released again under the same keys the cached objects
+ * of the prior release are dropped as soon as they are read for the new release.
+ */
+class ObjectCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ObjectCache.class);
+
+    private final long maxHeapBytes;
+    private final Path folder;
+    private final long maxFolderBytes;
+    private static class CachedObject {
+        final String version;
+        // the content of a heap object or null for a folder object
+        final byte[] content;
+        final long size;
+
+        CachedObject(String version, byte[] content, long size) {
+            this.version = version;
+            this.content = content;
+            this.size = size;
+        }
+    }
+
+    private final Map<String, CachedObject> heapObjects = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CachedObject> folderObjects = new LinkedHashMap<>(16, 0.75f, true);
+    private long heapBytes;
+    private long folderBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxHeapBytes maximum size of the objects kept on the heap
+     * @param folder folder of the objects that do not fit on the heap
+     * @param maxFolderBytes maximum size of the objects kept in the folder
+     */
+    ObjectCache(long maxHeapBytes, Path folder, long maxFolderBytes) {
+        this.maxHeapBytes = maxHeapBytes;
+        this.folder = folder;
+        this.maxFolderBytes = maxFolderBytes;
+    }
+
+    long getCapacityBytes() {
+        return maxHeapBytes + maxFolderBytes;
+    }
+
+    synchronized boolean isEmpty() {
+        return heapObjects.isEmpty() && folderObjects.isEmpty();
+    }
+
+    /**
+     * @param version version of the object, which may be null for objects that never change under the same key
+     * @return the content of the object or null if it is not cached for this version
+     */
+    byte[] get(String bucket, String key, String version) {
+        String objectId = getObjectId(bucket, key);
+        String objectVersion;
+        synchronized (this) {
+            CachedObject heapObject = heapObjects.get(objectId);
+            if (heapObject != null && Objects.equals(heapObject.version, version)) {
+                hits.incrementAndGet();
+                return heapObject.content;
+            }
+            // get, unlike containsKey, moves the object to the end of the eviction order
+            CachedObject folderObject = folderObjects.get(objectId);
+            if (heapObject != null || folderObject == null || !Objects.equals(folderObject.version, version)) {
+                removeObject(objectId);
+                misses.incrementAndGet();
+                return null;
+            }
+            objectVersion = folderObject.version;
+        }
+        try {
+            byte[] content = Files.readAllBytes(getObjectFile(objectId, objectVersion));
+            hits.incrementAndGet();
+            return content;
+        } catch (IOException e) {
+            LOG.warn("Could not read cached object {}", objectId, e);
+            synchronized (this) {
+                CachedObject folderObject = folderObjects.get(objectId);
+                if (folderObject != null && Objects.equals(folderObject.version, objectVersion)) {
+                    folderObjects.remove(objectId);
+                    folderBytes -= folderObject.size;
+                }
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Cache the object unless it is larger than the heap and the folder limits. The object replaces
+     * the cached object of another version.
+     */
+    void put(String bucket, String key, String version, byte[] content) {
+        String objectId = getObjectId(bucket, key);
+        synchronized (this) {
+            CachedObject cachedObject = heapObjects.containsKey(objectId) ? heapObjects.get(objectId) : folderObjects.get(objectId);
+            if (cachedObject != null && Objects.equals(cachedObject.version, version)) {
+                return;
+            }
+            removeObject(objectId);
+            if (heapBytes + content.length <= maxHeapBytes) {
+                heapObjects.put(objectId, new CachedObject(version, content, content.length));
+                heapBytes += content.length;
+                return;
+            }
+        }
+        if (content.length > maxFolderBytes) {
+            return;
+        }
+        try {
+            Files.createDirectories(folder);
+            Path objectFile = getObjectFile(objectId, version);
+            // concurrent readers only ever see a complete file
+            Path partialFile = Files.createTempFile(folder, "partial-", ".tmp");
+            Files.write(partialFile, content);
+            Files.move(partialFile, objectFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                CachedObject cachedObject = heapObjects.containsKey(objectId) ? heapObjects.get(objectId) : folderObjects.get(objectId);
+                if (cachedObject != null && Objects.equals(cachedObject.version, version)) {
+                    // the same version was cached concurrently
+                    if (cachedObject.content != null) {
+                        Files.deleteIfExists(objectFile);
+                    }
+                    return;
+                }
+                removeObject(objectId);
+                folderObjects.put(objectId, new CachedObject(version, null, content.length));
+                folderBytes += content.length;
+                evictFolderObjects(objectId);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not cache object {} in {}", objectId, folder, e);
+        }
+    }
+
+    /**
+     * Remove the cached object of any version; the caller must hold the lock.
+     */
+    private void removeObject(String objectId) {
+        CachedObject heapObject = heapObjects.remove(objectId);
+        if (heapObject != null) {
+            heapBytes -= heapObject.size;
+        }
+        CachedObject folderObject = folderObjects.remove(objectId);
+        if (folderObject != null) {
+            deleteObjectFile(objectId, folderObject);
+        }
+    }
+
+    private void evictFolderObjects(String keptObjectId) {
+        Iterator<Map.Entry<String, CachedObject>> folderObjectsIterator = folderObjects.entrySet().iterator();
+        while (folderBytes > maxFolderBytes && folderObjectsIterator.hasNext()) {
+            Map.Entry<String, CachedObject> folderObject = folderObjectsIterator.next();
+            if (folderObject.getKey().equals(keptObjectId)) {
+                continue;
+            }
+            folderObjectsIterator.remove();
+            deleteObjectFile(folderObject.getKey(), folderObject.getValue());
+        }
+    }
+
+    private void deleteObjectFile(String objectId, CachedObject folderObject) {
+        try {
+            Files.deleteIfExists(getObjectFile(objectId, folderObject.version));
+        } catch (IOException e) {
+            LOG.warn("Could not evict cached object {}", objectId, e);
+        }
+        folderBytes -= folderObject.size;
+    }
+
+    /**
+     * Log the cache usage since the container started.
+     */
+    void logStats() {
+        synchronized (this) {
+            LOG.info("Object cache has {} objects ({} bytes) on the heap and {} objects ({} bytes) in {} - {} hits, {} misses",
+                    heapObjects.size(), heapBytes, folderObjects.size(), folderBytes, folder, hits.get(), misses.get());
+        }
+    }
+
+    private String getObjectId(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+
+    /**
+     * The file name includes the version so that a reader never sees the content of another version.
+     */
+    private Path getObjectFile(String objectId, String version) {
+        return folder.resolve(Hashing.sha256().hashString(objectId + "@" + StringUtils.defaultString(version), StandardCharsets.UTF_8).toString());
+    }
+
+}
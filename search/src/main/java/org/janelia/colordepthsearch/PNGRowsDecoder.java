@@ -0,0 +1,160 @@
+package org.janelia.colordepthsearch;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Row by row decoder for non interlaced 8 bit RGB and RGBA PNG images.
+ * PNG rows are filtered against the previous row so all rows up to the last requested one have to be inflated,
+ * but only the requested ones are converted and passed on.
+ */
+class PNGRowsDecoder {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+
+    /**
+     * Exposes the concatenated data of consecutive IDAT chunks as a single stream.
+     */
+    private static class IDATInputStream extends InputStream {
+        private final DataInputStream pngStream;
+        private int chunkRemaining;
+        private boolean done;
+
+        IDATInputStream(DataInputStream pngStream) throws IOException {
+            this.pngStream = pngStream;
+            // skip all chunks until the first IDAT
+            for (;;) {
+                int chunkLength = pngStream.readInt();
+                int chunkType = pngStream.readInt();
+                if (chunkType == IDAT) {
+                    chunkRemaining = chunkLength;
+                    break;
+                }
+                ImageRowsDecoder.skipFully(pngStream, chunkLength + 4L);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (chunkRemaining == 0) {
+                if (done) {
+                    return -1;
+                }
+                ImageRowsDecoder.skipFully(pngStream, 4); // CRC
+                int chunkLength = pngStream.readInt();
+                int chunkType = pngStream.readInt();
+                if (chunkType == IDAT) {
+                    chunkRemaining = chunkLength;
+                } else {
+                    done = true;
+                }
+            }
+            int n = pngStream.read(b, off, Math.min(len, chunkRemaining));
+            if (n > 0) {
+                chunkRemaining -= n;
+            }
+            return n;
+        }
+    }
+
+    static boolean hasSignature(byte[] signature) {
+        return Arrays.equals(PNG_SIGNATURE, signature);
+    }
+
+    static void decodeRows(InputStream inputStream, long startPixel, long endPixel, ImageRowsConsumer rowsConsumer) throws IOException {
+        DataInputStream pngStream = new DataInputStream(inputStream);
+        ImageRowsDecoder.skipFully(pngStream, PNG_SIGNATURE.length);
+        pngStream.readInt(); // header length
+        if (pngStream.readInt() != IHDR) {
+            throw new IOException("PNG header not found");
+        }
+        int width = pngStream.readInt();
+        int height = pngStream.readInt();
+        int bitDepth = pngStream.readUnsignedByte();
+        int colorType = pngStream.readUnsignedByte();
+        pngStream.readUnsignedByte(); // compression method
+        pngStream.readUnsignedByte(); // filter method
+        int interlace = pngStream.readUnsignedByte();
+        ImageRowsDecoder.skipFully(pngStream, 4); // CRC
+        if (bitDepth != 8 || (colorType != 2 && colorType != 6) || interlace != 0) {
+            throw new ImageRowsDecoder.UnsupportedImageException(
+                    String.format("PNG bit depth %d, color type %d, interlace %d", bitDepth, colorType, interlace));
+        }
+        int bytesPerPixel = colorType == 6 ? 4 : 3;
+        rowsConsumer.startImage(width, height);
+        int firstRow = ImageRowsDecoder.firstRow(startPixel, width);
+        int lastRow = ImageRowsDecoder.lastRow(endPixel, width, height);
+
+        DataInputStream rowsStream = new DataInputStream(new InflaterInputStream(new IDATInputStream(pngStream)));
+        byte[] previousRow = new byte[width * bytesPerPixel];
+        byte[] currentRow = new byte[width * bytesPerPixel];
+        int[] rowPixels = new int[width];
+        for (int y = 0; y <= lastRow; y++) {
+            int filterType = rowsStream.readUnsignedByte();
+            rowsStream.readFully(currentRow);
+            unfilter(filterType, currentRow, previousRow, bytesPerPixel);
+            if (y >= firstRow) {
+                ImageRowsDecoder.toRGBPixels(currentRow, bytesPerPixel, rowPixels);
+                rowsConsumer.acceptRow(y, rowPixels);
+            }
+            byte[] tmp = previousRow;
+            previousRow = currentRow;
+            currentRow = tmp;
+        }
+    }
+
+    private static void unfilter(int filterType, byte[] row, byte[] previousRow, int bytesPerPixel) throws IOException {
+        switch (filterType) {
+            case 0: // None
+                break;
+            case 1: // Sub
+                for (int i = bytesPerPixel; i < row.length; i++) {
+                    row[i] += row[i - bytesPerPixel];
+                }
+                break;
+            case 2: // Up
+                for (int i = 0; i < row.length; i++) {
+                    row[i] += previousRow[i];
+                }
+                break;
+            case 3: // Average
+                for (int i = 0; i < row.length; i++) {
+                    int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xff : 0;
+                    row[i] += (left + (previousRow[i] & 0xff)) >> 1;
+                }
+                break;
+            case 4: // Paeth
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xff : 0;
+                    int b = previousRow[i] & 0xff;
+                    int c = i >= bytesPerPixel ? previousRow[i - bytesPerPixel] & 0xff : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    if (pa <= pb && pa <= pc) {
+                        row[i] += a;
+                    } else if (pb <= pc) {
+                        row[i] += b;
+                    } else {
+                        row[i] += c;
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Invalid PNG filter type " + filterType);
+        }
+    }
+
+}
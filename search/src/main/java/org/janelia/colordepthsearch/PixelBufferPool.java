@@ -0,0 +1,93 @@
+package org.janelia.colordepthsearch;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+/**
+ * Pool of pixel buffers keyed by the image dimensions. Targets from the same library all have the same size, so
+ * once the pool has as many buffers as targets in flight, decoding a target no longer allocates a new pixel array.
+ *
+ * A buffer is leased before decoding and must be returned explicitly after the target was scored. A leased buffer
+ * always comes back with all pixels set to 0; to keep this cheap only the region marked as dirty is cleared.
+ */
+class PixelBufferPool {
+
+    class Lease implements AutoCloseable {
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+        private int dirtyFrom;
+        private int dirtyTo;
+        private boolean returned;
+
+        private Lease(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.dirtyFrom = pixels.length;
+            this.dirtyTo = -1;
+        }
+
+        int[] getPixels() {
+            return pixels;
+        }
+
+        /**
+         * Mark the pixels between from and to (inclusive) as written so they are cleared before the buffer is leased again.
+         */
+        void markDirty(int from, int to) {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private final Map<ImmutablePair<Integer, Integer>, Deque<Lease>> availableBuffers = new HashMap<>();
+    private final AtomicInteger outstandingLeases = new AtomicInteger();
+
+    Lease lease(int width, int height) {
+        Lease lease;
+        synchronized (availableBuffers) {
+            Deque<Lease> buffers = availableBuffers.get(ImmutablePair.of(width, height));
+            lease = buffers != null ? buffers.poll() : null;
+        }
+        outstandingLeases.incrementAndGet();
+        if (lease == null) {
+            return new Lease(width, height, new int[width * height]);
+        }
+        if (lease.dirtyTo >= lease.dirtyFrom) {
+            Arrays.fill(lease.pixels, lease.dirtyFrom, lease.dirtyTo + 1, 0);
+        }
+        // a new lease so that closing the previous lease again is still detected
+        return new Lease(width, height, lease.pixels);
+    }
+
+    /**
+     * @return the number of buffers leased and not returned yet
+     */
+    int getOutstandingLeases() {
+        return outstandingLeases.get();
+    }
+
+    private void release(Lease lease) {
+        synchronized (availableBuffers) {
+            if (lease.returned) {
+                throw new IllegalStateException("Pixel buffer " + lease.width + "x" + lease.height + " was already returned");
+            }
+            lease.returned = true;
+            availableBuffers.computeIfAbsent(ImmutablePair.of(lease.width, lease.height), k -> new ArrayDeque<>()).push(lease);
+        }
+        outstandingLeases.decrementAndGet();
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.janelia.colordepthsearch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * INFO log of the frequent messages of a batch, such as the per target or per mask messages. Only the first
+ * occurrences of every message are logged at INFO level, the others are only counted and the counts are logged
+ * once at the end of the batch. The messages that are not logged at INFO are still logged at DEBUG level.
+ */
+class SampledLog {
+
+    static final int DEFAULT_MAX_LOGGED_MESSAGES = 10;
+
+    private final Logger logger;
+    private final int maxLoggedMessages;
+    // message counts by the message format
+    private final Map<String, AtomicLong> messageCounts = new ConcurrentHashMap<>();
+
+    SampledLog(Logger logger) {
+        this(logger, DEFAULT_MAX_LOGGED_MESSAGES);
+    }
+
+    SampledLog(Logger logger, int maxLoggedMessages) {
+        this.logger = logger;
+        this.maxLoggedMessages = maxLoggedMessages;
+    }
+
+    void info(String format, Object... arguments) {
+        long count = messageCounts.computeIfAbsent(format, f -> new AtomicLong()).incrementAndGet();
+        if (count <= maxLoggedMessages) {
+            logger.info(format, arguments);
+        } else if (logger.isDebugEnabled()) {
+            logger.debug(format, arguments);
+        }
+    }
+
+    long getMessageCount(String format) {
+        AtomicLong count = messageCounts.get(format);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Log the counts of the messages that were not all logged and reset the counts.
+     */
+    void logMessageCounts() {
+        messageCounts.forEach((format, count) -> {
+            if (count.get() > maxLoggedMessages) {
+                logger.info("Logged {} out of {} messages '{}'", maxLoggedMessages, count.get(), format);
+            }
+        });
+        messageCounts.clear();
+    }
+
+}
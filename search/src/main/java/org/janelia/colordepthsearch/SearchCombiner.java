@@ -0,0 +1,487 @@
+package org.janelia.colordepthsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * AWS Lambda Handler that combines the batch results of a burst parallel search into the final results file.
+ * The handler pages through the batch results in the tasks table and merges the results of every mask, keeping only
+ * the best results per mask, then it writes the final results to the search bucket and returns the number of matches.
+ * Like the node combiner, the number of matches counts all the matches of every mask, including the matches beyond the
+ * best results per mask that are not written. When MAX_CUSTOM_RESULTS is set, the node combiner truncates the results
+ * of a mask to MAX_CUSTOM_RESULTS whenever it merges another batch, so the count of a mask with results from more than
+ * one batch is capped at MAX_CUSTOM_RESULTS here as well. The batches of a search with top results bounds only return
+ * the best results of every mask, so for such a search the number of matches is a lower bound.
+ *
+ * The results written by {@link BatchSearch} are sorted by matching pixels, which allows the merge to skip the rest
+ * of the results of a batch once they can no longer make the top results. Results from other batch searches are
+ * accepted too but they are fully scanned.
+ *
+ * For an incremental search, which only searched the library MIPs added or changed since a prior search, the final
+ * results of the prior search are merged too, without the matches to the MIPs that were removed or searched again.
+ */
+public class SearchCombiner implements RequestHandler<SearchCombinerParameters, Integer> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchCombiner.class);
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private static class MaskResults {
+        final ObjectNode inputImage;
+        final MaskResultsMerger merger;
+
+        MaskResults(ObjectNode inputImage, MaskResultsMerger merger) {
+            this.inputImage = inputImage;
+            this.merger = merger;
+        }
+    }
+
+    private final Supplier<S3Client> s3Provider;
+    private final Supplier<DynamoDbClient> dynamoDbProvider;
+    private final String lmPublishedStacksTable;
+    private final String emPublishedSkeletonsTable;
+    private final int maxCustomResults;
+
+    public SearchCombiner() {
+        this(LambdaUtils::createS3,
+                LambdaUtils::createDynamoDB,
+                LambdaUtils.getOptionalEnv("LM_PUBLISHED_STACKS_TABLE", null),
+                LambdaUtils.getOptionalEnv("EM_PUBLISHED_SKELETONS_TABLE", null),
+                Integer.parseInt(LambdaUtils.getOptionalEnv("MAX_CUSTOM_RESULTS", "-1")));
+    }
+
+    /**
+     * Constructor used when the combiner runs outside of AWS, e.g. in tests, with other storage clients.
+     *
+     * @param lmPublishedStacksTable    table used to add the 3D stack to LM matches; null to skip it
+     * @param emPublishedSkeletonsTable table used to add the skeletons to EM matches; null to skip them
+     * @param maxCustomResults          maximum number of results per mask (MAX_CUSTOM_RESULTS); 0 or less for no limit
+     */
+    SearchCombiner(Supplier<S3Client> s3Provider,
+                   Supplier<DynamoDbClient> dynamoDbProvider,
+                   String lmPublishedStacksTable,
+                   String emPublishedSkeletonsTable,
+                   int maxCustomResults) {
+        this.s3Provider = s3Provider;
+        this.dynamoDbProvider = dynamoDbProvider;
+        this.lmPublishedStacksTable = lmPublishedStacksTable;
+        this.emPublishedSkeletonsTable = emPublishedSkeletonsTable;
+        this.maxCustomResults = Math.max(0, maxCustomResults);
+    }
+
+    @Override
+    public Integer handleRequest(SearchCombinerParameters params, Context context) {
+        long startTime = System.currentTimeMillis();
+        if (StringUtils.isNotBlank(params.getJobId())) {
+            MDC.put("jobId", params.getJobId());
+        }
+        try {
+            LOG.info("Combine results with {}", params);
+            if (StringUtils.isBlank(params.getTasksTableName()) || StringUtils.isBlank(params.getJobId())) {
+                throw new IllegalArgumentException("Missing tasksTableName and/or jobId");
+            }
+            if (StringUtils.isBlank(params.getSearchBucket()) || StringUtils.isBlank(params.getResultsKey())) {
+                throw new IllegalArgumentException("Missing searchBucket and/or resultsKey");
+            }
+            if (StringUtils.isNotBlank(params.getPriorResultsKey())
+                    && (StringUtils.isBlank(params.getLibraryBucket()) || LambdaUtils.isEmpty(params.getLibraryDeltaKeys()))) {
+                throw new IllegalArgumentException("Missing libraryBucket and/or libraryDeltaKeys of the incremental search");
+            }
+            S3Client s3 = s3Provider.get();
+            DynamoDbClient dynamoDbClient = dynamoDbProvider.get();
+
+            int maxResultsPerMask = getMaxResultsPerMask(params.getMaxResultsPerMask());
+            Map<String, MaskResults> allMaskResults = mergeBatchResults(dynamoDbClient, params.getTasksTableName(), params.getJobId(),
+                    maxResultsPerMask);
+            if (StringUtils.isNotBlank(params.getPriorResultsKey())) {
+                mergePriorResults(s3, params, allMaskResults, maxResultsPerMask);
+            }
+            int nTotalMatches = writeResults(s3, dynamoDbClient, params, allMaskResults);
+            LOG.info("Combined {} matches for {} masks of job {} in {}s",
+                    nTotalMatches, allMaskResults.size(), params.getJobId(), (System.currentTimeMillis() - startTime) / 1000.);
+            return nTotalMatches;
+        } finally {
+            LambdaUtils.flushLogs();
+        }
+    }
+
+    private int getMaxResultsPerMask(int maxResultsPerMask) {
+        if (maxResultsPerMask > 0 && maxCustomResults > 0) {
+            return Math.min(maxResultsPerMask, maxCustomResults);
+        } else {
+            return Math.max(0, Math.max(maxResultsPerMask, maxCustomResults));
+        }
+    }
+
+    private Map<String, MaskResults> mergeBatchResults(DynamoDbClient dynamoDbClient, String tableName, String jobId, int maxResultsPerMask) {
+        Map<String, AttributeValue> expressionValues = new HashMap<>();
+        expressionValues.put(":jobId", AttributeValue.builder().s(jobId).build());
+        expressionValues.put(":emptyList", AttributeValue.builder().s("[]").build());
+        QueryRequest.Builder queryBuilder = QueryRequest.builder()
+                .tableName(tableName)
+                .consistentRead(true)
+                .keyConditionExpression("jobId = :jobId")
+                .filterExpression("results <> :emptyList")
+                .expressionAttributeValues(expressionValues);
+        Map<String, MaskResults> allMaskResults = new LinkedHashMap<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        int nBatches = 0;
+        do {
+            QueryResponse queryResponse = dynamoDbClient.query(queryBuilder.exclusiveStartKey(lastEvaluatedKey).build());
+            for (Map<String, AttributeValue> item : queryResponse.items()) {
+                mergeBatchResults(item, allMaskResults, maxResultsPerMask);
+                nBatches++;
+            }
+            lastEvaluatedKey = queryResponse.hasLastEvaluatedKey() && !queryResponse.lastEvaluatedKey().isEmpty()
+                    ? queryResponse.lastEvaluatedKey()
+                    : null;
+        } while (lastEvaluatedKey != null);
+        LOG.info("Merged the results of {} batches", nBatches);
+        return allMaskResults;
+    }
+
+    private void mergeBatchResults(Map<String, AttributeValue> item, Map<String, MaskResults> allMaskResults, int maxResultsPerMask) {
+        boolean sortedResults = item.containsKey("resultsSorted") && Boolean.TRUE.equals(item.get("resultsSorted").bool());
+        try (JsonParser parser = JSON_MAPPER.getFactory().createParser(getResultsStream(item))) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IllegalStateException("Batch results are not an array");
+            }
+            // only one mask of the batch is parsed at a time
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode batchMaskResults = parser.readValueAsTree();
+                MaskResults maskResults = allMaskResults.computeIfAbsent(
+                        batchMaskResults.path("maskId").asText(),
+                        maskId -> new MaskResults(convertInputImage(batchMaskResults), new MaskResultsMerger(maxResultsPerMask)));
+                JsonNode results = batchMaskResults.path("results");
+                maskResults.merger.startRun();
+                for (int i = 0; i < results.size(); i++) {
+                    if (!maskResults.merger.add(results.get(i)) && sortedResults) {
+                        // the rest of the sorted results are still matches of the mask
+                        maskResults.merger.skip(results.size() - i - 1);
+                        break;
+                    }
+                }
+                maskResults.merger.endRun();
+            }
+        } catch (IOException e) {
+            LOG.error("Error merging results of {}:{}", item.get("jobId"), item.get("batchId"), e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Merges the final results of the prior search into the results of an incremental search. The prior matches
+     * to the MIPs that were removed or searched again by the incremental search are dropped, so when the prior results
+     * were limited to the best results per mask, a mask may end up with fewer results than a full search would find.
+     */
+    private void mergePriorResults(S3Client s3, SearchCombinerParameters params, Map<String, MaskResults> allMaskResults, int maxResultsPerMask) {
+        Set<String> replacedMatches = getReplacedMatches(s3, params.getLibraryBucket(), params.getLibraryDeltaKeys());
+        JsonNode priorResults;
+        try (InputStream priorResultsStream = LambdaUtils.getObject(s3, params.getSearchBucket(), params.getPriorResultsKey())) {
+            priorResults = JSON_MAPPER.readTree(priorResultsStream);
+        } catch (IOException e) {
+            LOG.error("Error reading prior results {}:{}", params.getSearchBucket(), params.getPriorResultsKey(), e);
+            throw new IllegalStateException(e);
+        }
+        List<JsonNode> allPriorMaskResults = new ArrayList<>();
+        if (priorResults.has("inputImage")) {
+            allPriorMaskResults.add(priorResults);
+        } else {
+            // results of multiple masks
+            priorResults.forEach(allPriorMaskResults::add);
+        }
+        int nDroppedResults = 0;
+        for (JsonNode priorMaskResults : allPriorMaskResults) {
+            ObjectNode inputImage = (ObjectNode) priorMaskResults.get("inputImage");
+            MaskResults maskResults = allMaskResults.computeIfAbsent(
+                    inputImage.path("filename").asText(),
+                    maskId -> new MaskResults(inputImage, new MaskResultsMerger(maxResultsPerMask)));
+            maskResults.merger.startRun();
+            // the final results are sorted by matching pixels
+            boolean rejected = false;
+            for (JsonNode priorResult : priorMaskResults.path("results")) {
+                if (replacedMatches.contains(priorResult.path("files").path("CDMMatch").asText())) {
+                    nDroppedResults++;
+                } else if (rejected) {
+                    maskResults.merger.skip(1);
+                } else {
+                    rejected = !maskResults.merger.add(priorResult);
+                }
+            }
+            maskResults.merger.endRun();
+        }
+        LOG.info("Merged the prior results of {} masks from {} without {} results to removed or changed MIPs",
+                allPriorMaskResults.size(), params.getPriorResultsKey(), nDroppedResults);
+    }
+
+    /**
+     * @return the displayable images of the MIPs removed or searched again by an incremental search, which identify
+     * the prior matches to these MIPs
+     */
+    private Set<String> getReplacedMatches(S3Client s3, String libraryBucket, List<String> libraryDeltaKeys) {
+        Set<String> replacedMatches = new HashSet<>();
+        for (String deltaKey : libraryDeltaKeys) {
+            LibraryDelta delta = LibraryDelta.read(LambdaUtils.getObject(s3, libraryBucket, deltaKey));
+            delta.getSearchKeys().forEach(key -> replacedMatches.add(getDisplayableImage(key)));
+            delta.getRemovedKeys().forEach(key -> replacedMatches.add(getDisplayableImage(key)));
+        }
+        return replacedMatches;
+    }
+
+    private InputStream getResultsStream(Map<String, AttributeValue> item) throws IOException {
+        AttributeValue results = item.get("results");
+        AttributeValue resultsMimeType = item.get("resultsMimeType");
+        if (resultsMimeType != null && "application/gzip".equals(resultsMimeType.s())) {
+            byte[] gzippedResults = results.b() != null
+                    ? results.b().asByteArray()
+                    : Base64.getDecoder().decode(results.s());
+            return new GZIPInputStream(new ByteArrayInputStream(gzippedResults));
+        } else {
+            return new ByteArrayInputStream(results.s().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private int writeResults(S3Client s3, DynamoDbClient dynamoDbClient, SearchCombinerParameters params, Map<String, MaskResults> allMaskResults) {
+        Path resultsFile = null;
+        try {
+            resultsFile = Files.createTempFile("cdsresults", ".json");
+            int nTotalMatches = 0;
+            try (OutputStream resultsStream = Files.newOutputStream(resultsFile);
+                 JsonGenerator generator = JSON_MAPPER.getFactory().createGenerator(resultsStream)) {
+                generator.writeStartObject();
+                if (allMaskResults.isEmpty()) {
+                    writeMaskResults(generator, createEmptyInputImage(params), null);
+                } else if (allMaskResults.size() == 1) {
+                    nTotalMatches += writeMaskResults(generator, allMaskResults.values().iterator().next(), dynamoDbClient);
+                } else {
+                    // same layout as the results of multiple masks written by the node combiner
+                    int maskIndex = 0;
+                    for (MaskResults maskResults : allMaskResults.values()) {
+                        generator.writeFieldName(String.valueOf(maskIndex++));
+                        generator.writeStartObject();
+                        nTotalMatches += writeMaskResults(generator, maskResults, dynamoDbClient);
+                        generator.writeEndObject();
+                    }
+                }
+                generator.writeEndObject();
+            }
+            LambdaUtils.putFile(s3, params.getSearchBucket(), params.getResultsKey(), resultsFile, "application/json");
+            LOG.info("Results written to s3://{}/{}", params.getSearchBucket(), params.getResultsKey());
+            return nTotalMatches;
+        } catch (IOException e) {
+            LOG.error("Error writing results to {}:{}", params.getSearchBucket(), params.getResultsKey(), e);
+            throw new IllegalStateException(e);
+        } finally {
+            if (resultsFile != null) {
+                resultsFile.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * @return the number of matches of the mask before they are limited to the maximum number of results per mask,
+     * capped at MAX_CUSTOM_RESULTS like the node combiner
+     */
+    private int writeMaskResults(JsonGenerator generator, MaskResults maskResults, DynamoDbClient dynamoDbClient) throws IOException {
+        generator.writeFieldName("inputImage");
+        generator.writeTree(maskResults.inputImage);
+        generator.writeArrayFieldStart("results");
+        int nMatches = 0;
+        if (maskResults.merger != null) {
+            List<JsonNode> mergedResults = maskResults.merger.merge();
+            nMatches = (int) maskResults.merger.getMatchesCount(maxCustomResults);
+            LOG.info("Write {} out of {} results for {}",
+                    mergedResults.size(), nMatches, maskResults.inputImage.path("filename").asText());
+            for (JsonNode result : mergedResults) {
+                ObjectNode match;
+                if (result.has("image")) {
+                    // prior results of an incremental search are already final matches
+                    match = (ObjectNode) result;
+                } else {
+                    match = convertMatch(result);
+                    update3DFiles(dynamoDbClient, match);
+                }
+                generator.writeTree(match);
+            }
+        }
+        generator.writeEndArray();
+        return nMatches;
+    }
+
+    private MaskResults createEmptyInputImage(SearchCombinerParameters params) {
+        ObjectNode inputImage = JSON_MAPPER.createObjectNode();
+        inputImage.put("filename", params.getMaskId());
+        ObjectNode files = inputImage.putObject("files");
+        files.put("store", "");
+        files.put("CDM", pathRelativeToNComp(StringUtils.defaultString(params.getMaskKey()), 2));
+        return new MaskResults(inputImage, null);
+    }
+
+    /**
+     * Converts the mask of the batch results to the input image of the final results.
+     */
+    static ObjectNode convertInputImage(JsonNode batchMaskResults) {
+        ObjectNode inputImage = JSON_MAPPER.createObjectNode();
+        inputImage.set("filename", batchMaskResults.get("maskId"));
+        inputImage.set("libraryName", batchMaskResults.get("maskLibraryName"));
+        inputImage.set("publishedName", batchMaskResults.get("maskPublishedName"));
+        ObjectNode files = inputImage.putObject("files");
+        // for the input image the store is the search bucket itself
+        files.put("store", "");
+        // the path of the mask URL is '/bucket/private/userid/searchfolder/...' and only the path from the search folder is kept
+        files.put("CDM", pathRelativeToNComp(URI.create(batchMaskResults.path("maskImageURL").asText()).getPath(), 4));
+        return inputImage;
+    }
+
+    /**
+     * Converts a match of the batch results to a match of the final results.
+     */
+    static ObjectNode convertMatch(JsonNode result) {
+        String publishedNamePrefix = result.path("publishedNamePrefix").asText(null);
+        String publishedName = StringUtils.isNotBlank(publishedNamePrefix)
+                ? publishedNamePrefix + ":" + result.path("publishedName").asText()
+                : result.path("publishedName").asText(null);
+        ObjectNode match = JSON_MAPPER.createObjectNode();
+        ObjectNode image = match.putObject("image");
+        image.set("id", result.get("id"));
+        image.set("libraryName", result.get("libraryName"));
+        image.put("publishedName", publishedName);
+        image.set("alignmentSpace", result.get("alignmentSpace"));
+        image.set("gender", result.get("gender"));
+        image.put("anatomicalArea", "vnc".equalsIgnoreCase(result.path("anatomicalArea").asText()) ? "VNC" : "Brain");
+        image.set("slideCode", result.get("slideCode"));
+        image.set("objective", result.get("objective"));
+        image.set("channel", result.get("channel"));
+        image.set("type", result.get("targetType"));
+        ObjectNode imageFiles = image.putObject("files");
+        imageFiles.set("store", result.get("libraryStore"));
+        imageFiles.set("CDM", result.get("imageURL"));
+        imageFiles.set("CDMThumbnail", result.get("thumbnailURL"));
+        ObjectNode files = match.putObject("files");
+        files.set("store", result.get("libraryStore"));
+        // the mask image name is relative to "private/userid"
+        files.put("CDMInput", pathRelativeToNComp(result.path("maskImageName").asText(), 2));
+        files.put("CDMMatch", getDisplayableImage(result.path("imageName").asText()));
+        match.set("mirrored", result.get("mirrored"));
+        match.set("normalizedScore", result.get("normalizedScore"));
+        match.set("matchingPixels", result.get("matchingPixels"));
+        match.set("matchingRatio", result.get("matchingRatio"));
+        match.put("type", "CDSMatch");
+        return match;
+    }
+
+    /**
+     * A segmentation image '<as>/<library>/searchable_neurons/<partition>/<name>.tif' is displayed using
+     * '<as>/<library>/searchable_neurons/pngs/<name>.png'.
+     */
+    static String getDisplayableImage(String imageName) {
+        if (imageName.endsWith(".tif") || imageName.endsWith(".tiff")) {
+            String[] imageNameComps = imageName.split("/");
+            if (imageNameComps.length > 1) {
+                imageNameComps[imageNameComps.length - 2] = "pngs";
+            }
+            imageNameComps[imageNameComps.length - 1] = imageNameComps[imageNameComps.length - 1].replaceAll("\\.tiff?$", ".png");
+            return String.join("/", imageNameComps);
+        } else {
+            return imageName;
+        }
+    }
+
+    static String pathRelativeToNComp(String path, int startComp) {
+        String[] pathComps = path.split("/", -1);
+        return startComp >= pathComps.length
+                ? ""
+                : String.join("/", Arrays.copyOfRange(pathComps, startComp, pathComps.length));
+    }
+
+    static String relativePathFromURL(String url) {
+        if (StringUtils.isBlank(url)) {
+            return "";
+        } else if (url.startsWith("https://")) {
+            // https://<awsdomain>/<bucket>/<prefix>/<fname>
+            return pathRelativeToNComp(url.substring("https://".length()), 2);
+        } else if (url.startsWith("http://")) {
+            return pathRelativeToNComp(url.substring("http://".length()), 2);
+        } else if (url.startsWith("s3://")) {
+            // s3://<bucket>/<prefix>/<fname>
+            return pathRelativeToNComp(url.substring("s3://".length()), 1);
+        } else {
+            return url;
+        }
+    }
+
+    private void update3DFiles(DynamoDbClient dynamoDbClient, ObjectNode match) {
+        ObjectNode image = (ObjectNode) match.get("image");
+        ObjectNode imageFiles = (ObjectNode) image.get("files");
+        String imageType = image.path("type").asText();
+        if ("LMImage".equals(imageType) && lmPublishedStacksTable != null) {
+            String itemType = String.format("%s-%s-%s",
+                    image.path("slideCode").asText(), image.path("objective").asText(), image.path("alignmentSpace").asText()).toLowerCase();
+            Map<String, AttributeValue> publishedStack = queryFirstItem(dynamoDbClient, lmPublishedStacksTable, "itemType", itemType);
+            if (publishedStack != null && publishedStack.containsKey("files")) {
+                AttributeValue stackFile = publishedStack.get("files").m().get("VisuallyLosslessStack");
+                imageFiles.put("VisuallyLosslessStack", relativePathFromURL(stackFile != null ? stackFile.s() : null));
+            }
+        } else if ("EMImage".equals(imageType) && emPublishedSkeletonsTable != null) {
+            String publishedName = image.path("publishedName").asText();
+            Map<String, AttributeValue> publishedSkeleton = queryFirstItem(dynamoDbClient, emPublishedSkeletonsTable, "publishedName", publishedName);
+            if (publishedSkeleton != null) {
+                imageFiles.put("AlignedBodyOBJ", relativePathFromURL(getString(publishedSkeleton, "skeletonobj")));
+                imageFiles.put("AlignedBodySWC", relativePathFromURL(getString(publishedSkeleton, "skeletonswc")));
+            }
+        }
+    }
+
+    private Map<String, AttributeValue> queryFirstItem(DynamoDbClient dynamoDbClient, String tableName, String keyName, String keyValue) {
+        Map<String, AttributeValue> expressionValues = new HashMap<>();
+        expressionValues.put(":" + keyName, AttributeValue.builder().s(keyValue).build());
+        QueryResponse queryResponse = dynamoDbClient.query(QueryRequest.builder()
+                .tableName(tableName)
+                .consistentRead(true)
+                .keyConditionExpression(keyName + " = :" + keyName)
+                .expressionAttributeValues(expressionValues)
+                .build());
+        return queryResponse.hasItems() && !queryResponse.items().isEmpty() ? queryResponse.items().get(0) : null;
+    }
+
+    private String getString(Map<String, AttributeValue> item, String name) {
+        AttributeValue value = item.get(name);
+        return value != null ? value.s() : null;
+    }
+
+}
@@ -0,0 +1,141 @@
+package org.janelia.colordepthsearch;
+
+import java.util.List;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Parameters for combining the batch results of a burst parallel search.
+ */
+public class SearchCombinerParameters {
+
+    private String tasksTableName;
+    private String jobId;
+    private String searchBucket;
+    private String maskKey;
+    private String maskId;
+    private String resultsKey;
+    private Integer maxResultsPerMask = 0;
+    private String priorResultsKey;
+    private String libraryBucket;
+    private List<String> libraryDeltaKeys;
+
+    public String getTasksTableName() {
+        return tasksTableName;
+    }
+
+    public void setTasksTableName(String tasksTableName) {
+        this.tasksTableName = tasksTableName;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public String getSearchBucket() {
+        return searchBucket;
+    }
+
+    public void setSearchBucket(String searchBucket) {
+        this.searchBucket = searchBucket;
+    }
+
+    public String getMaskKey() {
+        return maskKey;
+    }
+
+    /**
+     * @param maskKey key of the search input, used as the input image when there are no results
+     */
+    public void setMaskKey(String maskKey) {
+        this.maskKey = maskKey;
+    }
+
+    public String getMaskId() {
+        return maskId;
+    }
+
+    /**
+     * @param maskId id of the search input, used as the input image when there are no results
+     */
+    public void setMaskId(String maskId) {
+        this.maskId = maskId;
+    }
+
+    public String getResultsKey() {
+        return resultsKey;
+    }
+
+    /**
+     * @param resultsKey key of the final results in the search bucket
+     */
+    public void setResultsKey(String resultsKey) {
+        this.resultsKey = resultsKey;
+    }
+
+    public Integer getMaxResultsPerMask() {
+        return maxResultsPerMask;
+    }
+
+    /**
+     * @param maxResultsPerMask maximum number of results kept for every mask; 0 or null keeps all results
+     */
+    public void setMaxResultsPerMask(Integer maxResultsPerMask) {
+        this.maxResultsPerMask = maxResultsPerMask == null ? 0 : maxResultsPerMask;
+    }
+
+    public String getPriorResultsKey() {
+        return priorResultsKey;
+    }
+
+    /**
+     * @param priorResultsKey key of the final results of the prior search in the search bucket, which an incremental
+     *                        search merges into its results; null for a search that is not incremental
+     */
+    public void setPriorResultsKey(String priorResultsKey) {
+        this.priorResultsKey = priorResultsKey;
+    }
+
+    public String getLibraryBucket() {
+        return libraryBucket;
+    }
+
+    /**
+     * @param libraryBucket bucket of the library deltas of an incremental search
+     */
+    public void setLibraryBucket(String libraryBucket) {
+        this.libraryBucket = libraryBucket;
+    }
+
+    public List<String> getLibraryDeltaKeys() {
+        return libraryDeltaKeys;
+    }
+
+    /**
+     * @param libraryDeltaKeys keys of the library deltas of an incremental search; the prior matches to the MIPs
+     *                         removed or searched again by the incremental search are dropped
+     */
+    public void setLibraryDeltaKeys(List<String> libraryDeltaKeys) {
+        this.libraryDeltaKeys = libraryDeltaKeys;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("tasksTableName", tasksTableName)
+                .append("jobId", jobId)
+                .append("searchBucket", searchBucket)
+                .append("maskKey", maskKey)
+                .append("maskId", maskId)
+                .append("resultsKey", resultsKey)
+                .append("maxResultsPerMask", maxResultsPerMask)
+                .append("priorResultsKey", priorResultsKey)
+                .append("libraryBucket", libraryBucket)
+                .append("libraryDeltaKeys", libraryDeltaKeys)
+                .toString();
+    }
+}
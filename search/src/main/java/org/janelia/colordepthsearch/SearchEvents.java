@@ -0,0 +1,70 @@
+package org.janelia.colordepthsearch;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder events of the search. The events are only recorded while a recording is running, such as the
+ * recording of a profiled batch, otherwise they cost little more than the event allocation.
+ */
+final class SearchEvents {
+
+    private static final String CATEGORY = "NeuronBridge";
+
+    @Name("org.janelia.colordepthsearch.TargetFetch")
+    @Label("Target Fetch")
+    @Category({CATEGORY, "Search"})
+    @Description("S3 request for a MIP, until the response stream is available")
+    static class TargetFetch extends Event {
+        @Label("Key")
+        String key;
+    }
+
+    @Name("org.janelia.colordepthsearch.TargetDecode")
+    @Label("Target Decode")
+    @Category({CATEGORY, "Search"})
+    @Description("Read and decode of a MIP response stream; with a streamed decode it includes the transfer of the content")
+    static class TargetDecode extends Event {
+        @Label("Key")
+        String key;
+        @Label("Start Pixel")
+        long startPixel;
+        @Label("End Pixel")
+        long endPixel;
+        @Label("Bytes Read")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.janelia.colordepthsearch.TargetScore")
+    @Label("Target Score")
+    @Category({CATEGORY, "Search"})
+    @Description("Comparison of a mask with a target, including the variant loads needed by the comparison")
+    static class TargetScore extends Event {
+        @Label("Mask")
+        String mask;
+        @Label("Target")
+        String target;
+        @Label("Matching Pixels")
+        int matchingPixels;
+    }
+
+    @Name("org.janelia.colordepthsearch.VariantLoad")
+    @Label("Variant Load")
+    @Category({CATEGORY, "Search"})
+    @Description("Load of a target variant, such as the gradient or the zgap mask")
+    static class VariantLoad extends Event {
+        @Label("Variant")
+        String variant;
+        @Label("Key")
+        String key;
+    }
+
+    private SearchEvents() {
+    }
+
+}
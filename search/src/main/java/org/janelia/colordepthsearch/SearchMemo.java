@@ -0,0 +1,264 @@
+package org.janelia.colordepthsearch;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Memoized batch results. A batch is identified by the hash of the mask pixels, of the normalized search parameters,
+ * of the batch range and of the version of the library manifests, i.e. the ETags of the library key lists,
+ * so the memoized results are invalidated as soon as a library changes. The mask pixels may be identified by the ETags
+ * of the masks and the library version is read once per job, so that a batch does not read the masks and the library
+ * metadata again just for the memo key.
+ *
+ * The results hold the metadata of the masks, such as their keys and their URLs, so the search bucket and the mask
+ * keys are part of the parameters: the results of a mask are never returned for another upload of the same image.
+ */
+class SearchMemo {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchMemo.class);
+
+    static class MemoizedResults {
+        final String resultsJson;
+        final int nMatches;
+
+        MemoizedResults(String resultsJson, int nMatches) {
+            this.resultsJson = resultsJson;
+            this.nMatches = nMatches;
+        }
+    }
+
+    /**
+     * Hashes the pixels of a mask as they are decoded so that the hash only depends on the image content.
+     */
+    private static class PixelsDigest implements ImageRowsConsumer {
+        private final MessageDigest digest;
+        private byte[] rowBytes;
+
+        PixelsDigest(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void startImage(int width, int height) {
+            rowBytes = new byte[3 * width];
+            updateInt(digest, width);
+            updateInt(digest, height);
+        }
+
+        @Override
+        public void acceptRow(int y, int[] rowPixels) {
+            for (int x = 0, i = 0; x < rowPixels.length; x++, i += 3) {
+                rowBytes[i] = (byte) (rowPixels[x] >> 16);
+                rowBytes[i + 1] = (byte) (rowPixels[x] >> 8);
+                rowBytes[i + 2] = (byte) rowPixels[x];
+            }
+            digest.update(rowBytes);
+        }
+    }
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String memoTableName;
+    private final long ttlSeconds;
+
+    SearchMemo(DynamoDbClient dynamoDbClient, String memoTableName, long ttlSeconds) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.memoTableName = memoTableName;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * The masks are identified by the ETags set by the dispatcher, which are read once per job. Without them
+     * the masks are read and their pixels are hashed for every batch.
+     *
+     * @param librariesVersion version of the libraries of the job returned by {@link #readLibrariesVersion}
+     * @return the memo key of the batch
+     */
+    static String createMemoKey(S3Client s3, BatchSearchParameters params, String librariesVersion) {
+        ColorDepthSearchParameters jobParams = params.getJobParameters();
+        MessageDigest digest = createDigest();
+        if (jobParams.getMaskETags() != null && jobParams.getMaskETags().size() == jobParams.getMaskKeys().size()) {
+            for (String maskETag : jobParams.getMaskETags()) {
+                updateString(digest, maskETag);
+            }
+        } else {
+            for (String maskKey : jobParams.getMaskKeys()) {
+                updatePixelsDigest(digest, s3, jobParams.getSearchBucket(), maskKey);
+            }
+        }
+        updateString(digest, getNormalizedParameters(params));
+        updateString(digest, librariesVersion);
+        StringBuilder memoKeyBuilder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            memoKeyBuilder.append(String.format("%02x", b));
+        }
+        return memoKeyBuilder.toString();
+    }
+
+    /**
+     * The version only changes with the libraries and the objects derived from them, so it is read once per job.
+     *
+     * @return the version of the libraries of the job, i.e. the ETags of the library key lists, of the deltas of an
+     * incremental search and of the indexes of the search mode
+     */
+    static String readLibrariesVersion(S3Client s3, ColorDepthSearchParameters jobParams) {
+        List<String> eTags = new ArrayList<>();
+        for (String library : jobParams.getLibraries()) {
+            eTags.add(LambdaUtils.getObjectETag(s3, jobParams.getLibraryBucket(), library + "/KEYS/0/keys_denormalized.json"));
+        }
+        if (jobParams.isIncrementalSearch()) {
+            // the batch indexes refer to the search keys of the deltas
+            for (String deltaKey : jobParams.getLibraryDeltaKeys()) {
+                eTags.add(LambdaUtils.getObjectETag(s3, jobParams.getLibraryBucket(), deltaKey));
+            }
+        }
+        if (jobParams.isFastSearch() && jobParams.getTileIndexKeys() != null) {
+            for (String tileIndexKey : jobParams.getTileIndexKeys()) {
+                eTags.add(StringUtils.isNotBlank(tileIndexKey)
+                        ? LambdaUtils.getObjectETag(s3, jobParams.getLibraryBucket(), tileIndexKey)
+                        : "");
+            }
+        }
+        if (jobParams.isApproximateSearch() && jobParams.getSignatureIndexKeys() != null) {
+            for (String signatureIndexKey : jobParams.getSignatureIndexKeys()) {
+                eTags.add(StringUtils.isNotBlank(signatureIndexKey)
+                        ? LambdaUtils.getObjectETag(s3, jobParams.getLibraryBucket(), signatureIndexKey)
+                        : "");
+            }
+        }
+        return String.join(",", eTags);
+    }
+
+    /**
+     * @return all the parameters that affect the results of the batch, in a fixed order and format
+     */
+    static String getNormalizedParameters(BatchSearchParameters params) {
+        ColorDepthSearchParameters jobParams = params.getJobParameters();
+        StringBuilder normalizedParamsBuilder = new StringBuilder()
+                .append("searchBucket=").append(jobParams.getSearchBucket())
+                .append(";maskKeys=").append(jobParams.getMaskKeys())
+                .append(";maskThresholds=").append(jobParams.getMaskThresholds())
+                .append(";libraryBucket=").append(jobParams.getLibraryBucket())
+                .append(";libraries=").append(jobParams.getLibraries())
+                .append(";gradientsFolders=").append(jobParams.getGradientsFolders())
+                .append(";zgapMasksFolders=").append(jobParams.getZgapMasksFolders())
+                .append(";dataThreshold=").append(jobParams.getDataThreshold())
+                .append(";pixColorFluctuation=").append(jobParams.getPixColorFluctuation())
+                .append(";xyShift=").append(jobParams.getXyShift())
+                .append(";mirrorMask=").append(jobParams.isMirrorMask())
+                .append(";minMatchingPixRatio=").append(jobParams.getMinMatchingPixRatio())
+                .append(";withGradientScores=").append(jobParams.isWithGradientScores())
+                .append(";withTwoPhaseGradientScores=").append(jobParams.isWithTwoPhaseGradientScores())
+                .append(";startIndex=").append(params.getStartIndex())
+                .append(";endIndex=").append(params.getEndIndex());
+        if (jobParams.isWithGradientScores()) {
+            normalizedParamsBuilder
+                    .append(";negativeRadius=").append(jobParams.getNegativeRadius())
+                    .append(";maxGradientCandidates=").append(jobParams.getMaxGradientCandidates())
+                    .append(";minGradientCandidateMatchingPixels=").append(jobParams.getMinGradientCandidateMatchingPixels());
+            if (jobParams.isWithComputedTargetVariants()) {
+                normalizedParamsBuilder.append(";computedTargetVariants=true");
+            }
+        }
+        if (jobParams.isWithTopResultsSearch()) {
+            normalizedParamsBuilder.append(";topResults=").append(jobParams.getMaxResultsPerMask());
+        }
+        if (jobParams.isIncrementalSearch()) {
+            normalizedParamsBuilder.append(";libraryDeltaKeys=").append(jobParams.getLibraryDeltaKeys());
+        }
+        if (jobParams.isFastSearch()) {
+            normalizedParamsBuilder
+                    .append(";searchMode=fast")
+                    .append(";tileIndexKeys=").append(jobParams.getTileIndexKeys());
+        }
+        if (jobParams.isApproximateSearch()) {
+            normalizedParamsBuilder
+                    .append(";searchMode=approximate")
+                    .append(";signatureIndexKeys=").append(jobParams.getSignatureIndexKeys())
+                    .append(";maxApproximateCandidates=").append(jobParams.getMaxApproximateCandidates());
+        }
+        return normalizedParamsBuilder.toString();
+    }
+
+    MemoizedResults getResults(String memoKey) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("memoKey", AttributeValue.builder().s(memoKey).build());
+        GetItemResponse response = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(memoTableName)
+                .key(key)
+                .consistentRead(false)
+                .build());
+        if (!response.hasItem() || response.item().isEmpty()) {
+            return null;
+        }
+        Map<String, AttributeValue> item = response.item();
+        // expired items may still be returned until DynamoDB deletes them
+        if (Long.parseLong(item.get("ttl").n()) < Instant.now().getEpochSecond()) {
+            return null;
+        }
+        return new MemoizedResults(item.get("results").s(), Integer.parseInt(item.get("nMatches").n()));
+    }
+
+    void putResults(String memoKey, String resultsJson, int nMatches) {
+        long ttl = Instant.now().getEpochSecond() + ttlSeconds;
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("memoKey", AttributeValue.builder().s(memoKey).build());
+        item.put("ttl", AttributeValue.builder().n(ttl + "").build());
+        item.put("nMatches", AttributeValue.builder().n(nMatches + "").build());
+        item.put("results", AttributeValue.builder().s(resultsJson).build());
+        dynamoDbClient.putItem(PutItemRequest.builder().tableName(memoTableName).item(item).build());
+        LOG.info("Memoized {} matches in {} with key {}", nMatches, memoTableName, memoKey);
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void updatePixelsDigest(MessageDigest digest, S3Client s3, String bucket, String imageKey) {
+        try {
+            try (InputStream imageStream = LambdaUtils.getObject(s3, bucket, imageKey)) {
+                ImageRowsDecoder.decodeRows(imageStream, 0, Long.MAX_VALUE, new PixelsDigest(digest));
+                return;
+            } catch (ImageRowsDecoder.UnsupportedImageException e) {
+                LOG.debug("Read the entire image {}:{} - {}", bucket, imageKey, e.getMessage());
+            }
+            try (InputStream imageStream = LambdaUtils.getObject(s3, bucket, imageKey)) {
+                ImageRowsDecoder.decodeRows(ImageArrayUtils.readImageArray(imageKey, imageKey, imageStream), new PixelsDigest(digest));
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Error hashing " + bucket + ":" + imageKey, e);
+        }
+    }
+
+    private static void updateString(MessageDigest digest, String s) {
+        byte[] bytes = StringUtils.defaultString(s).getBytes(StandardCharsets.UTF_8);
+        updateInt(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void updateInt(MessageDigest digest, int value) {
+        digest.update(new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value});
+    }
+
+}
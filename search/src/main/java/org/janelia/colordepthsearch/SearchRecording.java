@@ -0,0 +1,76 @@
+package org.janelia.colordepthsearch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flight recording of a single search invocation. The recording uses the JDK "profile" settings, which include
+ * method sampling, allocation and GC events, and it also records all the search events.
+ */
+class SearchRecording {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchRecording.class);
+
+    // the oldest recorded data is discarded above this size
+    private static final long MAX_RECORDING_SIZE = 64L * 1024 * 1024;
+
+    private static final List<Class<? extends Event>> SEARCH_EVENTS = Arrays.asList(
+            SearchEvents.TargetFetch.class,
+            SearchEvents.TargetDecode.class,
+            SearchEvents.TargetScore.class,
+            SearchEvents.VariantLoad.class
+    );
+
+    static SearchRecording start(String name) {
+        Recording recording;
+        try {
+            recording = new Recording(Configuration.getConfiguration("profile"));
+        } catch (IOException | ParseException e) {
+            LOG.warn("Could not read the profile recording settings - only the search events will be recorded", e);
+            recording = new Recording();
+        }
+        recording.setName(name);
+        recording.setMaxSize(MAX_RECORDING_SIZE);
+        for (Class<? extends Event> eventType : SEARCH_EVENTS) {
+            recording.enable(eventType).withThreshold(Duration.ZERO);
+        }
+        recording.start();
+        LOG.info("Started recording {}", name);
+        return new SearchRecording(name, recording);
+    }
+
+    private final String name;
+    private final Recording recording;
+
+    private SearchRecording(String name, Recording recording) {
+        this.name = name;
+        this.recording = recording;
+    }
+
+    /**
+     * Stop the recording and write it to the given folder.
+     *
+     * @return the recording file
+     */
+    Path stop(Path folder) throws IOException {
+        try {
+            recording.stop();
+            Path recordingFile = folder.resolve(name + ".jfr");
+            recording.dump(recordingFile);
+            return recordingFile;
+        } finally {
+            recording.close();
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.janelia.colordepthsearch;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Keys of a library MIP and of its variants used by the color depth search.
+ */
+class SearchTarget {
+    final String searchKey;
+    final String gradientKey;
+    final String zgapMaskKey;
+    final String sparseKey;
+    final String tiledKey;
+
+    SearchTarget(String searchKey, String gradientKey, String zgapMaskKey, String sparseKey) {
+        this(searchKey, gradientKey, zgapMaskKey, sparseKey, null);
+    }
+
+    SearchTarget(String searchKey, String gradientKey, String zgapMaskKey, String sparseKey, String tiledKey) {
+        this.searchKey = searchKey;
+        this.gradientKey = gradientKey;
+        this.zgapMaskKey = zgapMaskKey;
+        this.sparseKey = sparseKey;
+        this.tiledKey = tiledKey;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("searchKey", searchKey)
+                .append("gradientKey", gradientKey)
+                .append("zgapMaskKey", zgapMaskKey)
+                .append("sparseKey", sparseKey)
+                .append("tiledKey", tiledKey)
+                .toString();
+    }
+}
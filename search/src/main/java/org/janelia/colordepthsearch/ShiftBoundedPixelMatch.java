@@ -0,0 +1,132 @@
+package org.janelia.colordepthsearch;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+
+/**
+ * Pixel match that evaluates the mask shifts in the order of their upper bound and stops as soon as no remaining shift
+ * can beat the best number of matching pixels found so far, instead of evaluating every shift of the mask.
+ *
+ * The bound of a shift is the number of shifted mask pixels that fall on target signal pixels. A shift is evaluated
+ * by running the unshifted pixel match of the mask against a view of the target in which every mask pixel holds the
+ * target pixel it is compared with for that shift, so the matching pixels of every shift are exactly the ones
+ * of the exhaustive search and so is the best score.
+ *
+ * With a minimum number of matching pixels the comparison is also abandoned as soon as no remaining shift can reach
+ * the minimum. An abandoned comparison returns the best number of matching pixels found so far, which is below the
+ * minimum but may be lower than the exact score, so such scores must only be used to reject the target.
+ */
+class ShiftBoundedPixelMatch implements ColorDepthSearchAlgorithm<ColorMIPMatchScore> {
+
+    private final ColorDepthSearchAlgorithm<ColorMIPMatchScore> querySearch;
+    private final ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedQuerySearch;
+    private final SignalBitsets.MaskBits maskBits;
+    private final int dataThreshold;
+    private final IntSupplier minMatchingPixels;
+    private final transient ThreadLocal<int[]> shiftedTargetPixels;
+
+    /**
+     * @param querySearch search with all mask shifts; it provides the query range and the scores of an empty mask
+     * @param unshiftedQuerySearch search of the same mask without shifts and without the mirrored mask
+     * @param maskBits mask bits created with the shifts and the mirror flag of querySearch
+     * @param dataThreshold target data threshold of the search
+     */
+    ShiftBoundedPixelMatch(ColorDepthSearchAlgorithm<ColorMIPMatchScore> querySearch,
+                           ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedQuerySearch,
+                           SignalBitsets.MaskBits maskBits,
+                           int dataThreshold) {
+        this(querySearch, unshiftedQuerySearch, maskBits, dataThreshold, () -> 0);
+    }
+
+    /**
+     * @param minMatchingPixels the current minimum number of matching pixels of an accepted score; it may rise while
+     *                          the search runs, e.g. when it is the threshold of the top scores of the mask
+     */
+    ShiftBoundedPixelMatch(ColorDepthSearchAlgorithm<ColorMIPMatchScore> querySearch,
+                           ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedQuerySearch,
+                           SignalBitsets.MaskBits maskBits,
+                           int dataThreshold,
+                           IntSupplier minMatchingPixels) {
+        this.querySearch = querySearch;
+        this.unshiftedQuerySearch = unshiftedQuerySearch;
+        this.maskBits = maskBits;
+        this.dataThreshold = dataThreshold;
+        this.minMatchingPixels = minMatchingPixels;
+        this.shiftedTargetPixels = ThreadLocal.withInitial(() -> new int[maskBits.getWidth() * maskBits.getHeight()]);
+    }
+
+    @Override
+    public ImageArray<?> getQueryImage() {
+        return querySearch.getQueryImage();
+    }
+
+    @Override
+    public int getQueryFirstPixelIndex() {
+        return querySearch.getQueryFirstPixelIndex();
+    }
+
+    @Override
+    public int getQueryLastPixelIndex() {
+        return querySearch.getQueryLastPixelIndex();
+    }
+
+    @Override
+    public Set<String> getRequiredTargetVariantTypes() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public ColorMIPMatchScore calculateMatchingScore(ImageArray<?> targetImageArray, Map<String, Supplier<ImageArray<?>>> variantImageSuppliers) {
+        int maskSize = maskBits.getMaskSize();
+        if (maskSize == 0 || targetImageArray.getWidth() != maskBits.getWidth() || targetImageArray.getHeight() != maskBits.getHeight()) {
+            return querySearch.calculateMatchingScore(targetImageArray, variantImageSuppliers);
+        }
+        long[] targetBits = SignalBitsets.createTargetBits(targetImageArray, dataThreshold, getQueryFirstPixelIndex(), getQueryLastPixelIndex());
+        int nShifts = maskBits.getShiftsCount();
+        // bound in the high bits and shift index in the low bits, so that sorting orders the shifts by bound
+        int[] bounds = maskBits.getShiftBounds(targetBits);
+        long[] shiftBounds = new long[nShifts];
+        for (int s = 0; s < nShifts; s++) {
+            shiftBounds[s] = ((long) bounds[s] << 32) | s;
+        }
+        Arrays.sort(shiftBounds);
+        int bestMatchingPixels = 0;
+        for (int i = nShifts - 1; i >= 0; i--) {
+            int bound = (int) (shiftBounds[i] >>> 32);
+            if (bound <= bestMatchingPixels || bound < minMatchingPixels.getAsInt()) {
+                // the remaining shifts cannot beat the best score or reach the minimum
+                break;
+            }
+            bestMatchingPixels = Math.max(bestMatchingPixels, calculateShiftMatchingPixels((int) shiftBounds[i], targetImageArray));
+        }
+        return new ColorMIPMatchScore(bestMatchingPixels, (double) bestMatchingPixels / maskSize, null);
+    }
+
+    private int calculateShiftMatchingPixels(int shiftIndex, ImageArray<?> targetImageArray) {
+        int[] pixels = shiftedTargetPixels.get();
+        int[] maskPixels = maskBits.getMaskPixels();
+        try {
+            for (int maskPixel : maskPixels) {
+                int targetPixel = maskBits.getShiftedPixel(shiftIndex, maskPixel);
+                pixels[maskPixel] = targetPixel >= 0 ? targetImageArray.get(targetPixel) : 0;
+            }
+            ColorImageArray shiftedTarget = new ColorImageArray(ImageType.RGB, maskBits.getWidth(), maskBits.getHeight(), pixels);
+            return unshiftedQuerySearch.calculateMatchingScore(shiftedTarget, Collections.emptyMap()).getMatchingPixNum();
+        } finally {
+            for (int maskPixel : maskPixels) {
+                pixels[maskPixel] = 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,428 @@
+package org.janelia.colordepthsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+
+/**
+ * Bitsets of the signal pixels of the targets of a library, used for an upper bound of the number of pixels a mask can
+ * match in a target. A mask pixel can only match if the target pixel at the shifted (and possibly mirrored) mask position
+ * is a signal pixel, so for every mask shift the number of matching pixels is at most the popcount of the AND of the shifted
+ * mask bits and the target bits. The bound is only valid if the bitsets threshold is not greater than the search data threshold.
+ *
+ * The bitsets are stored as two objects. The index is deflate compressed and contains: the magic number, width, height,
+ * threshold, the number of targets and for every target its key followed by the offset and the length of its bitset in
+ * the data object. The data object holds the deflate compressed bitset of every target in index order. The targets of
+ * a batch are not necessarily contiguous in the data object, e.g. the batches of an incremental search, so the bitsets
+ * of a batch are read with a ranged request per group of nearby bitsets instead of a single request spanning all of them.
+ */
+class SignalBitsets {
+
+    static final String DATA_SUFFIX = ".data";
+
+    private static final int MAGIC = 0x53424954; // "SBIT"
+    // bitsets closer than this are read with the same request
+    private static final long MAX_RANGE_GAP_BYTES = 32 * 1024;
+    private static final long MAX_RANGE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Reads a range of the data object; both start and end offsets are inclusive.
+     */
+    interface DataRangeReader {
+        InputStream read(long start, long end) throws IOException;
+    }
+
+    /**
+     * Adds the targets to the bitsets as they are decoded.
+     */
+    static class Builder {
+        private final int threshold;
+        private final List<String> targetKeys = new ArrayList<>();
+        private final List<long[]> targetLengths = new ArrayList<>();
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int width;
+        private int height;
+
+        Builder(int threshold) {
+            this.threshold = threshold;
+        }
+
+        /**
+         * @return a rows consumer that adds the bitset of the decoded image
+         */
+        ImageRowsConsumer addTarget(String targetKey) {
+            return new ImageRowsConsumer() {
+                private long[] bits;
+                private int lastRow;
+
+                @Override
+                public void startImage(int imageWidth, int imageHeight) {
+                    if (width == 0) {
+                        width = imageWidth;
+                        height = imageHeight;
+                    } else if (width != imageWidth || height != imageHeight) {
+                        throw new IllegalArgumentException(String.format("%s is %dx%d instead of %dx%d",
+                                targetKey, imageWidth, imageHeight, width, height));
+                    }
+                    bits = new long[getWordsCount(imageWidth, imageHeight)];
+                    lastRow = imageHeight - 1;
+                }
+
+                @Override
+                public void acceptRow(int y, int[] rowPixels) {
+                    for (int x = 0; x < rowPixels.length; x++) {
+                        if (SparseMIP.isSignal(rowPixels[x], threshold)) {
+                            setBit(bits, y * width + x);
+                        }
+                    }
+                    if (y == lastRow) {
+                        addBits(targetKey, bits);
+                    }
+                }
+            };
+        }
+
+        private void addBits(String targetKey, long[] bits) {
+            long offset = data.size();
+            try {
+                DeflaterOutputStream deflaterStream = new DeflaterOutputStream(data);
+                DataOutputStream bitsStream = new DataOutputStream(deflaterStream);
+                for (long word : bits) {
+                    bitsStream.writeLong(word);
+                }
+                bitsStream.flush();
+                deflaterStream.finish();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            targetKeys.add(targetKey);
+            targetLengths.add(new long[]{offset, data.size() - offset});
+        }
+
+        int getTargetsCount() {
+            return targetKeys.size();
+        }
+
+        void write(OutputStream indexOutputStream, OutputStream dataOutputStream) throws IOException {
+            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(indexOutputStream);
+            DataOutputStream indexStream = new DataOutputStream(new BufferedOutputStream(deflaterStream));
+            indexStream.writeInt(MAGIC);
+            indexStream.writeInt(width);
+            indexStream.writeInt(height);
+            indexStream.writeByte(threshold);
+            indexStream.writeInt(targetKeys.size());
+            for (int i = 0; i < targetKeys.size(); i++) {
+                indexStream.writeUTF(targetKeys.get(i));
+                indexStream.writeLong(targetLengths.get(i)[0]);
+                indexStream.writeInt((int) targetLengths.get(i)[1]);
+            }
+            indexStream.flush();
+            deflaterStream.finish();
+            data.writeTo(dataOutputStream);
+        }
+    }
+
+    /**
+     * Shifted and mirrored forms of the mask signal pixels, in the order in which they are checked.
+     */
+    static class MaskBits {
+        private final int width;
+        private final int height;
+        private final int[] maskPixels;
+        // mirrored flag, x and y shift of every shifted mask
+        private final List<int[]> shifts;
+        private final List<long[]> shiftedBits;
+        // first and last non zero word of every shifted mask
+        private final List<int[]> wordRanges;
+        // the words of all shifted masks interleaved by word, from the first to the last non zero word of any shift
+        private long[] interleavedBits;
+        private int firstWord;
+
+        private MaskBits(int width, int height, int[] maskPixels, List<int[]> shifts, List<long[]> shiftedBits, List<int[]> wordRanges) {
+            this.width = width;
+            this.height = height;
+            this.maskPixels = maskPixels;
+            this.shifts = shifts;
+            this.shiftedBits = shiftedBits;
+            this.wordRanges = wordRanges;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return the number of mask signal pixels
+         */
+        int getMaskSize() {
+            return maskPixels.length;
+        }
+
+        /**
+         * @return the indexes of the mask signal pixels
+         */
+        int[] getMaskPixels() {
+            return maskPixels;
+        }
+
+        int getShiftsCount() {
+            return shifts.size();
+        }
+
+        /**
+         * @return the position the mask pixel is compared with for the given shift or -1 if the shift moves it outside the image
+         */
+        int getShiftedPixel(int shiftIndex, int maskPixel) {
+            int[] shift = shifts.get(shiftIndex);
+            int x = shift[0] == 0 ? maskPixel % width : width - 1 - maskPixel % width;
+            int shiftedX = x + shift[1];
+            int shiftedY = maskPixel / width + shift[2];
+            return shiftedX >= 0 && shiftedX < width && shiftedY >= 0 && shiftedY < height
+                    ? shiftedY * width + shiftedX
+                    : -1;
+        }
+
+        /**
+         * @return an upper bound of the number of mask pixels that can match the target for the given shift
+         */
+        int getShiftBound(int shiftIndex, long[] targetBits) {
+            long[] maskBits = shiftedBits.get(shiftIndex);
+            int[] wordRange = wordRanges.get(shiftIndex);
+            int n = 0;
+            for (int w = wordRange[0]; w <= wordRange[1]; w++) {
+                n += Long.bitCount(maskBits[w] & targetBits[w]);
+            }
+            return n;
+        }
+
+        /**
+         * Calculate the bounds of all shifts, including the mirrored ones, in a single pass over the target bits with
+         * a counter per shift. Every target word is read once for all the shifts and the empty target words,
+         * which are most of them, are skipped once instead of once per shift.
+         *
+         * @return the bound of every shift
+         */
+        int[] getShiftBounds(long[] targetBits) {
+            int nShifts = shifts.size();
+            int[] bounds = new int[nShifts];
+            int nWords = interleavedBits.length / Math.max(1, nShifts);
+            for (int w = 0; w < nWords; w++) {
+                long targetWord = targetBits[firstWord + w];
+                if (targetWord == 0) {
+                    continue;
+                }
+                int offset = w * nShifts;
+                for (int s = 0; s < nShifts; s++) {
+                    bounds[s] += Long.bitCount(interleavedBits[offset + s] & targetWord);
+                }
+            }
+            return bounds;
+        }
+
+        /**
+         * @param stopAt the bound is returned as soon as it reaches this value
+         * @return an upper bound of the number of mask pixels that can match the target
+         */
+        int getMatchingPixelsBound(long[] targetBits, int stopAt) {
+            int bound = 0;
+            for (int s = 0; s < shifts.size() && bound < stopAt; s++) {
+                bound = Math.max(bound, getShiftBound(s, targetBits));
+            }
+            return bound;
+        }
+    }
+
+    /**
+     * Create the mask bits for all the shifts used by the search: no shift and, for every even i up to xyShift,
+     * the shifts by -i, 0 or i along each axis. With mirrorMask the same shifts are applied to the mirrored mask.
+     */
+    static MaskBits createMaskBits(ImageArray<?> maskImage, int maskThreshold, int xyShift, boolean mirrorMask) {
+        int width = maskImage.getWidth();
+        int height = maskImage.getHeight();
+        int[] maskPixels = IntStream.range(0, width * height)
+                .filter(i -> SparseMIP.isSignal(maskImage.get(i), maskThreshold))
+                .toArray();
+        List<int[]> shifts = new ArrayList<>();
+        for (int m = 0; m < (mirrorMask ? 2 : 1); m++) {
+            shifts.add(new int[]{m, 0, 0});
+            for (int i = 2; i <= xyShift; i += 2) {
+                for (int xx = -i; xx <= i; xx += i) {
+                    for (int yy = -i; yy <= i; yy += i) {
+                        if (xx != 0 || yy != 0) {
+                            shifts.add(new int[]{m, xx, yy});
+                        }
+                    }
+                }
+            }
+        }
+        MaskBits maskBits = new MaskBits(width, height, maskPixels, shifts, new ArrayList<>(), new ArrayList<>());
+        for (int s = 0; s < shifts.size(); s++) {
+            long[] bits = new long[getWordsCount(width, height)];
+            int firstWord = bits.length;
+            int lastWord = -1;
+            for (int maskPixel : maskPixels) {
+                int pixel = maskBits.getShiftedPixel(s, maskPixel);
+                if (pixel >= 0) {
+                    setBit(bits, pixel);
+                    firstWord = Math.min(firstWord, pixel >> 6);
+                    lastWord = Math.max(lastWord, pixel >> 6);
+                }
+            }
+            maskBits.shiftedBits.add(bits);
+            maskBits.wordRanges.add(new int[]{firstWord, lastWord});
+        }
+        int firstWord = maskBits.wordRanges.stream().mapToInt(wordRange -> wordRange[0]).min().orElse(0);
+        int lastWord = maskBits.wordRanges.stream().mapToInt(wordRange -> wordRange[1]).max().orElse(-1);
+        int nWords = Math.max(0, lastWord - firstWord + 1);
+        maskBits.firstWord = firstWord;
+        maskBits.interleavedBits = new long[nWords * shifts.size()];
+        for (int w = 0; w < nWords; w++) {
+            for (int s = 0; s < shifts.size(); s++) {
+                maskBits.interleavedBits[w * shifts.size() + s] = maskBits.shiftedBits.get(s)[firstWord + w];
+            }
+        }
+        return maskBits;
+    }
+
+    /**
+     * @return the signal bits of the target pixels between startPixel and endPixel (inclusive)
+     */
+    static long[] createTargetBits(ImageArray<?> targetImage, int threshold, long startPixel, long endPixel) {
+        int size = targetImage.getWidth() * targetImage.getHeight();
+        long[] bits = new long[getWordsCount(targetImage.getWidth(), targetImage.getHeight())];
+        for (int i = (int) Math.max(0, startPixel); i < size && i <= endPixel; i++) {
+            if (SparseMIP.isSignal(targetImage.get(i), threshold)) {
+                setBit(bits, i);
+            }
+        }
+        return bits;
+    }
+
+    static SignalBitsets read(InputStream inputStream) throws IOException {
+        DataInputStream indexStream = new DataInputStream(new BufferedInputStream(new InflaterInputStream(inputStream)));
+        if (indexStream.readInt() != MAGIC) {
+            throw new IOException("Not a signal bitsets index");
+        }
+        int width = indexStream.readInt();
+        int height = indexStream.readInt();
+        int threshold = indexStream.readUnsignedByte();
+        int nTargets = indexStream.readInt();
+        Map<String, long[]> targetLengths = new HashMap<>(2 * nTargets);
+        for (int i = 0; i < nTargets; i++) {
+            String targetKey = indexStream.readUTF();
+            long offset = indexStream.readLong();
+            int length = indexStream.readInt();
+            targetLengths.put(targetKey, new long[]{offset, length});
+        }
+        return new SignalBitsets(width, height, threshold, targetLengths);
+    }
+
+    private static int getWordsCount(int width, int height) {
+        return (width * height + 63) >> 6;
+    }
+
+    private static void setBit(long[] bits, int pixel) {
+        bits[pixel >> 6] |= 1L << (pixel & 63);
+    }
+
+    private final int width;
+    private final int height;
+    private final int threshold;
+    // offset and length of the bitset of every target
+    private final Map<String, long[]> targetLengths;
+
+    private SignalBitsets(int width, int height, int threshold, Map<String, long[]> targetLengths) {
+        this.width = width;
+        this.height = height;
+        this.threshold = threshold;
+        this.targetLengths = targetLengths;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    int getTargetsCount() {
+        return targetLengths.size();
+    }
+
+    /**
+     * Read the bitsets of the given targets with a ranged request per group of bitsets that are at most
+     * {@link #MAX_RANGE_GAP_BYTES} apart in the data object, so that the bytes between distant bitsets are not read.
+     * Targets that are not part of the index are ignored.
+     *
+     * @return the bitsets of the targets by target key
+     */
+    Map<String, long[]> readTargetBits(Collection<String> targetKeys, DataRangeReader dataRangeReader) throws IOException {
+        Map<String, long[]> targetBits = new HashMap<>();
+        List<String> indexedTargetKeys = targetKeys.stream()
+                .filter(targetLengths::containsKey)
+                .distinct()
+                .sorted(Comparator.comparingLong(targetKey -> targetLengths.get(targetKey)[0]))
+                .collect(Collectors.toList());
+        int nWords = getWordsCount(width, height);
+        int rangeStartIndex = 0;
+        while (rangeStartIndex < indexedTargetKeys.size()) {
+            long start = targetLengths.get(indexedTargetKeys.get(rangeStartIndex))[0];
+            long end = start - 1;
+            int rangeEndIndex = rangeStartIndex;
+            for (; rangeEndIndex < indexedTargetKeys.size(); rangeEndIndex++) {
+                long[] targetLength = targetLengths.get(indexedTargetKeys.get(rangeEndIndex));
+                long targetEnd = targetLength[0] + targetLength[1] - 1;
+                if (rangeEndIndex > rangeStartIndex
+                        && (targetLength[0] - end - 1 > MAX_RANGE_GAP_BYTES || targetEnd - start + 1 > MAX_RANGE_BYTES)) {
+                    break;
+                }
+                end = Math.max(end, targetEnd);
+            }
+            byte[] data;
+            try (InputStream dataStream = dataRangeReader.read(start, end)) {
+                data = new byte[Math.toIntExact(end - start + 1)];
+                new DataInputStream(dataStream).readFully(data);
+            }
+            for (String targetKey : indexedTargetKeys.subList(rangeStartIndex, rangeEndIndex)) {
+                long[] targetLength = targetLengths.get(targetKey);
+                DataInputStream bitsStream = new DataInputStream(new InflaterInputStream(
+                        new ByteArrayInputStream(data, (int) (targetLength[0] - start), (int) targetLength[1])));
+                long[] bits = new long[nWords];
+                for (int w = 0; w < nWords; w++) {
+                    bits[w] = bitsStream.readLong();
+                }
+                targetBits.put(targetKey, bits);
+            }
+            rangeStartIndex = rangeEndIndex;
+        }
+        return targetBits;
+    }
+
+}
@@ -0,0 +1,236 @@
+package org.janelia.colordepthsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+
+/**
+ * Sparse representation of a color depth MIP that only holds the signal pixels, i.e. the pixels that have
+ * at least one channel above the threshold used when the MIP was converted.
+ * Since all other pixels are ignored by a search that uses a data threshold greater or equal to the
+ * stored threshold, for such a search the sparse MIP is equivalent to the original image.
+ *
+ * The stored format is deflate compressed and contains: the magic number, width, height, threshold,
+ * the number of signal pixels, the signal pixel indexes delta encoded as varints followed by the RGB values
+ * of the signal pixels.
+ */
+class SparseMIP {
+
+    static final String SPARSE_MIP_EXT = ".smip";
+
+    private static final int MAGIC = 0x534d4950; // "SMIP"
+
+    /**
+     * Builds a sparse MIP directly from the decoded rows so the dense image never has to be allocated.
+     */
+    static class Builder implements ImageRowsConsumer {
+        private final int threshold;
+        private int width;
+        private int height;
+        private int[] pixelIndexes = new int[1024];
+        private int[] pixelColors = new int[1024];
+        private int nPixels;
+
+        Builder(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void startImage(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void acceptRow(int y, int[] rowPixels) {
+            for (int x = 0; x < rowPixels.length; x++) {
+                add(y * width + x, rowPixels[x]);
+            }
+        }
+
+        Builder addImageArray(ImageArray<?> imageArray) {
+            startImage(imageArray.getWidth(), imageArray.getHeight());
+            int size = imageArray.getWidth() * imageArray.getHeight();
+            for (int i = 0; i < size; i++) {
+                add(i, imageArray.get(i));
+            }
+            return this;
+        }
+
+        private void add(int pixelIndex, int rgb) {
+            if (isSignal(rgb, threshold)) {
+                if (nPixels == pixelIndexes.length) {
+                    pixelIndexes = Arrays.copyOf(pixelIndexes, nPixels * 2);
+                    pixelColors = Arrays.copyOf(pixelColors, nPixels * 2);
+                }
+                pixelIndexes[nPixels] = pixelIndex;
+                pixelColors[nPixels] = rgb & 0xffffff;
+                nPixels++;
+            }
+        }
+
+        SparseMIP build() {
+            return new SparseMIP(width, height, threshold,
+                    Arrays.copyOf(pixelIndexes, nPixels),
+                    Arrays.copyOf(pixelColors, nPixels));
+        }
+    }
+
+    static boolean isSignal(int rgb, int threshold) {
+        return ((rgb >> 16) & 0xff) > threshold || ((rgb >> 8) & 0xff) > threshold || (rgb & 0xff) > threshold;
+    }
+
+    static SparseMIP read(InputStream inputStream) throws IOException {
+        DataInputStream sparseStream = new DataInputStream(new BufferedInputStream(new InflaterInputStream(inputStream)));
+        if (sparseStream.readInt() != MAGIC) {
+            throw new IOException("Not a sparse MIP");
+        }
+        int width = sparseStream.readInt();
+        int height = sparseStream.readInt();
+        int threshold = sparseStream.readUnsignedByte();
+        int nPixels = sparseStream.readInt();
+        int[] pixelIndexes = new int[nPixels];
+        int[] pixelColors = new int[nPixels];
+        int pixelIndex = 0;
+        for (int i = 0; i < nPixels; i++) {
+            pixelIndex += readVarint(sparseStream);
+            pixelIndexes[i] = pixelIndex;
+        }
+        for (int i = 0; i < nPixels; i++) {
+            pixelColors[i] = (sparseStream.readUnsignedByte() << 16) | (sparseStream.readUnsignedByte() << 8) | sparseStream.readUnsignedByte();
+        }
+        return new SparseMIP(width, height, threshold, pixelIndexes, pixelColors);
+    }
+
+    static int readVarint(DataInputStream inputStream) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = inputStream.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    static void writeVarint(DataOutputStream outputStream, int value) throws IOException {
+        int v = value;
+        while ((v & ~0x7f) != 0) {
+            outputStream.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        outputStream.writeByte(v);
+    }
+
+    private final int width;
+    private final int height;
+    private final int threshold;
+    private final int[] pixelIndexes; // sorted
+    private final int[] pixelColors;
+
+    private SparseMIP(int width, int height, int threshold, int[] pixelIndexes, int[] pixelColors) {
+        this.width = width;
+        this.height = height;
+        this.threshold = threshold;
+        this.pixelIndexes = pixelIndexes;
+        this.pixelColors = pixelColors;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    int getSignalPixelsCount() {
+        return pixelIndexes.length;
+    }
+
+    int getPixelIndex(int i) {
+        return pixelIndexes[i];
+    }
+
+    int getPixelColor(int i) {
+        return pixelColors[i];
+    }
+
+    /**
+     * @return true if a search that uses the given data threshold gets the same result with the sparse MIP as with the original image
+     */
+    boolean isEquivalentForDataThreshold(int dataThreshold) {
+        return dataThreshold >= threshold;
+    }
+
+    /**
+     * Expand the signal pixels between startPixel and endPixel (inclusive) into a dense image;
+     * the cost is proportional to the number of signal pixels in the range.
+     */
+    ImageArray<?> toImageArray(long startPixel, long endPixel) {
+        int[] pixels = new int[width * height];
+        for (int i = firstSignalPixelFrom(startPixel); i < pixelIndexes.length && pixelIndexes[i] <= endPixel; i++) {
+            pixels[pixelIndexes[i]] = pixelColors[i];
+        }
+        return new ColorImageArray(ImageType.RGB, width, height, pixels);
+    }
+
+    /**
+     * Same as {@link #toImageArray(long, long)} but the pixels are expanded into a pooled buffer.
+     */
+    ImageArray<?> toImageArray(long startPixel, long endPixel, PixelBufferPool.Lease pixelBufferLease) {
+        int[] pixels = pixelBufferLease.getPixels();
+        int first = firstSignalPixelFrom(startPixel);
+        int i = first;
+        for (; i < pixelIndexes.length && pixelIndexes[i] <= endPixel; i++) {
+            pixels[pixelIndexes[i]] = pixelColors[i];
+        }
+        if (i > first) {
+            pixelBufferLease.markDirty(pixelIndexes[first], pixelIndexes[i - 1]);
+        }
+        return new ColorImageArray(ImageType.RGB, width, height, pixels);
+    }
+
+    private int firstSignalPixelFrom(long startPixel) {
+        int i = Arrays.binarySearch(pixelIndexes, (int) Math.max(0, startPixel));
+        return i < 0 ? -i - 1 : i;
+    }
+
+    void write(OutputStream outputStream) throws IOException {
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(outputStream);
+        DataOutputStream sparseStream = new DataOutputStream(new BufferedOutputStream(deflaterStream));
+        sparseStream.writeInt(MAGIC);
+        sparseStream.writeInt(width);
+        sparseStream.writeInt(height);
+        sparseStream.writeByte(threshold);
+        sparseStream.writeInt(pixelIndexes.length);
+        int previousIndex = 0;
+        for (int pixelIndex : pixelIndexes) {
+            writeVarint(sparseStream, pixelIndex - previousIndex);
+            previousIndex = pixelIndex;
+        }
+        for (int rgb : pixelColors) {
+            sparseStream.writeByte(rgb >> 16);
+            sparseStream.writeByte(rgb >> 8);
+            sparseStream.writeByte(rgb);
+        }
+        sparseStream.flush();
+        deflaterStream.finish();
+    }
+
+}
@@ -0,0 +1,366 @@
+package org.janelia.colordepthsearch;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Strip by strip decoder for 8 bit RGB and RGBA TIFF images, either uncompressed or compressed with PackBits,
+ * LZW or Deflate. Only the strips that contain the requested rows are decompressed.
+ *
+ * The image is read from a forward only stream: everything up to the image directory and its value arrays is buffered,
+ * after that the strips are read directly from the stream. This works without buffering the pixel data for images
+ * that have the directory before the pixel data, which is how ImageJ writes them. For images that have the directory
+ * at the end the pixel data ends up being buffered with the directory.
+ */
+class TIFFRowsDecoder {
+
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_PHOTOMETRIC = 262;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+    private static final int TAG_PREDICTOR = 317;
+    private static final int TAG_TILE_WIDTH = 322;
+
+    private static final int COMPRESSION_NONE = 1;
+    private static final int COMPRESSION_LZW = 5;
+    private static final int COMPRESSION_DEFLATE = 8;
+    private static final int COMPRESSION_PACKBITS = 32773;
+    private static final int COMPRESSION_ADOBE_DEFLATE = 32946;
+
+    /**
+     * Forward only image stream that keeps the bytes read while the image directory is parsed.
+     */
+    private static class TIFFStream {
+        private final CountingInputStream imageStream;
+        private byte[] header = new byte[0];
+        private ByteBuffer headerBuffer;
+
+        TIFFStream(InputStream inputStream) {
+            this.imageStream = new CountingInputStream(inputStream);
+        }
+
+        ByteBuffer headerBuffer(long requiredLength) throws IOException {
+            if (requiredLength > header.length) {
+                int currentLength = header.length;
+                header = Arrays.copyOf(header, (int) requiredLength);
+                IOUtils.readFully(imageStream, header, currentLength, header.length - currentLength);
+                headerBuffer = ByteBuffer.wrap(header).order(headerBuffer == null ? ByteOrder.BIG_ENDIAN : headerBuffer.order());
+            }
+            return headerBuffer;
+        }
+
+        InputStream openSegment(long offset, long length) throws IOException {
+            if (offset + length <= header.length) {
+                return new ByteArrayInputStream(header, (int) offset, (int) length);
+            } else if (offset < imageStream.getByteCount()) {
+                // the segment starts in the buffered part but it is not fully buffered yet
+                headerBuffer(offset + length);
+                return new ByteArrayInputStream(header, (int) offset, (int) length);
+            } else {
+                ImageRowsDecoder.skipFully(imageStream, offset - imageStream.getByteCount());
+                BoundedInputStream segmentStream = new BoundedInputStream(imageStream, length);
+                segmentStream.setPropagateClose(false);
+                return segmentStream;
+            }
+        }
+
+        void releaseHeader() {
+            header = new byte[0];
+        }
+    }
+
+    static boolean hasSignature(byte[] signature) {
+        return (signature[0] == 'I' && signature[1] == 'I' && signature[2] == 42 && signature[3] == 0) ||
+                (signature[0] == 'M' && signature[1] == 'M' && signature[2] == 0 && signature[3] == 42);
+    }
+
+    static void decodeRows(InputStream inputStream, long startPixel, long endPixel, ImageRowsConsumer rowsConsumer) throws IOException {
+        TIFFStream tiffStream = new TIFFStream(inputStream);
+        ByteBuffer header = tiffStream.headerBuffer(8);
+        header.order(header.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        long ifdOffset = header.getInt(4) & 0xffffffffL;
+        header = tiffStream.headerBuffer(ifdOffset + 2);
+        int nEntries = header.getShort((int) ifdOffset) & 0xffff;
+        header = tiffStream.headerBuffer(ifdOffset + 2 + 12L * nEntries);
+
+        int width = 0;
+        int height = 0;
+        int compression = COMPRESSION_NONE;
+        int photometric = -1;
+        int samplesPerPixel = 1;
+        int rowsPerStrip = Integer.MAX_VALUE;
+        int planarConfiguration = 1;
+        int predictor = 1;
+        long[] bitsPerSample = null;
+        long[] stripOffsets = null;
+        long[] stripByteCounts = null;
+        for (int i = 0; i < nEntries; i++) {
+            int entryOffset = (int) ifdOffset + 2 + 12 * i;
+            int tag = header.getShort(entryOffset) & 0xffff;
+            switch (tag) {
+                case TAG_IMAGE_WIDTH:
+                    width = (int) readValues(tiffStream, entryOffset)[0];
+                    break;
+                case TAG_IMAGE_LENGTH:
+                    height = (int) readValues(tiffStream, entryOffset)[0];
+                    break;
+                case TAG_BITS_PER_SAMPLE:
+                    bitsPerSample = readValues(tiffStream, entryOffset);
+                    break;
+                case TAG_COMPRESSION:
+                    compression = (int) readValues(tiffStream, entryOffset)[0];
+                    break;
+                case TAG_PHOTOMETRIC:
+                    photometric = (int) readValues(tiffStream, entryOffset)[0];
+                    break;
+                case TAG_STRIP_OFFSETS:
+                    stripOffsets = readValues(tiffStream, entryOffset);
+                    break;
+                case TAG_SAMPLES_PER_PIXEL:
+                    samplesPerPixel = (int) readValues(tiffStream, entryOffset)[0];
+                    break;
+                case TAG_ROWS_PER_STRIP:
+                    rowsPerStrip = (int) Math.min(Integer.MAX_VALUE, readValues(tiffStream, entryOffset)[0]);
+                    break;
+                case TAG_STRIP_BYTE_COUNTS:
+                    stripByteCounts = readValues(tiffStream, entryOffset);
+                    break;
+                case TAG_PLANAR_CONFIGURATION:
+                    planarConfiguration = (int) readValues(tiffStream, entryOffset)[0];
+                    break;
+                case TAG_PREDICTOR:
+                    predictor = (int) readValues(tiffStream, entryOffset)[0];
+                    break;
+                case TAG_TILE_WIDTH:
+                    throw new ImageRowsDecoder.UnsupportedImageException("Tiled TIFF");
+                default:
+                    break;
+            }
+            header = tiffStream.headerBuffer;
+        }
+        if (photometric != 2 || (samplesPerPixel != 3 && samplesPerPixel != 4) || planarConfiguration != 1 ||
+                bitsPerSample == null || Arrays.stream(bitsPerSample).anyMatch(bps -> bps != 8)) {
+            throw new ImageRowsDecoder.UnsupportedImageException(
+                    String.format("TIFF photometric %d, samples per pixel %d, planar configuration %d, bits per sample %s",
+                            photometric, samplesPerPixel, planarConfiguration, Arrays.toString(bitsPerSample)));
+        }
+        if (compression != COMPRESSION_NONE && compression != COMPRESSION_LZW && compression != COMPRESSION_PACKBITS &&
+                compression != COMPRESSION_DEFLATE && compression != COMPRESSION_ADOBE_DEFLATE) {
+            throw new ImageRowsDecoder.UnsupportedImageException("TIFF compression " + compression);
+        }
+        if (predictor != 1 && predictor != 2) {
+            throw new ImageRowsDecoder.UnsupportedImageException("TIFF predictor " + predictor);
+        }
+        if (stripOffsets == null || stripByteCounts == null || stripOffsets.length != stripByteCounts.length) {
+            throw new IOException("Invalid TIFF strips");
+        }
+        rowsConsumer.startImage(width, height);
+        int firstRow = ImageRowsDecoder.firstRow(startPixel, width);
+        int lastRow = ImageRowsDecoder.lastRow(endPixel, width, height);
+        int rowsInStrip = Math.min(rowsPerStrip, height);
+        int firstStrip = firstRow / rowsInStrip;
+        int lastStrip = lastRow / rowsInStrip;
+        if (stripOffsets[firstStrip] >= tiffStream.imageStream.getByteCount()) {
+            // all the needed strips come after the directory so the buffered header is no longer needed
+            boolean ascendingStrips = true;
+            for (int s = firstStrip + 1; s <= lastStrip; s++) {
+                ascendingStrips &= stripOffsets[s] >= stripOffsets[s - 1] + stripByteCounts[s - 1];
+            }
+            if (ascendingStrips) {
+                tiffStream.releaseHeader();
+            } else {
+                long stripsEnd = 0;
+                for (int s = firstStrip; s <= lastStrip; s++) {
+                    stripsEnd = Math.max(stripsEnd, stripOffsets[s] + stripByteCounts[s]);
+                }
+                tiffStream.headerBuffer(stripsEnd);
+            }
+        }
+
+        int rowLength = width * samplesPerPixel;
+        byte[] rowBytes = new byte[rowLength];
+        int[] rowPixels = new int[width];
+        for (int s = firstStrip; s <= lastStrip; s++) {
+            int stripStartRow = s * rowsInStrip;
+            int stripRows = Math.min(rowsInStrip, height - stripStartRow);
+            InputStream stripStream = tiffStream.openSegment(stripOffsets[s], stripByteCounts[s]);
+            DataInputStream stripRowsStream = new DataInputStream(openStripRows(stripStream, compression, (int) stripByteCounts[s], stripRows * rowLength));
+            for (int r = 0; r < stripRows; r++) {
+                int y = stripStartRow + r;
+                if (y > lastRow) {
+                    break;
+                }
+                stripRowsStream.readFully(rowBytes);
+                if (y < firstRow) {
+                    continue;
+                }
+                if (predictor == 2) {
+                    for (int i = samplesPerPixel; i < rowLength; i++) {
+                        rowBytes[i] += rowBytes[i - samplesPerPixel];
+                    }
+                }
+                ImageRowsDecoder.toRGBPixels(rowBytes, samplesPerPixel, rowPixels);
+                rowsConsumer.acceptRow(y, rowPixels);
+            }
+        }
+    }
+
+    private static long[] readValues(TIFFStream tiffStream, int entryOffset) throws IOException {
+        ByteBuffer header = tiffStream.headerBuffer;
+        int type = header.getShort(entryOffset + 2) & 0xffff;
+        int count = header.getInt(entryOffset + 4);
+        int typeSize;
+        switch (type) {
+            case 1: // BYTE
+                typeSize = 1;
+                break;
+            case 3: // SHORT
+                typeSize = 2;
+                break;
+            case 4: // LONG
+                typeSize = 4;
+                break;
+            default:
+                throw new IOException("Unexpected TIFF field type " + type);
+        }
+        int valuesOffset;
+        if (count * typeSize <= 4) {
+            valuesOffset = entryOffset + 8;
+        } else {
+            valuesOffset = header.getInt(entryOffset + 8);
+            header = tiffStream.headerBuffer((long) valuesOffset + (long) count * typeSize);
+        }
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            int valueOffset = valuesOffset + i * typeSize;
+            switch (typeSize) {
+                case 1:
+                    values[i] = header.get(valueOffset) & 0xff;
+                    break;
+                case 2:
+                    values[i] = header.getShort(valueOffset) & 0xffff;
+                    break;
+                default:
+                    values[i] = header.getInt(valueOffset) & 0xffffffffL;
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private static InputStream openStripRows(InputStream stripStream, int compression, int stripLength, int stripRowsLength) throws IOException {
+        switch (compression) {
+            case COMPRESSION_PACKBITS:
+                return new ByteArrayInputStream(unpackBits(new BufferedInputStream(stripStream), stripRowsLength));
+            case COMPRESSION_LZW:
+                return new ByteArrayInputStream(lzwDecode(IOUtils.toByteArray(stripStream, stripLength), stripRowsLength));
+            case COMPRESSION_DEFLATE:
+            case COMPRESSION_ADOBE_DEFLATE:
+                return new InflaterInputStream(stripStream);
+            default:
+                return stripStream;
+        }
+    }
+
+    private static byte[] unpackBits(InputStream packedStream, int unpackedLength) throws IOException {
+        byte[] unpacked = new byte[unpackedLength];
+        int pos = 0;
+        while (pos < unpackedLength) {
+            int n = packedStream.read();
+            if (n < 0) {
+                break;
+            }
+            n = (byte) n;
+            if (n >= 0) {
+                int length = Math.min(n + 1, unpackedLength - pos);
+                IOUtils.readFully(packedStream, unpacked, pos, length);
+                pos += length;
+            } else if (n != -128) {
+                int value = packedStream.read();
+                int length = Math.min(1 - n, unpackedLength - pos);
+                Arrays.fill(unpacked, pos, pos + length, (byte) value);
+                pos += length;
+            }
+        }
+        return unpacked;
+    }
+
+    private static byte[] lzwDecode(byte[] encoded, int decodedLength) {
+        byte[] decoded = new byte[decodedLength];
+        byte[][] table = new byte[4096][];
+        for (int i = 0; i < 256; i++) {
+            table[i] = new byte[]{(byte) i};
+        }
+        int tableSize = 258;
+        int codeLength = 9;
+        int bitBuffer = 0;
+        int bitCount = 0;
+        int inPos = 0;
+        int outPos = 0;
+        byte[] previous = null;
+        while (outPos < decodedLength) {
+            while (bitCount < codeLength) {
+                if (inPos >= encoded.length) {
+                    return decoded;
+                }
+                bitBuffer = (bitBuffer << 8) | (encoded[inPos++] & 0xff);
+                bitCount += 8;
+            }
+            int code = (bitBuffer >>> (bitCount - codeLength)) & ((1 << codeLength) - 1);
+            bitCount -= codeLength;
+            if (code == 257) {
+                // end of information
+                break;
+            }
+            if (code == 256) {
+                // clear code
+                tableSize = 258;
+                codeLength = 9;
+                previous = null;
+                continue;
+            }
+            byte[] entry;
+            if (previous == null) {
+                entry = table[code];
+            } else if (code < tableSize) {
+                entry = table[code];
+                table[tableSize++] = concat(previous, entry[0]);
+            } else {
+                entry = concat(previous, previous[0]);
+                table[tableSize++] = entry;
+            }
+            int length = Math.min(entry.length, decodedLength - outPos);
+            System.arraycopy(entry, 0, decoded, outPos, length);
+            outPos += length;
+            previous = entry;
+            if (tableSize + 1 >= (1 << codeLength) && codeLength < 12) {
+                codeLength++;
+            }
+        }
+        return decoded;
+    }
+
+    private static byte[] concat(byte[] prefix, byte b) {
+        byte[] entry = Arrays.copyOf(prefix, prefix.length + 1);
+        entry[prefix.length] = b;
+        return entry;
+    }
+
+}
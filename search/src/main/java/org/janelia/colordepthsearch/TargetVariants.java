@@ -0,0 +1,169 @@
+package org.janelia.colordepthsearch;
+
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+
+/**
+ * Gradient and zgap variants of a target computed from the target pixels, as an alternative to fetching the variants
+ * stored with the library. Like the stored variants read for a mask, the variants are only computed for the pixels
+ * of the mask query range and the pixels outside the range are 0.
+ *
+ * The gradient variant holds, for every pixel, the distance to the nearest target signal pixel, up to the negative
+ * radius of the search. The zgap variant is the target dilated with a disc, so that every pixel holds the brightest
+ * value of every channel around it, which tolerates small depth gaps between the mask and the target signal.
+ */
+class TargetVariants {
+
+    // radius of the disc of the zgap dilation
+    static final int ZGAP_RADIUS = 1;
+
+    /**
+     * @param targetImage target image
+     * @param dataThreshold threshold of the target signal pixels
+     * @param maxDistance largest distance held by the variant
+     * @param startPixel first pixel of the query range
+     * @param endPixel last pixel of the query range
+     * @return the gradient variant of the target
+     */
+    static ImageArray<?> createGradientImage(ImageArray<?> targetImage, int dataThreshold, int maxDistance, long startPixel, long endPixel) {
+        int width = targetImage.getWidth();
+        int height = targetImage.getHeight();
+        long firstPixel = Math.max(0, startPixel);
+        long lastPixel = Math.min(endPixel, (long) width * height - 1);
+        int[] pixels = new int[width * height];
+        if (firstPixel > lastPixel) {
+            return new ColorImageArray(ImageType.GRAY16, width, height, pixels);
+        }
+        // the signal pixels closer than the largest distance to the range count too
+        int firstRow = Math.max(0, (int) (firstPixel / width) - maxDistance);
+        int lastRow = Math.min(height - 1, (int) (lastPixel / width) + maxDistance);
+        int nRows = lastRow - firstRow + 1;
+        // 5-7 chamfer distances, in fifths of a pixel, which are within 2% of the euclidean distances
+        int maxChamferDistance = 5 * maxDistance;
+        int[] distances = new int[width * nRows];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = SparseMIP.isSignal(targetImage.get(firstRow * width + i), dataThreshold) ? 0 : maxChamferDistance;
+        }
+        for (int r = 0; r < nRows; r++) {
+            for (int x = 0; x < width; x++) {
+                int i = r * width + x;
+                int d = distances[i];
+                if (d == 0) {
+                    continue;
+                }
+                if (x > 0) {
+                    d = Math.min(d, distances[i - 1] + 5);
+                }
+                if (r > 0) {
+                    d = Math.min(d, distances[i - width] + 5);
+                    if (x > 0) {
+                        d = Math.min(d, distances[i - width - 1] + 7);
+                    }
+                    if (x < width - 1) {
+                        d = Math.min(d, distances[i - width + 1] + 7);
+                    }
+                }
+                distances[i] = d;
+            }
+        }
+        for (int r = nRows - 1; r >= 0; r--) {
+            for (int x = width - 1; x >= 0; x--) {
+                int i = r * width + x;
+                int d = distances[i];
+                if (d == 0) {
+                    continue;
+                }
+                if (x < width - 1) {
+                    d = Math.min(d, distances[i + 1] + 5);
+                }
+                if (r < nRows - 1) {
+                    d = Math.min(d, distances[i + width] + 5);
+                    if (x < width - 1) {
+                        d = Math.min(d, distances[i + width + 1] + 7);
+                    }
+                    if (x > 0) {
+                        d = Math.min(d, distances[i + width - 1] + 7);
+                    }
+                }
+                distances[i] = d;
+            }
+        }
+        int offset = firstRow * width;
+        for (int p = (int) firstPixel; p <= lastPixel; p++) {
+            pixels[p] = Math.min(maxDistance, (distances[p - offset] + 2) / 5);
+        }
+        return new ColorImageArray(ImageType.GRAY16, width, height, pixels);
+    }
+
+    /**
+     * @param targetImage target image
+     * @param startPixel first pixel of the query range
+     * @param endPixel last pixel of the query range
+     * @return the zgap variant of the target
+     */
+    static ImageArray<?> createZGapImage(ImageArray<?> targetImage, long startPixel, long endPixel) {
+        int width = targetImage.getWidth();
+        int height = targetImage.getHeight();
+        long firstPixel = Math.max(0, startPixel);
+        long lastPixel = Math.min(endPixel, (long) width * height - 1);
+        int[] pixels = new int[width * height];
+        if (firstPixel > lastPixel) {
+            return new ColorImageArray(ImageType.RGB, width, height, pixels);
+        }
+        int firstRow = Math.max(0, (int) (firstPixel / width) - ZGAP_RADIUS);
+        int lastRow = Math.min(height - 1, (int) (lastPixel / width) + ZGAP_RADIUS);
+        // the disc is the union of the rows of its half widths, with the same extent as the ImageJ filters disc
+        int[] halfWidths = new int[2 * ZGAP_RADIUS + 1];
+        for (int dy = -ZGAP_RADIUS; dy <= ZGAP_RADIUS; dy++) {
+            halfWidths[dy + ZGAP_RADIUS] = (int) Math.sqrt(ZGAP_RADIUS * ZGAP_RADIUS + 1 - dy * dy);
+        }
+        // the rows dilated horizontally with every half width, so that every pixel only reads one value per disc row
+        int[][][] rowMaxima = new int[ZGAP_RADIUS + 2][][];
+        for (int halfWidth : halfWidths) {
+            if (rowMaxima[halfWidth] == null) {
+                rowMaxima[halfWidth] = new int[lastRow - firstRow + 1][];
+                for (int y = firstRow; y <= lastRow; y++) {
+                    rowMaxima[halfWidth][y - firstRow] = dilateRow(targetImage, y, halfWidth);
+                }
+            }
+        }
+        for (int y = (int) (firstPixel / width); y <= lastPixel / width; y++) {
+            int startX = y == firstPixel / width ? (int) (firstPixel % width) : 0;
+            int endX = y == lastPixel / width ? (int) (lastPixel % width) : width - 1;
+            for (int dy = -ZGAP_RADIUS; dy <= ZGAP_RADIUS; dy++) {
+                int ny = y + dy;
+                if (ny < firstRow || ny > lastRow) {
+                    continue;
+                }
+                int[] rowMax = rowMaxima[halfWidths[dy + ZGAP_RADIUS]][ny - firstRow];
+                for (int x = startX; x <= endX; x++) {
+                    pixels[y * width + x] = maxRGB(pixels[y * width + x], rowMax[x]);
+                }
+            }
+        }
+        return new ColorImageArray(ImageType.RGB, width, height, pixels);
+    }
+
+    private static int[] dilateRow(ImageArray<?> targetImage, int y, int halfWidth) {
+        int width = targetImage.getWidth();
+        int[] row = new int[width];
+        for (int x = 0; x < width; x++) {
+            row[x] = targetImage.get(y * width + x) & 0xffffff;
+        }
+        int[] dilatedRow = new int[width];
+        for (int x = 0; x < width; x++) {
+            int rgb = 0;
+            for (int nx = Math.max(0, x - halfWidth); nx <= Math.min(width - 1, x + halfWidth); nx++) {
+                rgb = maxRGB(rgb, row[nx]);
+            }
+            dilatedRow[x] = rgb;
+        }
+        return dilatedRow;
+    }
+
+    private static int maxRGB(int rgb1, int rgb2) {
+        return Math.max(rgb1 & 0xff0000, rgb2 & 0xff0000) | Math.max(rgb1 & 0xff00, rgb2 & 0xff00) | Math.max(rgb1 & 0xff, rgb2 & 0xff);
+    }
+
+}
@@ -0,0 +1,297 @@
+package org.janelia.colordepthsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+
+/**
+ * Inverted index of a library that maps a coarse (xy tile, depth color bin) cell to the targets that have signal
+ * in that cell. The depth color bin is the hue of the color depth pixel, which encodes the z position.
+ *
+ * The index is used to shortlist the targets that share at least one cell with the mask, after extending the mask cells
+ * by the xy shift, the mirrored mask and the neighboring color bins. Since the color bins only approximate the
+ * color depth distance used by the search, the shortlist is meant for a fast, approximate search.
+ *
+ * The stored format is deflate compressed and contains: the magic number, tile size, number of color bins, width,
+ * height, signal threshold, the target keys, and for every non empty cell the cell id followed by the delta encoded
+ * varint list of target ids.
+ */
+class TileColorIndex implements CandidateTargetsIndex {
+
+    static final int DEFAULT_TILE_SIZE = 32;
+    static final int DEFAULT_COLOR_BINS = 16;
+
+    private static final int MAGIC = 0x54494458; // "TIDX"
+
+    /**
+     * Adds targets to the index as they are decoded.
+     */
+    static class Builder {
+        private final int tileSize;
+        private final int nColorBins;
+        private final int threshold;
+        private final List<String> targetKeys = new ArrayList<>();
+        private final Map<Integer, int[]> cellTargets = new TreeMap<>();
+        private final Map<Integer, Integer> cellSizes = new HashMap<>();
+        private int width;
+        private int height;
+
+        Builder(int tileSize, int nColorBins, int threshold) {
+            this.tileSize = tileSize;
+            this.nColorBins = nColorBins;
+            this.threshold = threshold;
+        }
+
+        /**
+         * @return a rows consumer that adds the signal cells of the decoded image to the index
+         */
+        ImageRowsConsumer addTarget(String targetKey) {
+            int targetId = targetKeys.size();
+            targetKeys.add(targetKey);
+            BitSet targetCells = new BitSet();
+            return new ImageRowsConsumer() {
+                private int lastRow;
+
+                @Override
+                public void startImage(int imageWidth, int imageHeight) {
+                    if (width == 0) {
+                        width = imageWidth;
+                        height = imageHeight;
+                    } else if (width != imageWidth || height != imageHeight) {
+                        throw new IllegalArgumentException(String.format("%s is %dx%d instead of %dx%d",
+                                targetKey, imageWidth, imageHeight, width, height));
+                    }
+                    lastRow = imageHeight - 1;
+                }
+
+                @Override
+                public void acceptRow(int y, int[] rowPixels) {
+                    for (int x = 0; x < rowPixels.length; x++) {
+                        if (SparseMIP.isSignal(rowPixels[x], threshold)) {
+                            targetCells.set(getCell(x, y, colorBin(rowPixels[x], nColorBins), width, tileSize, nColorBins));
+                        }
+                    }
+                    if (y == lastRow) {
+                        targetCells.stream().forEach(cell -> addCellTarget(cell, targetId));
+                    }
+                }
+            };
+        }
+
+        private void addCellTarget(int cell, int targetId) {
+            int[] targets = cellTargets.get(cell);
+            int n = cellSizes.getOrDefault(cell, 0);
+            if (targets == null) {
+                targets = new int[16];
+            } else if (n == targets.length) {
+                targets = Arrays.copyOf(targets, 2 * n);
+            }
+            targets[n] = targetId;
+            cellTargets.put(cell, targets);
+            cellSizes.put(cell, n + 1);
+        }
+
+        TileColorIndex build() {
+            Map<Integer, int[]> postings = new HashMap<>();
+            cellTargets.forEach((cell, targets) -> postings.put(cell, Arrays.copyOf(targets, cellSizes.get(cell))));
+            return new TileColorIndex(tileSize, nColorBins, width, height, threshold, targetKeys, postings);
+        }
+    }
+
+    /**
+     * @return the hue based depth color bin of an RGB pixel
+     */
+    static int colorBin(int rgb, int nColorBins) {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        if (max == min) {
+            return 0;
+        }
+        double hue;
+        if (max == r) {
+            hue = (g - b) / (double) (max - min);
+        } else if (max == g) {
+            hue = 2 + (b - r) / (double) (max - min);
+        } else {
+            hue = 4 + (r - g) / (double) (max - min);
+        }
+        if (hue < 0) {
+            hue += 6;
+        }
+        return Math.min(nColorBins - 1, (int) (hue / 6 * nColorBins));
+    }
+
+    private static int getCell(int x, int y, int colorBin, int width, int tileSize, int nColorBins) {
+        int tilesPerRow = (width + tileSize - 1) / tileSize;
+        return ((y / tileSize) * tilesPerRow + x / tileSize) * nColorBins + colorBin;
+    }
+
+    static TileColorIndex read(InputStream inputStream) throws IOException {
+        DataInputStream indexStream = new DataInputStream(new BufferedInputStream(new InflaterInputStream(inputStream)));
+        if (indexStream.readInt() != MAGIC) {
+            throw new IOException("Not a tile color index");
+        }
+        int tileSize = indexStream.readInt();
+        int nColorBins = indexStream.readInt();
+        int width = indexStream.readInt();
+        int height = indexStream.readInt();
+        int threshold = indexStream.readUnsignedByte();
+        int nTargets = indexStream.readInt();
+        List<String> targetKeys = new ArrayList<>(nTargets);
+        for (int i = 0; i < nTargets; i++) {
+            targetKeys.add(indexStream.readUTF());
+        }
+        int nCells = indexStream.readInt();
+        Map<Integer, int[]> postings = new HashMap<>(2 * nCells);
+        for (int c = 0; c < nCells; c++) {
+            int cell = indexStream.readInt();
+            int[] targets = new int[indexStream.readInt()];
+            int targetId = 0;
+            for (int i = 0; i < targets.length; i++) {
+                targetId += SparseMIP.readVarint(indexStream);
+                targets[i] = targetId;
+            }
+            postings.put(cell, targets);
+        }
+        return new TileColorIndex(tileSize, nColorBins, width, height, threshold, targetKeys, postings);
+    }
+
+    private final int tileSize;
+    private final int nColorBins;
+    private final int width;
+    private final int height;
+    private final int threshold;
+    private final List<String> targetKeys;
+    private final Map<String, Integer> targetIds;
+    private final Map<Integer, int[]> postings;
+
+    private TileColorIndex(int tileSize, int nColorBins, int width, int height, int threshold, List<String> targetKeys, Map<Integer, int[]> postings) {
+        this.tileSize = tileSize;
+        this.nColorBins = nColorBins;
+        this.width = width;
+        this.height = height;
+        this.threshold = threshold;
+        this.targetKeys = targetKeys;
+        this.targetIds = new HashMap<>(2 * targetKeys.size());
+        for (int i = 0; i < targetKeys.size(); i++) {
+            targetIds.put(targetKeys.get(i), i);
+        }
+        this.postings = postings;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    int getTargetsCount() {
+        return targetKeys.size();
+    }
+
+    @Override
+    public boolean containsTarget(String targetKey) {
+        return targetIds.containsKey(targetKey);
+    }
+
+    /**
+     * Find the targets that have signal in at least one of the cells of the mask. The mask cells are extended to the tiles
+     * reachable by the xy shift, to the mirrored mask if needed and to the neighboring color bins.
+     *
+     * @return the ids of the shortlisted targets
+     */
+    @Override
+    public BitSet findCandidates(ImageArray<?> maskImage, int maskThreshold, int xyShift, boolean mirrorMask) {
+        if (maskImage.getWidth() != width || maskImage.getHeight() != height) {
+            throw new IllegalArgumentException(String.format("Mask is %dx%d and the indexed targets are %dx%d",
+                    maskImage.getWidth(), maskImage.getHeight(), width, height));
+        }
+        BitSet maskCells = new BitSet();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = maskImage.get(y * width + x);
+                if (SparseMIP.isSignal(rgb, maskThreshold)) {
+                    int colorBin = colorBin(rgb, nColorBins);
+                    addMaskCells(maskCells, x, y, colorBin, xyShift);
+                    if (mirrorMask) {
+                        addMaskCells(maskCells, width - 1 - x, y, colorBin, xyShift);
+                    }
+                }
+            }
+        }
+        BitSet candidates = new BitSet(targetKeys.size());
+        maskCells.stream().forEach(cell -> {
+            int[] cellTargets = postings.get(cell);
+            if (cellTargets != null) {
+                for (int targetId : cellTargets) {
+                    candidates.set(targetId);
+                }
+            }
+        });
+        return candidates;
+    }
+
+    @Override
+    public boolean isCandidate(BitSet candidates, String targetKey) {
+        Integer targetId = targetIds.get(targetKey);
+        return targetId != null && candidates.get(targetId);
+    }
+
+    private void addMaskCells(BitSet maskCells, int x, int y, int colorBin, int xyShift) {
+        int minTileX = Math.max(0, x - xyShift) / tileSize;
+        int maxTileX = Math.min(width - 1, x + xyShift) / tileSize;
+        int minTileY = Math.max(0, y - xyShift) / tileSize;
+        int maxTileY = Math.min(height - 1, y + xyShift) / tileSize;
+        for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                for (int bin = colorBin - 1; bin <= colorBin + 1; bin++) {
+                    maskCells.set(getCell(tileX * tileSize, tileY * tileSize, (bin + nColorBins) % nColorBins, width, tileSize, nColorBins));
+                }
+            }
+        }
+    }
+
+    void write(OutputStream outputStream) throws IOException {
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(outputStream);
+        DataOutputStream indexStream = new DataOutputStream(new BufferedOutputStream(deflaterStream));
+        indexStream.writeInt(MAGIC);
+        indexStream.writeInt(tileSize);
+        indexStream.writeInt(nColorBins);
+        indexStream.writeInt(width);
+        indexStream.writeInt(height);
+        indexStream.writeByte(threshold);
+        indexStream.writeInt(targetKeys.size());
+        for (String targetKey : targetKeys) {
+            indexStream.writeUTF(targetKey);
+        }
+        indexStream.writeInt(postings.size());
+        for (Map.Entry<Integer, int[]> cellTargets : new TreeMap<>(postings).entrySet()) {
+            indexStream.writeInt(cellTargets.getKey());
+            indexStream.writeInt(cellTargets.getValue().length);
+            int previousTargetId = 0;
+            for (int targetId : cellTargets.getValue()) {
+                SparseMIP.writeVarint(indexStream, targetId - previousTargetId);
+                previousTargetId = targetId;
+            }
+        }
+        indexStream.flush();
+        deflaterStream.finish();
+    }
+
+}
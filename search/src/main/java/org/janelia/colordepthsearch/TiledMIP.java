@@ -0,0 +1,375 @@
+package org.janelia.colordepthsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.lang3.RegExUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+
+/**
+ * Tiled representation of a color depth MIP that allows reading only the part of the image that a mask can reach.
+ * The image is split into square tiles that are compressed independently, so a search reads the header and then
+ * only the byte ranges of the tiles that intersect the regions searched by the mask, instead of all the rows spanned
+ * by the mask. Like a sparse MIP, the pixels that are not above the threshold used when the MIP was converted
+ * are stored as 0, so the tiled MIP is only equivalent to the original image for a search that uses a data threshold
+ * greater or equal to the stored threshold.
+ *
+ * The stored format contains an uncompressed header: the magic number, width, height, tile size, threshold and
+ * the offsets of the tiles, in row major order, relative to the end of the header, followed by the offset of the end
+ * of the last tile. The tiles follow the header and every tile holds the deflate compressed RGB values of its pixels;
+ * a tile without any signal pixel is empty.
+ */
+class TiledMIP {
+
+    static final String TILED_MIP_EXT = ".tmip";
+    static final int DEFAULT_TILE_SIZE = 64;
+    // the header of most MIPs fits in the first read
+    static final int HEADER_READ_SIZE = 4096;
+
+    private static final int MAGIC = 0x544d4950; // "TMIP"
+    // granularity of the searched regions, which divides the default tile size
+    private static final int FOOTPRINT_CELL_SIZE = 16;
+    private static final int HEADER_FIXED_SIZE = 17;
+
+    /**
+     * Rectangle of pixels, including both corners.
+     */
+    static class Region {
+        final int x0;
+        final int y0;
+        final int x1;
+        final int y1;
+
+        Region(int x0, int y0, int x1, int y1) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+    }
+
+    /**
+     * Builds the tiled MIP from the decoded rows.
+     */
+    static class Builder implements ImageRowsConsumer {
+        private final int threshold;
+        private final int tileSize;
+        private int width;
+        private int height;
+        private int[] pixels;
+
+        Builder(int threshold, int tileSize) {
+            this.threshold = threshold;
+            this.tileSize = tileSize;
+        }
+
+        @Override
+        public void startImage(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.pixels = new int[width * height];
+        }
+
+        @Override
+        public void acceptRow(int y, int[] rowPixels) {
+            for (int x = 0; x < rowPixels.length; x++) {
+                if (SparseMIP.isSignal(rowPixels[x], threshold)) {
+                    pixels[y * width + x] = rowPixels[x] & 0xffffff;
+                }
+            }
+        }
+
+        void write(OutputStream outputStream) throws IOException {
+            int tilesX = getTilesCount(width, tileSize);
+            int tilesY = getTilesCount(height, tileSize);
+            int[] tileOffsets = new int[tilesX * tilesY + 1];
+            ByteArrayOutputStream tilesStream = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater();
+            byte[] tileBytes = new byte[3 * tileSize * tileSize];
+            byte[] compressedBytes = new byte[1024];
+            try {
+                for (int ty = 0; ty < tilesY; ty++) {
+                    for (int tx = 0; tx < tilesX; tx++) {
+                        tileOffsets[ty * tilesX + tx] = tilesStream.size();
+                        int nTileBytes = 0;
+                        boolean hasSignal = false;
+                        for (int y = ty * tileSize; y < Math.min(height, (ty + 1) * tileSize); y++) {
+                            for (int x = tx * tileSize; x < Math.min(width, (tx + 1) * tileSize); x++) {
+                                int rgb = pixels[y * width + x];
+                                hasSignal |= rgb != 0;
+                                tileBytes[nTileBytes++] = (byte) (rgb >> 16);
+                                tileBytes[nTileBytes++] = (byte) (rgb >> 8);
+                                tileBytes[nTileBytes++] = (byte) rgb;
+                            }
+                        }
+                        if (hasSignal) {
+                            deflater.reset();
+                            deflater.setInput(tileBytes, 0, nTileBytes);
+                            deflater.finish();
+                            while (!deflater.finished()) {
+                                tilesStream.write(compressedBytes, 0, deflater.deflate(compressedBytes));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+            tileOffsets[tilesX * tilesY] = tilesStream.size();
+            DataOutputStream headerStream = new DataOutputStream(outputStream);
+            headerStream.writeInt(MAGIC);
+            headerStream.writeInt(width);
+            headerStream.writeInt(height);
+            headerStream.writeInt(tileSize);
+            headerStream.writeByte(threshold);
+            for (int tileOffset : tileOffsets) {
+                headerStream.writeInt(tileOffset);
+            }
+            tilesStream.writeTo(headerStream);
+            headerStream.flush();
+        }
+    }
+
+    /**
+     * @return the name of the tiled MIP obtained by replacing the extension of the MIP name
+     */
+    static String getTiledMIPName(String mipName) {
+        return RegExUtils.replacePattern(mipName, "\\.[^./]*$", "") + TILED_MIP_EXT;
+    }
+
+    /**
+     * @return the size of the header given its first bytes, which must include at least the fixed part of the header
+     */
+    static int getHeaderSize(byte[] headerStart) throws IOException {
+        ByteBuffer headerBuffer = ByteBuffer.wrap(headerStart);
+        if (headerStart.length < HEADER_FIXED_SIZE || headerBuffer.getInt() != MAGIC) {
+            throw new IOException("Not a tiled MIP");
+        }
+        int width = headerBuffer.getInt();
+        int height = headerBuffer.getInt();
+        int tileSize = headerBuffer.getInt();
+        return HEADER_FIXED_SIZE + 4 * (getTilesCount(width, tileSize) * getTilesCount(height, tileSize) + 1);
+    }
+
+    static TiledMIP readHeader(byte[] header) throws IOException {
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header, 0, getHeaderSize(header));
+        headerBuffer.getInt();
+        int width = headerBuffer.getInt();
+        int height = headerBuffer.getInt();
+        int tileSize = headerBuffer.getInt();
+        int threshold = headerBuffer.get() & 0xff;
+        int[] tileOffsets = new int[getTilesCount(width, tileSize) * getTilesCount(height, tileSize) + 1];
+        for (int i = 0; i < tileOffsets.length; i++) {
+            tileOffsets[i] = headerBuffer.getInt();
+        }
+        return new TiledMIP(width, height, tileSize, threshold, tileOffsets);
+    }
+
+    /**
+     * @return the regions of a target that are compared with the mask signal pixels, i.e. the union of the footprints
+     * of the mask and, for a mirrored search, of the mirrored mask, both extended by the xy shift. The footprint is
+     * made of the cells of FOOTPRINT_CELL_SIZE pixels that contain a compared pixel, so unlike the bounding boxes it
+     * does not include the empty area around a sparse or an irregular mask. The regions are the horizontal runs of
+     * footprint cells; the list is empty if the mask has no signal pixels
+     */
+    static List<Region> getSearchedRegions(ImageArray<?> maskImage, int maskThreshold, int xyShift, boolean mirrorMask) {
+        int width = maskImage.getWidth();
+        int height = maskImage.getHeight();
+        int cellsX = getTilesCount(width, FOOTPRINT_CELL_SIZE);
+        int cellsY = getTilesCount(height, FOOTPRINT_CELL_SIZE);
+        boolean[] footprint = new boolean[cellsX * cellsY];
+        for (int y = 0; y < height; y++) {
+            int cy0 = Math.max(0, y - xyShift) / FOOTPRINT_CELL_SIZE;
+            int cy1 = Math.min(height - 1, y + xyShift) / FOOTPRINT_CELL_SIZE;
+            for (int x = 0; x < width; x++) {
+                if (!SparseMIP.isSignal(maskImage.get(y * width + x), maskThreshold)) {
+                    continue;
+                }
+                for (int m = 0; m < (mirrorMask ? 2 : 1); m++) {
+                    int mx = m == 0 ? x : width - 1 - x;
+                    int cx0 = Math.max(0, mx - xyShift) / FOOTPRINT_CELL_SIZE;
+                    int cx1 = Math.min(width - 1, mx + xyShift) / FOOTPRINT_CELL_SIZE;
+                    for (int cy = cy0; cy <= cy1; cy++) {
+                        for (int cx = cx0; cx <= cx1; cx++) {
+                            footprint[cy * cellsX + cx] = true;
+                        }
+                    }
+                }
+            }
+        }
+        List<Region> regions = new ArrayList<>();
+        for (int cy = 0; cy < cellsY; cy++) {
+            int cx = 0;
+            while (cx < cellsX) {
+                if (!footprint[cy * cellsX + cx]) {
+                    cx++;
+                    continue;
+                }
+                int runStart = cx;
+                while (cx < cellsX && footprint[cy * cellsX + cx]) {
+                    cx++;
+                }
+                regions.add(new Region(
+                        runStart * FOOTPRINT_CELL_SIZE, cy * FOOTPRINT_CELL_SIZE,
+                        Math.min(width, cx * FOOTPRINT_CELL_SIZE) - 1, Math.min(height, (cy + 1) * FOOTPRINT_CELL_SIZE) - 1));
+            }
+        }
+        return regions;
+    }
+
+    private static int getTilesCount(int size, int tileSize) {
+        return (size + tileSize - 1) / tileSize;
+    }
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int threshold;
+    private final int[] tileOffsets;
+
+    private TiledMIP(int width, int height, int tileSize, int threshold, int[] tileOffsets) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.threshold = threshold;
+        this.tileOffsets = tileOffsets;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    int getHeaderSize() {
+        return HEADER_FIXED_SIZE + 4 * tileOffsets.length;
+    }
+
+    /**
+     * @return true if a search that uses the given data threshold gets the same result with the tiled MIP as with the original image
+     */
+    boolean isEquivalentForDataThreshold(int dataThreshold) {
+        return dataThreshold >= threshold;
+    }
+
+    /**
+     * @return the indexes of the non empty tiles that intersect any of the regions, in increasing order
+     */
+    List<Integer> getTiles(List<Region> regions) {
+        int tilesX = getTilesCount(width, tileSize);
+        int tilesY = getTilesCount(height, tileSize);
+        boolean[] selectedTiles = new boolean[tilesX * tilesY];
+        for (Region region : regions) {
+            for (int ty = region.y0 / tileSize; ty <= Math.min(region.y1, height - 1) / tileSize; ty++) {
+                for (int tx = region.x0 / tileSize; tx <= Math.min(region.x1, width - 1) / tileSize; tx++) {
+                    selectedTiles[ty * tilesX + tx] = true;
+                }
+            }
+        }
+        List<Integer> tiles = new ArrayList<>();
+        for (int tile = 0; tile < selectedTiles.length; tile++) {
+            if (selectedTiles[tile] && tileOffsets[tile + 1] > tileOffsets[tile]) {
+                tiles.add(tile);
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Group the tiles into the byte ranges that must be read. Consecutive tiles are read together and so are tiles
+     * separated by fewer than maxGapBytes bytes, since reading a few more bytes is cheaper than another request.
+     *
+     * @param tiles tile indexes in increasing order
+     * @return the ranges as {first tile, last tile} pairs
+     */
+    List<int[]> getTileRanges(List<Integer> tiles, int maxGapBytes) {
+        List<int[]> tileRanges = new ArrayList<>();
+        int[] currentRange = null;
+        for (int tile : tiles) {
+            if (currentRange != null && tileOffsets[tile] - tileOffsets[currentRange[1] + 1] <= maxGapBytes) {
+                currentRange[1] = tile;
+            } else {
+                currentRange = new int[]{tile, tile};
+                tileRanges.add(currentRange);
+            }
+        }
+        return tileRanges;
+    }
+
+    /**
+     * @return the offset in the stored MIP of the first byte of the tile
+     */
+    long getTileStart(int tile) {
+        return (long) getHeaderSize() + tileOffsets[tile];
+    }
+
+    /**
+     * @return the offset in the stored MIP of the last byte of the tile
+     */
+    long getTileEnd(int tile) {
+        return (long) getHeaderSize() + tileOffsets[tile + 1] - 1;
+    }
+
+    /**
+     * Decode a tile into the pixels of the image.
+     *
+     * @param tileRangeBytes bytes of a range of tiles
+     * @param tileRangeStart offset in the stored MIP of the first byte of tileRangeBytes
+     * @return the index of the last pixel of the tile
+     */
+    int decodeTile(int tile, byte[] tileRangeBytes, long tileRangeStart, int[] pixels) throws IOException {
+        int tilesX = getTilesCount(width, tileSize);
+        int tx0 = (tile % tilesX) * tileSize;
+        int ty0 = (tile / tilesX) * tileSize;
+        int tx1 = Math.min(width, tx0 + tileSize);
+        int ty1 = Math.min(height, ty0 + tileSize);
+        byte[] tileBytes = new byte[3 * (tx1 - tx0) * (ty1 - ty0)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(tileRangeBytes, (int) (getTileStart(tile) - tileRangeStart), tileOffsets[tile + 1] - tileOffsets[tile]);
+            int nBytes = 0;
+            while (nBytes < tileBytes.length && !inflater.finished()) {
+                int n = inflater.inflate(tileBytes, nBytes, tileBytes.length - nBytes);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated tile " + tile);
+                }
+                nBytes += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid tile " + tile, e);
+        } finally {
+            inflater.end();
+        }
+        int b = 0;
+        for (int y = ty0; y < ty1; y++) {
+            for (int x = tx0; x < tx1; x++) {
+                pixels[y * width + x] = ((tileBytes[b] & 0xff) << 16) | ((tileBytes[b + 1] & 0xff) << 8) | (tileBytes[b + 2] & 0xff);
+                b += 3;
+            }
+        }
+        return (ty1 - 1) * width + tx1 - 1;
+    }
+
+    /**
+     * @return the index of the first pixel of the tile
+     */
+    int getTileFirstPixel(int tile) {
+        int tilesX = getTilesCount(width, tileSize);
+        return (tile / tilesX) * tileSize * width + (tile % tilesX) * tileSize;
+    }
+
+}
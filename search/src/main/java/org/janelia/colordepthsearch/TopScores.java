@@ -0,0 +1,48 @@
+package org.janelia.colordepthsearch;
+
+import java.util.PriorityQueue;
+
+/**
+ * Best matching pixel counts of a mask, shared by the comparisons of the mask with all targets. Once the mask has
+ * as many scores as the number of results kept per mask, the lowest of them becomes the threshold a target has
+ * to reach to be one of the results, and the threshold rises as better scores are added.
+ *
+ * Scores equal to the threshold are still results, so keeping every score that reaches the final threshold gives
+ * the top results of the exhaustive search including the ties.
+ */
+class TopScores {
+
+    private final int maxScores;
+    private final PriorityQueue<Integer> scores = new PriorityQueue<>();
+    private volatile int threshold;
+
+    /**
+     * @param maxScores number of results kept per mask
+     * @param minScore lowest number of matching pixels of a match
+     */
+    TopScores(int maxScores, int minScore) {
+        this.maxScores = maxScores;
+        this.threshold = minScore;
+    }
+
+    /**
+     * @return the lowest number of matching pixels that can still be one of the top results
+     */
+    int getThreshold() {
+        return threshold;
+    }
+
+    synchronized void add(int score) {
+        if (score < threshold) {
+            return;
+        }
+        scores.add(score);
+        if (scores.size() > maxScores) {
+            scores.poll();
+        }
+        if (scores.size() == maxScores) {
+            threshold = Math.max(threshold, scores.peek());
+        }
+    }
+
+}
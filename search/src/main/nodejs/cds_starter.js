@@ -1,6 +1,7 @@
 import {getSearchMetadataKey} from './searchutils';
 import {
     DEBUG,
+    getS3ContentMetadata,
     invokeFunction,
     putObject,
 } from './utils';
@@ -56,6 +57,8 @@ export const cdsStarter = async (event) => {
     const batchSize = parseInt(searchInputParams.batchSize) || defaultBatchSize();
     const maskKey = `${searchInputFolder}/${searchInputName}`;
     await checkSearchMask(searchId, searchBucket, maskKey);
+    // the batches identify the mask content by its ETag for the memoized results instead of reading the mask again
+    const maskMetadata = await getS3ContentMetadata(searchBucket, maskKey);
     const searchedData = await getSearchedLibraries(searchInputParams, dataBucket);
     console.log("Search input params with libraries", searchedData);
     if (searchedData.totalSearches === 0) {
@@ -79,6 +82,7 @@ export const cdsStarter = async (event) => {
         maxResultsPerMask: searchInputParams.maxResultsPerMask,
         searchBucket,
         maskKeys: [maskKey],
+        maskETags: [maskMetadata.ETag],
         inputAnatomicalRegion: searchedData.anatomicalRegion,
         targetType: searchedData.targetType,
         libraries: searchedData.searchedLibraries,
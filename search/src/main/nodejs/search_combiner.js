@@ -1,10 +1,11 @@
 import { getIntermediateSearchResultsPrefix, getSearchMaskId, getSearchResultsKey } from './searchutils';
-import { streamObject, removeKey, DEBUG } from './utils';
+import { streamObject, removeKey, invokeFunction, DEBUG } from './utils';
 import { queryDb } from './clientDbUtils';
 import { getSearchMetadata, updateSearchMetadata, SEARCH_COMPLETED } from './awsappsyncutils';
 import zlib from 'zlib';
 
 const maxResultsLength = process.env.MAX_CUSTOM_RESULTS || -1;
+const javaCombinerFunction = process.env.JAVA_COMBINER_FUNCTION;
 
 const mergeBatchResults = async (searchId, items, allBatchResults) => {
     let nMergedResults = 0;
@@ -265,36 +266,11 @@ const relativePathFromURL = (aURL) => {
     }
 };
 
-export const searchCombiner = async (event) => {
-    if (DEBUG) console.log('Input event:', JSON.stringify(event));
-
-    // Parameters
-    const { jobId, tasksTableName, timedOut, completed, batchErrors } = event;
-    const { searchBucket, searchId, maskKeys, maxResultsPerMask } = event.jobParameters;
-    const fullSearchInputName = maskKeys[0];
+// Merge the batch results and write the final results
+const combineResults = async (jobId, tasksTableName, searchId, searchBucket, fullSearchInputName, searchResultsKey, maxResultsPerMask) => {
     const searchInputName = fullSearchInputName.substring(fullSearchInputName.lastIndexOf("/") + 1);
-
     let allBatchResults = {};
 
-    const now = new Date();
-    if (timedOut || !completed) {
-        console.log(`Job ${jobId} - ${searchId} timed out`);
-        await updateSearchMetadata({
-            id: searchId,
-            step: SEARCH_COMPLETED,
-            errorMessage: "Color depth search timed out",
-            cdsFinished: now.toISOString()
-        });
-    } else if (batchErrors && batchErrors.length > 0) {
-        console.log(`Job ${jobId} - ${searchId} completed with errors`, batchErrors);
-        await updateSearchMetadata({
-            id: searchId,
-            step: SEARCH_COMPLETED,
-            errorMessage: `Color depth search completed with errors: ${JSON.stringify(batchErrors)}`,
-            cdsFinished: now.toISOString()
-        });
-    }
-
     const params = {
         TableName: tasksTableName,
         ConsistentRead: true,
@@ -339,7 +315,6 @@ export const searchCombiner = async (event) => {
 
     // write down the results
     console.log(`Save color depth search results for ${fullSearchInputName}`);
-    const searchResultsKey = getSearchResultsKey(fullSearchInputName);
     console.log(`Write results for ${jobId} to ${searchResultsKey}`);
     const outputUri = await streamObject(
         searchBucket,
@@ -360,6 +335,62 @@ export const searchCombiner = async (event) => {
                 })
     );
     console.log(`Saved ${allMatches.length} matches to ${outputUri}`);
+    return nTotalMatches;
+};
+
+// Merge the batch results and write the final results using the java combiner,
+// which merges the sorted batch results with a bounded number of results per mask
+const combineResultsWithJava = async (jobId, tasksTableName, searchBucket, fullSearchInputName, searchResultsKey, maxResultsPerMask) => {
+    const searchInputName = fullSearchInputName.substring(fullSearchInputName.lastIndexOf("/") + 1);
+    console.log(`Combine results for ${jobId} using ${javaCombinerFunction}`);
+    const response = await invokeFunction(javaCombinerFunction, {
+        jobId,
+        tasksTableName,
+        searchBucket,
+        maskKey: fullSearchInputName,
+        maskId: getSearchMaskId(searchInputName),
+        resultsKey: searchResultsKey,
+        maxResultsPerMask: maxResultsPerMask && maxResultsPerMask > 0 ? maxResultsPerMask : 0,
+    });
+    const payload = JSON.parse(Buffer.from(response.Payload).toString());
+    if (response.FunctionError) {
+        throw new Error(`Java combiner failed for ${jobId}: ${JSON.stringify(payload)}`);
+    }
+    console.log(`Saved ${payload} matches to s3://${searchBucket}/${searchResultsKey}`);
+    return payload;
+};
+
+export const searchCombiner = async (event) => {
+    if (DEBUG) console.log('Input event:', JSON.stringify(event));
+
+    // Parameters
+    const { jobId, tasksTableName, timedOut, completed, batchErrors } = event;
+    const { searchBucket, searchId, maskKeys, maxResultsPerMask } = event.jobParameters;
+    const fullSearchInputName = maskKeys[0];
+
+    const now = new Date();
+    if (timedOut || !completed) {
+        console.log(`Job ${jobId} - ${searchId} timed out`);
+        await updateSearchMetadata({
+            id: searchId,
+            step: SEARCH_COMPLETED,
+            errorMessage: "Color depth search timed out",
+            cdsFinished: now.toISOString()
+        });
+    } else if (batchErrors && batchErrors.length > 0) {
+        console.log(`Job ${jobId} - ${searchId} completed with errors`, batchErrors);
+        await updateSearchMetadata({
+            id: searchId,
+            step: SEARCH_COMPLETED,
+            errorMessage: `Color depth search completed with errors: ${JSON.stringify(batchErrors)}`,
+            cdsFinished: now.toISOString()
+        });
+    }
+
+    const searchResultsKey = getSearchResultsKey(fullSearchInputName);
+    const nTotalMatches = javaCombinerFunction
+        ? await combineResultsWithJava(jobId, tasksTableName, searchBucket, fullSearchInputName, searchResultsKey, maxResultsPerMask)
+        : await combineResults(jobId, tasksTableName, searchId, searchBucket, fullSearchInputName, searchResultsKey, maxResultsPerMask);
 
     // write down the progress - done
     const existingSearch = await getSearchMetadata(searchId);
@@ -2,27 +2,51 @@ package org.janelia.colordepthsearch;
 
 
 import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.janelia.colormipsearch.api.cdmips.MIPImage;
 import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
 import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProviderFactory;
 import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
 import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearch;
 import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearchResult;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearchResultUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
 import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
 import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
 import org.junit.Before;
 import org.junit.Test;
 
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AWSLambdaColorMIPSearchTest {
@@ -67,7 +91,82 @@ public class AWSLambdaColorMIPSearchTest {
                 "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1002360103-AVLP464-RT-JRC2018_Unisex_20x_HR-CDM.tif",
                 "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1002507131-PEN-a(PEN1)-JRC2018_Unisex_20x_HR-CDM-FL.tif"
         );
-        List<ColorMIPSearchResult> searchResults = awsLambdaColorMIPSearch.findAllColorDepthMatches(
+        ColorDepthMatches searchResults = awsLambdaColorMIPSearch.findAllColorDepthMatches(
+                maskKeys,
+                Arrays.asList(100),
+                libraryKeys,
+                null,
+                null
+        );
+        assertEquals(libraryKeys.size(), searchResults.size());
+    }
+
+    @Test
+    public void colorDepthMatchesWithGradientCandidates() {
+        prepareColorDepthSearchInvocation();
+        // make the pixel match scores different for each target
+        AtomicInteger nPixMatchCalls = new AtomicInteger();
+        when(maskColorDepthSearch.calculateMatchingScore(
+                any(ImageArray.class),
+                anyMap()))
+                .then(invocation -> {
+                    ColorMIPMatchScore sr = mock(ColorMIPMatchScore.class);
+                    when(sr.getMatchingPixNum()).thenReturn(100 + nPixMatchCalls.incrementAndGet());
+                    when(sr.getMatchingPixNumToMaskRatio()).thenReturn(0.1);
+                    return sr;
+                });
+        when(colorMIPSearch.isMatch(any(ColorMIPMatchScore.class))).thenReturn(true);
+        ColorMIPSearch gradientSearch = mock(ColorMIPSearch.class);
+        ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskGradientSearch = (ColorDepthSearchAlgorithm<ColorMIPMatchScore>) mock(ColorDepthSearchAlgorithm.class);
+        when(gradientSearch.createQueryColorDepthSearch(any(MIPImage.class), anyInt()))
+                .thenReturn(maskGradientSearch);
+        when(maskGradientSearch.getRequiredTargetVariantTypes()).thenReturn(new HashSet<>(Arrays.asList("gradient", "zgap")));
+        ColorMIPMatchScore gradientScore = mock(ColorMIPMatchScore.class);
+        when(maskGradientSearch.calculateMatchingScore(
+                any(ImageArray.class),
+                anyMap()))
+                .thenReturn(gradientScore);
+        when(gradientSearch.isMatch(gradientScore)).thenReturn(true);
+        awsLambdaColorMIPSearch.setGradientScoresSearch(gradientSearch, 3, 0);
+
+        List<String> maskKeys = Arrays.asList(
+                "private/us-east-1:853b7e81-c739-4434-99dd-aafeed3265e3/rc-upload-1594225719194-2/rc-upload-1594225719194-2.png"
+        );
+        List<String> libraryKeys = Arrays.asList(
+                "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.tif",
+                "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1110868515-TC-JRC2018_Unisex_20x_HR-CDM.tif",
+                "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1005308608-EL-RT-JRC2018_Unisex_20x_HR-CDM.tif",
+                "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1002360103-AVLP464-RT-JRC2018_Unisex_20x_HR-CDM.tif",
+                "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1002507131-PEN-a(PEN1)-JRC2018_Unisex_20x_HR-CDM-FL.tif"
+        );
+        List<String> gradientKeys = libraryKeys.stream()
+                .map(k -> k.replace("searchable_neurons", "grad").replaceAll("\\..*$", ""))
+                .collect(Collectors.toList());
+        ColorDepthMatches searchResults = awsLambdaColorMIPSearch.findAllColorDepthMatches(
+                maskKeys,
+                Arrays.asList(100),
+                libraryKeys,
+                gradientKeys,
+                gradientKeys
+        );
+        assertEquals(3, searchResults.size());
+        verify(maskColorDepthSearch, times(libraryKeys.size())).calculateMatchingScore(any(ImageArray.class), anyMap());
+        verify(maskGradientSearch, times(3)).calculateMatchingScore(any(ImageArray.class), anyMap());
+    }
+
+    @Test
+    public void colorDepthMatchesWithMemoryBudget() {
+        prepareColorDepthSearchInvocation();
+        // room for the mask and two targets
+        MemoryBudget memoryBudget = new MemoryBudget(5 * 4L * 1210 * 566, 1, 2);
+        awsLambdaColorMIPSearch.setMemoryBudget(memoryBudget);
+        List<String> maskKeys = Arrays.asList(
+                "private/us-east-1:853b7e81-c739-4434-99dd-aafeed3265e3/rc-upload-1594225719194-2/rc-upload-1594225719194-2.png"
+        );
+        List<String> libraryKeys = IntStream.range(0, 10)
+                .mapToObj(i -> "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/" + i + "-TC-JRC2018_Unisex_20x_HR-CDM.tif")
+                .collect(Collectors.toList());
+        ColorDepthMatches searchResults = awsLambdaColorMIPSearch.findAllColorDepthMatches(
                 maskKeys,
                 Arrays.asList(100),
                 libraryKeys,
@@ -75,6 +174,263 @@ public class AWSLambdaColorMIPSearchTest {
                 null
         );
         assertEquals(libraryKeys.size(), searchResults.size());
+        verify(mipLoader, times(libraryKeys.size())).loadMIPRange(anyString(), any(MIPMetadata.class), anyLong(), anyLong());
+        assertEquals(2, memoryBudget.getMaxInFlightTargets(
+                memoryBudget.estimateMaskBytes(new ColorImageArray(ImageType.RGB, 1210, 566, new int[1210 * 566]), 100),
+                memoryBudget.estimateTargetBytes(1210, 566)));
+    }
+
+    @Test
+    public void cancelledSearchStopsFetchingTargets() {
+        prepareColorDepthSearchInvocation();
+        InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(new StorageSimulation(0, 0));
+        dynamoDB.createTable("jobs", Collections.singletonList("jobId"));
+        AtomicInteger nLoadedTargets = new AtomicInteger();
+        when(mipLoader.loadMIPRange(anyString(), any(MIPMetadata.class), anyLong(), anyLong()))
+                .then(invocation -> {
+                    if (nLoadedTargets.incrementAndGet() == 3) {
+                        Map<String, AttributeValue> jobItem = new HashMap<>();
+                        jobItem.put("jobId", AttributeValue.builder().s("job").build());
+                        jobItem.put("status", AttributeValue.builder().s(JobCancellation.CANCELLED_STATUS).build());
+                        dynamoDB.putItem(PutItemRequest.builder().tableName("jobs").item(jobItem).build());
+                    }
+                    return new MIPImage(invocation.getArgument(1), new ColorImageArray(ImageType.RGB, 4, 4, new int[16]));
+                });
+        awsLambdaColorMIPSearch.setCancellation(new JobCancellation(dynamoDB, "jobs", "job", 0));
+        List<String> maskKeys = Arrays.asList("mask0.png", "mask1.png");
+        List<String> libraryKeys = IntStream.range(0, 10)
+                .mapToObj(i -> "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/" + i + "-TC-JRC2018_Unisex_20x_HR-CDM.tif")
+                .collect(Collectors.toList());
+        ColorDepthMatches searchResults = awsLambdaColorMIPSearch.findAllColorDepthMatches(
+                maskKeys,
+                Arrays.asList(100, 100),
+                libraryKeys,
+                null,
+                null
+        );
+        assertEquals(3, searchResults.size());
+        verify(mipLoader, times(3)).loadMIPRange(anyString(), any(MIPMetadata.class), anyLong(), anyLong());
+        // the second mask is not even loaded
+        verify(mipLoader, times(1)).loadMIP(anyString(), any(MIPMetadata.class));
+    }
+
+    @Test
+    public void colorDepthMatchesWithSparseTargets() {
+        prepareColorDepthSearchInvocation();
+        when(mipLoader.loadSparseMIPRange(anyString(), any(MIPMetadata.class), anyString(), anyLong(), anyLong(), anyInt()))
+                .then(invocation -> {
+                    String sparseKey = invocation.getArgument(2);
+                    if (sparseKey.contains("missing")) {
+                        return null; // not available so the target should be read from the library
+                    }
+                    MIPMetadata mip = invocation.getArgument(1);
+                    return new MIPImage(mip,
+                            ImageArrayUtils.readImageArray(
+                                    mip.getId(),
+                                    "test.png",
+                                    new FileInputStream("src/test/resources/mips/testMIP.png")));
+                });
+        awsLambdaColorMIPSearch.setSparseTargetsDataThreshold(100);
+
+        List<String> maskKeys = Arrays.asList(
+                "private/us-east-1:853b7e81-c739-4434-99dd-aafeed3265e3/rc-upload-1594225719194-2/rc-upload-1594225719194-2.png"
+        );
+        List<SearchTarget> targets = Arrays.asList(
+                new SearchTarget(
+                        "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.tif",
+                        null,
+                        null,
+                        "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons_sparse/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.smip"),
+                new SearchTarget(
+                        "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1110868515-TC-JRC2018_Unisex_20x_HR-CDM.tif",
+                        null,
+                        null,
+                        "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/missing/1110868515-TC-JRC2018_Unisex_20x_HR-CDM.smip"),
+                new SearchTarget(
+                        "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1005308608-EL-RT-JRC2018_Unisex_20x_HR-CDM.tif",
+                        null,
+                        null,
+                        null)
+        );
+        ColorDepthMatches searchResults = awsLambdaColorMIPSearch.findAllColorDepthMatches(
+                maskKeys,
+                Arrays.asList(100),
+                targets
+        );
+        assertEquals(targets.size(), searchResults.size());
+        verify(mipLoader, times(2)).loadSparseMIPRange(anyString(), any(MIPMetadata.class), anyString(), anyLong(), anyLong(), anyInt());
+        verify(mipLoader, times(2)).loadMIPRange(anyString(), any(MIPMetadata.class), anyLong(), anyLong());
+    }
+
+    @Test
+    public void colorDepthMatchesWithTargetSignalBits() throws Exception {
+        prepareColorDepthSearchInvocation();
+        when(colorMIPSearch.isMatch(any(ColorMIPMatchScore.class)))
+                .then(invocation -> invocation.<ColorMIPMatchScore>getArgument(0).getMatchingPixNum() >= 10);
+        ImageArray<?> maskImage = ImageArrayUtils.readImageArray("mask", "test.png", new FileInputStream("src/test/resources/mips/testMIP.png"));
+        int nWords = (maskImage.getWidth() * maskImage.getHeight() + 63) / 64;
+        long[] allSignalBits = new long[nWords];
+        Arrays.fill(allSignalBits, -1L);
+        Map<String, long[]> targetSignalBits = new HashMap<>();
+        targetSignalBits.put("JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.tif", allSignalBits);
+        // no signal so this target cannot match
+        targetSignalBits.put("JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1110868515-TC-JRC2018_Unisex_20x_HR-CDM.tif", new long[nWords]);
+        awsLambdaColorMIPSearch.setTargetSignalBits(targetSignalBits, maskImage.getWidth(), maskImage.getHeight(), 2, true);
+
+        List<String> maskKeys = Arrays.asList(
+                "private/us-east-1:853b7e81-c739-4434-99dd-aafeed3265e3/rc-upload-1594225719194-2/rc-upload-1594225719194-2.png"
+        );
+        List<String> libraryKeys = Arrays.asList(
+                "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.tif",
+                "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1110868515-TC-JRC2018_Unisex_20x_HR-CDM.tif",
+                "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/1005308608-EL-RT-JRC2018_Unisex_20x_HR-CDM.tif"
+        );
+        ColorDepthMatches searchResults = awsLambdaColorMIPSearch.findAllColorDepthMatches(
+                maskKeys,
+                Arrays.asList(100),
+                libraryKeys,
+                null,
+                null
+        );
+        assertEquals(2, searchResults.size());
+        verify(mipLoader, times(2)).loadMIPRange(anyString(), any(MIPMetadata.class), anyLong(), anyLong());
+    }
+
+    @Test
+    public void topResultsSameAsExhaustiveSearch() throws Exception {
+        int width = 64;
+        int height = 48;
+        Random random = new Random(42);
+        ImageArray<?> maskImage = TestImages.randomSignalImage(random, width, height, 0.15);
+        Map<String, ImageArray<?>> targetImages = new HashMap<>();
+        Map<String, long[]> targetSignalBits = new HashMap<>();
+        List<String> libraryKeys = new ArrayList<>();
+        for (int t = 0; t < 30; t++) {
+            String targetKey = "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/" + t + "-TC-JRC2018_Unisex_20x_HR-CDM.tif";
+            // a noisy copy of the mask or a random image with a varying amount of signal
+            ImageArray<?> targetImage = t % 3 == 0
+                    ? TestImages.randomSignalImage(random, width, height, 0.05 + random.nextDouble() * 0.3)
+                    : TestImages.withDroppedPixels(random, maskImage, random.nextDouble() * 0.8);
+            targetImages.put(targetKey.replaceAll("^.*/|\\.tif$", ""), targetImage);
+            if (t % 5 != 0) {
+                // some targets have no signal bits
+                targetSignalBits.put(targetKey, SignalBitsets.createTargetBits(targetImage, 100, 0, width * height - 1));
+            }
+            libraryKeys.add(targetKey);
+        }
+        when(mipLoader.loadMIP(anyString(), any(MIPMetadata.class)))
+                .then(invocation -> new MIPImage(invocation.getArgument(1), maskImage));
+        when(mipLoader.loadMIPRange(anyString(), any(MIPMetadata.class), anyLong(), anyLong()))
+                .then(invocation -> {
+                    MIPMetadata mip = invocation.getArgument(1);
+                    return new MIPImage(mip, targetImages.get(mip.getId()));
+                });
+        List<String> maskKeys = Collections.singletonList("private/us-east-1:853b7e81-c739-4434-99dd-aafeed3265e3/mask/mask.png");
+        int maxResults = 5;
+
+        AWSLambdaColorMIPSearch exhaustiveSearch = createPixelMatchSearch(2, true);
+        List<JsonNode> allResults = getResults(exhaustiveSearch.findAllColorDepthMatches(maskKeys, Arrays.asList(100), libraryKeys, null, null));
+        AWSLambdaColorMIPSearch topResultsSearch = createPixelMatchSearch(2, true);
+        topResultsSearch.setTargetSignalBits(targetSignalBits, width, height, 2, true);
+        topResultsSearch.setShiftBoundedPixelMatch(
+                new ColorMIPSearch(1., 100, ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(false, 100, 2.0, 0)),
+                100, 2, true);
+        topResultsSearch.setTopResultsBound(maxResults);
+        List<JsonNode> topResults = getResults(topResultsSearch.findAllColorDepthMatches(maskKeys, Arrays.asList(100), libraryKeys, null, null));
+
+        assertTrue(allResults.size() > maxResults);
+        int threshold = MaskResultsMerger.getScore(allResults.get(maxResults - 1));
+        List<String> expectedResults = allResults.stream()
+                .filter(result -> MaskResultsMerger.getScore(result) >= threshold)
+                .map(JsonNode::toString)
+                .sorted()
+                .collect(Collectors.toList());
+        assertEquals(expectedResults, topResults.stream().map(JsonNode::toString).sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void gradientSearchReturnsAllPixelBuffers() throws Exception {
+        InMemoryS3 s3 = new InMemoryS3(new StorageSimulation(0, 0), (bucket, key) -> "search");
+        byte[] mipContent = Files.readAllBytes(Paths.get("src/test/resources/mips/testMIP.tif"));
+        byte[] variantContent = Files.readAllBytes(Paths.get("src/test/resources/mips/testMIP.png"));
+        s3.putContent(AWS_MASKS_BUCKET, "private/mask/mask.tif", mipContent);
+        List<SearchTarget> targets = new ArrayList<>();
+        for (int t = 0; t < 6; t++) {
+            String targetName = t + "-TC-JRC2018_Unisex_20x_HR-CDM";
+            s3.putContent(AWS_LIBRARIES_BUCKET, "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/" + targetName + ".tif", mipContent);
+            s3.putContent(AWS_LIBRARIES_BUCKET, "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/grad/" + targetName + ".png", variantContent);
+            s3.putContent(AWS_LIBRARIES_BUCKET, "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/zgap/" + targetName + ".png", variantContent);
+            targets.add(new SearchTarget(
+                    "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/" + targetName + ".tif",
+                    "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/grad/" + targetName,
+                    "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/zgap/" + targetName,
+                    null));
+        }
+        PixelBufferPool pixelBufferPool = new PixelBufferPool();
+        AWSLambdaColorMIPSearch gradientSearch = new AWSLambdaColorMIPSearch(
+                new AWSMIPLoader(s3, pixelBufferPool),
+                new ColorMIPSearch(1., 100, ColorDepthSearchAlgorithmProviderFactory.createPixMatchWithNegativeScoreCDSAlgorithmProvider(false, 100, 2.0, 0, 20, null)),
+                AWS_MASKS_BUCKET,
+                AWS_LIBRARIES_BUCKET,
+                AWS_LIBRARIES_THUMBNAILS_BUCKET
+        );
+        gradientSearch.setMemoryBudget(new MemoryBudget(256L * 1024 * 1024, 1, 2));
+        ColorDepthMatches searchResults = gradientSearch.findAllColorDepthMatches(
+                Collections.singletonList("private/mask/mask.tif"),
+                Arrays.asList(100),
+                targets);
+        assertEquals(targets.size(), searchResults.size());
+        // the targets and their gradient and zgap variants were all decoded into pooled buffers
+        assertEquals(0, pixelBufferPool.getOutstandingLeases());
+    }
+
+    private AWSLambdaColorMIPSearch createPixelMatchSearch(int xyShift, boolean mirrorMask) {
+        return new AWSLambdaColorMIPSearch(
+                mipLoader,
+                new ColorMIPSearch(1., 100, ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(mirrorMask, 100, 2.0, xyShift)),
+                AWS_MASKS_BUCKET,
+                AWS_LIBRARIES_BUCKET,
+                AWS_LIBRARIES_THUMBNAILS_BUCKET
+        );
+    }
+
+    /**
+     * @return the results of the mask sorted by score
+     */
+    private List<JsonNode> getResults(ColorDepthMatches matches) throws Exception {
+        JsonNode maskResults = new ObjectMapper().readTree(LambdaUtils.toJsonArray(matches.streamCDSMatches()));
+        List<JsonNode> results = new ArrayList<>();
+        maskResults.get(0).path("results").forEach(results::add);
+        results.sort(Comparator.comparingInt(MaskResultsMerger::getScore).reversed());
+        return results;
+    }
+
+    @Test
+    public void colorDepthMatchesSerialization() {
+        List<MIPMetadata> maskMIPs = IntStream.range(0, 2).mapToObj(i -> createTestMIP("mask" + i)).collect(Collectors.toList());
+        List<MIPMetadata> targetMIPs = IntStream.range(0, 5).mapToObj(i -> createTestMIP("target" + i)).collect(Collectors.toList());
+        ColorDepthMatches matches = new ColorDepthMatches(targetMIPs::get);
+        List<ColorMIPSearchResult> expectedResults = new ArrayList<>();
+        for (int m = 0; m < maskMIPs.size(); m++) {
+            int maskIndex = matches.addMask(maskMIPs.get(m));
+            for (int t = targetMIPs.size() - 1; t >= m; t--) {
+                ColorMIPMatchScore score = new ColorMIPMatchScore(100 * t + m, t / 10., null);
+                matches.addMatch(maskIndex, t, score);
+                expectedResults.add(new ColorMIPSearchResult(maskMIPs.get(m), targetMIPs.get(t), score, true, false));
+            }
+        }
+        assertEquals(expectedResults.size(), matches.size());
+        assertEquals(
+                LambdaUtils.toJson(ColorMIPSearchResultUtils.groupResults(expectedResults, ColorMIPSearchResult::perMaskMetadata)),
+                LambdaUtils.toJsonArray(matches.streamCDSMatches()));
+    }
+
+    private MIPMetadata createTestMIP(String id) {
+        MIPMetadata mip = new MIPMetadata();
+        mip.setId(id);
+        mip.setImageName(id + ".png");
+        mip.setPublishedName(id);
+        return mip;
     }
 
     private void prepareColorDepthSearchInvocation() {
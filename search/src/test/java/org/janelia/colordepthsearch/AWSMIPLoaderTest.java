@@ -0,0 +1,108 @@
+package org.janelia.colordepthsearch;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import org.janelia.colormipsearch.api.cdmips.MIPImage;
+import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AWSMIPLoaderTest {
+
+    private static final String TEST_BUCKET = "janelia-flylight-color-depth";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private S3Client s3;
+
+    @Before
+    public void setUp() {
+        s3 = mock(S3Client.class);
+        when(s3.getObject(any(GetObjectRequest.class), any(ResponseTransformer.class)))
+                .then(invocation -> {
+                    GetObjectRequest request = invocation.getArgument(0);
+                    return new ResponseInputStream<>(
+                            GetObjectResponse.builder().build(),
+                            AbortableInputStream.create(new FileInputStream("src/test/resources/mips/" + request.key())));
+                });
+    }
+
+    @Test
+    public void pooledPixelBuffersAreClearedAndReturned() throws Exception {
+        PixelBufferPool pixelBufferPool = new PixelBufferPool();
+        AWSMIPLoader mipLoader = new AWSMIPLoader(s3, pixelBufferPool);
+        ImageArray<?> expectedImage;
+        try (InputStream imageStream = new FileInputStream("src/test/resources/mips/testMIP.tif")) {
+            expectedImage = ImageArrayUtils.readImageArray("testMIP", "testMIP.tif", imageStream);
+        }
+        int width = expectedImage.getWidth();
+        long[][] ranges = {
+                {100L * width, 500L * width},
+                {200L * width + 3, 300L * width},
+                {0, 10L * width}
+        };
+        for (long[] range : ranges) {
+            MIPImage mipImage = mipLoader.loadMIPRange(TEST_BUCKET, createMIP("testMIP.tif"), range[0], range[1]);
+            assertEquals(1, pixelBufferPool.getOutstandingLeases());
+            ImageArray<?> imageArray = mipImage.getImageArray();
+            for (int i = 0; i < width * expectedImage.getHeight(); i++) {
+                boolean inRange = i / width >= range[0] / width && i / width <= range[1] / width;
+                assertEquals("Pixel " + i, inRange ? expectedImage.get(i) & 0xffffff : 0, imageArray.get(i) & 0xffffff);
+            }
+            mipLoader.releaseMIP(mipImage);
+            assertEquals(0, pixelBufferPool.getOutstandingLeases());
+        }
+    }
+
+    @Test
+    public void cachedObjectsAreFetchedOnce() throws Exception {
+        AWSMIPLoader mipLoader = new AWSMIPLoader(s3, new PixelBufferPool());
+        mipLoader.setObjectCache(new ObjectCache(10L * 1024 * 1024, folder.getRoot().toPath(), 0), "v1");
+        long size = mipLoader.prefetchObject(TEST_BUCKET, "testMIP.tif");
+        assertEquals(size, mipLoader.prefetchObject(TEST_BUCKET, "testMIP.tif"));
+        ImageArray<?> expectedImage;
+        try (InputStream imageStream = new FileInputStream("src/test/resources/mips/testMIP.tif")) {
+            expectedImage = ImageArrayUtils.readImageArray("testMIP", "testMIP.tif", imageStream);
+        }
+        MIPImage mipImage = mipLoader.loadMIPRange(TEST_BUCKET, createMIP("testMIP.tif"), 0, (long) expectedImage.getWidth() * expectedImage.getHeight() - 1);
+        for (int i = 0; i < expectedImage.getWidth() * expectedImage.getHeight(); i++) {
+            assertEquals("Pixel " + i, expectedImage.get(i) & 0xffffff, mipImage.getImageArray().get(i) & 0xffffff);
+        }
+        verify(s3, times(1)).getObject(any(GetObjectRequest.class), any(ResponseTransformer.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pixelBufferCannotBeReturnedTwice() {
+        PixelBufferPool pixelBufferPool = new PixelBufferPool();
+        PixelBufferPool.Lease lease = pixelBufferPool.lease(10, 10);
+        lease.close();
+        pixelBufferPool.lease(10, 10).close();
+        lease.close();
+    }
+
+    private MIPMetadata createMIP(String name) {
+        MIPMetadata mip = new MIPMetadata();
+        mip.setId(name);
+        mip.setImageName(name);
+        return mip;
+    }
+}
@@ -0,0 +1,136 @@
+package org.janelia.colordepthsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.janelia.colormipsearch.api.cdmips.MIPImage;
+import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProviderFactory;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearch;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CoalescedSearchTest {
+
+    private static final String AWS_MASKS_BUCKET = "janelia-neuronbridge-searches-dev";
+    private static final String AWS_LIBRARIES_BUCKET = "janelia-flylight-color-depth";
+    private static final String AWS_LIBRARIES_THUMBNAILS_BUCKET = "janelia-flylight-color-depth-thumbnails";
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private AWSMIPLoader mipLoader;
+    private List<SearchTarget> targets;
+    private Map<String, long[]> targetSignalBits;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(50);
+        Map<String, ImageArray<?>> images = new HashMap<>();
+        List<ImageArray<?>> maskImages = new ArrayList<>();
+        for (int m = 0; m < 3; m++) {
+            ImageArray<?> maskImage = TestImages.randomSignalImage(random, WIDTH, HEIGHT, 0.1 + 0.05 * m);
+            maskImages.add(maskImage);
+            images.put("mask" + m, maskImage);
+        }
+        targets = new ArrayList<>();
+        targetSignalBits = new HashMap<>();
+        for (int t = 0; t < 40; t++) {
+            String targetKey = "JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.1/searchable_neurons/" + t + "-TC-JRC2018_Unisex_20x_HR-CDM.tif";
+            // a noisy copy of one of the masks or a random image
+            ImageArray<?> targetImage = t % 4 == 0
+                    ? TestImages.randomSignalImage(random, WIDTH, HEIGHT, 0.05 + random.nextDouble() * 0.3)
+                    : TestImages.withDroppedPixels(random, maskImages.get(t % maskImages.size()), random.nextDouble() * 0.8);
+            images.put(t + "-TC-JRC2018_Unisex_20x_HR-CDM", targetImage);
+            targetSignalBits.put(targetKey, SignalBitsets.createTargetBits(targetImage, 100, 0, WIDTH * HEIGHT - 1));
+            targets.add(new SearchTarget(targetKey, null, null, null));
+        }
+        mipLoader = mock(AWSMIPLoader.class);
+        when(mipLoader.loadMIP(anyString(), any(MIPMetadata.class)))
+                .then(invocation -> {
+                    MIPMetadata mip = invocation.getArgument(1);
+                    return new MIPImage(mip, images.get(mip.getId()));
+                });
+        when(mipLoader.loadMIPRange(anyString(), any(MIPMetadata.class), anyLong(), anyLong()))
+                .then(invocation -> {
+                    MIPMetadata mip = invocation.getArgument(1);
+                    return new MIPImage(mip, images.get(mip.getId()));
+                });
+    }
+
+    @Test
+    public void sameMatchesAsSeparateSearches() {
+        List<List<String>> jobMaskKeys = Arrays.asList(
+                Arrays.asList("private/job0/mask0.png", "private/job0/mask1.png"),
+                Arrays.asList("private/job1/mask1.png", "private/job1/mask2.png"),
+                Arrays.asList("private/job2/mask2.png"));
+        List<List<Integer>> jobMaskThresholds = Arrays.asList(
+                Arrays.asList(100, 100),
+                Arrays.asList(100, 80),
+                Arrays.asList(100));
+        List<String> expectedMatches = new ArrayList<>();
+        for (int j = 0; j < jobMaskKeys.size(); j++) {
+            expectedMatches.add(LambdaUtils.toJsonArray(createJobSearch(j).findAllColorDepthMatches(
+                    jobMaskKeys.get(j), jobMaskThresholds.get(j), targets).streamCDSMatches()));
+        }
+        clearInvocations(mipLoader);
+
+        CoalescedSearch coalescedSearch = new CoalescedSearch();
+        coalescedSearch.setMemoryBudget(new MemoryBudget(64L * 1024 * 1024, 18, 2));
+        for (int j = 0; j < jobMaskKeys.size(); j++) {
+            coalescedSearch.addJob(createJobSearch(j), jobMaskKeys.get(j), jobMaskThresholds.get(j));
+        }
+        List<ColorDepthMatches> jobMatches = coalescedSearch.findAllColorDepthMatches(targets);
+
+        assertEquals(jobMaskKeys.size(), jobMatches.size());
+        for (int j = 0; j < jobMaskKeys.size(); j++) {
+            assertTrue(jobMatches.get(j).size() > 0);
+            assertEquals(expectedMatches.get(j), LambdaUtils.toJsonArray(jobMatches.get(j).streamCDSMatches()));
+        }
+        // every target is loaded at most once for all the masks of all the jobs
+        verify(mipLoader, times(5)).loadMIP(anyString(), any(MIPMetadata.class));
+        verify(mipLoader, times(targets.size())).loadMIPRange(anyString(), any(MIPMetadata.class), anyLong(), anyLong());
+    }
+
+    /**
+     * The jobs have different search parameters: a plain pixel match, a shifted and mirrored pixel match
+     * that only keeps the top results, and a pixel match with a different data threshold.
+     */
+    private AWSLambdaColorMIPSearch createJobSearch(int jobIndex) {
+        int dataThreshold = jobIndex == 2 ? 80 : 100;
+        int xyShift = jobIndex == 1 ? 2 : 0;
+        boolean mirrorMask = jobIndex == 1;
+        AWSLambdaColorMIPSearch jobSearch = new AWSLambdaColorMIPSearch(
+                mipLoader,
+                new ColorMIPSearch(1., 100, ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(mirrorMask, dataThreshold, 2.0, xyShift)),
+                AWS_MASKS_BUCKET,
+                AWS_LIBRARIES_BUCKET,
+                AWS_LIBRARIES_THUMBNAILS_BUCKET
+        );
+        if (jobIndex == 1) {
+            jobSearch.setTargetSignalBits(targetSignalBits, WIDTH, HEIGHT, xyShift, mirrorMask);
+            jobSearch.setShiftBoundedPixelMatch(
+                    new ColorMIPSearch(1., 100, ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(false, dataThreshold, 2.0, 0)),
+                    dataThreshold, xyShift, mirrorMask);
+            jobSearch.setTopResultsBound(5);
+        }
+        return jobSearch;
+    }
+
+}
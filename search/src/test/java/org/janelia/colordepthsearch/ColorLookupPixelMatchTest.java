@@ -0,0 +1,222 @@
+package org.janelia.colordepthsearch;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.colormipsearch.api.cdmips.MIPImage;
+import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProviderFactory;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearch;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ColorLookupPixelMatchTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ColorLookupPixelMatchTest.class);
+
+    /**
+     * The masks are windows of the fixture MIPs and the targets are the fixture MIPs with shifted and perturbed colors,
+     * so that many of the compared colors are close to the fluctuation limit.
+     */
+    @Test
+    public void sameScoresAsThePixelMatchOnTheFixtures() throws Exception {
+        Random random = new Random(48);
+        List<ImageArray<?>> fixtures = new ArrayList<>();
+        for (String fixture : new String[]{"testMIP.tif", "testMIP.png"}) {
+            try (InputStream imageStream = new FileInputStream("src/test/resources/mips/" + fixture)) {
+                fixtures.add(ImageArrayUtils.readImageArray(fixture, fixture, imageStream));
+            }
+        }
+        long nMatchingPixels = 0;
+        for (ImageArray<?> fixture : fixtures) {
+            List<ImageArray<?>> targets = new ArrayList<>();
+            for (int colorShift : new int[]{0, 2, 8, 24}) {
+                targets.add(perturbColors(random, fixture, colorShift));
+            }
+            for (int[] searchParams : new int[][]{{100, 20}, {50, 10}, {20, 40}}) {
+                int dataThreshold = searchParams[0];
+                double pixColorFluctuation = searchParams[1] / 10.;
+                ColorMIPSearch unshiftedPixelMatchSearch = new ColorMIPSearch(1., 100,
+                        ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(false, dataThreshold, pixColorFluctuation, 0));
+                ColorLookupTable colorLookupTable = new ColorLookupTable(unshiftedPixelMatchSearch, createMemoryBudget());
+                for (ImageArray<?> mask : createMasks(fixture)) {
+                    MIPImage maskImage = new MIPImage(new MIPMetadata(), mask);
+                    SignalBitsets.MaskBits maskBits = SignalBitsets.createMaskBits(mask, 100, 4, true);
+                    ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedSearch = unshiftedPixelMatchSearch.createQueryColorDepthSearch(maskImage, 100);
+                    ColorLookupPixelMatch colorLookupSearch = new ColorLookupPixelMatch(unshiftedSearch, mask, maskBits.getMaskPixels(), colorLookupTable);
+                    ColorDepthSearchAlgorithm<ColorMIPMatchScore> exhaustiveSearch = ColorDepthSearchAlgorithmProviderFactory
+                            .createPixMatchCDSAlgorithmProvider(true, dataThreshold, pixColorFluctuation, 4)
+                            .createColorDepthQuerySearchAlgorithm(mask, 100, 0);
+                    ShiftBoundedPixelMatch shiftBoundedSearch = new ShiftBoundedPixelMatch(exhaustiveSearch, colorLookupSearch, maskBits, dataThreshold);
+                    for (ImageArray<?> target : targets) {
+                        ColorMIPMatchScore expectedScore = unshiftedSearch.calculateMatchingScore(target, Collections.emptyMap());
+                        ColorMIPMatchScore score = colorLookupSearch.calculateMatchingScore(target, Collections.emptyMap());
+                        assertEquals(expectedScore.getMatchingPixNum(), score.getMatchingPixNum());
+                        assertEquals(expectedScore.getMatchingPixNumToMaskRatio(), score.getMatchingPixNumToMaskRatio(), 1e-9);
+                        assertEquals(exhaustiveSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum(),
+                                shiftBoundedSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum());
+                        nMatchingPixels += expectedScore.getMatchingPixNum();
+                    }
+                }
+            }
+        }
+        assertTrue(nMatchingPixels > 0);
+    }
+
+    /**
+     * The target colors are drawn around the mask colors, where the boundary of the match region crosses the cells
+     * of the table, and every decision of the table is compared with the pixel match of single pixel images.
+     */
+    @Test
+    public void sameDecisionsAsThePixelMatchAroundTheMaskColors() {
+        Random random = new Random(48);
+        for (int[] searchParams : new int[][]{{100, 20}, {50, 10}, {20, 40}}) {
+            int dataThreshold = searchParams[0];
+            double pixColorFluctuation = searchParams[1] / 10.;
+            ColorMIPSearch unshiftedPixelMatchSearch = new ColorMIPSearch(1., 100,
+                    ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(false, dataThreshold, pixColorFluctuation, 0));
+            ColorLookupTable colorLookupTable = new ColorLookupTable(unshiftedPixelMatchSearch, createMemoryBudget());
+            int nMatches = 0;
+            for (int m = 0; m < 8; m++) {
+                int maskColor = random.nextInt(1 << 24);
+                ColorLookupTable.Row row = colorLookupTable.getRow(maskColor);
+                ColorDepthSearchAlgorithm<ColorMIPMatchScore> pixelSearch = unshiftedPixelMatchSearch.createQueryColorDepthSearch(
+                        new MIPImage(new MIPMetadata(), new ColorImageArray(ImageType.RGB, 1, 1, new int[]{maskColor})), 1);
+                for (int t = 0; t < 2000; t++) {
+                    int targetColor = perturbChannel(random, (maskColor >> 16) & 0xff, 48) << 16
+                            | perturbChannel(random, (maskColor >> 8) & 0xff, 48) << 8
+                            | perturbChannel(random, maskColor & 0xff, 48);
+                    boolean expectedMatch = pixelSearch.calculateMatchingScore(
+                            new ColorImageArray(ImageType.RGB, 1, 1, new int[]{targetColor}), Collections.emptyMap()).getMatchingPixNum() > 0;
+                    assertEquals(expectedMatch, row.matches(targetColor));
+                    if (expectedMatch) {
+                        nMatches++;
+                    }
+                }
+            }
+            assertTrue(nMatches > 0);
+        }
+    }
+
+    /**
+     * The budget only has room for the rows of two colors and none for the decisions of the mixed cells.
+     */
+    @Test
+    public void tableStaysWithinTheMemoryBudget() {
+        Random random = new Random(48);
+        ColorMIPSearch unshiftedPixelMatchSearch = new ColorMIPSearch(1., 100,
+                ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(false, 100, 2.0, 0));
+        MemoryBudget memoryBudget = new MemoryBudget(4 * 2 * ColorLookupTable.ROW_BYTES, 1, 1);
+        ColorLookupTable colorLookupTable = new ColorLookupTable(unshiftedPixelMatchSearch, memoryBudget);
+        int[] maskColors = {0xc08040, 0x40c0c0, 0xc040c0};
+        for (int nColors = 2; nColors <= 3; nColors++) {
+            int[] pixels = new int[64 * 64];
+            int[] maskPixels = new int[200];
+            for (int i = 0; i < maskPixels.length; i++) {
+                maskPixels[i] = 10 * i;
+                pixels[maskPixels[i]] = maskColors[i % nColors];
+            }
+            ImageArray<?> mask = new ColorImageArray(ImageType.RGB, 64, 64, pixels);
+            ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedSearch = unshiftedPixelMatchSearch.createQueryColorDepthSearch(
+                    new MIPImage(new MIPMetadata(), mask), 100);
+            ColorLookupPixelMatch colorLookupSearch = new ColorLookupPixelMatch(unshiftedSearch, mask, maskPixels, colorLookupTable);
+            // the rows of the third color do not fit
+            assertEquals(nColors == 2, colorLookupSearch.isWithLookupTable());
+            for (int colorShift : new int[]{0, 8, 24}) {
+                ImageArray<?> target = perturbColors(random, mask, colorShift);
+                assertEquals(unshiftedSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum(),
+                        colorLookupSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum());
+            }
+        }
+        assertFalse(memoryBudget.tryReserveShared(1));
+    }
+
+    /**
+     * Benchmark of the unshifted pixel match of a fixture mask with and without the color lookup table,
+     * once the table is filled.
+     */
+    @Test
+    public void lookupTableTiming() throws Exception {
+        ImageArray<?> fixture;
+        try (InputStream imageStream = new FileInputStream("src/test/resources/mips/testMIP.tif")) {
+            fixture = ImageArrayUtils.readImageArray("testMIP", "testMIP.tif", imageStream);
+        }
+        ImageArray<?> target = perturbColors(new Random(48), fixture, 8);
+        ColorMIPSearch unshiftedPixelMatchSearch = new ColorMIPSearch(1., 100,
+                ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(false, 100, 2.0, 0));
+        ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedSearch = unshiftedPixelMatchSearch.createQueryColorDepthSearch(new MIPImage(new MIPMetadata(), fixture), 100);
+        ColorLookupPixelMatch colorLookupSearch = new ColorLookupPixelMatch(unshiftedSearch, fixture,
+                SignalBitsets.createMaskBits(fixture, 100, 0, false).getMaskPixels(), new ColorLookupTable(unshiftedPixelMatchSearch, createMemoryBudget()));
+        long fillStart = System.nanoTime();
+        int expectedMatchingPixels = colorLookupSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum();
+        long fillTime = System.nanoTime() - fillStart;
+        int nComparisons = 200;
+        long colorCompareTime = 0;
+        long lookupTime = 0;
+        for (int i = 0; i < nComparisons; i++) {
+            long start = System.nanoTime();
+            assertEquals(expectedMatchingPixels, unshiftedSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum());
+            colorCompareTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            assertEquals(expectedMatchingPixels, colorLookupSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum());
+            lookupTime += System.nanoTime() - start;
+        }
+        LOG.info("Pixel match of {} comparisons: {} ms comparing the colors, {} ms with the lookup table filled in {} ms",
+                nComparisons, colorCompareTime / 1000000, lookupTime / 1000000, fillTime / 1000000);
+    }
+
+    /**
+     * Budget with 64MB for the color lookup tables, which leaves room for the rows of all the colors of a fixture.
+     */
+    private MemoryBudget createMemoryBudget() {
+        return new MemoryBudget(256L * 1024 * 1024, 1, 1);
+    }
+
+    private List<ImageArray<?>> createMasks(ImageArray<?> fixture) {
+        int width = fixture.getWidth();
+        int height = fixture.getHeight();
+        List<ImageArray<?>> masks = new ArrayList<>();
+        masks.add(fixture);
+        for (int[] window : new int[][]{{0, 0, width / 2, height / 2}, {width / 3, height / 4, width, height}}) {
+            int[] pixels = new int[width * height];
+            for (int y = window[1]; y < window[3]; y++) {
+                for (int x = window[0]; x < window[2]; x++) {
+                    pixels[y * width + x] = fixture.get(y * width + x);
+                }
+            }
+            masks.add(new ColorImageArray(ImageType.RGB, width, height, pixels));
+        }
+        return masks;
+    }
+
+    private ImageArray<?> perturbColors(Random random, ImageArray<?> image, int colorShift) {
+        int[] pixels = new int[image.getWidth() * image.getHeight()];
+        for (int i = 0; i < pixels.length; i++) {
+            int rgb = image.get(i);
+            pixels[i] = perturbChannel(random, (rgb >> 16) & 0xff, colorShift) << 16
+                    | perturbChannel(random, (rgb >> 8) & 0xff, colorShift) << 8
+                    | perturbChannel(random, rgb & 0xff, colorShift);
+        }
+        return new ColorImageArray(ImageType.RGB, image.getWidth(), image.getHeight(), pixels);
+    }
+
+    private int perturbChannel(Random random, int value, int colorShift) {
+        return Math.max(0, Math.min(255, value + random.nextInt(2 * colorShift + 1) - colorShift));
+    }
+
+}
@@ -0,0 +1,335 @@
+package org.janelia.colordepthsearch;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.imageio.ImageIO;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local simulation of the fan out of a color depth search job into concurrent {@link BatchSearch} invocations,
+ * against in-memory S3 and DynamoDB stand-ins that hold a synthetic library. For every combination of batch size
+ * and concurrency it reports the throughput, the time spent in every storage phase and the bytes moved, e.g.
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=org.janelia.colordepthsearch.FanOutSimulator \
+ *       -Dexec.args="targets=2000 sparsity=0.02 latencyMs=30 requestsPerSecond=3500 memoryMB=1024 batchSizes=50,200 concurrencies=4,16"
+ * </pre>
+ * The time of a phase is the sum of the durations of its requests, which overlap when a batch loads several targets
+ * at the same time, so it is best compared with the total time of the batches rather than with the elapsed time.
+ */
+class FanOutSimulator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FanOutSimulator.class);
+
+    private static final String LIBRARY_BUCKET = "simulated-library-bucket";
+    private static final String SEARCH_BUCKET = "simulated-search-bucket";
+    private static final String LIBRARY = "JRC2018_Unisex_20x_HR/Synthetic/searchable_neurons";
+    private static final String TASKS_TABLE = "simulated-tasks";
+
+    static class Config {
+        int nTargets = 1000;
+        int width = 1210;
+        int height = 566;
+        double sparsity = 0.02;
+        int nMasks = 1;
+        long latencyMillis = 20;
+        double requestsPerSecond = 0;
+        int memoryLimitMB = 1024;
+        List<Integer> batchSizes = Collections.singletonList(100);
+        List<Integer> concurrencies = Collections.singletonList(4);
+        long seed = 1234;
+
+        static Config parse(String[] args) {
+            Config config = new Config();
+            for (String arg : args) {
+                String[] nameAndValue = arg.split("=", 2);
+                if (nameAndValue.length != 2) {
+                    throw new IllegalArgumentException("Arguments must be name=value pairs: " + arg);
+                }
+                String value = nameAndValue[1];
+                switch (nameAndValue[0]) {
+                    case "targets":
+                        config.nTargets = Integer.parseInt(value);
+                        break;
+                    case "width":
+                        config.width = Integer.parseInt(value);
+                        break;
+                    case "height":
+                        config.height = Integer.parseInt(value);
+                        break;
+                    case "sparsity":
+                        config.sparsity = Double.parseDouble(value);
+                        break;
+                    case "masks":
+                        config.nMasks = Integer.parseInt(value);
+                        break;
+                    case "latencyMs":
+                        config.latencyMillis = Long.parseLong(value);
+                        break;
+                    case "requestsPerSecond":
+                        config.requestsPerSecond = Double.parseDouble(value);
+                        break;
+                    case "memoryMB":
+                        config.memoryLimitMB = Integer.parseInt(value);
+                        break;
+                    case "batchSizes":
+                        config.batchSizes = parseIntegers(value);
+                        break;
+                    case "concurrencies":
+                        config.concurrencies = parseIntegers(value);
+                        break;
+                    case "seed":
+                        config.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + nameAndValue[0]);
+                }
+            }
+            return config;
+        }
+
+        private static List<Integer> parseIntegers(String values) {
+            return Arrays.stream(values.split(",")).map(Integer::valueOf).collect(Collectors.toList());
+        }
+    }
+
+    static class Report {
+        final int batchSize;
+        final int concurrency;
+        final int nBatches;
+        final int nFailedBatches;
+        final long nMatches;
+        final long elapsedMillis;
+        final long batchesMillis;
+        final Map<String, StorageSimulation.PhaseStats> phases;
+        private final int nTargets;
+
+        Report(int batchSize, int concurrency, int nTargets, int nBatches, int nFailedBatches, long nMatches,
+               long elapsedMillis, long batchesMillis, Map<String, StorageSimulation.PhaseStats> phases) {
+            this.batchSize = batchSize;
+            this.concurrency = concurrency;
+            this.nTargets = nTargets;
+            this.nBatches = nBatches;
+            this.nFailedBatches = nFailedBatches;
+            this.nMatches = nMatches;
+            this.elapsedMillis = elapsedMillis;
+            this.batchesMillis = batchesMillis;
+            this.phases = phases;
+        }
+
+        double getTargetsPerSecond() {
+            return nTargets * 1000. / Math.max(1, elapsedMillis);
+        }
+
+        String format() {
+            StringBuilder reportBuilder = new StringBuilder()
+                    .append(String.format("batchSize=%d concurrency=%d: %d batches (%d failed), %d matches in %d ms, %.1f targets/s, %d ms in batches%n",
+                            batchSize, concurrency, nBatches, nFailedBatches, nMatches, elapsedMillis, getTargetsPerSecond(),
+                            batchesMillis));
+            phases.forEach((phase, phaseStats) -> reportBuilder.append(String.format(
+                    "    %-32s %8d requests %6d throttled %10d ms %14d bytes%n",
+                    phase,
+                    phaseStats.requests.get(),
+                    phaseStats.throttledRequests.get(),
+                    TimeUnit.NANOSECONDS.toMillis(phaseStats.nanos.get()),
+                    phaseStats.bytes.get())));
+            return reportBuilder.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        FanOutSimulator simulator = new FanOutSimulator(config);
+        List<Report> reports = new ArrayList<>();
+        for (int batchSize : config.batchSizes) {
+            for (int concurrency : config.concurrencies) {
+                reports.add(simulator.run(batchSize, concurrency));
+            }
+        }
+        reports.forEach(report -> System.out.print(report.format()));
+    }
+
+    private final Config config;
+    private final StorageSimulation storageSimulation;
+    private final InMemoryS3 s3;
+    private final InMemoryDynamoDB dynamoDB;
+    private final List<String> maskKeys = new ArrayList<>();
+
+    FanOutSimulator(Config config) throws Exception {
+        this.config = config;
+        this.storageSimulation = new StorageSimulation(config.latencyMillis, config.requestsPerSecond);
+        this.s3 = new InMemoryS3(storageSimulation, FanOutSimulator::getPhase);
+        this.dynamoDB = new InMemoryDynamoDB(storageSimulation);
+        this.dynamoDB.createTable(TASKS_TABLE, Arrays.asList("jobId", "batchId"));
+
+        long startTime = System.currentTimeMillis();
+        SyntheticLibraryGenerator generator = new SyntheticLibraryGenerator(config.seed);
+        List<String> libraryKeys = generator.generateLibrary(s3, LIBRARY_BUCKET, LIBRARY,
+                config.nTargets, config.width, config.height, config.sparsity);
+        for (int i = 0; i < config.nMasks; i++) {
+            String libraryKey = libraryKeys.get(i * libraryKeys.size() / config.nMasks);
+            BufferedImage mip;
+            try (InputStream mipStream = LambdaUtils.getObject(s3, LIBRARY_BUCKET, libraryKey)) {
+                mip = ImageIO.read(mipStream);
+            }
+            String maskKey = "private/simulation/mask-" + i + ".png";
+            s3.putContent(SEARCH_BUCKET, maskKey, SyntheticLibraryGenerator.toPNG(generator.createMask(mip)));
+            maskKeys.add(maskKey);
+        }
+        LOG.info("Generated {} targets and {} masks in {} ms", libraryKeys.size(), maskKeys.size(), System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Search all library targets with batches of the given size, running at most concurrency batches at a time.
+     */
+    Report run(int batchSize, int concurrency) throws InterruptedException {
+        storageSimulation.reset();
+        BatchSearch batchSearch = new BatchSearch(() -> s3, () -> dynamoDB);
+        String jobId = "simulation-" + batchSize + "-" + concurrency;
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrency);
+        AtomicLong batchesMillis = new AtomicLong();
+        List<Future<Integer>> batches = new ArrayList<>();
+        long startTime = System.currentTimeMillis();
+        try {
+            for (int startIndex = 0, batchId = 0; startIndex < config.nTargets; startIndex += batchSize, batchId++) {
+                BatchSearchParameters params = createBatchParameters(jobId, batchId, startIndex, Math.min(startIndex + batchSize, config.nTargets));
+                batches.add(executorService.submit(() -> {
+                    long batchStartTime = System.currentTimeMillis();
+                    try {
+                        return batchSearch.handleRequest(params, new SimulatedContext(config.memoryLimitMB));
+                    } finally {
+                        batchesMillis.addAndGet(System.currentTimeMillis() - batchStartTime);
+                    }
+                }));
+            }
+            int nFailedBatches = 0;
+            long nMatches = 0;
+            for (Future<Integer> batch : batches) {
+                try {
+                    nMatches += batch.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Batch failed", e.getCause());
+                    nFailedBatches++;
+                }
+            }
+            return new Report(batchSize, concurrency, config.nTargets, batches.size(), nFailedBatches, nMatches,
+                    System.currentTimeMillis() - startTime, batchesMillis.get(), storageSimulation.getPhases());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    InMemoryDynamoDB getDynamoDB() {
+        return dynamoDB;
+    }
+
+    private BatchSearchParameters createBatchParameters(String jobId, int batchId, int startIndex, int endIndex) {
+        ColorDepthSearchParameters jobParams = new ColorDepthSearchParameters();
+        jobParams.setLibraryBucket(LIBRARY_BUCKET);
+        jobParams.setLibraries(Collections.singletonList(LIBRARY));
+        jobParams.setSearchBucket(SEARCH_BUCKET);
+        jobParams.setMaskKeys(maskKeys);
+        jobParams.setMaskThresholds(Collections.nCopies(maskKeys.size(), ColorDepthSearchParameters.DEFAULT_MASK_THRESHOLD));
+        BatchSearchParameters params = new BatchSearchParameters();
+        params.setTasksTableName(TASKS_TABLE);
+        params.setJobId(jobId);
+        params.setBatchId(batchId);
+        params.setStartIndex(startIndex);
+        params.setEndIndex(endIndex);
+        params.setJobParameters(jobParams);
+        return params;
+    }
+
+    private static String getPhase(String bucket, String key) {
+        if (SEARCH_BUCKET.equals(bucket)) {
+            return "s3:masks";
+        } else if (key.contains("/KEYS/")) {
+            return "s3:keys";
+        } else {
+            return "s3:targets";
+        }
+    }
+
+    private static class SimulatedContext implements Context {
+        private final int memoryLimitMB;
+
+        SimulatedContext(int memoryLimitMB) {
+            this.memoryLimitMB = memoryLimitMB;
+        }
+
+        @Override
+        public String getAwsRequestId() {
+            return null;
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return null;
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return null;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "simulated-batch-search";
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return null;
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return null;
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return memoryLimitMB;
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return null;
+        }
+    }
+
+}
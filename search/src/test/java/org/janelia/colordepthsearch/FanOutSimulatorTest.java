@@ -0,0 +1,29 @@
+package org.janelia.colordepthsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FanOutSimulatorTest {
+
+    @Test
+    public void allBatchesOfTheSimulatedJobAreSearched() throws Exception {
+        FanOutSimulator.Config config = FanOutSimulator.Config.parse(new String[]{
+                "targets=12", "width=120", "height=60", "sparsity=0.05", "masks=2", "latencyMs=1", "requestsPerSecond=2000"
+        });
+        FanOutSimulator simulator = new FanOutSimulator(config);
+
+        FanOutSimulator.Report report = simulator.run(5, 2);
+
+        assertEquals(3, report.nBatches);
+        assertEquals(0, report.nFailedBatches);
+        assertEquals(3, simulator.getDynamoDB().getItems("simulated-tasks").size());
+        // the targets are loaded once for every mask
+        assertEquals(2 * 12, report.phases.get("s3:targets").requests.get());
+        assertTrue(report.phases.get("s3:targets").bytes.get() > 0);
+        // without a warm-up the batches do not read the version of the libraries for the object cache
+        assertEquals(3, report.phases.get("s3:keys").requests.get());
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.janelia.colordepthsearch;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageRowsDecoderTest {
+
+    @Test
+    public void decodeAllPNGRows() throws Exception {
+        checkDecodedRows("src/test/resources/mips/testMIP.png", 0, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void decodePNGRowsRange() throws Exception {
+        checkDecodedRows("src/test/resources/mips/testMIP.png", 100 * 1210 + 17, 300 * 1210 + 5);
+    }
+
+    @Test
+    public void decodeAllTIFFRows() throws Exception {
+        checkDecodedRows("src/test/resources/mips/testMIP.tif", 0, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void decodeTIFFRowsRange() throws Exception {
+        checkDecodedRows("src/test/resources/mips/testMIP.tif", 203 * 1210 + 1, 221 * 1210);
+    }
+
+    private void checkDecodedRows(String imageFile, long startPixel, long endPixel) throws Exception {
+        ImageArray<?> expectedImage;
+        try (InputStream imageStream = new FileInputStream(imageFile)) {
+            expectedImage = ImageArrayUtils.readImageArray(imageFile, imageFile, imageStream);
+        }
+        int[] nRows = new int[1];
+        try (InputStream imageStream = new FileInputStream(imageFile)) {
+            ImageRowsDecoder.decodeRows(imageStream, startPixel, endPixel, new ImageRowsConsumer() {
+                private int width;
+                private int nextRow = -1;
+
+                @Override
+                public void startImage(int width, int height) {
+                    this.width = width;
+                    assertEquals(expectedImage.getWidth(), width);
+                    assertEquals(expectedImage.getHeight(), height);
+                }
+
+                @Override
+                public void acceptRow(int y, int[] rowPixels) {
+                    if (nextRow == -1) {
+                        assertEquals(startPixel / width, y);
+                    } else {
+                        assertEquals(nextRow, y);
+                    }
+                    for (int x = 0; x < width; x++) {
+                        assertEquals(expectedImage.get(y * width + x) & 0xffffff, rowPixels[x]);
+                    }
+                    nextRow = y + 1;
+                    nRows[0]++;
+                }
+            });
+        }
+        long expectedRows = Math.min(expectedImage.getHeight() - 1, endPixel / expectedImage.getWidth()) - startPixel / expectedImage.getWidth() + 1;
+        assertEquals(expectedRows, nRows[0]);
+    }
+
+}
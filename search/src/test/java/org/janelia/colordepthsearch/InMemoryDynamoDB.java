@@ -0,0 +1,113 @@
+package org.janelia.colordepthsearch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+
+/**
+ * In-memory DynamoDB stand-in that supports putting and getting items by key.
+ * The tables must be created up front with the names of their key attributes.
+ */
+class InMemoryDynamoDB implements DynamoDbClient {
+
+    private final Map<String, List<String>> tableKeys = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Map<String, AttributeValue>>> tables = new ConcurrentHashMap<>();
+    private final StorageSimulation storageSimulation;
+
+    InMemoryDynamoDB(StorageSimulation storageSimulation) {
+        this.storageSimulation = storageSimulation;
+    }
+
+    void createTable(String tableName, List<String> keyAttributes) {
+        tableKeys.put(tableName, keyAttributes);
+        tables.put(tableName, new ConcurrentHashMap<>());
+    }
+
+    Map<String, Map<String, AttributeValue>> getItems(String tableName) {
+        return getTable(tableName);
+    }
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest putItemRequest) {
+        String phase = "dynamodb:" + putItemRequest.tableName();
+        long startTime = storageSimulation.startRequest(phase);
+        Map<String, Map<String, AttributeValue>> table = getTable(putItemRequest.tableName());
+        table.put(getItemKey(putItemRequest.tableName(), putItemRequest.item()), putItemRequest.item());
+        storageSimulation.endRequest(phase, startTime, getItemSize(putItemRequest.item()));
+        return PutItemResponse.builder().build();
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest getItemRequest) {
+        String phase = "dynamodb:" + getItemRequest.tableName();
+        long startTime = storageSimulation.startRequest(phase);
+        Map<String, AttributeValue> item = getTable(getItemRequest.tableName())
+                .get(getItemKey(getItemRequest.tableName(), getItemRequest.key()));
+        storageSimulation.endRequest(phase, startTime, item != null ? getItemSize(item) : 0);
+        return item != null
+                ? GetItemResponse.builder().item(item).build()
+                : GetItemResponse.builder().build();
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest deleteItemRequest) {
+        String phase = "dynamodb:" + deleteItemRequest.tableName();
+        long startTime = storageSimulation.startRequest(phase);
+        getTable(deleteItemRequest.tableName()).remove(getItemKey(deleteItemRequest.tableName(), deleteItemRequest.key()));
+        storageSimulation.endRequest(phase, startTime, 0);
+        return DeleteItemResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    private Map<String, Map<String, AttributeValue>> getTable(String tableName) {
+        Map<String, Map<String, AttributeValue>> table = tables.get(tableName);
+        if (table == null) {
+            throw ResourceNotFoundException.builder().message("No such table " + tableName).build();
+        }
+        return table;
+    }
+
+    private String getItemKey(String tableName, Map<String, AttributeValue> item) {
+        Map<String, String> itemKey = new TreeMap<>();
+        for (String keyAttribute : tableKeys.get(tableName)) {
+            AttributeValue keyValue = item.get(keyAttribute);
+            if (keyValue == null) {
+                throw new IllegalArgumentException("Missing key attribute " + keyAttribute + " for " + tableName);
+            }
+            itemKey.put(keyAttribute, keyValue.s() != null ? keyValue.s() : keyValue.n());
+        }
+        return itemKey.toString();
+    }
+
+    private long getItemSize(Map<String, AttributeValue> item) {
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            AttributeValue value = attribute.getValue();
+            size += attribute.getKey().length();
+            size += value.s() != null ? value.s().length() : 0;
+            size += value.n() != null ? value.n().length() : 0;
+        }
+        return size;
+    }
+
+}
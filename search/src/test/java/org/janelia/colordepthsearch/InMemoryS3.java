@@ -0,0 +1,165 @@
+package org.janelia.colordepthsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * In-memory S3 stand-in that supports the object operations used by the search: get (including ranged gets), head, put
+ * and list by prefix.
+ * The traffic is accounted per phase, where the phase of a request is derived from its bucket and key.
+ */
+class InMemoryS3 implements S3Client {
+
+    private static class StoredObject {
+        final byte[] content;
+        final String eTag;
+
+        StoredObject(byte[] content, String eTag) {
+            this.content = content;
+            this.eTag = eTag;
+        }
+    }
+
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final StorageSimulation storageSimulation;
+    private final BiFunction<String, String, String> phaseClassifier;
+
+    /**
+     * @param phaseClassifier maps the bucket and the key of a request to the phase used for accounting
+     */
+    InMemoryS3(StorageSimulation storageSimulation, BiFunction<String, String, String> phaseClassifier) {
+        this.storageSimulation = storageSimulation;
+        this.phaseClassifier = phaseClassifier;
+    }
+
+    void putContent(String bucket, String key, byte[] content) {
+        objects.put(bucket + "/" + key, new StoredObject(content, "\"" + versions.incrementAndGet() + "\""));
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest getObjectRequest,
+                                       ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+        String phase = phaseClassifier.apply(getObjectRequest.bucket(), getObjectRequest.key());
+        long startTime = storageSimulation.startRequest(phase);
+        StoredObject storedObject = getStoredObject(getObjectRequest.bucket(), getObjectRequest.key());
+        int start = 0;
+        int end = storedObject.content.length - 1;
+        if (StringUtils.isNotBlank(getObjectRequest.range())) {
+            String[] range = StringUtils.removeStart(getObjectRequest.range(), "bytes=").split("-");
+            start = Integer.parseInt(range[0]);
+            if (range.length > 1 && StringUtils.isNotBlank(range[1])) {
+                end = Math.min(end, Integer.parseInt(range[1]));
+            }
+        }
+        int length = Math.max(0, end - start + 1);
+        GetObjectResponse response = GetObjectResponse.builder()
+                .contentLength((long) length)
+                .eTag(storedObject.eTag)
+                .build();
+        InputStream contentStream = new ByteArrayInputStream(storedObject.content, start, length);
+        try {
+            return responseTransformer.transform(response, AbortableInputStream.create(contentStream));
+        } catch (Exception e) {
+            throw SdkClientException.create("Error transforming " + getObjectRequest.key(), e);
+        } finally {
+            storageSimulation.endRequest(phase, startTime, length);
+        }
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest headObjectRequest) {
+        String phase = phaseClassifier.apply(headObjectRequest.bucket(), headObjectRequest.key());
+        long startTime = storageSimulation.startRequest(phase);
+        try {
+            StoredObject storedObject = getStoredObject(headObjectRequest.bucket(), headObjectRequest.key());
+            return HeadObjectResponse.builder()
+                    .contentLength((long) storedObject.content.length)
+                    .eTag(storedObject.eTag)
+                    .build();
+        } finally {
+            storageSimulation.endRequest(phase, startTime, 0);
+        }
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest putObjectRequest, RequestBody requestBody) {
+        String phase = phaseClassifier.apply(putObjectRequest.bucket(), putObjectRequest.key());
+        long startTime = storageSimulation.startRequest(phase);
+        byte[] content;
+        try (InputStream contentStream = requestBody.contentStreamProvider().newStream()) {
+            content = IOUtils.toByteArray(contentStream);
+        } catch (IOException e) {
+            throw SdkClientException.create("Error reading the content of " + putObjectRequest.key(), e);
+        }
+        putContent(putObjectRequest.bucket(), putObjectRequest.key(), content);
+        storageSimulation.endRequest(phase, startTime, content.length);
+        return PutObjectResponse.builder().eTag(objects.get(putObjectRequest.bucket() + "/" + putObjectRequest.key()).eTag).build();
+    }
+
+    @Override
+    public ListObjectsResponse listObjects(ListObjectsRequest listObjectsRequest) {
+        String phase = phaseClassifier.apply(listObjectsRequest.bucket(), listObjectsRequest.prefix());
+        long startTime = storageSimulation.startRequest(phase);
+        try {
+            String bucketPrefix = listObjectsRequest.bucket() + "/";
+            return ListObjectsResponse.builder()
+                    .contents(objects.entrySet().stream()
+                            .filter(e -> e.getKey().startsWith(bucketPrefix + StringUtils.defaultString(listObjectsRequest.prefix())))
+                            .map(e -> S3Object.builder()
+                                    .key(e.getKey().substring(bucketPrefix.length()))
+                                    .size((long) e.getValue().content.length)
+                                    .eTag(e.getValue().eTag)
+                                    .build())
+                            .sorted(Comparator.comparing(S3Object::key))
+                            .collect(Collectors.toList()))
+                    .build();
+        } finally {
+            storageSimulation.endRequest(phase, startTime, 0);
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    private StoredObject getStoredObject(String bucket, String key) {
+        StoredObject storedObject = objects.get(bucket + "/" + key);
+        if (storedObject == null) {
+            throw NoSuchKeyException.builder().message("No such key " + bucket + ":" + key).build();
+        }
+        return storedObject;
+    }
+
+}
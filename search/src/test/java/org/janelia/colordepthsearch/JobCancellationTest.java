@@ -0,0 +1,80 @@
+package org.janelia.colordepthsearch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobCancellationTest {
+
+    @Test
+    public void statusIsReadOncePerCheckInterval() {
+        StorageSimulation storageSimulation = new StorageSimulation(0, 0);
+        InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(storageSimulation);
+        dynamoDB.createTable("jobs", Collections.singletonList("jobId"));
+        AtomicLong now = new AtomicLong(1000);
+        JobCancellation jobCancellation = new JobCancellation(dynamoDB, "jobs", "job", 5000, now::get);
+
+        // no status item yet
+        assertFalse(jobCancellation.getAsBoolean());
+        putStatus(dynamoDB, "running");
+        now.addAndGet(5000);
+        assertFalse(jobCancellation.getAsBoolean());
+        putStatus(dynamoDB, JobCancellation.CANCELLED_STATUS);
+        now.addAndGet(4999);
+        assertFalse(jobCancellation.getAsBoolean());
+        now.addAndGet(1);
+        assertTrue(jobCancellation.getAsBoolean());
+        // the cancellation is final
+        putStatus(dynamoDB, "running");
+        now.addAndGet(5000);
+        assertTrue(jobCancellation.getAsBoolean());
+        // three status puts and three status reads
+        assertEquals(6, storageSimulation.getPhases().get("dynamodb:jobs").requests.get());
+    }
+
+    @Test
+    public void deletedJobIsCancelled() {
+        InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(new StorageSimulation(0, 0));
+        dynamoDB.createTable("jobs", Collections.singletonList("jobId"));
+        AtomicLong now = new AtomicLong(1000);
+        JobCancellation jobCancellation = new JobCancellation(dynamoDB, "jobs", "job", 5000, now::get);
+
+        // the job item was not written yet
+        assertFalse(jobCancellation.getAsBoolean());
+        putStatus(dynamoDB, "running");
+        now.addAndGet(5000);
+        assertFalse(jobCancellation.getAsBoolean());
+        dynamoDB.deleteItem(DeleteItemRequest.builder()
+                .tableName("jobs")
+                .key(Collections.singletonMap("jobId", AttributeValue.builder().s("job").build()))
+                .build());
+        now.addAndGet(5000);
+        assertTrue(jobCancellation.getAsBoolean());
+    }
+
+    @Test
+    public void searchGoesOnWithoutStatusTable() {
+        InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(new StorageSimulation(0, 0));
+        JobCancellation jobCancellation = new JobCancellation(dynamoDB, "jobs", "job", 0);
+        assertFalse(jobCancellation.getAsBoolean());
+        assertFalse(jobCancellation.getAsBoolean());
+    }
+
+    private void putStatus(InMemoryDynamoDB dynamoDB, String status) {
+        Map<String, AttributeValue> jobItem = new HashMap<>();
+        jobItem.put("jobId", AttributeValue.builder().s("job").build());
+        jobItem.put("status", AttributeValue.builder().s(status).build());
+        dynamoDB.putItem(PutItemRequest.builder().tableName("jobs").item(jobItem).build());
+    }
+
+}
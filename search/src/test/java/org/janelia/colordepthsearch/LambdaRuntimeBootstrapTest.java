@@ -0,0 +1,148 @@
+package org.janelia.colordepthsearch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LambdaRuntimeBootstrapTest {
+
+    /**
+     * Stand-in for the Lambda runtime API that serves the queued invocations and records what the runtime posts.
+     */
+    private static class RuntimeEndpoint {
+        final HttpServer server;
+        // the requests for the next invocation wait for an invocation so they must not block the server
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final BlockingQueue<String> invocations = new LinkedBlockingQueue<>();
+        final BlockingQueue<String[]> posts = new LinkedBlockingQueue<>();
+        final AtomicInteger nInvocations = new AtomicInteger();
+
+        RuntimeEndpoint() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/2018-06-01/runtime/", this::handle);
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        String getRuntimeApi() {
+            return "127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            try {
+                if ("GET".equals(exchange.getRequestMethod()) && path.endsWith("/invocation/next")) {
+                    String invocation = invocations.take();
+                    exchange.getResponseHeaders().add("Lambda-Runtime-Aws-Request-Id", "request-" + nInvocations.getAndIncrement());
+                    exchange.getResponseHeaders().add("Lambda-Runtime-Deadline-Ms", Long.toString(System.currentTimeMillis() + 60000));
+                    exchange.getResponseHeaders().add("Lambda-Runtime-Invoked-Function-Arn", "arn:aws:lambda:us-east-1:123456789012:function:search");
+                    exchange.getResponseHeaders().add("Lambda-Runtime-Trace-Id", "Root=1-5759e988-bd862e3fe1be46a994272793;Sampled=0");
+                    respond(exchange, 200, invocation);
+                } else {
+                    String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+                    posts.add(new String[]{path, exchange.getRequestHeaders().getFirst("Lambda-Runtime-Function-Error-Type"), body});
+                    respond(exchange, 202, "{\"status\":\"OK\"}");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 500, "");
+            }
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream responseStream = exchange.getResponseBody()) {
+                responseStream.write(bytes);
+            }
+        }
+    }
+
+    private RuntimeEndpoint runtimeEndpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        runtimeEndpoint = new RuntimeEndpoint();
+    }
+
+    @After
+    public void tearDown() {
+        runtimeEndpoint.server.stop(0);
+        runtimeEndpoint.executor.shutdownNow();
+    }
+
+    @Test
+    public void responsesAndErrorsArePosted() throws Exception {
+        RequestHandler<BatchSearchParameters, Integer> handler = (params, context) -> {
+            assertTrue(context.getRemainingTimeInMillis() > 0);
+            assertNotNull(System.getProperty("com.amazonaws.xray.traceHeader"));
+            if (params.getBatchId() < 0) {
+                throw new IllegalArgumentException("Invalid batch " + params.getBatchId());
+            }
+            return params.getBatchId() * 10;
+        };
+        LambdaRuntimeBootstrap<BatchSearchParameters, Integer> bootstrap =
+                new LambdaRuntimeBootstrap<>(runtimeEndpoint.getRuntimeApi(), handler, BatchSearchParameters.class);
+
+        runtimeEndpoint.invocations.add("{\"jobId\":\"job\",\"batchId\":3,\"unknownParameter\":true}");
+        bootstrap.processNextInvocation();
+        String[] response = runtimeEndpoint.posts.take();
+        assertEquals("/2018-06-01/runtime/invocation/request-0/response", response[0]);
+        assertEquals("30", response[2]);
+
+        runtimeEndpoint.invocations.add("{\"jobId\":\"job\",\"batchId\":-1}");
+        bootstrap.processNextInvocation();
+        String[] error = runtimeEndpoint.posts.take();
+        assertEquals("/2018-06-01/runtime/invocation/request-1/error", error[0]);
+        assertEquals("IllegalArgumentException", error[1]);
+        JsonNode errorJson = new ObjectMapper().readTree(error[2]);
+        assertEquals("Invalid batch -1", errorJson.get("errorMessage").asText());
+        assertEquals("java.lang.IllegalArgumentException", errorJson.get("errorType").asText());
+    }
+
+    /**
+     * Smoke test of the native image, which only runs when the native.bootstrap property is set to the executable,
+     * as it is by the native profile. The batch has no libraries, so the search fails before it accesses AWS.
+     */
+    @Test
+    public void nativeBootstrapReportsHandlerErrors() throws Exception {
+        String nativeBootstrap = System.getProperty("native.bootstrap");
+        Assume.assumeTrue(nativeBootstrap != null);
+        ProcessBuilder processBuilder = new ProcessBuilder(nativeBootstrap).inheritIO();
+        processBuilder.environment().put("AWS_LAMBDA_RUNTIME_API", runtimeEndpoint.getRuntimeApi());
+        processBuilder.environment().put("AWS_REGION", "us-east-1");
+        Process process = processBuilder.start();
+        try {
+            runtimeEndpoint.invocations.add("{\"jobId\":\"smoke-test\",\"batchId\":0,\"jobParameters\":{\"maskKeys\":[\"mask.png\"],\"libraries\":[]}}");
+            String[] error = runtimeEndpoint.posts.poll(30, TimeUnit.SECONDS);
+            assertNotNull("No response from " + nativeBootstrap, error);
+            assertEquals("/2018-06-01/runtime/invocation/request-0/error", error[0]);
+            assertEquals("No images to search", new ObjectMapper().readTree(error[2]).get("errorMessage").asText());
+        } finally {
+            process.destroy();
+        }
+    }
+
+}
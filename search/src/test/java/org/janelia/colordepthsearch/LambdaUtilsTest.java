@@ -1,7 +1,15 @@
 package org.janelia.colordepthsearch;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.junit.Before;
@@ -11,6 +19,7 @@ import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
@@ -51,4 +60,43 @@ public class LambdaUtilsTest {
                 }),
                 any(RequestBody.class));
     }
+
+    @Test
+    public void flushLogsWaitsUntilTheQueuedEventsAreWritten() {
+        LoggerContext loggerContext = new LoggerContext();
+        List<String> writtenMessages = Collections.synchronizedList(new ArrayList<>());
+        UnsynchronizedAppenderBase<ILoggingEvent> slowAppender = new UnsynchronizedAppenderBase<ILoggingEvent>() {
+            @Override
+            protected void append(ILoggingEvent event) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                writtenMessages.add(event.getFormattedMessage());
+            }
+        };
+        slowAppender.setContext(loggerContext);
+        slowAppender.start();
+        AsyncAppender asyncAppender = new AsyncAppender();
+        asyncAppender.setContext(loggerContext);
+        asyncAppender.setDiscardingThreshold(0);
+        asyncAppender.addAppender(slowAppender);
+        asyncAppender.start();
+        Logger rootLogger = loggerContext.getLogger(Logger.ROOT_LOGGER_NAME);
+        rootLogger.addAppender(asyncAppender);
+
+        for (int i = 0; i < 100; i++) {
+            rootLogger.info("Event {}", i);
+        }
+        LambdaUtils.flushLogs(loggerContext, 10000);
+        // all events are written and the flush event is not
+        assertEquals(100, writtenMessages.size());
+        assertEquals("Event 99", writtenMessages.get(99));
+
+        rootLogger.info("Event {}", 100);
+        LambdaUtils.flushLogs(loggerContext, 10000);
+        assertEquals(101, writtenMessages.size());
+        loggerContext.stop();
+    }
 }
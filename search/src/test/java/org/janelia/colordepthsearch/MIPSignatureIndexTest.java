@@ -0,0 +1,157 @@
+package org.janelia.colordepthsearch;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.janelia.colormipsearch.api.cdmips.MIPImage;
+import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProviderFactory;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPSearch;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MIPSignatureIndexTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MIPSignatureIndexTest.class);
+
+    private static final int RED = 0xff0000;
+    private static final int BLUE = 0x0000ff;
+
+    @Test
+    public void shortlistTheNearestTargets() throws Exception {
+        MIPSignatureIndex.Builder indexBuilder = new MIPSignatureIndex.Builder(32, 8, 16, 8, 100);
+        ImageRowsDecoder.decodeRows(createImage(4, 8, RED), indexBuilder.addTarget("lib/t0.png"));
+        ImageRowsDecoder.decodeRows(createImage(4, 8, BLUE), indexBuilder.addTarget("lib/t1.png"));
+        ImageRowsDecoder.decodeRows(createImage(128 - 12, 8, RED), indexBuilder.addTarget("lib/t2.png"));
+        ImageRowsDecoder.decodeRows(createImage(28, 8, RED), indexBuilder.addTarget("lib/t3.png"));
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        indexBuilder.build().write(indexBytes);
+        MIPSignatureIndex index = MIPSignatureIndex.read(new ByteArrayInputStream(indexBytes.toByteArray()));
+        assertEquals(4, index.getTargetsCount());
+        assertTrue(index.containsTarget("lib/t1.png"));
+        assertFalse(index.containsTarget("lib/t4.png"));
+
+        // same cells, and a target that only covers half of the mask pixels
+        checkCandidates(index, index.findCandidates(createImage(4, 8, RED), 100, 0, false), true, false, false, true);
+        // the mirrored mask has the signature of the third target
+        checkCandidates(index, index.findCandidates(createImage(4, 8, RED), 100, 0, true), true, false, true, true);
+        // only the target that covers the most mask pixels
+        index.setMaxCandidates(1);
+        checkCandidates(index, index.findCandidates(createImage(4, 8, RED), 100, 0, false), true, false, false, false);
+    }
+
+    /**
+     * Benchmark of the approximate search recall on a synthetic library made of noisy copies of a few neurons:
+     * the fraction of the best pixel matches of the exhaustive search that are shortlisted when only a tenth
+     * of the library is compared with the masks.
+     */
+    @Test
+    public void recallOfTheBestMatches() throws Exception {
+        int width = 256;
+        int height = 128;
+        int nNeurons = 30;
+        int nCopies = 10;
+        int nTargets = nNeurons * nCopies;
+        int nBestMatches = 10;
+        SyntheticLibraryGenerator generator = new SyntheticLibraryGenerator(45);
+        Random random = new Random(45);
+        List<ImageArray<?>> neurons = new ArrayList<>();
+        for (int n = 0; n < nNeurons; n++) {
+            neurons.add(toImageArray(generator.createMIP(width, height, 0.03)));
+        }
+        List<ImageArray<?>> targets = new ArrayList<>();
+        MIPSignatureIndex.Builder indexBuilder = new MIPSignatureIndex.Builder(
+                MIPSignatureIndex.DEFAULT_GRID_SIZE / 2,
+                MIPSignatureIndex.DEFAULT_COLOR_BINS,
+                MIPSignatureIndex.DEFAULT_HASH_TABLES,
+                MIPSignatureIndex.DEFAULT_HASH_BITS,
+                100);
+        for (int t = 0; t < nTargets; t++) {
+            targets.add(dropPixels(random, neurons.get(t % nNeurons), random.nextDouble() * 0.6));
+            ImageRowsDecoder.decodeRows(targets.get(t), indexBuilder.addTarget("lib/t" + t + ".png"));
+        }
+        MIPSignatureIndex index = indexBuilder.build();
+        index.setMaxCandidates(nTargets / 10);
+        ColorMIPSearch colorMIPSearch = new ColorMIPSearch(1., 100,
+                ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(false, 100, 2.0, 0));
+
+        long nFound = 0;
+        long nExpected = 0;
+        for (int n = 0; n < nNeurons; n++) {
+            ImageArray<?> mask = dropPixels(random, neurons.get(n), 0.5);
+            ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskSearch = colorMIPSearch.createQueryColorDepthSearch(new MIPImage(new MIPMetadata(), mask), 100);
+            int[] matchingPixels = targets.stream()
+                    .mapToInt(target -> maskSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum())
+                    .toArray();
+            List<Integer> bestMatches = IntStream.range(0, nTargets)
+                    .filter(t -> matchingPixels[t] > 0)
+                    .boxed()
+                    .sorted(Comparator.comparing((Integer t) -> matchingPixels[t]).reversed())
+                    .limit(nBestMatches)
+                    .collect(Collectors.toList());
+            BitSet candidates = index.findCandidates(mask, 100, 0, false);
+            assertTrue(candidates.cardinality() <= nTargets / 10);
+            nFound += bestMatches.stream().filter(t -> index.isCandidate(candidates, "lib/t" + t + ".png")).count();
+            nExpected += bestMatches.size();
+        }
+        double recall = nFound / (double) nExpected;
+        LOG.info("Approximate search recall of the {} best matches comparing {} out of {} targets: {}",
+                nBestMatches, nTargets / 10, nTargets, recall);
+        assertTrue("Recall " + recall, recall >= 0.9);
+    }
+
+    private void checkCandidates(MIPSignatureIndex index, BitSet candidates, boolean... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Target " + i, expected[i], index.isCandidate(candidates, "lib/t" + i + ".png"));
+        }
+    }
+
+    /**
+     * @return a 128x64 image with an 8x8 block of signal
+     */
+    private ImageArray<?> createImage(int x, int y, int rgb) {
+        int[] pixels = new int[128 * 64];
+        for (int by = y; by < y + 8; by++) {
+            for (int bx = x; bx < x + 8; bx++) {
+                pixels[by * 128 + bx] = rgb;
+            }
+        }
+        return new ColorImageArray(ImageType.RGB, 128, 64, pixels);
+    }
+
+    private ImageArray<?> dropPixels(Random random, ImageArray<?> image, double dropFraction) {
+        int[] pixels = new int[image.getWidth() * image.getHeight()];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextDouble() < dropFraction ? 0 : image.get(i);
+        }
+        return new ColorImageArray(ImageType.RGB, image.getWidth(), image.getHeight(), pixels);
+    }
+
+    private ImageArray<?> toImageArray(BufferedImage image) {
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] &= 0xffffff;
+        }
+        return new ColorImageArray(ImageType.RGB, image.getWidth(), image.getHeight(), pixels);
+    }
+
+}
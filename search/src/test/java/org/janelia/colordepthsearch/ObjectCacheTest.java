@@ -0,0 +1,63 @@
+package org.janelia.colordepthsearch;
+
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class ObjectCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void objectsOverflowFromTheHeapToTheFolder() throws Exception {
+        Path cacheFolder = folder.getRoot().toPath().resolve("object-cache");
+        ObjectCache objectCache = new ObjectCache(10, cacheFolder, 20);
+        objectCache.put("b", "k1", "v1", new byte[]{1, 1, 1, 1, 1, 1, 1, 1});
+        objectCache.put("b", "k2", "v1", new byte[]{2, 2, 2, 2, 2, 2, 2, 2});
+        objectCache.put("b", "k3", "v1", new byte[]{3, 3, 3, 3, 3, 3, 3, 3});
+        assertArrayEquals(new byte[]{1, 1, 1, 1, 1, 1, 1, 1}, objectCache.get("b", "k1", "v1"));
+        assertArrayEquals(new byte[]{2, 2, 2, 2, 2, 2, 2, 2}, objectCache.get("b", "k2", "v1"));
+        assertArrayEquals(new byte[]{3, 3, 3, 3, 3, 3, 3, 3}, objectCache.get("b", "k3", "v1"));
+        assertNull(objectCache.get("other", "k1", "v1"));
+
+        // the least recently used object of the folder is evicted
+        objectCache.get("b", "k2", "v1");
+        objectCache.put("b", "k4", "v1", new byte[]{4, 4, 4, 4, 4, 4, 4, 4});
+        assertNull(objectCache.get("b", "k3", "v1"));
+        assertArrayEquals(new byte[]{2, 2, 2, 2, 2, 2, 2, 2}, objectCache.get("b", "k2", "v1"));
+        assertArrayEquals(new byte[]{4, 4, 4, 4, 4, 4, 4, 4}, objectCache.get("b", "k4", "v1"));
+        // objects larger than the folder are not cached
+        objectCache.put("b", "k5", "v1", new byte[21]);
+        assertNull(objectCache.get("b", "k5", "v1"));
+    }
+
+    @Test
+    public void objectsOfAnotherVersionAreNotReturned() throws Exception {
+        Path cacheFolder = folder.getRoot().toPath().resolve("object-cache");
+        ObjectCache objectCache = new ObjectCache(10, cacheFolder, 20);
+        objectCache.put("b", "k1", "v1", new byte[]{1, 1, 1, 1, 1, 1, 1, 1});
+        objectCache.put("b", "k2", "v1", new byte[]{2, 2, 2, 2, 2, 2, 2, 2});
+        // k1 is on the heap and k2 in the folder
+        assertNull(objectCache.get("b", "k1", "v2"));
+        assertNull(objectCache.get("b", "k2", "v2"));
+        // the objects of the prior version are dropped once they are read for the new version
+        assertNull(objectCache.get("b", "k1", "v1"));
+        assertNull(objectCache.get("b", "k2", "v1"));
+
+        objectCache.put("b", "k1", "v2", new byte[]{3, 3, 3, 3, 3, 3, 3, 3});
+        objectCache.put("b", "k2", "v2", new byte[]{4, 4, 4, 4, 4, 4, 4, 4});
+        assertArrayEquals(new byte[]{3, 3, 3, 3, 3, 3, 3, 3}, objectCache.get("b", "k1", "v2"));
+        assertArrayEquals(new byte[]{4, 4, 4, 4, 4, 4, 4, 4}, objectCache.get("b", "k2", "v2"));
+        // a new version replaces the cached version
+        objectCache.put("b", "k2", "v3", new byte[]{5, 5, 5, 5, 5, 5, 5, 5});
+        assertArrayEquals(new byte[]{5, 5, 5, 5, 5, 5, 5, 5}, objectCache.get("b", "k2", "v3"));
+        assertNull(objectCache.get("b", "k2", "v2"));
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.janelia.colordepthsearch;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.verify;
+
+public class SampledLogTest {
+
+    @Test
+    public void logFirstMessagesAndCounts() {
+        Logger logger = mock(Logger.class);
+        SampledLog sampledLog = new SampledLog(logger, 2);
+        for (int i = 0; i < 5; i++) {
+            sampledLog.info("Load '{}'", "target" + i);
+        }
+        sampledLog.info("Completed {}", "mask");
+        assertEquals(5, sampledLog.getMessageCount("Load '{}'"));
+
+        sampledLog.logMessageCounts();
+        assertEquals(2, countInfoMessages(logger, "Load '{}'"));
+        assertEquals(1, countInfoMessages(logger, "Completed {}"));
+        verify(logger).info("Logged {} out of {} messages '{}'", 2, 5L, "Load '{}'");
+        assertEquals(0, sampledLog.getMessageCount("Load '{}'"));
+    }
+
+    private long countInfoMessages(Logger logger, String format) {
+        return mockingDetails(logger).getInvocations().stream()
+                .filter(invocation -> "info".equals(invocation.getMethod().getName()))
+                .filter(invocation -> format.equals(invocation.getArgument(0)))
+                .count();
+    }
+
+}
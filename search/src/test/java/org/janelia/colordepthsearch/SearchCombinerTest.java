@@ -0,0 +1,265 @@
+package org.janelia.colordepthsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SearchCombinerTest {
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final String SEARCH_BUCKET = "janelia-neuronbridge-search-devpre";
+    private static final String TASKS_TABLE = "burst-compute-devpre-tasks";
+    private static final String LM_STACKS_TABLE = "lm-published-stacks";
+
+    @Test
+    public void combineLMSearchResults() throws Exception {
+        Map<String, AttributeValue> lastEvaluatedKey = Collections.singletonMap("batchId", AttributeValue.builder().n("1").build());
+        Map<String, String> stacks = new HashMap<>();
+        stacks.put("20180803_63_h2-40x-jrc2018_unisex_20x_hr",
+                "https://aws/bucket/Gen1+MCFO/VT007350/VT007350-20180803_63_H2-f-40x-brain-GAL4-JRC2018_Unisex_20x_HR-aligned_stack.h5j");
+        stacks.put("20160629_31_f6-20x-jrc2018_unisex_20x_hr",
+                "https://aws/bucket/Split+GAL4/LH2033/LH2033-20160629_31_F6-f-20x-brain-GAL4-JRC2018_Unisex_20x_HR-aligned_stack.h5j");
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        when(dynamoDbClient.query(any(QueryRequest.class)))
+                .then(invocation -> {
+                    QueryRequest request = invocation.getArgument(0);
+                    if (LM_STACKS_TABLE.equals(request.tableName())) {
+                        String stack = stacks.get(request.expressionAttributeValues().get(":itemType").s());
+                        Map<String, AttributeValue> files = Collections.singletonMap("VisuallyLosslessStack", AttributeValue.builder().s(stack).build());
+                        return QueryResponse.builder()
+                                .items(Collections.singletonList(Collections.singletonMap("files", AttributeValue.builder().m(files).build())))
+                                .build();
+                    } else if (request.hasExclusiveStartKey()) {
+                        return QueryResponse.builder()
+                                .items(Collections.singletonList(createBatchItem("test_intermediate_lm_batchresult-2.json", false)))
+                                .build();
+                    } else {
+                        return QueryResponse.builder()
+                                .items(Collections.singletonList(createBatchItem("test_intermediate_lm_batchresult-1.json", true)))
+                                .lastEvaluatedKey(lastEvaluatedKey)
+                                .build();
+                    }
+                });
+        InMemoryS3 s3 = new InMemoryS3(new StorageSimulation(0, 0), (bucket, key) -> "s3");
+        SearchCombiner searchCombiner = new SearchCombiner(() -> s3, () -> dynamoDbClient, LM_STACKS_TABLE, null, 0);
+        SearchCombinerParameters params = new SearchCombinerParameters();
+        params.setJobId("a44f76f0-4f07-11ed-87a8-d3d63f8b8c1a");
+        params.setTasksTableName(TASKS_TABLE);
+        params.setSearchBucket(SEARCH_BUCKET);
+        params.setResultsKey("private/user/search/mask.result");
+
+        assertEquals(2, (int) searchCombiner.handleRequest(params, null));
+
+        JsonNode expectedResults = JSON_MAPPER.readTree(Paths.get("src/test/resources/test_final_lm_searchresult.json").toFile());
+        try (InputStream resultsStream = LambdaUtils.getObject(s3, SEARCH_BUCKET, "private/user/search/mask.result")) {
+            assertEquals(expectedResults, JSON_MAPPER.readTree(resultsStream));
+        }
+    }
+
+    @Test
+    public void totalMatchesIncludeTheResultsBeyondTheMaxResultsPerMask() throws Exception {
+        Map<String, AttributeValue> lastEvaluatedKey = Collections.singletonMap("batchId", AttributeValue.builder().n("1").build());
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        when(dynamoDbClient.query(any(QueryRequest.class)))
+                .then(invocation -> {
+                    QueryRequest request = invocation.getArgument(0);
+                    if (request.hasExclusiveStartKey()) {
+                        return QueryResponse.builder()
+                                .items(Collections.singletonList(createBatchItem("test_intermediate_lm_batchresult-2.json", false)))
+                                .build();
+                    } else {
+                        return QueryResponse.builder()
+                                .items(Collections.singletonList(createBatchItem("test_intermediate_lm_batchresult-1.json", false)))
+                                .lastEvaluatedKey(lastEvaluatedKey)
+                                .build();
+                    }
+                });
+        InMemoryS3 s3 = new InMemoryS3(new StorageSimulation(0, 0), (bucket, key) -> "s3");
+        SearchCombiner searchCombiner = new SearchCombiner(() -> s3, () -> dynamoDbClient, null, null, 0);
+        SearchCombinerParameters params = new SearchCombinerParameters();
+        params.setJobId("a44f76f0-4f07-11ed-87a8-d3d63f8b8c1a");
+        params.setTasksTableName(TASKS_TABLE);
+        params.setSearchBucket(SEARCH_BUCKET);
+        params.setResultsKey("private/user/search/mask.result");
+        params.setMaxResultsPerMask(1);
+
+        // the same number of matches as the node combiner, which counts them before keeping the best results
+        assertEquals(2, (int) searchCombiner.handleRequest(params, null));
+
+        try (InputStream resultsStream = LambdaUtils.getObject(s3, SEARCH_BUCKET, "private/user/search/mask.result")) {
+            JsonNode results = JSON_MAPPER.readTree(resultsStream);
+            assertEquals(1, results.get("results").size());
+            assertEquals(210, results.get("results").get(0).get("matchingPixels").asInt());
+        }
+    }
+
+    @Test
+    public void totalMatchesOfMultipleBatchesAreCappedByMaxCustomResults() throws Exception {
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        when(dynamoDbClient.query(any(QueryRequest.class)))
+                .thenReturn(QueryResponse.builder()
+                        .items(Arrays.asList(
+                                createBatchItem("test_intermediate_lm_batchresult-1.json", false),
+                                createBatchItem("test_intermediate_lm_batchresult-2.json", true),
+                                createBatchItem("test_intermediate_lm_batchresult-1.json", false)))
+                        .build());
+        InMemoryS3 s3 = new InMemoryS3(new StorageSimulation(0, 0), (bucket, key) -> "s3");
+        SearchCombiner searchCombiner = new SearchCombiner(() -> s3, () -> dynamoDbClient, null, null, 2);
+        SearchCombinerParameters params = new SearchCombinerParameters();
+        params.setJobId("a44f76f0-4f07-11ed-87a8-d3d63f8b8c1a");
+        params.setTasksTableName(TASKS_TABLE);
+        params.setSearchBucket(SEARCH_BUCKET);
+        params.setResultsKey("private/user/search/mask.result");
+
+        // the node combiner keeps 2 of the 3 matches of the mask after merging the batches and counts 2 matches
+        assertEquals(2, (int) searchCombiner.handleRequest(params, null));
+
+        try (InputStream resultsStream = LambdaUtils.getObject(s3, SEARCH_BUCKET, "private/user/search/mask.result")) {
+            JsonNode results = JSON_MAPPER.readTree(resultsStream);
+            assertEquals(2, results.get("results").size());
+            assertEquals(210, results.get("results").get(0).get("matchingPixels").asInt());
+        }
+    }
+
+    @Test
+    public void mergePriorResultsOfIncrementalSearch() throws Exception {
+        String changedMIP = "JRC2018_Unisex_20x_HR/FlyLight_Split-GAL4_Drivers/searchable_neurons/70/LH2033-20160629_31_F6-Split_GAL4-f-20x-brain-JRC2018_Unisex_20x_HR-CDM_1-01.tif";
+        String removedMIP = "JRC2018_Unisex_20x_HR/FlyLight_Gen1_MCFO/searchable_neurons/835/VT007350-20180803_63_H2-GAL4-m-40x-brain-JRC2018_Unisex_20x_HR-CDM_2-03.tif";
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        when(dynamoDbClient.query(any(QueryRequest.class)))
+                .thenReturn(QueryResponse.builder()
+                        .items(Collections.singletonList(createBatchItem("test_intermediate_lm_batchresult-1.json", false)))
+                        .build());
+        InMemoryS3 s3 = new InMemoryS3(new StorageSimulation(0, 0), (bucket, key) -> "s3");
+        Map<String, String> priorManifest = new HashMap<>();
+        priorManifest.put(changedMIP, "1");
+        priorManifest.put(removedMIP, "2");
+        LibraryDelta delta = LibraryDelta.create(priorManifest, Collections.singletonMap(changedMIP, "3"));
+        s3.putContent("library", "delta.json", LambdaUtils.toJson(delta).getBytes(StandardCharsets.UTF_8));
+        s3.putContent(SEARCH_BUCKET, "private/user/search/prior.result",
+                Files.readAllBytes(Paths.get("src/test/resources/test_final_lm_searchresult.json")));
+        SearchCombiner searchCombiner = new SearchCombiner(() -> s3, () -> dynamoDbClient, null, null, 0);
+        SearchCombinerParameters params = new SearchCombinerParameters();
+        params.setJobId("a44f76f0-4f07-11ed-87a8-d3d63f8b8c1a");
+        params.setTasksTableName(TASKS_TABLE);
+        params.setSearchBucket(SEARCH_BUCKET);
+        params.setResultsKey("private/user/search/mask.result");
+        params.setPriorResultsKey("private/user/search/prior.result");
+        params.setLibraryBucket("library");
+        params.setLibraryDeltaKeys(Collections.singletonList("delta.json"));
+
+        assertEquals(1, (int) searchCombiner.handleRequest(params, null));
+
+        JsonNode priorResults = JSON_MAPPER.readTree(Paths.get("src/test/resources/test_final_lm_searchresult.json").toFile());
+        try (InputStream resultsStream = LambdaUtils.getObject(s3, SEARCH_BUCKET, "private/user/search/mask.result")) {
+            JsonNode results = JSON_MAPPER.readTree(resultsStream);
+            assertEquals(priorResults.get("inputImage"), results.get("inputImage"));
+            assertEquals(1, results.get("results").size());
+            // the prior match to the changed MIP is replaced by the new match, without the 3D stack
+            assertEquals(priorResults.get("results").get(1).get("files"), results.get("results").get(0).get("files"));
+            assertEquals(200, results.get("results").get(0).get("matchingPixels").asInt());
+        }
+    }
+
+    @Test
+    public void createLibraryDelta() {
+        Map<String, String> priorManifest = new HashMap<>();
+        priorManifest.put("lib/a.tif", "1");
+        priorManifest.put("lib/b.tif", "2");
+        priorManifest.put("lib/c.tif", "3");
+        Map<String, String> manifest = new HashMap<>();
+        manifest.put("lib/a.tif", "1");
+        manifest.put("lib/c.tif", "4");
+        manifest.put("lib/d.tif", "5");
+        LibraryDelta delta = LibraryDelta.create(priorManifest, manifest);
+        assertEquals(Arrays.asList("lib/c.tif", "lib/d.tif"), delta.getSearchKeys());
+        assertEquals(Collections.singletonList("lib/b.tif"), delta.getRemovedKeys());
+    }
+
+    @Test
+    public void mergeKeepsTheBestResultsOfAllBatches() {
+        MaskResultsMerger merger = new MaskResultsMerger(4);
+        int[][] batches = {
+                {90, 70, 50, 10},
+                {95, 60, 55},
+                // not sorted
+                {20, 80, 65}
+        };
+        for (int[] batch : batches) {
+            merger.startRun();
+            for (int score : batch) {
+                merger.add(JSON_MAPPER.createObjectNode().put("matchingPixels", score));
+            }
+            merger.endRun();
+        }
+        List<Integer> mergedScores = new ArrayList<>();
+        merger.merge().forEach(r -> mergedScores.add(MaskResultsMerger.getScore(r)));
+        assertEquals(Arrays.asList(95, 90, 80, 70), mergedScores);
+        // the rejected results are matches too
+        assertEquals(10, merger.getMatchesCount());
+    }
+
+    @Test
+    public void matchesCountIsCappedLikeTheNodeCombiner() {
+        MaskResultsMerger singleBatchMerger = new MaskResultsMerger(0);
+        addRun(singleBatchMerger, 90, 80, 70, 60, 50);
+        // the node combiner does not truncate the results of a mask found by a single batch
+        assertEquals(5, singleBatchMerger.getMatchesCount(4));
+
+        MaskResultsMerger multipleBatchesMerger = new MaskResultsMerger(0);
+        addRun(multipleBatchesMerger, 90, 80, 70, 60, 50);
+        addRun(multipleBatchesMerger, 85, 75, 65);
+        assertEquals(4, multipleBatchesMerger.getMatchesCount(4));
+        assertEquals(8, multipleBatchesMerger.getMatchesCount(0));
+    }
+
+    private void addRun(MaskResultsMerger merger, int... scores) {
+        merger.startRun();
+        for (int score : scores) {
+            merger.add(JSON_MAPPER.createObjectNode().put("matchingPixels", score));
+        }
+        merger.endRun();
+    }
+
+    private Map<String, AttributeValue> createBatchItem(String resultsResource, boolean gzipped) throws Exception {
+        byte[] results = Files.readAllBytes(Paths.get("src/test/resources", resultsResource));
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("jobId", AttributeValue.builder().s("a44f76f0-4f07-11ed-87a8-d3d63f8b8c1a").build());
+        if (gzipped) {
+            ByteArrayOutputStream gzippedResults = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzipStream = new GZIPOutputStream(gzippedResults)) {
+                gzipStream.write(results);
+            }
+            item.put("resultsMimeType", AttributeValue.builder().s("application/gzip").build());
+            item.put("results", AttributeValue.builder().s(Base64.getEncoder().encodeToString(gzippedResults.toByteArray())).build());
+        } else {
+            item.put("resultsMimeType", AttributeValue.builder().s("application/json").build());
+            item.put("results", AttributeValue.builder().s(new String(results, StandardCharsets.UTF_8)).build());
+        }
+        return item;
+    }
+
+}
@@ -0,0 +1,139 @@
+package org.janelia.colordepthsearch;
+
+import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SearchMemoTest {
+
+    private S3Client s3;
+    private String keysETag;
+
+    @Before
+    public void setUp() {
+        keysETag = "etag-1";
+        s3 = mock(S3Client.class);
+        when(s3.getObject(any(GetObjectRequest.class), any(ResponseTransformer.class)))
+                .then(invocation -> {
+                    GetObjectRequest request = invocation.getArgument(0);
+                    return new ResponseInputStream<>(
+                            GetObjectResponse.builder().build(),
+                            AbortableInputStream.create(new FileInputStream("src/test/resources/mips/" + request.key().replaceAll("^.*/", ""))));
+                });
+        when(s3.headObject(any(HeadObjectRequest.class)))
+                .then(invocation -> HeadObjectResponse.builder().eTag(keysETag).build());
+    }
+
+    @Test
+    public void memoKeyDependsOnMaskPixelsParametersAndLibraryVersion() {
+        String memoKey = createMemoKey(createParams("testMIP.png", 100));
+        assertEquals(memoKey, createMemoKey(createParams("testMIP.png", 100)));
+        assertNotEquals(memoKey, createMemoKey(createParams("testMIP.tif", 100)));
+        assertNotEquals(memoKey, createMemoKey(createParams("testMIP.png", 101)));
+        keysETag = "etag-2";
+        assertNotEquals(memoKey, createMemoKey(createParams("testMIP.png", 100)));
+    }
+
+    @Test
+    public void sameMaskPixelsOfAnotherSearchDoNotShareTheMemoKey() {
+        String memoKey = createMemoKey(createParams("private/user1/upload1/testMIP.png", 100));
+        assertEquals(memoKey, createMemoKey(createParams("private/user1/upload1/testMIP.png", 100)));
+        // the results embed the mask key, so an identical image uploaded by another search must be searched again
+        assertNotEquals(memoKey, createMemoKey(createParams("private/user2/upload2/testMIP.png", 100)));
+        BatchSearchParameters otherBucketParams = createParams("private/user1/upload1/testMIP.png", 100);
+        otherBucketParams.getJobParameters().setSearchBucket("other-searches");
+        assertNotEquals(memoKey, createMemoKey(otherBucketParams));
+    }
+
+    @Test
+    public void maskETagsReplaceTheMaskPixels() {
+        BatchSearchParameters params = createParams("private/user1/upload1/testMIP.png", 100);
+        params.getJobParameters().setMaskETags(Collections.singletonList("mask-etag-1"));
+        String memoKey = createMemoKey(params);
+        // the masks are not read when their ETags are known
+        verify(s3, never()).getObject(any(GetObjectRequest.class), any(ResponseTransformer.class));
+        params.getJobParameters().setMaskETags(Collections.singletonList("mask-etag-2"));
+        assertNotEquals(memoKey, createMemoKey(params));
+        assertNotEquals(createMemoKey(createParams("private/user1/upload1/testMIP.png", 100)), memoKey);
+    }
+
+    @Test
+    public void memoizedResultsAreReturnedUntilTheyExpire() {
+        Map<String, Map<String, AttributeValue>> memoTable = new HashMap<>();
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        when(dynamoDbClient.putItem(any(PutItemRequest.class)))
+                .then(invocation -> {
+                    PutItemRequest request = invocation.getArgument(0);
+                    memoTable.put(request.item().get("memoKey").s(), request.item());
+                    return PutItemResponse.builder().build();
+                });
+        when(dynamoDbClient.getItem(any(GetItemRequest.class)))
+                .then(invocation -> {
+                    GetItemRequest request = invocation.getArgument(0);
+                    Map<String, AttributeValue> item = memoTable.get(request.key().get("memoKey").s());
+                    return item != null
+                            ? GetItemResponse.builder().item(item).build()
+                            : GetItemResponse.builder().build();
+                });
+
+        SearchMemo searchMemo = new SearchMemo(dynamoDbClient, "memo", 3600);
+        assertNull(searchMemo.getResults("k1"));
+        searchMemo.putResults("k1", "[]", 0);
+        SearchMemo.MemoizedResults memoizedResults = searchMemo.getResults("k1");
+        assertNotNull(memoizedResults);
+        assertEquals("[]", memoizedResults.resultsJson);
+        assertEquals(0, memoizedResults.nMatches);
+
+        SearchMemo expiredSearchMemo = new SearchMemo(dynamoDbClient, "memo", -1);
+        expiredSearchMemo.putResults("k2", "[]", 0);
+        assertNull(expiredSearchMemo.getResults("k2"));
+    }
+
+    private String createMemoKey(BatchSearchParameters params) {
+        return SearchMemo.createMemoKey(s3, params, SearchMemo.readLibrariesVersion(s3, params.getJobParameters()));
+    }
+
+    private BatchSearchParameters createParams(String maskKey, int dataThreshold) {
+        ColorDepthSearchParameters jobParams = new ColorDepthSearchParameters();
+        jobParams.setSearchBucket("searches");
+        jobParams.setMaskKeys(Collections.singletonList(maskKey));
+        jobParams.setMaskThresholds(Collections.singletonList(100));
+        jobParams.setLibraryBucket("janelia-flylight-color-depth");
+        jobParams.setLibraries(Collections.singletonList("JRC2018_Unisex_20x_HR/FlyEM_Hemibrain_v1.2.1/searchable_neurons"));
+        jobParams.setDataThreshold(dataThreshold);
+        BatchSearchParameters params = new BatchSearchParameters();
+        params.setJobParameters(jobParams);
+        params.setStartIndex(0);
+        params.setEndIndex(500);
+        return params;
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.janelia.colordepthsearch;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchRecordingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordSearchEvents() throws Exception {
+        SearchRecording recording = SearchRecording.start("test-recording");
+        SearchEvents.TargetScore scoreEvent = new SearchEvents.TargetScore();
+        scoreEvent.begin();
+        scoreEvent.mask = "mask.png";
+        scoreEvent.target = "target.png";
+        scoreEvent.matchingPixels = 10;
+        scoreEvent.commit();
+        Path recordingFile = recording.stop(folder.getRoot().toPath());
+
+        assertTrue(Files.exists(recordingFile));
+        int nScoreEvents = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+            if ("org.janelia.colordepthsearch.TargetScore".equals(event.getEventType().getName())) {
+                assertEquals("target.png", event.getString("target"));
+                assertEquals(10, event.getInt("matchingPixels"));
+                nScoreEvents++;
+            }
+        }
+        assertEquals(1, nScoreEvents);
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.janelia.colordepthsearch;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProviderFactory;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShiftBoundedPixelMatchTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void sameScoresAsTheExhaustiveShiftEvaluation() {
+        Random random = new Random(11);
+        int nShiftedEvaluations = 0;
+        int nExhaustiveEvaluations = 0;
+        for (boolean mirrorMask : new boolean[]{false, true}) {
+            for (int xyShift : new int[]{2, 4}) {
+                ImageArray<?> mask = TestImages.randomSignalImage(random, WIDTH, HEIGHT, 0.15);
+                ColorDepthSearchAlgorithm<ColorMIPMatchScore> exhaustiveSearch = ColorDepthSearchAlgorithmProviderFactory
+                        .createPixMatchCDSAlgorithmProvider(mirrorMask, 100, 2.0, xyShift)
+                        .createColorDepthQuerySearchAlgorithm(mask, 100, 0);
+                AtomicInteger nEvaluations = new AtomicInteger();
+                ColorDepthSearchAlgorithm<ColorMIPMatchScore> unshiftedSearch = countEvaluations(
+                        ColorDepthSearchAlgorithmProviderFactory
+                                .createPixMatchCDSAlgorithmProvider(false, 100, 2.0, 0)
+                                .createColorDepthQuerySearchAlgorithm(mask, 100, 0),
+                        nEvaluations);
+                SignalBitsets.MaskBits maskBits = SignalBitsets.createMaskBits(mask, 100, xyShift, mirrorMask);
+                ShiftBoundedPixelMatch shiftBoundedSearch = new ShiftBoundedPixelMatch(exhaustiveSearch, unshiftedSearch, maskBits, 100);
+                for (int t = 0; t < 10; t++) {
+                    ImageArray<?> target = t % 2 == 0
+                            ? TestImages.randomSignalImage(random, WIDTH, HEIGHT, 0.15)
+                            : shiftImage(mask, random.nextInt(5) - 2, random.nextInt(5) - 2);
+                    ColorMIPMatchScore expectedScore = exhaustiveSearch.calculateMatchingScore(target, Collections.emptyMap());
+                    ColorMIPMatchScore score = shiftBoundedSearch.calculateMatchingScore(target, Collections.emptyMap());
+                    assertEquals(expectedScore.getMatchingPixNum(), score.getMatchingPixNum());
+                    assertEquals(expectedScore.getMatchingPixNumToMaskRatio(), score.getMatchingPixNumToMaskRatio(), 1e-9);
+                }
+                nShiftedEvaluations += nEvaluations.get();
+                nExhaustiveEvaluations += 10 * maskBits.getShiftsCount();
+            }
+        }
+        assertTrue(nShiftedEvaluations < nExhaustiveEvaluations);
+    }
+
+    private ColorDepthSearchAlgorithm<ColorMIPMatchScore> countEvaluations(ColorDepthSearchAlgorithm<ColorMIPMatchScore> search, AtomicInteger nEvaluations) {
+        return new ColorDepthSearchAlgorithm<ColorMIPMatchScore>() {
+            @Override
+            public ImageArray<?> getQueryImage() {
+                return search.getQueryImage();
+            }
+
+            @Override
+            public int getQueryFirstPixelIndex() {
+                return search.getQueryFirstPixelIndex();
+            }
+
+            @Override
+            public int getQueryLastPixelIndex() {
+                return search.getQueryLastPixelIndex();
+            }
+
+            @Override
+            public Set<String> getRequiredTargetVariantTypes() {
+                return search.getRequiredTargetVariantTypes();
+            }
+
+            @Override
+            public ColorMIPMatchScore calculateMatchingScore(ImageArray<?> targetImageArray, Map<String, Supplier<ImageArray<?>>> variantImageSuppliers) {
+                nEvaluations.incrementAndGet();
+                return search.calculateMatchingScore(targetImageArray, variantImageSuppliers);
+            }
+        };
+    }
+
+    private ImageArray<?> shiftImage(ImageArray<?> image, int dx, int dy) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sx = x - dx;
+                int sy = y - dy;
+                if (sx >= 0 && sx < WIDTH && sy >= 0 && sy < HEIGHT) {
+                    pixels[y * WIDTH + x] = image.get(sy * WIDTH + sx);
+                }
+            }
+        }
+        return new ColorImageArray(ImageType.RGB, WIDTH, HEIGHT, pixels);
+    }
+
+}
@@ -0,0 +1,127 @@
+package org.janelia.colordepthsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.api.cdsearch.ColorDepthSearchAlgorithmProviderFactory;
+import org.janelia.colormipsearch.api.cdsearch.ColorMIPMatchScore;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignalBitsetsTest {
+
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 40;
+
+    @Test
+    public void readTargetBitsWithOneRangedRead() throws Exception {
+        Random random = new Random(17);
+        SignalBitsets.Builder bitsetsBuilder = new SignalBitsets.Builder(100);
+        for (int t = 0; t < 4; t++) {
+            ImageRowsDecoder.decodeRows(TestImages.randomSignalImage(random, WIDTH, HEIGHT, 0.1), bitsetsBuilder.addTarget("lib/t" + t + ".png"));
+        }
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+        bitsetsBuilder.write(indexBytes, dataBytes);
+        SignalBitsets signalBitsets = SignalBitsets.read(new ByteArrayInputStream(indexBytes.toByteArray()));
+        assertEquals(4, signalBitsets.getTargetsCount());
+        assertEquals(WIDTH, signalBitsets.getWidth());
+        assertEquals(HEIGHT, signalBitsets.getHeight());
+
+        byte[] data = dataBytes.toByteArray();
+        int[] nReads = new int[1];
+        Map<String, long[]> targetBits = signalBitsets.readTargetBits(Arrays.asList("lib/t1.png", "lib/t2.png", "lib/t9.png"), (start, end) -> {
+            nReads[0]++;
+            return new ByteArrayInputStream(data, (int) start, (int) (end - start + 1));
+        });
+        assertEquals(1, nReads[0]);
+        assertEquals(2, targetBits.size());
+        assertTrue(targetBits.containsKey("lib/t2.png"));
+        assertFalse(targetBits.containsKey("lib/t9.png"));
+    }
+
+    @Test
+    public void readDistantTargetBitsWithSeparateRangedReads() throws Exception {
+        Random random = new Random(36);
+        SignalBitsets.Builder bitsetsBuilder = new SignalBitsets.Builder(100);
+        List<ImageArray<?>> targets = new ArrayList<>();
+        for (int t = 0; t < 400; t++) {
+            ImageArray<?> target = TestImages.randomSignalImage(random, WIDTH, HEIGHT, 0.5);
+            targets.add(target);
+            ImageRowsDecoder.decodeRows(target, bitsetsBuilder.addTarget("lib/t" + t + ".png"));
+        }
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+        bitsetsBuilder.write(indexBytes, dataBytes);
+        SignalBitsets signalBitsets = SignalBitsets.read(new ByteArrayInputStream(indexBytes.toByteArray()));
+
+        byte[] data = dataBytes.toByteArray();
+        int[] nReads = new int[1];
+        long[] nReadBytes = new long[1];
+        // the targets of the batch are in a different order than in the data object and far apart
+        Map<String, long[]> targetBits = signalBitsets.readTargetBits(Arrays.asList("lib/t399.png", "lib/t1.png", "lib/t0.png", "lib/t398.png"), (start, end) -> {
+            nReads[0]++;
+            nReadBytes[0] += end - start + 1;
+            return new ByteArrayInputStream(data, (int) start, (int) (end - start + 1));
+        });
+        assertEquals(2, nReads[0]);
+        assertTrue(nReadBytes[0] < data.length / 10);
+        assertEquals(4, targetBits.size());
+        for (int t : new int[]{0, 1, 398, 399}) {
+            assertArrayEquals(SignalBitsets.createTargetBits(targets.get(t), 100, 0, WIDTH * HEIGHT - 1), targetBits.get("lib/t" + t + ".png"));
+        }
+    }
+
+    @Test
+    public void boundIsNeverBelowTheMatchingPixels() throws Exception {
+        Random random = new Random(5);
+        for (boolean mirrorMask : new boolean[]{false, true}) {
+            for (int xyShift : new int[]{0, 2, 4}) {
+                ImageArray<?> mask = TestImages.randomSignalImage(random, WIDTH, HEIGHT, 0.2);
+                ColorDepthSearchAlgorithm<ColorMIPMatchScore> maskSearch = ColorDepthSearchAlgorithmProviderFactory
+                        .createPixMatchCDSAlgorithmProvider(mirrorMask, 100, 2.0, xyShift)
+                        .createColorDepthQuerySearchAlgorithm(mask, 100, 0);
+                SignalBitsets.MaskBits maskBits = SignalBitsets.createMaskBits(mask, 100, xyShift, mirrorMask);
+                for (int t = 0; t < 10; t++) {
+                    ImageArray<?> target = TestImages.randomSignalImage(random, WIDTH, HEIGHT, 0.2);
+                    long[] targetBits = createTargetBits(target);
+                    int matchingPixels = maskSearch.calculateMatchingScore(target, Collections.emptyMap()).getMatchingPixNum();
+                    assertTrue(maskBits.getMatchingPixelsBound(targetBits, Integer.MAX_VALUE) >= matchingPixels);
+                    // the single pass bounds are the bounds of the individual shifts
+                    int[] shiftBounds = maskBits.getShiftBounds(targetBits);
+                    for (int s = 0; s < maskBits.getShiftsCount(); s++) {
+                        assertEquals(maskBits.getShiftBound(s, targetBits), shiftBounds[s]);
+                    }
+                }
+                // no target signal means no possible match
+                assertEquals(0, maskBits.getMatchingPixelsBound(createTargetBits(new ColorImageArray(ImageType.RGB, WIDTH, HEIGHT, new int[WIDTH * HEIGHT])), Integer.MAX_VALUE));
+            }
+        }
+    }
+
+    private long[] createTargetBits(ImageArray<?> target) throws Exception {
+        SignalBitsets.Builder bitsetsBuilder = new SignalBitsets.Builder(100);
+        ImageRowsDecoder.decodeRows(target, bitsetsBuilder.addTarget("target.png"));
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+        bitsetsBuilder.write(indexBytes, dataBytes);
+        return SignalBitsets.read(new ByteArrayInputStream(indexBytes.toByteArray()))
+                .readTargetBits(Collections.singletonList("target.png"), (start, end) -> new ByteArrayInputStream(dataBytes.toByteArray()))
+                .get("target.png");
+    }
+
+}
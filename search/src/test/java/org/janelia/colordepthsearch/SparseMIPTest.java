@@ -0,0 +1,60 @@
+package org.janelia.colordepthsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SparseMIPTest {
+
+    @Test
+    public void sparseMIPMatchesDenseMIP() throws Exception {
+        for (String mipFile : new String[]{"src/test/resources/mips/testMIP.png", "src/test/resources/mips/testMIP.tif"}) {
+            ImageArray<?> denseMIP;
+            try (InputStream mipStream = new FileInputStream(mipFile)) {
+                denseMIP = ImageArrayUtils.readImageArray(mipFile, mipFile, mipStream);
+            }
+            SparseMIP.Builder sparseMIPBuilder = new SparseMIP.Builder(100);
+            try (InputStream mipStream = new FileInputStream(mipFile)) {
+                ImageRowsDecoder.decodeRows(mipStream, 0, Long.MAX_VALUE, sparseMIPBuilder);
+            }
+            SparseMIP sparseMIP = sparseMIPBuilder.build();
+            ByteArrayOutputStream sparseMIPBytes = new ByteArrayOutputStream();
+            sparseMIP.write(sparseMIPBytes);
+            SparseMIP storedSparseMIP = SparseMIP.read(new ByteArrayInputStream(sparseMIPBytes.toByteArray()));
+
+            assertEquals(sparseMIP.getSignalPixelsCount(), storedSparseMIP.getSignalPixelsCount());
+            assertEquals(new SparseMIP.Builder(100).addImageArray(denseMIP).build().getSignalPixelsCount(), storedSparseMIP.getSignalPixelsCount());
+            assertTrue(storedSparseMIP.getSignalPixelsCount() < denseMIP.getWidth() * denseMIP.getHeight());
+            assertTrue(storedSparseMIP.isEquivalentForDataThreshold(100));
+            assertFalse(storedSparseMIP.isEquivalentForDataThreshold(99));
+
+            long start = 200 * denseMIP.getWidth() + 10;
+            long end = 400 * denseMIP.getWidth() + 10;
+            ImageArray<?> sparseMIPRange = storedSparseMIP.toImageArray(start, end);
+            assertEquals(denseMIP.getWidth(), sparseMIPRange.getWidth());
+            assertEquals(denseMIP.getHeight(), sparseMIPRange.getHeight());
+            for (int i = 0; i < denseMIP.getWidth() * denseMIP.getHeight(); i++) {
+                int rgb = denseMIP.get(i) & 0xffffff;
+                int expectedRGB = i >= start && i <= end && SparseMIP.isSignal(rgb, 100) ? rgb : 0;
+                assertEquals(mipFile + " pixel " + i, expectedRGB, sparseMIPRange.get(i) & 0xffffff);
+            }
+        }
+    }
+
+    @Test
+    public void sparseMIPName() {
+        assertEquals("lib/sparse/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.smip",
+                LibraryConverter.getSparseMIPName("lib/sparse/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.tif"));
+        assertEquals("lib/sparse.v1/mip.smip", LibraryConverter.getSparseMIPName("lib/sparse.v1/mip"));
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.janelia.colordepthsearch;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, throttling and traffic accounting shared by the in-memory storage stand-ins.
+ * Every request waits for the configured latency. When a request rate limit is set, the requests above the limit
+ * are delayed until the next free slot, which is how the SDK retries end up behaving for a throttled service.
+ */
+class StorageSimulation {
+
+    static class PhaseStats {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong throttledRequests = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    private final long latencyMillis;
+    private final double requestsPerSecond;
+    private final Map<String, PhaseStats> phases = new ConcurrentSkipListMap<>();
+    private long nextRequestSlot;
+
+    /**
+     * @param latencyMillis     latency added to every request
+     * @param requestsPerSecond maximum request rate or 0 for no limit
+     */
+    StorageSimulation(long latencyMillis, double requestsPerSecond) {
+        this.latencyMillis = latencyMillis;
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * Wait as a request of the given phase would.
+     *
+     * @return the start time of the request
+     */
+    long startRequest(String phase) {
+        long startTime = System.nanoTime();
+        long throttleDelay = reserveRequestSlot(startTime);
+        if (throttleDelay > 0) {
+            getPhaseStats(phase).throttledRequests.incrementAndGet();
+        }
+        long delay = throttleDelay + TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        return startTime;
+    }
+
+    void endRequest(String phase, long startTime, long bytes) {
+        PhaseStats phaseStats = getPhaseStats(phase);
+        phaseStats.requests.incrementAndGet();
+        phaseStats.nanos.addAndGet(System.nanoTime() - startTime);
+        phaseStats.bytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return the stats of the phases with requests since the last reset
+     */
+    Map<String, PhaseStats> getPhases() {
+        return new TreeMap<>(phases);
+    }
+
+    void reset() {
+        phases.clear();
+    }
+
+    private synchronized long reserveRequestSlot(long now) {
+        if (requestsPerSecond <= 0) {
+            return 0;
+        }
+        long slot = Math.max(now, nextRequestSlot);
+        nextRequestSlot = slot + (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        return slot - now;
+    }
+
+    private PhaseStats getPhaseStats(String phase) {
+        return phases.computeIfAbsent(phase, p -> new PhaseStats());
+    }
+
+}
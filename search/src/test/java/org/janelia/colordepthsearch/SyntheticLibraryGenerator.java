@@ -0,0 +1,124 @@
+package org.janelia.colordepthsearch;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generator of synthetic color depth MIP libraries. Every MIP is a set of random neuron-like branches drawn
+ * with the color of their depth, until the requested fraction of the image has signal.
+ */
+class SyntheticLibraryGenerator {
+
+    // BatchSearch reads the key list from one of 100 randomly chosen copies
+    private static final int KEY_LIST_COPIES = 100;
+
+    private final Random random;
+
+    SyntheticLibraryGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generate the MIPs of a library and its key lists.
+     *
+     * @param sparsity fraction of the pixels of a MIP that have signal
+     * @return the keys of the library MIPs
+     */
+    List<String> generateLibrary(InMemoryS3 s3, String bucket, String library, int nMIPs, int width, int height, double sparsity) {
+        List<String> keys = new ArrayList<>(nMIPs);
+        for (int i = 0; i < nMIPs; i++) {
+            String key = String.format("%s/synthetic-%07d.png", library, i);
+            s3.putContent(bucket, key, toPNG(createMIP(width, height, sparsity)));
+            keys.add(key);
+        }
+        byte[] keyList = LambdaUtils.toJson(keys).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < KEY_LIST_COPIES; i++) {
+            s3.putContent(bucket, library + "/KEYS/" + i + "/keys_denormalized.json", keyList);
+        }
+        return keys;
+    }
+
+    BufferedImage createMIP(int width, int height, double sparsity) {
+        if (sparsity < 0 || sparsity > 0.5) {
+            throw new IllegalArgumentException("Sparsity must be between 0 and 0.5: " + sparsity);
+        }
+        BufferedImage mip = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        long signalPixels = 0;
+        long maxSignalPixels = (long) (sparsity * width * height);
+        while (signalPixels < maxSignalPixels) {
+            signalPixels += drawBranch(mip, maxSignalPixels - signalPixels);
+        }
+        return mip;
+    }
+
+    /**
+     * @return a mask made of the part of the MIP inside a random window that covers a quarter of the image
+     */
+    BufferedImage createMask(BufferedImage mip) {
+        int width = mip.getWidth();
+        int height = mip.getHeight();
+        int x0 = random.nextInt(width / 2 + 1);
+        int y0 = random.nextInt(height / 2 + 1);
+        BufferedImage mask = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = y0; y < y0 + height / 2; y++) {
+            for (int x = x0; x < x0 + width / 2; x++) {
+                mask.setRGB(x, y, mip.getRGB(x, y));
+            }
+        }
+        return mask;
+    }
+
+    static byte[] toPNG(BufferedImage image) {
+        ByteArrayOutputStream pngStream = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", pngStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return pngStream.toByteArray();
+    }
+
+    private long drawBranch(BufferedImage mip, long maxPixels) {
+        int width = mip.getWidth();
+        int height = mip.getHeight();
+        double x = random.nextInt(width);
+        double y = random.nextInt(height);
+        double z = random.nextDouble();
+        double direction = random.nextDouble() * 2 * Math.PI;
+        int length = 20 + random.nextInt(Math.max(1, Math.min(width, height)));
+        long drawnPixels = 0;
+        for (int step = 0; step < length && drawnPixels < maxPixels; step++) {
+            int px = (int) x;
+            int py = (int) y;
+            if (px < 0 || px >= width || py < 0 || py >= height) {
+                break;
+            }
+            if ((mip.getRGB(px, py) & 0xffffff) == 0) {
+                mip.setRGB(px, py, depthColor(z));
+                drawnPixels++;
+            }
+            direction += random.nextGaussian() * 0.3;
+            x += Math.cos(direction);
+            y += Math.sin(direction);
+            z = Math.min(1, Math.max(0, z + random.nextGaussian() * 0.01));
+        }
+        return drawnPixels;
+    }
+
+    /**
+     * @return the color of a depth between 0 and 1, going from blue to red
+     */
+    private static int depthColor(double z) {
+        return Color.HSBtoRGB((float) ((1 - z) * 2 / 3), 1f, 1f) & 0xffffff;
+    }
+
+}
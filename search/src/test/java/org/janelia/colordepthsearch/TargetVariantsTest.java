@@ -0,0 +1,113 @@
+package org.janelia.colordepthsearch;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+
+public class TargetVariantsTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TargetVariantsTest.class);
+
+    private static final String TEST_BUCKET = "janelia-flylight-color-depth";
+
+    @Test
+    public void gradientHoldsTheDistanceToTheSignal() {
+        int width = 40;
+        int height = 30;
+        int[] pixels = new int[width * height];
+        pixels[10 * width + 10] = 0xff0000;
+        // below the data threshold
+        pixels[10 * width + 14] = 0x202020;
+        ImageArray<?> gradient = TargetVariants.createGradientImage(new ColorImageArray(ImageType.RGB, width, height, pixels), 100, 5, 5 * width, 20 * width - 1);
+        assertEquals(0, gradient.get(10 * width + 10));
+        assertEquals(1, gradient.get(10 * width + 11));
+        assertEquals(3, gradient.get(10 * width + 13));
+        assertEquals(4, gradient.get(10 * width + 14));
+        assertEquals(3, gradient.get(12 * width + 12));
+        assertEquals(5, gradient.get(10 * width + 30));
+        // the signal above the range counts, the pixels outside the range are not computed
+        assertEquals(5, gradient.get(5 * width + 10));
+        assertEquals(0, gradient.get(4 * width + 10));
+        assertEquals(0, gradient.get(25 * width + 30));
+    }
+
+    @Test
+    public void zgapDilatesTheColors() {
+        int width = 20;
+        int height = 20;
+        int[] pixels = new int[width * height];
+        pixels[10 * width + 10] = 0xff0000;
+        pixels[10 * width + 11] = 0x0000ff;
+        ImageArray<?> zgap = TargetVariants.createZGapImage(new ColorImageArray(ImageType.RGB, width, height, pixels), 0, width * height - 1);
+        assertEquals(0xff00ff, zgap.get(10 * width + 10));
+        assertEquals(0xff00ff, zgap.get(9 * width + 11));
+        assertEquals(0xff0000, zgap.get(11 * width + 9));
+        assertEquals(0x0000ff, zgap.get(11 * width + 12));
+        assertEquals(0, zgap.get(10 * width + 13));
+        assertEquals(0, zgap.get(8 * width + 10));
+    }
+
+    /**
+     * Benchmark of the variants of a fixture MIP fetched from a simulated S3 and computed from the MIP.
+     */
+    @Test
+    public void fetchOrComputeVariants() throws Exception {
+        ImageArray<?> target;
+        try (InputStream mipStream = new FileInputStream("src/test/resources/mips/testMIP.tif")) {
+            target = ImageArrayUtils.readImageArray("testMIP", "testMIP.tif", mipStream);
+        }
+        long endPixel = (long) target.getWidth() * target.getHeight() - 1;
+        StorageSimulation storageSimulation = new StorageSimulation(15, 0);
+        InMemoryS3 s3 = new InMemoryS3(storageSimulation, (bucket, key) -> "variants");
+        s3.putContent(TEST_BUCKET, "lib/grad/testMIP.png", toPNG(TargetVariants.createGradientImage(target, 100, 20, 0, endPixel)));
+        s3.putContent(TEST_BUCKET, "lib/zgap/testMIP.png", toPNG(TargetVariants.createZGapImage(target, 0, endPixel)));
+        AWSMIPLoader mipLoader = new AWSMIPLoader(s3, new PixelBufferPool());
+
+        int nTargets = 10;
+        long fetchTime = 0;
+        long computeTime = 0;
+        for (int t = 0; t < nTargets; t++) {
+            long startTime = System.nanoTime();
+            mipLoader.loadFirstMatchingImageRange(TEST_BUCKET, "lib/grad/testMIP", 0, endPixel);
+            ImageArray<?> fetchedZGap = mipLoader.loadFirstMatchingImageRange(TEST_BUCKET, "lib/zgap/testMIP", 0, endPixel);
+            fetchTime += System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            TargetVariants.createGradientImage(target, 100, 20, 0, endPixel);
+            ImageArray<?> computedZGap = TargetVariants.createZGapImage(target, 0, endPixel);
+            computeTime += System.nanoTime() - startTime;
+            for (int i = 0; i <= endPixel; i += 97) {
+                assertEquals(computedZGap.get(i) & 0xffffff, fetchedZGap.get(i) & 0xffffff);
+            }
+        }
+        // a list and a get request per variant
+        assertEquals(4 * nTargets, storageSimulation.getPhases().get("variants").requests.get());
+        LOG.info("Gradient and zgap variants of {} targets: fetched in {}ms, computed in {}ms",
+                nTargets, fetchTime / 1000000, computeTime / 1000000);
+    }
+
+    private byte[] toPNG(ImageArray<?> imageArray) throws Exception {
+        BufferedImage image = new BufferedImage(imageArray.getWidth(), imageArray.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < imageArray.getHeight(); y++) {
+            for (int x = 0; x < imageArray.getWidth(); x++) {
+                image.setRGB(x, y, imageArray.get(y * imageArray.getWidth() + x));
+            }
+        }
+        ByteArrayOutputStream pngBytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", pngBytes);
+        return pngBytes.toByteArray();
+    }
+
+}
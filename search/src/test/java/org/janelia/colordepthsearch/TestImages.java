@@ -0,0 +1,39 @@
+package org.janelia.colordepthsearch;
+
+import java.util.Random;
+
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+
+/**
+ * Synthetic color depth MIPs shared by the search tests.
+ */
+class TestImages {
+
+    /**
+     * @return an RGB image in which the given fraction of the pixels has a random signal color
+     * and the other pixels are black
+     */
+    static ImageArray<?> randomSignalImage(Random random, int width, int height, double signalFraction) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            if (random.nextDouble() < signalFraction) {
+                pixels[i] = (150 + random.nextInt(100)) << 16 | (150 + random.nextInt(100)) << 8;
+            }
+        }
+        return new ColorImageArray(ImageType.RGB, width, height, pixels);
+    }
+
+    /**
+     * @return a copy of the image in which the given fraction of the pixels is set to black
+     */
+    static ImageArray<?> withDroppedPixels(Random random, ImageArray<?> image, double dropFraction) {
+        int[] pixels = new int[image.getWidth() * image.getHeight()];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextDouble() < dropFraction ? 0 : image.get(i);
+        }
+        return new ColorImageArray(ImageType.RGB, image.getWidth(), image.getHeight(), pixels);
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.janelia.colordepthsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.BitSet;
+
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TileColorIndexTest {
+
+    private static final int RED = 0xff0000;
+    private static final int BLUE = 0x0000ff;
+
+    @Test
+    public void shortlistTargetsSharingTheMaskFootprint() throws Exception {
+        TileColorIndex.Builder indexBuilder = new TileColorIndex.Builder(32, 16, 100);
+        ImageRowsDecoder.decodeRows(createImage(5, 5, RED), indexBuilder.addTarget("lib/t0.png"));
+        ImageRowsDecoder.decodeRows(createImage(5, 5, BLUE), indexBuilder.addTarget("lib/t1.png"));
+        ImageRowsDecoder.decodeRows(createImage(60, 60, RED), indexBuilder.addTarget("lib/t2.png"));
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        indexBuilder.build().write(indexBytes);
+        TileColorIndex index = TileColorIndex.read(new ByteArrayInputStream(indexBytes.toByteArray()));
+        assertEquals(3, index.getTargetsCount());
+        assertTrue(index.containsTarget("lib/t1.png"));
+        assertFalse(index.containsTarget("lib/t3.png"));
+
+        // same tile and color
+        checkCandidates(index, index.findCandidates(createImage(20, 20, RED), 100, 0, false), true, false, false);
+        // the shift reaches the next tile
+        checkCandidates(index, index.findCandidates(createImage(34, 34, RED), 100, 4, false), true, false, true);
+        // only the mirrored mask overlaps the first target
+        checkCandidates(index, index.findCandidates(createImage(58, 5, RED), 100, 0, false), false, false, false);
+        checkCandidates(index, index.findCandidates(createImage(58, 5, RED), 100, 0, true), true, false, false);
+    }
+
+    private void checkCandidates(TileColorIndex index, BitSet candidates, boolean... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Target " + i, expected[i], index.isCandidate(candidates, "lib/t" + i + ".png"));
+        }
+    }
+
+    private ImageArray<?> createImage(int x, int y, int rgb) {
+        int[] pixels = new int[64 * 64];
+        pixels[y * 64 + x] = rgb;
+        return new ColorImageArray(ImageType.RGB, 64, 64, pixels);
+    }
+
+}
@@ -0,0 +1,137 @@
+package org.janelia.colordepthsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.colormipsearch.api.cdmips.MIPImage;
+import org.janelia.colormipsearch.api.cdmips.MIPMetadata;
+import org.janelia.colormipsearch.api.imageprocessing.ColorImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.api.imageprocessing.ImageArrayUtils;
+import org.janelia.colormipsearch.api.imageprocessing.ImageType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TiledMIPTest {
+
+    private static final String TEST_BUCKET = "library";
+
+    @Test
+    public void tiledMIPRegionsMatchDenseMIP() throws Exception {
+        String mipFile = "src/test/resources/mips/testMIP.tif";
+        ImageArray<?> denseMIP;
+        try (InputStream mipStream = new FileInputStream(mipFile)) {
+            denseMIP = ImageArrayUtils.readImageArray(mipFile, mipFile, mipStream);
+        }
+        int width = denseMIP.getWidth();
+        int height = denseMIP.getHeight();
+        TiledMIP.Builder tiledMIPBuilder = new TiledMIP.Builder(100, 32);
+        try (InputStream mipStream = new FileInputStream(mipFile)) {
+            ImageRowsDecoder.decodeRows(mipStream, 0, Long.MAX_VALUE, tiledMIPBuilder);
+        }
+        ByteArrayOutputStream tiledMIPBytes = new ByteArrayOutputStream();
+        tiledMIPBuilder.write(tiledMIPBytes);
+        StorageSimulation storageSimulation = new StorageSimulation(0, 0);
+        InMemoryS3 s3 = new InMemoryS3(storageSimulation, (bucket, key) -> "tiles");
+        s3.putContent(TEST_BUCKET, "mip.tmip", tiledMIPBytes.toByteArray());
+
+        // small mask on the left side of the image
+        int[] maskPixels = new int[width * height];
+        for (int y = 200; y < 260; y++) {
+            for (int x = 100; x < 150; x++) {
+                maskPixels[y * width + x] = 0xff0000;
+            }
+        }
+        List<TiledMIP.Region> regions = TiledMIP.getSearchedRegions(new ColorImageArray(ImageType.RGB, width, height, maskPixels), 100, 4, true);
+        assertTrue(isInRegions(96, 196, regions));
+        assertTrue(isInRegions(width - 1 - 149 - 4, 263, regions));
+        assertFalse(isInRegions(width / 2, 230, regions));
+
+        PixelBufferPool pixelBufferPool = new PixelBufferPool();
+        AWSMIPLoader mipLoader = new AWSMIPLoader(s3, pixelBufferPool);
+        MIPImage tiledImage = mipLoader.loadTiledMIPRegions(TEST_BUCKET, new MIPMetadata(), "mip.tmip", regions, 100);
+        ImageArray<?> imageArray = tiledImage.getImageArray();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = denseMIP.get(y * width + x) & 0xffffff;
+                int expectedRGB = SparseMIP.isSignal(rgb, 100) ? rgb : 0;
+                if (isInRegions(x, y, regions)) {
+                    assertEquals("Pixel " + x + "," + y, expectedRGB, imageArray.get(y * width + x) & 0xffffff);
+                } else {
+                    int tiledRGB = imageArray.get(y * width + x) & 0xffffff;
+                    assertTrue("Pixel " + x + "," + y, tiledRGB == 0 || tiledRGB == expectedRGB);
+                }
+            }
+        }
+        assertTrue(storageSimulation.getPhases().get("tiles").bytes.get() < tiledMIPBytes.size() / 2);
+        mipLoader.releaseMIP(tiledImage);
+        assertEquals(0, pixelBufferPool.getOutstandingLeases());
+
+        // the buffer is cleared before it is reused
+        MIPImage emptyRegionImage = mipLoader.loadTiledMIPRegions(TEST_BUCKET, new MIPMetadata(), "mip.tmip", Arrays.asList(), 100);
+        for (int i = 0; i < width * height; i++) {
+            assertEquals(0, emptyRegionImage.getImageArray().get(i) & 0xffffff);
+        }
+        mipLoader.releaseMIP(emptyRegionImage);
+
+        assertNull(mipLoader.loadTiledMIPRegions(TEST_BUCKET, new MIPMetadata(), "mip.tmip", regions, 99));
+    }
+
+    @Test
+    public void searchedRegionsFollowTheMaskFootprint() {
+        int width = 256;
+        int height = 128;
+        // L shaped mask: a vertical bar on the left and a horizontal bar at the bottom
+        int[] maskPixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 10; x < 14; x++) {
+                maskPixels[y * width + x] = 0xff0000;
+            }
+        }
+        for (int x = 10; x < 100; x++) {
+            maskPixels[120 * width + x] = 0x00ff00;
+        }
+        int xyShift = 2;
+        List<TiledMIP.Region> regions = TiledMIP.getSearchedRegions(new ColorImageArray(ImageType.RGB, width, height, maskPixels), 100, xyShift, true);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (maskPixels[y * width + x] != 0) {
+                    for (int dy = -xyShift; dy <= xyShift; dy++) {
+                        for (int dx = -xyShift; dx <= xyShift; dx++) {
+                            int sy = Math.max(0, Math.min(height - 1, y + dy));
+                            assertTrue(isInRegions(Math.max(0, Math.min(width - 1, x + dx)), sy, regions));
+                            assertTrue(isInRegions(Math.max(0, Math.min(width - 1, width - 1 - x + dx)), sy, regions));
+                        }
+                    }
+                }
+            }
+        }
+        // inside the bounding boxes of the mask and of the mirrored mask but away from their signal
+        assertFalse(isInRegions(60, 40, regions));
+        assertFalse(isInRegions(width - 1 - 60, 40, regions));
+        assertTrue(TiledMIP.getSearchedRegions(new ColorImageArray(ImageType.RGB, width, height, new int[width * height]), 100, xyShift, true).isEmpty());
+    }
+
+    @Test
+    public void tiledMIPName() {
+        assertEquals("lib/tiled/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.tmip",
+                TiledMIP.getTiledMIPName("lib/tiled/1110173824-TC-JRC2018_Unisex_20x_HR-CDM.tif"));
+    }
+
+    private boolean isInRegions(int x, int y, List<TiledMIP.Region> regions) {
+        for (TiledMIP.Region region : regions) {
+            if (x >= region.x0 && x <= region.x1 && y >= region.y0 && y <= region.y1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}